@@ -1,7 +1,8 @@
 package de.codesourcery.toyprofiler;
 
 import java.io.File;
-import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.lang.instrument.ClassFileTransformer;
 import java.lang.instrument.IllegalClassFormatException;
@@ -11,9 +12,9 @@ import java.lang.management.ManagementFactory;
 import java.security.ProtectionDomain;
 import java.util.Arrays;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 import java.util.Stack;
-import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
 
 import javax.management.MBeanServer;
@@ -31,6 +32,8 @@ import org.objectweb.asm.util.TraceClassVisitor;
 import de.codesourcery.toyprofiler.Profile.MethodIdentifier;
 import de.codesourcery.toyprofiler.util.ClassMatcher;
 import de.codesourcery.toyprofiler.util.ParameterMap;
+import de.codesourcery.toyprofiler.util.ProfileFiles;
+import de.codesourcery.toyprofiler.util.XMLSerializer;
 
 public class Agent
 {
@@ -44,14 +47,14 @@ public class Agent
 	protected static ClassMatcher[] includedClasses = new ClassMatcher[0];
 	protected static ClassMatcher[] excludedClasses = new ClassMatcher[0];
 
-	protected static File outputFile;
+	protected static volatile File outputFile;
+	protected static boolean compressOutput;
+	protected static int livePort = -1;
 
 	protected static enum InstrumentationMode { ON_STARTUP , ON_REQUEST };
 
 	protected static final Set<String> classesToTransform = new HashSet<>();
 
-	protected static AtomicInteger uniqueID = new AtomicInteger(0);
-
 	private static InstrumentationMode mode;
 
 	private static Instrumentation instrumentation;
@@ -116,6 +119,27 @@ public class Agent
 		    }
 		}) );
 
+		// live snapshots are available in both modes. Registering the MBean creates dynamic proxies,
+		// which fails with a ClassCircularityError once a transformer is installed
+		final MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+		try {
+			final ObjectName name = new ObjectName("de.codesourcery.toyprofiler:type=AgentRemoteControlMBean");
+			mbs.registerMBean(new AgentRemoteControl(), name);
+		}
+		catch (Exception e )
+		{
+			throw new RuntimeException("Failed to register MBean",e);
+		}
+
+		if ( livePort != -1 )
+		{
+			try {
+				LiveSnapshots.listen( livePort );
+			} catch (IOException e) {
+				throw new RuntimeException("Failed to listen on port "+livePort,e);
+			}
+		}
+
 		if ( mode == InstrumentationMode.ON_STARTUP )
 		{
 			Profile.startProfiling();
@@ -125,29 +149,43 @@ public class Agent
 		{
 			scanningTransformer = new ScanningTransformer();
 			inst.addTransformer( scanningTransformer, false );
-
-			final MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
-			try {
-				final ObjectName name = new ObjectName("de.codesourcery.toyprofiler:type=AgentRemoteControlMBean");
-				mbs.registerMBean(new AgentRemoteControl(), name);
-			}
-			catch (Exception e )
-			{
-				throw new RuntimeException("Failed to register MBean",e);
-			}
 		}
 	}
 
 	private static void saveProfile()
 	{
         System.out.println("Saving profiling results to "+outputFile.getAbsolutePath());
-        try {
-            Profile.save( new FileOutputStream( outputFile ) );
+        try ( OutputStream out = ProfileFiles.openOutput( outputFile , compressOutput || ProfileFiles.isCompressedName( outputFile ) ) )
+        {
+            Profile.save( out );
         } catch(Exception e) {
+            System.err.println("Failed to save profiling results to "+outputFile.getAbsolutePath());
             e.printStackTrace();
         }
 	}
 
+	/**
+	 * Writes copies of the profiles recorded so far, profiling continues.
+	 *
+	 * @param file file to write to, <code>null</code> to use the output file
+	 * @return the file that got written
+	 * @throws IOException
+	 */
+	protected static File saveSnapshot(File file) throws IOException
+	{
+		final File target = file != null ? file : outputFile;
+		if ( target == null ) {
+			throw new IllegalStateException("No output file set");
+		}
+		final List<Profile> profiles = ProfileSnapshot.copyAll();
+		System.out.println("Saving snapshot of "+profiles.size()+" threads to "+target.getAbsolutePath());
+		try ( OutputStream out = ProfileFiles.openOutput( target , compressOutput || ProfileFiles.isCompressedName( target ) ) )
+		{
+			new XMLSerializer().save( ProfileSnapshot.getLiveMethods() , profiles , out );
+		}
+		return target;
+	}
+
 	protected static boolean needsTransform(String className)
 	{
 		for ( int i = 0 , len = excludedClasses.length ; i < len ; i++ )
@@ -227,6 +265,15 @@ public class Agent
 			System.out.println("Instrumenting classes on request");
 		}
 
+		compressOutput = arguments.getBoolean("compress",false);
+		if ( arguments.hasKey( "liveport" ) )
+		{
+			try {
+				livePort = Integer.parseInt( arguments.get( "liveport" ) );
+			} catch(NumberFormatException e) {
+				throw new RuntimeException("Invalid value '"+arguments.get("liveport")+"' for 'liveport' command-line parameter");
+			}
+		}
 		DEBUG_DUMP_STATISTICS = arguments.getBoolean("print",false);
 		DEBUG_TRANSFORM = arguments.getBoolean("debug",false);
 
@@ -335,7 +382,7 @@ public class Agent
 				System.out.println("Instrumenting method: "+currentClassName()+" - "+name+desc);
 			}
 
-			final int methodId = uniqueID.incrementAndGet();
+			final int methodId = Profile.allocateMethodId( currentClassName() , name , desc );
 			return new MethodVisitor(Opcodes.ASM5,visitor)
 			{
 			    private Label methodStart=new Label();
@@ -426,6 +473,8 @@ public class Agent
 
 	public static void startProfiling()
 	{
+		checkStartStopSupported();
+
 		if ( Profile.isProfilingEnabled() ) {
 			throw new IllegalStateException("Already profiling");
 		}
@@ -486,6 +535,8 @@ public class Agent
 
 	public static void stopProfiling()
 	{
+		checkStartStopSupported();
+
 		if ( ! Profile.isProfilingEnabled() ) {
 			throw new IllegalStateException("Not profiling ?");
 		}
@@ -493,8 +544,20 @@ public class Agent
 		Profile.stopProfiling();
 		// wait some time so any pending threads finish their work
 		try { Thread.sleep( 500 ); } catch (InterruptedException e) { /* nop */ }
-		saveProfile();
-		Profile.reset();
+		try {
+			saveProfile();
+		} finally {
+			Profile.reset();
+		}
+	}
+
+	private static void checkStartStopSupported()
+	{
+		// in startup mode the results get written on shutdown, stopping would write them early and
+		// discard the call trees while instrumented methods are still running
+		if ( mode == InstrumentationMode.ON_STARTUP ) {
+			throw new IllegalStateException("Agent profiles since startup (mode=startup), use the snapshot operations instead");
+		}
 	}
 
 	public static boolean isProfiling() {
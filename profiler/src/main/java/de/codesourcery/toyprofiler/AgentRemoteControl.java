@@ -1,5 +1,12 @@
 package de.codesourcery.toyprofiler;
 
+import java.io.File;
+import java.io.IOException;
+
+import javax.management.openmbean.CompositeData;
+import javax.management.openmbean.OpenDataException;
+import javax.management.openmbean.TabularData;
+
 final class AgentRemoteControl implements AgentRemoteControlMBean
 {
 	@Override
@@ -17,4 +24,47 @@ final class AgentRemoteControl implements AgentRemoteControlMBean
 	{
 		return Agent.isProfiling();
 	}
+
+	@Override
+	public byte[] getSnapshot(String sessionId,long lastSequence) throws IOException
+	{
+		return LiveSnapshots.getSnapshot( sessionId , lastSequence );
+	}
+
+	@Override
+	public String saveSnapshot(String path) throws IOException
+	{
+		return Agent.saveSnapshot( path == null || path.trim().isEmpty() ? null : new File( path.trim() ) ).getAbsolutePath();
+	}
+
+	@Override
+	public void resetCounters() {
+		Profile.resetCallTrees();
+	}
+
+	@Override
+	public TabularData getTopMethods(int count,String sortBy) throws OpenDataException {
+		return AgentStatistics.getTopMethods( count , sortBy );
+	}
+
+	@Override
+	public CompositeData getStatistics() throws OpenDataException {
+		return AgentStatistics.getStatistics();
+	}
+
+	@Override
+	public String getOutputFile()
+	{
+		final File file = Agent.outputFile;
+		return file == null ? null : file.getAbsolutePath();
+	}
+
+	@Override
+	public void setOutputFile(String path)
+	{
+		if ( path == null || path.trim().isEmpty() ) {
+			throw new IllegalArgumentException("Output file must not be blank");
+		}
+		Agent.outputFile = new File( path.trim() );
+	}
 }
\ No newline at end of file
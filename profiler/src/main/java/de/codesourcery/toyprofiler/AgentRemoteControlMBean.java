@@ -1,8 +1,65 @@
 package de.codesourcery.toyprofiler;
 
+import java.io.IOException;
+
+import javax.management.openmbean.CompositeData;
+import javax.management.openmbean.OpenDataException;
+import javax.management.openmbean.TabularData;
+
 public interface AgentRemoteControlMBean
 {
 	public void startProfiling();
 	public void stopProfiling();
 	public boolean isProfiling();
+
+	/**
+	 * Returns the changes to the recorded profiles since the last snapshot a viewer received.
+	 *
+	 * @param sessionId ID the viewer identifies itself with
+	 * @param lastSequence sequence number of the last snapshot the viewer received, 0 for none
+	 * @return see {@link de.codesourcery.toyprofiler.util.IncrementalSnapshot}
+	 * @throws IOException
+	 */
+	public byte[] getSnapshot(String sessionId,long lastSequence) throws IOException;
+
+	/**
+	 * Writes the profiles recorded so far to a file, profiling continues.
+	 *
+	 * @param path file to write to, the output file if <code>null</code> or empty
+	 * @return absolute path of the file that got written
+	 * @throws IOException
+	 */
+	public String saveSnapshot(String path) throws IOException;
+
+	/**
+	 * Discards the profiles recorded so far, profiling continues.
+	 */
+	public void resetCounters();
+
+	/**
+	 * Returns the methods with the highest values, aggregated across all call paths and threads.
+	 *
+	 * @param count maximum number of methods
+	 * @param sortBy <code>self</code>, <code>total</code> or <code>invocations</code>
+	 * @return
+	 * @throws OpenDataException
+	 */
+	public TabularData getTopMethods(int count,String sortBy) throws OpenDataException;
+
+	/**
+	 * Returns the number of recorded threads, call tree nodes and methods as well as the heap usage.
+	 *
+	 * @return
+	 * @throws OpenDataException
+	 */
+	public CompositeData getStatistics() throws OpenDataException;
+
+	public String getOutputFile();
+
+	/**
+	 * Sets the file profiling results get written to.
+	 *
+	 * @param path file to write to, must not be blank
+	 */
+	public void setOutputFile(String path);
 }
\ No newline at end of file
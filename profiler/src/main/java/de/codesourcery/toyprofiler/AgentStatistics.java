@@ -0,0 +1,133 @@
+package de.codesourcery.toyprofiler;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryUsage;
+import java.util.ArrayDeque;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+import javax.management.openmbean.CompositeData;
+import javax.management.openmbean.CompositeDataSupport;
+import javax.management.openmbean.CompositeType;
+import javax.management.openmbean.OpenDataException;
+import javax.management.openmbean.OpenType;
+import javax.management.openmbean.SimpleType;
+import javax.management.openmbean.TabularData;
+import javax.management.openmbean.TabularDataSupport;
+import javax.management.openmbean.TabularType;
+
+import de.codesourcery.toyprofiler.Profile.MethodIdentifier;
+import de.codesourcery.toyprofiler.Profile.MethodStats;
+import de.codesourcery.toyprofiler.util.MethodAggregates;
+
+/**
+ * Computes the statistics {@link AgentRemoteControlMBean} reports as open data, so generic JMX clients can show them.
+ *
+ * Threads are copied by {@link ProfileSnapshot} one at a time, the profiled threads keep running and
+ * at most one thread's call tree gets copied at any time.
+ */
+final class AgentStatistics
+{
+    private static final String[] METHOD_COLUMNS = { "rank" , "method" , "invocations" , "selfTimeMillis" , "totalTimeMillis" , "averageTimeMillis" , "frames" , "threads" };
+    private static final OpenType<?>[] METHOD_TYPES = { SimpleType.INTEGER , SimpleType.STRING , SimpleType.LONG , SimpleType.DOUBLE , SimpleType.DOUBLE , SimpleType.DOUBLE , SimpleType.INTEGER , SimpleType.INTEGER };
+
+    private static final String[] STATISTICS = { "profiling" , "threads" , "nodes" , "maxDepth" , "methods" , "copyTimeMillis" , "heapUsedBytes" , "heapCommittedBytes" , "heapMaxBytes" };
+    private static final OpenType<?>[] STATISTICS_TYPES = { SimpleType.BOOLEAN , SimpleType.INTEGER , SimpleType.LONG , SimpleType.INTEGER , SimpleType.INTEGER , SimpleType.LONG , SimpleType.LONG , SimpleType.LONG , SimpleType.LONG };
+
+    private AgentStatistics() {
+    }
+
+    /**
+     * Returns the methods with the highest values, aggregated across all call paths and threads.
+     *
+     * @param count maximum number of methods
+     * @param sortBy <code>self</code>, <code>total</code> or <code>invocations</code>
+     * @return
+     * @throws OpenDataException
+     */
+    public static TabularData getTopMethods(int count,String sortBy) throws OpenDataException
+    {
+        final Comparator<MethodAggregates.Row> comparator;
+        switch( sortBy == null || sortBy.isEmpty() ? "self" : sortBy.toLowerCase() )
+        {
+            case "self":        comparator = Comparator.comparingDouble( row -> row.selfTimeMillis ); break;
+            case "total":       comparator = Comparator.comparingDouble( row -> row.totalTimeMillis ); break;
+            case "invocations": comparator = Comparator.comparingLong( row -> row.invocationCount ); break;
+            default:
+                throw new IllegalArgumentException("Invalid sort order '"+sortBy+"' (valid are: self,total,invocations)");
+        }
+
+        final MethodAggregates aggregates = new MethodAggregates();
+        for ( Profile live : ProfileSnapshot.getLiveProfiles() )
+        {
+            final Profile copy = ProfileSnapshot.copy( live );
+            if ( copy != null ) {
+                aggregates.add( copy );
+            }
+        }
+        final List<MethodAggregates.Row> rows = aggregates.getRows().stream()
+                .sorted( comparator.reversed() ).limit( Math.max( count , 0 ) ).collect( Collectors.toList() );
+
+        final CompositeType rowType = new CompositeType( "method" , "Method statistics" , METHOD_COLUMNS , METHOD_COLUMNS , METHOD_TYPES );
+        final TabularData result = new TabularDataSupport( new TabularType( "methods" , "Top methods" , rowType , new String[] { "rank" } ) );
+        int rank = 0;
+        for ( MethodAggregates.Row row : rows )
+        {
+            final MethodIdentifier method = ProfileSnapshot.getLiveMethods().getRawMethodName( row.methodId );
+            final String name = method == null ? Integer.toString( row.methodId ) : method.className.replace('/','.')+"."+method.methodName+method.methodSignature;
+            result.put( new CompositeDataSupport( rowType , METHOD_COLUMNS , new Object[] { ++rank , name , row.invocationCount ,
+                    row.selfTimeMillis , row.totalTimeMillis , row.getAverageTimeMillis() , row.frameCount , row.threadCount } ) );
+        }
+        return result;
+    }
+
+    /**
+     * Returns the size of the recorded call trees and the heap usage.
+     *
+     * @return
+     * @throws OpenDataException
+     */
+    public static CompositeData getStatistics() throws OpenDataException
+    {
+        final long start = System.currentTimeMillis();
+        int threads = 0;
+        long nodes = 0;
+        int maxDepth = 0;
+        for ( Profile live : ProfileSnapshot.getLiveProfiles() )
+        {
+            threads++;
+            final Profile copy = ProfileSnapshot.copy( live );
+            if ( copy == null || copy.getTopLevelMethod() == null ) {
+                continue;
+            }
+            final Deque<MethodStats> stack = new ArrayDeque<>();
+            final Deque<Integer> depths = new ArrayDeque<>();
+            stack.push( copy.getTopLevelMethod() );
+            depths.push( 0 );
+            while ( ! stack.isEmpty() )
+            {
+                final MethodStats node = stack.pop();
+                final int depth = depths.pop();
+                nodes++;
+                maxDepth = Math.max( maxDepth , depth );
+                for ( MethodStats child : node.getCallees().values() )
+                {
+                    stack.push( child );
+                    depths.push( depth+1 );
+                }
+            }
+        }
+        final long copyTime = System.currentTimeMillis() - start;
+
+        final AtomicInteger methods = new AtomicInteger();
+        ProfileSnapshot.getLiveMethods().visitMethods( method -> methods.incrementAndGet() );
+
+        final MemoryUsage heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+        final CompositeType type = new CompositeType( "statistics" , "Profiler statistics" , STATISTICS , STATISTICS , STATISTICS_TYPES );
+        return new CompositeDataSupport( type , STATISTICS , new Object[] { Profile.isProfilingEnabled() , threads , nodes , maxDepth , methods.get() ,
+                copyTime , heap.getUsed() , heap.getCommitted() , heap.getMax() } );
+    }
+}
@@ -0,0 +1,716 @@
+package de.codesourcery.toyprofiler;
+
+import java.awt.Dimension;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.time.format.DateTimeFormatter;
+import java.util.AbstractCollection;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Optional;
+import java.util.concurrent.CompletionException;
+import java.util.function.Function;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+import de.codesourcery.toyprofiler.Profile.MethodIdentifier;
+import de.codesourcery.toyprofiler.Profile.MethodStats;
+import de.codesourcery.toyprofiler.ui.ColorScheme;
+import de.codesourcery.toyprofiler.ui.HeadlessRenderer;
+import de.codesourcery.toyprofiler.ui.ProfileData;
+import de.codesourcery.toyprofiler.util.ChromeTraceExporter;
+import de.codesourcery.toyprofiler.util.FoldedStacksAdapter;
+import de.codesourcery.toyprofiler.util.HtmlFlameGraphExporter;
+import de.codesourcery.toyprofiler.util.IProfileExporter;
+import de.codesourcery.toyprofiler.util.IProfileIOAdapter;
+import de.codesourcery.toyprofiler.util.JsonWriter;
+import de.codesourcery.toyprofiler.util.MappedProfileLoader;
+import de.codesourcery.toyprofiler.util.MethodAggregates;
+import de.codesourcery.toyprofiler.util.PprofExporter;
+import de.codesourcery.toyprofiler.util.ProfileFiles;
+import de.codesourcery.toyprofiler.util.ProfileMerger;
+import de.codesourcery.toyprofiler.util.RegressionGate;
+import de.codesourcery.toyprofiler.util.RegressionRule;
+import de.codesourcery.toyprofiler.util.SpeedscopeExporter;
+import de.codesourcery.toyprofiler.util.XMLSerializer;
+
+/**
+ * Headless command-line analyzer for profile files.
+ *
+ * Files are loaded through {@link MappedProfileLoader}, so XML profiles are memory-mapped and call trees only get
+ * materialized as far as a command looks at them. Threads are processed one at a time and dropped afterwards,
+ * so memory is bounded by the largest thread instead of the whole file.
+ *
+ * Results go to standard output, progress messages to standard error.
+ */
+public final class Analyzer
+{
+    private static final String[] COMMANDS = { "threads" , "top" , "tree" , "merge" , "filter" , "export" , "gate" , "render" };
+
+    private static final String USAGE =
+            "Usage:\n"+
+            "  threads <file>\n"+
+            "      Lists all threads with their total time.\n"+
+            "  top [--thread REGEX] [--limit N] [--sort self|total|invocations|avg] <file>\n"+
+            "      Lists the methods with the highest time, aggregated across all call paths and threads.\n"+
+            "  tree [--thread REGEX] [--min-percent P] [--max-depth D] <file>\n"+
+            "      Prints call trees, omitting call paths below P percent (default: 1) of the thread's time.\n"+
+            "  merge [--all-threads] <output file> <input file>...\n"+
+            "      Merges threads with the same name (or all threads) of several files path by path.\n"+
+            "  filter [--thread REGEX] [--method REGEX] [--min-percent P] <input file> <output file>\n"+
+            "      Keeps matching threads and call paths that pass through a matching method (class.method).\n"+
+            "  export [--thread REGEX] [--min-percent P] [--weight self-time|total-time|invocations] <speedscope|chrome|pprof|folded|html> <input file> <output file>\n"+
+            "      Converts a profile file. HTML flame graphs omit frames below P percent (default: "+100*HtmlFlameGraphExporter.DEFAULT_MIN_FRAME_WIDTH+") of the thread's time,\n"+
+            "      folded stacks are weighted by self time unless a different weight is given.\n"+
+            "  render [--thread REGEX] [--merged] [--size WIDTHxHEIGHT]... [--zoom REGEX]... [--workers N] <output directory> <file>...\n"+
+            "      Renders flame graph PNG images of all threads (plus all threads and thread groups merged with --merged)\n"+
+            "      at every size (default: 1920x1080), zoomed into the heaviest call path of each --zoom method (class.method).\n"+
+            "  gate [--thread REGEX] [--rule RULE]... [--rules FILE] [--min-time MS] [--report FILE] <baseline file> <candidate file>\n"+
+            "      Checks a candidate profile against a baseline and exits with code 3 if a rule is violated.\n"+
+            "      Rules look like '<self-time|total-time|invocations> <frame;frame...> <+N%|+Nms|+N|xN>', frames are\n"+
+            "      matched against the end of call paths as package.Class.method with '*' wildcards. Time rules ignore\n"+
+            "      call paths below MS milliseconds (default: 1) in both profiles. Writes a JSON report to FILE or standard output.\n"+
+            "\n"+
+            "Output files are written as folded stacks if their name ends with "+String.join( " or " , FoldedStacksAdapter.FILE_SUFFIXES )+
+            ", as XML otherwise. Names ending with "+ProfileFiles.COMPRESSED_SUFFIX+" are compressed.";
+
+    // results, System.out is redirected to System.err while a command runs
+    private final PrintStream out;
+
+    private Analyzer(PrintStream out) {
+        this.out = out;
+    }
+
+    private static final class Options
+    {
+        public final List<String> arguments = new ArrayList<>();
+        private final Map<String,String> values = new HashMap<>();
+        private final Map<String,List<String>> allValues = new HashMap<>();
+
+        /**
+         * Parses command-line options.
+         *
+         * @param args
+         * @param start index of the first argument after the command name
+         * @param valueOptions names of options that take a value
+         * @param flags names of options without a value
+         * @throws IllegalArgumentException on unknown options or missing values
+         */
+        public Options(String[] args,int start,List<String> valueOptions,List<String> flags) throws IllegalArgumentException
+        {
+            for ( int i = start ; i < args.length ; i++ )
+            {
+                final String arg = args[i];
+                if ( ! arg.startsWith("--") ) {
+                    arguments.add( arg );
+                }
+                else if ( flags.contains( arg ) ) {
+                    values.put( arg , "true" );
+                }
+                else if ( valueOptions.contains( arg ) )
+                {
+                    if ( i+1 == args.length ) {
+                        throw new IllegalArgumentException("Option "+arg+" requires a value");
+                    }
+                    values.put( arg , args[++i] );
+                    allValues.computeIfAbsent( arg , key -> new ArrayList<>() ).add( args[i] );
+                } else {
+                    throw new IllegalArgumentException("Unknown option "+arg);
+                }
+            }
+        }
+
+        public boolean isSet(String name) {
+            return values.containsKey( name );
+        }
+
+        public String get(String name,String defaultValue) {
+            return values.getOrDefault( name , defaultValue );
+        }
+
+        /**
+         * Returns all values of an option that may be given several times.
+         *
+         * @param name
+         * @return values in command-line order
+         */
+        public List<String> getAll(String name) {
+            return allValues.getOrDefault( name , Collections.emptyList() );
+        }
+
+        public double getDouble(String name,double defaultValue) throws IllegalArgumentException
+        {
+            try {
+                return values.containsKey( name ) ? Double.parseDouble( values.get( name ) ) : defaultValue;
+            } catch(NumberFormatException e) {
+                throw new IllegalArgumentException("Option "+name+" requires a number but got '"+values.get( name )+"'");
+            }
+        }
+
+        public int getInt(String name,int defaultValue) throws IllegalArgumentException
+        {
+            try {
+                return values.containsKey( name ) ? Integer.parseInt( values.get( name ) ) : defaultValue;
+            } catch(NumberFormatException e) {
+                throw new IllegalArgumentException("Option "+name+" requires an integer but got '"+values.get( name )+"'");
+            }
+        }
+
+        public Optional<Pattern> getPattern(String name) {
+            return values.containsKey( name ) ? Optional.of( Pattern.compile( values.get( name ) ) ) : Optional.empty();
+        }
+
+        public void expectArguments(int min,int max) throws IllegalArgumentException
+        {
+            if ( arguments.size() < min || arguments.size() > max ) {
+                throw new IllegalArgumentException("Wrong number of arguments");
+            }
+        }
+    }
+
+    public static boolean isCommand(String arg) {
+        return Arrays.asList( COMMANDS ).contains( arg );
+    }
+
+    /**
+     * Runs a command.
+     *
+     * @param args command name followed by its options and arguments
+     * @return exit code, 0 on success, 1 on invalid arguments, 2 on I/O errors and 3 if the <code>gate</code> command found a regression
+     */
+    public static int run(String[] args)
+    {
+        if ( System.getProperty("java.awt.headless") == null ) {
+            System.setProperty("java.awt.headless","true");
+        }
+        final PrintStream stdOut = System.out;
+        System.setOut( System.err );
+        try
+        {
+            final Analyzer analyzer = new Analyzer( stdOut );
+            switch( args.length == 0 ? "" : args[0] )
+            {
+                case "threads": analyzer.threads( new Options( args , 1 , Collections.emptyList() , Collections.emptyList() ) ); break;
+                case "top":     analyzer.top( new Options( args , 1 , Arrays.asList( "--thread" , "--limit" , "--sort" ) , Collections.emptyList() ) ); break;
+                case "tree":    analyzer.tree( new Options( args , 1 , Arrays.asList( "--thread" , "--min-percent" , "--max-depth" ) , Collections.emptyList() ) ); break;
+                case "merge":   analyzer.merge( new Options( args , 1 , Collections.emptyList() , Arrays.asList( "--all-threads" ) ) ); break;
+                case "filter":  analyzer.filter( new Options( args , 1 , Arrays.asList( "--thread" , "--method" , "--min-percent" ) , Collections.emptyList() ) ); break;
+                case "export":  analyzer.export( new Options( args , 1 , Arrays.asList( "--thread" , "--min-percent" , "--weight" ) , Collections.emptyList() ) ); break;
+                case "render":  analyzer.render( new Options( args , 1 , Arrays.asList( "--thread" , "--size" , "--zoom" , "--workers" ) , Arrays.asList( "--merged" ) ) ); break;
+                case "gate":
+                    return analyzer.gate( new Options( args , 1 , Arrays.asList( "--thread" , "--rule" , "--rules" , "--min-time" , "--report" ) , Collections.emptyList() ) ) ? 0 : 3;
+                default:
+                    throw new IllegalArgumentException("Unknown command '"+( args.length == 0 ? "" : args[0] )+"'");
+            }
+            return 0;
+        }
+        catch(IllegalArgumentException e)
+        {
+            System.err.println( e.getMessage() );
+            System.err.println( USAGE );
+            return 1;
+        }
+        catch(IOException e)
+        {
+            System.err.println( "Error: "+e.getMessage() );
+            return 2;
+        }
+        finally {
+            stdOut.flush();
+            System.setOut( stdOut );
+        }
+    }
+
+    private void threads(Options options) throws IOException
+    {
+        options.expectArguments( 1 , 1 );
+        final ProfileContainer container = load( options.arguments.get(0) );
+        final double totalTime = container.getProfiles().stream().map( Profile::getTopLevelMethod ).filter( m -> m != null ).mapToDouble( MethodStats::getTotalTimeMillis ).sum();
+        final DateTimeFormatter format = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+        out.println( String.format("%-40s %16s %8s  %s" , "Thread" , "Total time" , "Share" , "Started" ) );
+        for ( Profile profile : container.getProfiles() )
+        {
+            final MethodStats root = profile.getTopLevelMethod();
+            final float time = root == null ? 0 : root.getTotalTimeMillis();
+            out.println( String.format("%-40s %16s %7.2f%%  %s" , profile.getThreadName() , millis( time ) , totalTime <= 0 ? 0 : 100*time/totalTime ,
+                    profile.getCreationTime().map( format::format ).orElse("") ) );
+        }
+    }
+
+    private void top(Options options) throws IOException
+    {
+        options.expectArguments( 1 , 1 );
+        final int limit = options.getInt( "--limit" , 20 );
+        final Comparator<MethodAggregates.Row> order;
+        switch( options.get( "--sort" , "self" ) )
+        {
+            case "self":        order = Comparator.comparingDouble( r -> r.selfTimeMillis ); break;
+            case "total":       order = Comparator.comparingDouble( r -> r.totalTimeMillis ); break;
+            case "invocations": order = Comparator.comparingLong( r -> r.invocationCount ); break;
+            case "avg":         order = Comparator.comparingDouble( MethodAggregates.Row::getAverageTimeMillis ); break;
+            default:
+                throw new IllegalArgumentException("Invalid sort order '"+options.get( "--sort" , "" )+"'");
+        }
+        final ProfileContainer container = load( options.arguments.get(0) );
+        final MethodAggregates aggregates = new MethodAggregates();
+        double totalTime = 0;
+        for ( Profile profile : select( container , options ) )
+        {
+            if ( profile.getTopLevelMethod() != null ) {
+                totalTime += profile.getTopLevelMethod().getTotalTimeMillis();
+            }
+            aggregates.add( profile );
+            release( profile );
+        }
+        final List<MethodAggregates.Row> rows = aggregates.getRows().stream().sorted( order.reversed() ).limit( limit ).collect( Collectors.toList() );
+        out.println( String.format("%16s %8s %16s %8s %14s %16s %7s  %s" , "Self time" , "Self %" , "Total time" , "Total %" , "Invocations" , "Avg. time" , "Threads" , "Method" ) );
+        for ( MethodAggregates.Row row : rows )
+        {
+            out.println( String.format("%16s %7.2f%% %16s %7.2f%% %,14d %16s %7d  %s" ,
+                    millis( row.selfTimeMillis ) , percentage( row.selfTimeMillis , totalTime ) ,
+                    millis( row.totalTimeMillis ) , percentage( row.totalTimeMillis , totalTime ) ,
+                    row.invocationCount , millis( row.getAverageTimeMillis() ) , row.threadCount , name( container , row.methodId ) ) );
+        }
+    }
+
+    private void tree(Options options) throws IOException
+    {
+        options.expectArguments( 1 , 1 );
+        final double minPercent = options.getDouble( "--min-percent" , 1 );
+        final int maxDepth = options.getInt( "--max-depth" , Integer.MAX_VALUE );
+        final ProfileContainer container = load( options.arguments.get(0) );
+        for ( Profile profile : select( container , options ) )
+        {
+            final MethodStats root = profile.getTopLevelMethod();
+            if ( root == null ) {
+                continue;
+            }
+            out.println( "Thread '"+profile.getThreadName()+"' ("+millis( root.getTotalTimeMillis() )+")" );
+            final double minTime = root.getTotalTimeMillis() * minPercent / 100;
+            final Deque<MethodStats> stack = new ArrayDeque<>();
+            final Deque<Integer> depths = new ArrayDeque<>();
+            stack.push( root );
+            depths.push( 0 );
+            final StringBuilder line = new StringBuilder();
+            while ( ! stack.isEmpty() )
+            {
+                final MethodStats node = stack.pop();
+                final int depth = depths.pop();
+                line.setLength( 0 );
+                line.append( String.format("%7.2f%% %16s %,14dx  " , percentage( node.getTotalTimeMillis() , root.getTotalTimeMillis() ) ,
+                        millis( node.getTotalTimeMillis() ) , node.getInvocationCount() ) );
+                for ( int i = 0 ; i < depth ; i++ ) {
+                    line.append("  ");
+                }
+                out.println( line.append( name( container , node.getMethodId() ) ) );
+                if ( depth < maxDepth )
+                {
+                    // pruned subtrees never get materialized
+                    final List<MethodStats> children = node.getCallees().values().stream()
+                            .filter( child -> child.getTotalTimeMillis() >= minTime )
+                            .sorted( Comparator.comparingDouble( MethodStats::getTotalTimeMillis ) )
+                            .collect( Collectors.toList() );
+                    for ( MethodStats child : children )
+                    {
+                        stack.push( child );
+                        depths.push( depth+1 );
+                    }
+                }
+            }
+            release( profile );
+        }
+    }
+
+    private void merge(Options options) throws IOException
+    {
+        if ( options.arguments.size() < 2 ) {
+            throw new IllegalArgumentException("Wrong number of arguments");
+        }
+        final boolean allThreads = options.isSet( "--all-threads" );
+        final File output = new File( options.arguments.get(0) );
+
+        // profiles are merged once all files are loaded, so every call tree gets traversed only once
+        final Map<String,List<Profile>> profilesByName = new LinkedHashMap<>();
+        final Map<String,List<IClassMethodsContainer>> methodsByName = new LinkedHashMap<>();
+        for ( String input : options.arguments.subList( 1 , options.arguments.size() ) )
+        {
+            final ProfileContainer container = load( input );
+            for ( Profile profile : container.getProfiles() )
+            {
+                final String name = allThreads ? ProfileData.ALL_THREADS : profile.getThreadName();
+                profilesByName.computeIfAbsent( name , key -> new ArrayList<>() ).add( profile );
+                methodsByName.computeIfAbsent( name , key -> new ArrayList<>() ).add( container );
+            }
+        }
+
+        final ClassMethodsContainer methods = new ClassMethodsContainer();
+        final List<Profile> merged = new ArrayList<>();
+        for ( Map.Entry<String,List<Profile>> entry : profilesByName.entrySet() )
+        {
+            merged.add( ProfileMerger.merge( entry.getKey() , entry.getValue() , methodsByName.get( entry.getKey() ) , methods ) );
+            entry.getValue().forEach( Analyzer::release );
+        }
+        save( output , methods , merged );
+        System.out.println("Merged "+( options.arguments.size() - 1 )+" files into "+merged.size()+" profiles");
+    }
+
+    private void filter(Options options) throws IOException
+    {
+        options.expectArguments( 2 , 2 );
+        final Optional<Pattern> methodPattern = options.getPattern( "--method" );
+        final double minPercent = options.getDouble( "--min-percent" , 0 );
+        final ProfileContainer container = load( options.arguments.get(0) );
+
+        // method ID -> whether the method matches
+        final Map<Integer,Boolean> matches = new HashMap<>();
+        container.visitMethods( method -> matches.put( method.id , ! methodPattern.isPresent() || methodPattern.get().matcher( name( method ) ).find() ) );
+
+        final Collection<Profile> filtered = transform( select( container , options ) , profile ->
+        {
+            final Profile result = new Profile( profile.getThreadName() );
+            profile.getCreationTime().ifPresent( time -> result.setCreationTime( profile.getCreationTimeMillis() ) );
+            final MethodStats root = profile.getTopLevelMethod();
+            if ( root != null ) {
+                result.setTopLevelMethod( copy( root , root.getTotalTimeMillis() * minPercent / 100 , matches ) );
+            }
+            return result;
+        });
+        save( new File( options.arguments.get(1) ) , container.getMethodContainer() , filtered );
+    }
+
+    /**
+     * Copies the part of a call tree that passes the filter.
+     *
+     * Times are copied as they are, so a kept node still accounts for the time of dropped callees.
+     *
+     * @return copy or <code>null</code> if nothing in the tree passes the filter
+     */
+    private static MethodStats copy(MethodStats root,double minTime,Map<Integer,Boolean> matches)
+    {
+        if ( root.getTotalTimeMillis() < minTime ) {
+            return null;
+        }
+        // call trees can be deeper than the thread's stack allows for recursion.
+        // Copies are created before their callees, so going through them backwards visits callees first
+        final List<MethodStats> copies = new ArrayList<>();
+        // copies (by index) of methods that match or are called by a matching method
+        final BitSet matched = new BitSet();
+        final Deque<MethodStats> sources = new ArrayDeque<>();
+        final Deque<Integer> targets = new ArrayDeque<>();
+        copies.add( copyNode( root , null ) );
+        matched.set( 0 , matches.getOrDefault( root.getMethodId() , false ) );
+        sources.push( root );
+        targets.push( 0 );
+        while ( ! sources.isEmpty() )
+        {
+            final MethodStats source = sources.pop();
+            final int target = targets.pop();
+            for ( MethodStats child : source.getCallees().values() )
+            {
+                if ( child.getTotalTimeMillis() < minTime ) {
+                    continue;
+                }
+                final int index = copies.size();
+                final MethodStats copy = copyNode( child , copies.get( target ) );
+                copies.get( target ).getCallees().put( copy.getMethodId() , copy );
+                copies.add( copy );
+                matched.set( index , matched.get( target ) || matches.getOrDefault( child.getMethodId() , false ) );
+                sources.push( child );
+                targets.push( index );
+            }
+        }
+        // drop copies that neither match nor lead to a matching method
+        for ( int i = copies.size()-1 ; i > 0 ; i-- )
+        {
+            final MethodStats copy = copies.get(i);
+            if ( ! matched.get(i) && ! copy.hasChildren() ) {
+                copy.getParent().getCallees().remove( copy.getMethodId() );
+            }
+        }
+        return matched.get(0) || copies.get(0).hasChildren() ? copies.get(0) : null;
+    }
+
+    private static MethodStats copyNode(MethodStats source,MethodStats parent)
+    {
+        final MethodStats result = new MethodStats( source.getMethodId() , parent );
+        result.setTotalTimeMillis( source.getTotalTimeMillis() );
+        result.setInvocationCount( source.getInvocationCount() );
+        return result;
+    }
+
+    /**
+     * Unwraps the failure of an asynchronous task, so it gets reported with exit code 2.
+     */
+    private static IOException toIOException(CompletionException e)
+    {
+        Throwable cause = e;
+        while ( cause instanceof CompletionException && cause.getCause() != null ) {
+            cause = cause.getCause();
+        }
+        if ( cause instanceof UncheckedIOException ) {
+            return ((UncheckedIOException) cause).getCause();
+        }
+        if ( cause instanceof IOException ) {
+            return (IOException) cause;
+        }
+        return new IOException( cause.toString() , cause );
+    }
+
+    private void export(Options options) throws IOException
+    {
+        options.expectArguments( 3 , 3 );
+        final IProfileExporter exporter;
+        switch( options.arguments.get(0).toLowerCase() )
+        {
+            case "speedscope": exporter = new SpeedscopeExporter( new File( options.arguments.get(1) ).getName() ); break;
+            case "chrome":     exporter = new ChromeTraceExporter(); break;
+            case "pprof":      exporter = new PprofExporter(); break;
+            case "folded":     exporter = new FoldedStacksAdapter( FoldedStacksAdapter.Weight.parse( options.get( "--weight" , "self-time" ) ) , true ); break;
+            case "html":
+                final ColorScheme scheme = ColorScheme.getDefault();
+                final double minWidth = options.getDouble( "--min-percent" , 100*HtmlFlameGraphExporter.DEFAULT_MIN_FRAME_WIDTH ) / 100;
+                exporter = new HtmlFlameGraphExporter( new File( options.arguments.get(1) ).getName() , minWidth , scheme.getGradient() , scheme.getSelectionColor() );
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown export format '"+options.arguments.get(0)+"', valid formats are: speedscope, chrome, pprof, folded, html");
+        }
+        final ProfileContainer container = load( options.arguments.get(1) );
+        final List<Profile> profiles = select( container , options );
+        try ( OutputStream stream = ProfileFiles.openOutput( new File( options.arguments.get(2) ) ) )
+        {
+            exporter.save( container.getMethodContainer() , transform( profiles , profile -> profile ) , stream );
+        }
+        System.out.println("Exported "+profiles.size()+" profiles to "+options.arguments.get(2));
+    }
+
+    private void render(Options options) throws IOException
+    {
+        if ( options.arguments.size() < 2 ) {
+            throw new IllegalArgumentException("Wrong number of arguments");
+        }
+        final List<Dimension> sizes = new ArrayList<>();
+        final Pattern sizePattern = Pattern.compile("([1-9][0-9]*)x([1-9][0-9]*)");
+        for ( String size : options.getAll( "--size" ) )
+        {
+            final Matcher matcher = sizePattern.matcher( size.toLowerCase() );
+            if ( ! matcher.matches() ) {
+                throw new IllegalArgumentException("Invalid size '"+size+"', expected WIDTHxHEIGHT");
+            }
+            sizes.add( new Dimension( Integer.parseInt( matcher.group(1) ) , Integer.parseInt( matcher.group(2) ) ) );
+        }
+        if ( sizes.isEmpty() ) {
+            sizes.add( new Dimension( 1920 , 1080 ) );
+        }
+        final List<Pattern> zoomMethods = options.getAll( "--zoom" ).stream().map( Pattern::compile ).collect( Collectors.toList() );
+        final int workers = options.getInt( "--workers" , Runtime.getRuntime().availableProcessors() );
+        if ( workers < 1 ) {
+            throw new IllegalArgumentException("Need at least one worker");
+        }
+        final File outputDirectory = new File( options.arguments.get(0) );
+        if ( ! outputDirectory.isDirectory() && ! outputDirectory.mkdirs() ) {
+            throw new IOException("Failed to create directory "+outputDirectory.getAbsolutePath());
+        }
+
+        final long start = System.currentTimeMillis();
+        try ( HeadlessRenderer renderer = new HeadlessRenderer( ColorScheme.getDefault() , sizes , zoomMethods , outputDirectory , workers ) )
+        {
+            for ( String input : options.arguments.subList( 1 , options.arguments.size() ) )
+            {
+                final File file = new File( input );
+                final ProfileData data = new ProfileData( file , load( input ) , Optional.empty() );
+                final List<Profile> profiles = select( data.getProfileContainer() , options );
+                if ( options.isSet( "--merged" ) ) {
+                    profiles.addAll( data.getMergedProfiles() );
+                }
+                // one file at a time, so only the current file's call trees are held in memory
+                try {
+                    renderer.render( file.getName().replaceAll("\\.[^.]+$","") , data , profiles ).join();
+                } catch(CompletionException e) {
+                    throw toIOException( e );
+                }
+            }
+            final List<File> images;
+            try {
+                images = renderer.finish();
+            } catch(CompletionException e) {
+                throw toIOException( e );
+            }
+            images.forEach( out::println );
+            System.out.println("Rendered "+images.size()+" images in "+(System.currentTimeMillis()-start)+" ms");
+        }
+    }
+
+    /**
+     * Checks a candidate profile against a baseline.
+     *
+     * @return <code>true</code> if no rule was violated
+     */
+    private boolean gate(Options options) throws IOException
+    {
+        options.expectArguments( 2 , 2 );
+        final List<RegressionRule> rules = new ArrayList<>();
+        options.getAll( "--rule" ).forEach( rule -> rules.add( RegressionRule.parse( rule ) ) );
+        if ( options.isSet( "--rules" ) )
+        {
+            final File file = new File( options.get( "--rules" , null ) );
+            try ( BufferedReader reader = new BufferedReader( new InputStreamReader( ProfileFiles.openInput( file ) , StandardCharsets.UTF_8 ) ) )
+            {
+                String line;
+                while ( ( line = reader.readLine() ) != null )
+                {
+                    line = line.trim();
+                    if ( ! line.isEmpty() && ! line.startsWith("#") ) {
+                        rules.add( RegressionRule.parse( line ) );
+                    }
+                }
+            }
+        }
+        if ( rules.isEmpty() ) {
+            throw new IllegalArgumentException("At least one rule is required");
+        }
+        final double minTime = options.getDouble( "--min-time" , 1 );
+
+        final ProfileContainer baseline = load( options.arguments.get(0) );
+        final ProfileContainer candidate = load( options.arguments.get(1) );
+        final RegressionGate.Report report = new RegressionGate( rules , minTime ).check( baseline , select( baseline , options ) , candidate , select( candidate , options ) );
+
+        final OutputStream stream = options.isSet( "--report" ) ? ProfileFiles.openOutput( new File( options.get( "--report" , null ) ) ) : out;
+        try ( JsonWriter json = new JsonWriter( stream ) )
+        {
+            report.write( json , options.arguments.get(0) , options.arguments.get(1) );
+        }
+        finally
+        {
+            if ( stream != out ) {
+                stream.close();
+            }
+        }
+        if ( stream == out ) {
+            out.println();
+        }
+
+        final List<RegressionGate.Violation> violations = report.getViolations();
+        for ( RegressionGate.Violation violation : violations )
+        {
+            final Function<Double,String> format = value -> violation.rule.metric.isTime() ? millis( value ) : String.format("%,d" , value.longValue() );
+            System.err.println( "Violated '"+violation.rule+"' in thread '"+violation.threadName+"': "+format.apply( violation.baseline )+" -> "+
+                    format.apply( violation.candidate )+" at "+String.join( ";" , violation.path ) );
+        }
+        System.err.println( violations.isEmpty() ? "Passed, no rule violated" : "FAILED, "+violations.size()+" rule violations" );
+        return violations.isEmpty();
+    }
+
+    private static ProfileContainer load(String file) throws IOException
+    {
+        final File input = new File( file );
+        if ( ! input.isFile() ) {
+            throw new IOException("File "+input.getAbsolutePath()+" does not exist");
+        }
+        return new MappedProfileLoader().load( input );
+    }
+
+    private static List<Profile> select(ProfileContainer container,Options options)
+    {
+        final Optional<Pattern> threads = options.getPattern( "--thread" );
+        return container.getProfiles().stream().filter( p -> ! threads.isPresent() || threads.get().matcher( p.getThreadName() ).matches() ).collect( Collectors.toList() );
+    }
+
+    private static void save(File output,ClassMethodsContainer methods,Collection<Profile> profiles) throws IOException
+    {
+        final IProfileIOAdapter adapter = FoldedStacksAdapter.hasFoldedSuffix( output.getName() ) ? new FoldedStacksAdapter() : new XMLSerializer();
+        try ( OutputStream stream = ProfileFiles.openOutput( output ) )
+        {
+            adapter.save( methods , profiles , stream );
+        }
+    }
+
+    /**
+     * Returns a collection that transforms profiles on the fly while being iterated, dropping the
+     * call trees of the previous source and result. Must only be iterated once.
+     */
+    private static Collection<Profile> transform(List<Profile> profiles,Function<Profile,Profile> function)
+    {
+        return new AbstractCollection<Profile>()
+        {
+            @Override
+            public Iterator<Profile> iterator()
+            {
+                return new Iterator<Profile>()
+                {
+                    private int index;
+                    private Profile previous;
+
+                    @Override
+                    public boolean hasNext() {
+                        return index < profiles.size();
+                    }
+
+                    @Override
+                    public Profile next()
+                    {
+                        if ( ! hasNext() ) {
+                            throw new NoSuchElementException();
+                        }
+                        if ( previous != null )
+                        {
+                            release( previous );
+                            release( profiles.get( index-1 ) );
+                        }
+                        previous = function.apply( profiles.get( index++ ) );
+                        return previous;
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return profiles.size();
+            }
+        };
+    }
+
+    /**
+     * Drops the call tree of a profile that is no longer needed, so that nodes materialized from a
+     * memory-mapped file can be garbage-collected.
+     */
+    private static void release(Profile profile) {
+        profile.setTopLevelMethod( null );
+    }
+
+    private static String name(IClassMethodsContainer methods,int methodId)
+    {
+        final MethodIdentifier method = methods.getRawMethodName( methodId );
+        return method == null ? "<unknown method "+methodId+">" : name( method );
+    }
+
+    private static String name(MethodIdentifier method) {
+        return method.className.replace('/','.')+"."+method.methodName;
+    }
+
+    private static String millis(double millis) {
+        return String.format("%,.3f ms" , millis );
+    }
+
+    private static double percentage(double value,double total) {
+        return total <= 0 ? 0 : 100*value/total;
+    }
+}
@@ -1,24 +1,39 @@
 package de.codesourcery.toyprofiler;
 
-import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
 import de.codesourcery.toyprofiler.Profile.MethodIdentifier;
-import net.openhft.koloboke.collect.map.hash.HashIntObjMap;
-import net.openhft.koloboke.collect.map.hash.HashIntObjMaps;
-import net.openhft.koloboke.collect.map.hash.HashObjObjMap;
-import net.openhft.koloboke.collect.map.hash.HashObjObjMaps;
 
+/**
+ * Registry of all known methods.
+ *
+ * Methods get registered by concurrent class-loading threads while classes are being transformed, so all
+ * indexes are concurrent maps: lookups never lock and registrations only contend on the affected hash bins.
+ * Besides the ID, methods are indexed by (class, name, descriptor) and (class, name, line number)
+ * so resolving names and stack trace elements takes constant time.
+ */
 public final class ClassMethodsContainer implements IClassMethodsContainer
 {
-    private final HashObjObjMap<String,Map<String,List<MethodIdentifier>>> CLASS_TO_METHODS_MAP = HashObjObjMaps.newMutableMap( 2000 );
+    private final ConcurrentHashMap<String,Map<String,List<MethodIdentifier>>> CLASS_TO_METHODS_MAP = new ConcurrentHashMap<>( 2000 );
 
-    private final HashIntObjMap<MethodIdentifier> ID_TO_METHOD_NAME = HashIntObjMaps.newMutableMap( 2000 );
+    private final ConcurrentHashMap<Integer,MethodIdentifier> ID_TO_METHOD_NAME = new ConcurrentHashMap<>( 2000 );
+
+    // class|name|descriptor -> method (the first one registered if there are several with different line numbers)
+    private final ConcurrentHashMap<String,MethodIdentifier> BY_DESCRIPTOR = new ConcurrentHashMap<>( 2000 );
+
+    // class|name|line -> method
+    private final ConcurrentHashMap<String,MethodIdentifier> BY_LINE = new ConcurrentHashMap<>( 2000 );
+
+    // IDs handed out by allocateId(), mapped to the method's identity (class|name|descriptor|line)
+    private final ConcurrentHashMap<Integer,String> ID_TO_KEY = new ConcurrentHashMap<>( 2000 );
 
     public ClassMethodsContainer() {
     }
@@ -31,26 +46,77 @@ public final class ClassMethodsContainer implements IClassMethodsContainer
     	}
     }
 
+    /**
+     * Returns the ID for a method, reserving it if necessary.
+     *
+     * IDs are content-addressed (see {@link MethodIdentifier#contentId(String, String, String, int)}), on a hash collision
+     * with a different method the next free ID is used. Requesting an ID for the same method twice
+     * (for example when a class is loaded by more than one class loader) yields the same ID.
+     *
+     * Since colliding methods get their IDs in the order they are registered, equal IDs in different containers
+     * do not necessarily denote the same method, see {@link de.codesourcery.toyprofiler.util.MethodIdMapping}.
+     *
+     * @param className
+     * @param methodName
+     * @param methodSignature
+     * @param lineNumber line number or -1, methods that only differ in their line number get different IDs
+     * @return
+     */
+    public int allocateId(String className,String methodName,String methodSignature,int lineNumber)
+    {
+        final String key = className+"|"+methodName+"|"+methodSignature+"|"+lineNumber;
+        int id = MethodIdentifier.contentId( className , methodName , methodSignature , lineNumber );
+        while ( true )
+        {
+            final String existing = ID_TO_KEY.putIfAbsent( id , key );
+            if ( existing == null || existing.equals( key ) ) {
+                return id;
+            }
+            id = id == Integer.MAX_VALUE ? 1 : id+1;
+        }
+    }
+
+    /**
+     * Registers a method under its content-addressed ID, ignoring the ID the identifier currently has.
+     *
+     * @param name
+     * @return identifier with the ID the method is registered under
+     */
+    public MethodIdentifier registerWithContentId(MethodIdentifier name)
+    {
+        final MethodIdentifier result = name.withId( allocateId( name.className , name.methodName , name.methodSignature , name.lineNumber ) );
+        registerMethod( result );
+        return result;
+    }
+
     public void registerMethod(MethodIdentifier name)
     {
-    	ID_TO_METHOD_NAME.put( name.id , name );
-
-   		Map<String, List<MethodIdentifier>> map = CLASS_TO_METHODS_MAP.get( name.className );
-   		if ( map == null ) {
-   			map = HashObjObjMaps.newMutableMap( 100 );
-   			CLASS_TO_METHODS_MAP.put( name.className , map );
-   		}
-   		List<MethodIdentifier> list = map.get( name.methodName );
-   		if ( list == null ) {
-   			list = new ArrayList<>( 5 );
-   			map.put( name.methodName , list );
-   		}
-   		list.add( name );
+        final MethodIdentifier previous = ID_TO_METHOD_NAME.putIfAbsent( name.id , name );
+        if ( previous != null )
+        {
+            if ( previous.matches( name ) ) {
+                return; // same method registered again
+            }
+            ID_TO_METHOD_NAME.put( name.id , name );
+        }
+        ID_TO_KEY.putIfAbsent( name.id , name.className+"|"+name.methodName+"|"+name.methodSignature+"|"+name.lineNumber );
+
+        BY_DESCRIPTOR.putIfAbsent( name.className+"|"+name.methodName+"|"+name.methodSignature , name );
+        if ( name.hasLineNumber() ) {
+            BY_LINE.putIfAbsent( name.className+"|"+name.methodName+"|"+name.lineNumber , name );
+        }
+
+        CLASS_TO_METHODS_MAP.computeIfAbsent( name.className , key -> new ConcurrentHashMap<>( 16 ) )
+            .computeIfAbsent( name.methodName , key -> new CopyOnWriteArrayList<>() )
+            .add( name );
     }
 
     public void clear() {
     	CLASS_TO_METHODS_MAP.clear();
     	ID_TO_METHOD_NAME.clear();
+    	BY_DESCRIPTOR.clear();
+    	BY_LINE.clear();
+    	ID_TO_KEY.clear();
     }
 
 	@Override
@@ -77,23 +143,46 @@ public final class ClassMethodsContainer implements IClassMethodsContainer
 		return ID_TO_METHOD_NAME.get( methodId );
 	}
 
+	@Override
+	public int findMethodId(MethodIdentifier method)
+	{
+	    for ( MethodIdentifier candidate : getMethods( method.className , method.methodName ) )
+	    {
+	        if ( candidate.matches( method ) ) {
+	            return candidate.id;
+	        }
+	    }
+	    return -1;
+	}
+
 	@Override
 	public int getMethodId(MethodIdentifier rawMethodName) throws NoSuchElementException
 	{
-        for ( final Entry<Integer, MethodIdentifier> entry : ID_TO_METHOD_NAME.entrySet() )
-        {
-        	final MethodIdentifier candidate = entry.getValue();
-			if ( candidate.className.equals( rawMethodName.className ) )
-        	 {
-        		 if ( candidate.methodSignature.equals( rawMethodName.methodSignature ) || isNotOverloadedMethod( candidate) )
-        		 {
-        			return entry.getKey();
-        		 }
-        	}
-        }
+	    final MethodIdentifier exact = BY_DESCRIPTOR.get( rawMethodName.className+"|"+rawMethodName.methodName+"|"+rawMethodName.methodSignature );
+	    if ( exact != null ) {
+	        return exact.id;
+	    }
+	    // descriptor changed but the method is not overloaded, assume it's the same method
+	    final List<MethodIdentifier> candidates = getMethods( rawMethodName.className , rawMethodName.methodName );
+	    if ( candidates.size() == 1 ) {
+	        return candidates.get(0).id;
+	    }
         throw new NoSuchElementException("Failed to resolve raw method name '"+rawMethodName+"'");
 	}
 
+	private List<MethodIdentifier> getMethods(String className,String methodName)
+	{
+	    final Map<String, List<MethodIdentifier>> map = CLASS_TO_METHODS_MAP.get( className );
+	    if ( map != null )
+	    {
+	        final List<MethodIdentifier> result = map.get( methodName );
+	        if ( result != null ) {
+	            return result;
+	        }
+	    }
+	    return Collections.emptyList();
+	}
+
 	@Override
 	public void visitMethods(Consumer<MethodIdentifier> visitor)
 	{
@@ -105,31 +194,19 @@ public final class ClassMethodsContainer implements IClassMethodsContainer
 		final String method = element.getMethodName();
 		final String clazz = element.getClassName().replace(".","/");
 		final String prefix = clazz+"|"+method;
-		final List<Integer> candidates = new ArrayList<>();
 		System.out.println("["+Thread.currentThread().getName()+"] Looking for '"+prefix+"'");
-		for ( Entry<Integer, MethodIdentifier> existing : ID_TO_METHOD_NAME.entrySet() )
-		{
-			if ( existing.getValue().matches( clazz , method ) ) {
-				candidates.add( existing.getKey() );
-			}
-		}
+		final List<MethodIdentifier> candidates = getMethods( clazz , method );
 		switch( candidates.size() ) {
 			case 0:
 				return null;
 			case 1:
-				return candidates.get(0);
+				return candidates.get(0).id;
 			default:
-				for ( Integer key : candidates )
-				{
-					final MethodIdentifier parts = ID_TO_METHOD_NAME.get(key.intValue());
-					if ( parts.hasLineNumber() )
-					{
-						if ( parts.lineNumber == element.getLineNumber() ) {
-							return key;
-						}
-					}
+				final MethodIdentifier match = BY_LINE.get( prefix+"|"+element.getLineNumber() );
+				if ( match != null ) {
+				    return match.id;
 				}
-				System.err.println("WARN: Found candidates ("+candidates.stream().map( ID_TO_METHOD_NAME::get ).map( s -> s.toString() ).collect(Collectors.joining(","))+") "
+				System.err.println("WARN: Found candidates ("+candidates.stream().map( s -> s.toString() ).collect(Collectors.joining(","))+") "
 						+ "but none matched the linenumber from the JVM StackTraceElement ("+element.getLineNumber()+")");
 				return null;
 		}
@@ -16,6 +16,24 @@ public interface IClassMethodsContainer
 
     public int getMethodId(MethodIdentifier methodId) throws NoSuchElementException;
 
+    /**
+     * Looks up the ID of a method with the same class, name, descriptor and line number.
+     *
+     * @param method
+     * @return ID or -1 if the method is unknown
+     */
+    public default int findMethodId(MethodIdentifier method)
+    {
+        final int[] result = { -1 };
+        visitMethods( candidate ->
+        {
+            if ( result[0] == -1 && candidate.matches( method ) ) {
+                result[0] = candidate.id;
+            }
+        });
+        return result[0];
+    }
+
 	public void visitMethods(Consumer<MethodIdentifier> visitor);
 
     public boolean isOverloadedMethod(MethodIdentifier methodId);
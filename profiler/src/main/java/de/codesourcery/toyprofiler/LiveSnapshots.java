@@ -0,0 +1,109 @@
+package de.codesourcery.toyprofiler;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.ConcurrentHashMap;
+
+import de.codesourcery.toyprofiler.util.IncrementalSnapshot;
+
+/**
+ * Serves incremental snapshots of the profiles being recorded to viewers attached to the running application.
+ *
+ * Each viewer identifies itself by a session ID, sessions that were not used for some time get discarded.
+ * Snapshots are available through {@link AgentRemoteControlMBean#getSnapshot(String, long)} and
+ * through a socket bound to the loopback address. The socket protocol is a sequence of requests
+ * (UTF session ID, long last sequence number) each answered by the snapshot's length (int) followed by the snapshot.
+ */
+final class LiveSnapshots
+{
+    private static final long SESSION_TIMEOUT_MILLIS = 60*1000;
+
+    private static final ConcurrentHashMap<String,Session> SESSIONS = new ConcurrentHashMap<>();
+
+    private static final class Session
+    {
+        public final IncrementalSnapshot.Encoder encoder = new IncrementalSnapshot.Encoder();
+        public volatile long lastAccess = System.currentTimeMillis();
+    }
+
+    private LiveSnapshots() {
+    }
+
+    public static byte[] getSnapshot(String sessionId,long lastSequence) throws IOException
+    {
+        final long now = System.currentTimeMillis();
+        SESSIONS.values().removeIf( s -> now - s.lastAccess > SESSION_TIMEOUT_MILLIS );
+
+        final Session session = SESSIONS.computeIfAbsent( sessionId , key -> new Session() );
+        session.lastAccess = now;
+        return session.encoder.encode( lastSequence , ProfileSnapshot.getLiveProfiles() , ProfileSnapshot.getLiveMethods() );
+    }
+
+    /**
+     * Starts serving snapshots on a port of the loopback address.
+     *
+     * @param port
+     * @throws IOException
+     */
+    public static void listen(int port) throws IOException
+    {
+        final ServerSocket server = new ServerSocket( port , 5 , InetAddress.getLoopbackAddress() );
+        System.out.println("Serving live snapshots on "+server.getLocalSocketAddress());
+        startDaemon( "live-snapshots" , () ->
+        {
+            while ( true )
+            {
+                try
+                {
+                    final Socket socket = server.accept();
+                    startDaemon( "live-snapshots-"+socket.getPort() , () -> serve( socket ) );
+                }
+                catch(IOException e) {
+                    e.printStackTrace();
+                    return;
+                }
+            }
+        });
+    }
+
+    private static void serve(Socket socket)
+    {
+        try ( Socket s = socket )
+        {
+            final DataInputStream in = new DataInputStream( new BufferedInputStream( s.getInputStream() ) );
+            final DataOutputStream out = new DataOutputStream( new BufferedOutputStream( s.getOutputStream() ) );
+            while ( true )
+            {
+                final String sessionId;
+                final long lastSequence;
+                try {
+                    sessionId = in.readUTF();
+                    lastSequence = in.readLong();
+                } catch(EOFException e) {
+                    return; // viewer disconnected
+                }
+                final byte[] snapshot = getSnapshot( sessionId , lastSequence );
+                out.writeInt( snapshot.length );
+                out.write( snapshot );
+                out.flush();
+            }
+        }
+        catch(IOException e) {
+            System.err.println("Live snapshot connection failed: "+e.getMessage());
+        }
+    }
+
+    private static void startDaemon(String name,Runnable r)
+    {
+        final Thread thread = new Thread( r , name );
+        thread.setDaemon( true );
+        thread.start();
+    }
+}
@@ -5,9 +5,11 @@ import java.io.OutputStream;
 import java.time.Instant;
 import java.time.ZoneId;
 import java.time.ZonedDateTime;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.Deque;
 import java.util.List;
 import java.util.Map;
 import java.util.NoSuchElementException;
@@ -30,6 +32,9 @@ public final class Profile
 
     protected static final boolean DONT_GUESS_STACKTRACE = true;
 
+    // incremented to make all threads discard their call trees, see resetCallTrees()
+    private static volatile int resetGeneration;
+
     public static final ThreadLocal<Profile> INSTANCE = new ThreadLocal<Profile>()
     {
         @Override
@@ -130,6 +135,60 @@ public final class Profile
             return className+"|"+methodName+"|"+methodSignature+"|"+lineNumber;
         }
 
+        /**
+         * Returns the content-addressed ID of a method.
+         *
+         * The ID is derived from the class name, method name, descriptor and line number only so the
+         * same method gets the same ID in every run. Callers need to handle hash collisions,
+         * see {@link ClassMethodsContainer#allocateId(String, String, String, int)}.
+         *
+         * @param className
+         * @param methodName
+         * @param methodSignature
+         * @param lineNumber line number or -1
+         * @return ID, always &gt; 0
+         */
+        public static int contentId(String className,String methodName,String methodSignature,int lineNumber)
+        {
+            // 64-bit FNV-1a
+            long hash = 0xcbf29ce484222325L;
+            hash = fnv1a( hash , className );
+            hash = ( hash ^ '|' ) * 0x100000001b3L;
+            hash = fnv1a( hash , methodName );
+            hash = ( hash ^ '|' ) * 0x100000001b3L;
+            hash = fnv1a( hash , methodSignature );
+            if ( lineNumber > 0 )
+            {
+                hash = ( hash ^ '|' ) * 0x100000001b3L;
+                hash = fnv1a( hash , Integer.toString( lineNumber ) );
+            }
+            final int result = (int) ( hash ^ ( hash >>> 32 ) ) & 0x7fffffff;
+            return result == 0 ? 1 : result;
+        }
+
+        private static long fnv1a(long hash,String s)
+        {
+            for ( int i = 0 , len = s.length() ; i < len ; i++ ) {
+                hash = ( hash ^ s.charAt( i ) ) * 0x100000001b3L;
+            }
+            return hash;
+        }
+
+        /**
+         * Returns a copy of this identifier with a different ID.
+         *
+         * @param newId
+         * @return
+         */
+        public MethodIdentifier withId(int newId)
+        {
+            if ( newId == id ) {
+                return this;
+            }
+            return hasLineNumber() ? new MethodIdentifier( newId , className , methodName , methodSignature , lineNumber ) :
+                new MethodIdentifier( newId , className , methodName , methodSignature );
+        }
+
         public static MethodIdentifier fromString(int id,String s) {
             final String[] parts = s.split("\\|");
             if ( parts.length == 3 ) {
@@ -144,6 +203,23 @@ public final class Profile
     	public void visit(MethodStats stats,int depth);
     }
 
+    /**
+     * Supplies the callees of {@link MethodStats} nodes that are
+     * materialized on demand (for example from a memory-mapped profile file).
+     */
+    public interface ICalleeSource
+    {
+        /**
+         * Populate the callee map of a node.
+         *
+         * @param node node whose callees should be loaded
+         * @param nodeIndex source-specific index of the node, as passed to the node's constructor
+         * @param callees map to store the callees in
+         * @throws IllegalStateException if the source got closed
+         */
+        public void loadCallees(MethodStats node,int nodeIndex,HashIntObjMap<MethodStats> callees);
+    }
+
     public static final class MethodStats
     {
         private long invocationCount;
@@ -151,18 +227,51 @@ public final class Profile
         private float totalTimeMillis;
 
         private final int method;
-        private final HashIntObjMap<MethodStats> callees = HashIntObjMaps.newMutableMap( 100 );
+        private final HashIntObjMap<MethodStats> callees;
         private MethodStats parent;
+        private long pathHash;
+
+        // lazy loading
+        private ICalleeSource calleeSource;
+        private final int nodeIndex;
+        private final int subtreeDepth;
+        private volatile boolean calleesLoaded = true;
 
         public MethodStats(int method)
         {
-            this.method = method;
+            this(method,null);
         }
 
         public MethodStats(int method,MethodStats parent)
         {
             this.method = method;
             this.parent = parent;
+            this.pathHash = pathHash( parent , method );
+            this.callees = HashIntObjMaps.newMutableMap( 100 );
+            this.nodeIndex = -1;
+            this.subtreeDepth = -1;
+        }
+
+        /**
+         * Create a node whose callees will be fetched from a {@link ICalleeSource} on first access.
+         *
+         * @param method
+         * @param parent
+         * @param source source to load callees from, <code>null</code> if this node has no callees
+         * @param nodeIndex
+         * @param calleeCount number of callees this node has
+         * @param subtreeDepth depth of the subtree below this node (0 = leaf node)
+         */
+        public MethodStats(int method,MethodStats parent,ICalleeSource source,int nodeIndex,int calleeCount,int subtreeDepth)
+        {
+            this.method = method;
+            this.parent = parent;
+            this.pathHash = pathHash( parent , method );
+            this.callees = HashIntObjMaps.newMutableMap( calleeCount );
+            this.calleeSource = source;
+            this.nodeIndex = nodeIndex;
+            this.subtreeDepth = subtreeDepth;
+            this.calleesLoaded = source == null;
         }
 
         public void setInvocationCount(long invocationCount) {
@@ -175,17 +284,38 @@ public final class Profile
 
         public int[] getPathFromRoot()
         {
-            final List<Integer> path = new ArrayList<>();
-            addPathToRoot(path);
-            Collections.reverse( path );
-            return path.stream().mapToInt( v -> v.intValue() ).toArray();
+            int depth = 0;
+            for ( MethodStats current = this ; current != null ; current = current.parent ) {
+                depth++;
+            }
+            final int[] path = new int[ depth ];
+            for ( MethodStats current = this ; current != null ; current = current.parent ) {
+                path[ --depth ] = current.method;
+            }
+            return path;
         }
 
-        private void addPathToRoot(List<Integer> path) {
-            path.add( Integer.valueOf( method ) );
-            if ( parent != null ) {
-                parent.addPathToRoot( path );
-            }
+        /**
+         * Returns a 64-bit hash of the method IDs on the path from the root to this node.
+         *
+         * Since method IDs are content-addressed, nodes for the same call path
+         * usually have the same hash across profiles and runs. Methods whose content IDs collide may
+         * get different IDs in different method containers though, see {@link de.codesourcery.toyprofiler.util.MethodIdMapping}.
+         *
+         * @return
+         * @see MethodIdentifier#contentId(String, String, String, int)
+         */
+        public long getPathHash() {
+            return pathHash;
+        }
+
+        private static long pathHash(MethodStats parent,int method)
+        {
+            // SplitMix64 finalizer
+            long z = ( parent == null ? 0x9e3779b97f4a7c15L : parent.pathHash ) * 31 + method;
+            z = ( z ^ ( z >>> 30 ) ) * 0xbf58476d1ce4e5b9L;
+            z = ( z ^ ( z >>> 27 ) ) * 0x94d049bb133111ebL;
+            return z ^ ( z >>> 31 );
         }
 
         public int getMethodId() {
@@ -196,10 +326,62 @@ public final class Profile
             return parent;
         }
 
-        public HashIntObjMap<MethodStats> getCallees() {
+        public HashIntObjMap<MethodStats> getCallees()
+        {
+            if ( ! calleesLoaded ) {
+                loadCallees();
+            }
             return callees;
         }
 
+        private synchronized void loadCallees()
+        {
+            if ( ! calleesLoaded )
+            {
+                calleeSource.loadCallees( this , nodeIndex , callees );
+                calleeSource = null;
+                calleesLoaded = true;
+            }
+        }
+
+        /**
+         * Returns the depth of the subtree below this node.
+         *
+         * Nodes that are materialized on demand know their depth
+         * up-front so calling this method does not force
+         * loading the whole subtree.
+         *
+         * @return subtree depth, 0 for leaf nodes
+         */
+        public int getSubtreeDepth()
+        {
+            if ( subtreeDepth != -1 ) {
+                return subtreeDepth;
+            }
+            int result = 0;
+            final Deque<MethodStats> nodes = new ArrayDeque<>();
+            final Deque<Integer> depths = new ArrayDeque<>();
+            nodes.push( this );
+            depths.push( 0 );
+            while ( ! nodes.isEmpty() )
+            {
+                final MethodStats node = nodes.pop();
+                final int depth = depths.pop();
+                if ( node.subtreeDepth != -1 )
+                {
+                    result = Math.max( result , depth + node.subtreeDepth );
+                    continue;
+                }
+                result = Math.max( result , depth );
+                for ( MethodStats child : node.getCallees().values() )
+                {
+                    nodes.push( child );
+                    depths.push( depth+1 );
+                }
+            }
+            return result;
+        }
+
         public void visit(IMethodStatsVisitor visitor)
         {
         	visit( visitor , 0 );
@@ -208,7 +390,7 @@ public final class Profile
         private void visit(IMethodStatsVisitor visitor,int depth)
         {
         	visitor.visit( this , depth );
-        	callees.values().forEach( value -> value.visit( visitor , depth+1 ) );
+        	getCallees().values().forEach( value -> value.visit( visitor , depth+1 ) );
         }
 
         public double getPercentageOfParentTime()
@@ -231,7 +413,7 @@ public final class Profile
         }
 
         public int getChildCount() {
-            return callees.size();
+            return getCallees().size();
         }
 
         public boolean hasChildren() {
@@ -240,10 +422,10 @@ public final class Profile
 
         public MethodStats child(int index)
         {
-            final List<Integer> keys = new ArrayList<>( callees.keySet() );
+            final List<Integer> keys = new ArrayList<>( getCallees().keySet() );
         	Collections.sort( keys );
             final int key = keys.get( index );
-            return callees.get(key);
+            return getCallees().get(key);
         }
 
         public long getInvocationCount() {
@@ -279,15 +461,30 @@ public final class Profile
         public float getSumTotalChildTimeMillis()
         {
             float result = 0;
-            for ( MethodStats i : callees.values() )
+            for ( MethodStats i : getCallees().values() )
             {
                 result += i.totalTimeMillis;
             }
             return result;
         }
 
-        public void setParent(MethodStats parent) {
+        public void setParent(MethodStats parent)
+        {
             this.parent = parent;
+            final long newHash = pathHash( parent , method );
+            if ( newHash == pathHash ) {
+                return;
+            }
+            // re-hash the already materialized part of the subtree,
+            // nodes loaded later on derive their hash from their (updated) parent
+            pathHash = newHash;
+            final Deque<MethodStats> stack = new ArrayDeque<>( callees.values() );
+            while ( ! stack.isEmpty() )
+            {
+                final MethodStats node = stack.pop();
+                node.pathHash = pathHash( node.parent , node.method );
+                stack.addAll( node.callees.values() );
+            }
         }
     }
 
@@ -299,8 +496,12 @@ public final class Profile
 
     private MethodStats currentMethod;
 
+    // -1 for profiles that are not being recorded
+    private int generation = -1;
+
     public Profile(Thread currentThread) {
         this( currentThread.getName() );
+        this.generation = resetGeneration;
     }
 
     public Profile(String threadName) {
@@ -323,8 +524,54 @@ public final class Profile
     	currentMethod = null;
     }
 
+    /**
+     * Makes all threads discard their call trees while profiling continues.
+     *
+     * The profiled threads are not stopped, each one discards its call tree the next time it enters or leaves a method.
+     * Call trees of threads that have not done so yet are reported as empty by {@link ProfileSnapshot}.
+     */
+    public static synchronized void resetCallTrees() {
+        resetGeneration++;
+    }
+
+    protected boolean isResetPending() {
+        return generation != -1 && generation != resetGeneration;
+    }
+
+    // replaces the call tree by the methods currently executing, with cleared counters. Each of them
+    // counts as one invocation, so the time they spend until returning is never reported without one
+    private void discardCallTree()
+    {
+        generation = resetGeneration;
+        final Deque<MethodStats> path = new ArrayDeque<>();
+        for ( MethodStats m = currentMethod ; m != null ; m = m.parent ) {
+            path.push( m );
+        }
+        final long now = System.nanoTime();
+        MethodStats parent = null;
+        for ( MethodStats m : path )
+        {
+            final MethodStats node = new MethodStats( m.method , parent );
+            node.time = now;
+            node.invocationCount = 1;
+            if ( parent == null ) {
+                topLevelMethod = node;
+            } else {
+                parent.callees.put( node.method , node );
+            }
+            parent = node;
+        }
+        if ( parent == null ) {
+            topLevelMethod = null;
+        }
+        currentMethod = parent;
+    }
+
     protected void onEnter(int method)
     {
+        if ( generation != resetGeneration ) {
+            discardCallTree();
+        }
     	MethodStats callee;
     	final MethodStats currentMethod = this.currentMethod;
         if ( currentMethod == null )
@@ -351,6 +598,9 @@ public final class Profile
 
     protected void onExit()
     {
+        if ( generation != resetGeneration ) {
+            discardCallTree();
+        }
         currentMethod.onExit();
         currentMethod = currentMethod.parent;
     }
@@ -382,6 +632,11 @@ public final class Profile
 		return result;
 	}
 
+    public static int allocateMethodId(String className,String methodName,String methodSignature)
+    {
+        return CLASS_METHOD_CONTAINER.allocateId( className , methodName , methodSignature , -1 );
+    }
+
     public static void registerMethod(MethodIdentifier name)
     {
    		CLASS_METHOD_CONTAINER.registerMethod(name);
@@ -479,8 +734,31 @@ public final class Profile
         return creationTime;
     }
 
-    public static void save(OutputStream outputStream) throws IOException {
-        new XMLSerializer().save(CLASS_METHOD_CONTAINER,PROFILES_BY_THREAD.values() , outputStream );
+    /**
+     * Writes the live call trees, threads may still be running.
+     *
+     * A call tree the thread has not discarded yet after {@link #resetCallTrees()} gets written as an empty profile.
+     * Failing to write a call tree fails the whole save.
+     *
+     * @param outputStream
+     * @throws IOException
+     */
+    public static void save(OutputStream outputStream) throws IOException
+    {
+        final List<Profile> profiles = new ArrayList<>();
+        for ( Profile profile : PROFILES_BY_THREAD.values() )
+        {
+            if ( profile.isResetPending() )
+            {
+                System.out.println("Not writing call tree of thread "+profile.getThreadName()+", it is getting reset");
+                final Profile empty = new Profile( profile.getThreadName() );
+                empty.setCreationTime( profile.getCreationTimeMillis() );
+                profiles.add( empty );
+            } else {
+                profiles.add( profile );
+            }
+        }
+        new XMLSerializer().save(CLASS_METHOD_CONTAINER, profiles , outputStream );
     }
 
     public static String printAll()
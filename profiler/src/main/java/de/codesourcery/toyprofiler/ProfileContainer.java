@@ -1,5 +1,7 @@
 package de.codesourcery.toyprofiler;
 
+import java.io.Closeable;
+import java.io.IOException;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Optional;
@@ -11,11 +13,37 @@ public class ProfileContainer implements IClassMethodsContainer , Iterable<Profi
 {
     private final List<Profile> profiles;
     private final ClassMethodsContainer methodContainer;
+    private final Closeable resource;
 
     public ProfileContainer(List<Profile> profiles,ClassMethodsContainer methodContainer)
+    {
+        this( profiles , methodContainer , null );
+    }
+
+    /**
+     * Create container.
+     *
+     * @param profiles
+     * @param methodContainer
+     * @param resource resource the call trees are loaded from on demand, closed by {@link #close()}
+     */
+    public ProfileContainer(List<Profile> profiles,ClassMethodsContainer methodContainer,Closeable resource)
     {
         this.profiles = profiles;
         this.methodContainer = methodContainer;
+        this.resource = resource;
+    }
+
+    /**
+     * Releases the resource the call trees are loaded from, parts of them that were not loaded yet become unavailable.
+     *
+     * @throws IOException
+     */
+    public void close() throws IOException
+    {
+        if ( resource != null ) {
+            resource.close();
+        }
     }
 
     public ClassMethodsContainer getMethodContainer() {
@@ -63,6 +91,11 @@ public class ProfileContainer implements IClassMethodsContainer , Iterable<Profi
         };
     }
 
+    @Override
+    public int findMethodId(MethodIdentifier method) {
+        return methodContainer.findMethodId( method );
+    }
+
     @Override
     public int getMethodId(MethodIdentifier rawMethodName)
     {
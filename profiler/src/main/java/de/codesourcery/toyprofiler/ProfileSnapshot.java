@@ -0,0 +1,120 @@
+package de.codesourcery.toyprofiler;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.List;
+
+import de.codesourcery.toyprofiler.Profile.MethodStats;
+
+/**
+ * Copies the call trees the agent is recording while the profiled threads keep running.
+ *
+ * No locks are taken, so the profiled threads are never stalled. The live trees are read racily instead:
+ * a copy that fails because a thread modified a callee map while it was being read gets retried a few times,
+ * after that the thread is skipped. Time spent in methods that have not returned yet is missing from a copy.
+ */
+public final class ProfileSnapshot
+{
+    private static final int MAX_ATTEMPTS = 3;
+
+    private ProfileSnapshot() {
+    }
+
+    /**
+     * Returns the profiles being recorded.
+     *
+     * @return live profiles, must only be read through {@link #copy(Profile)}
+     */
+    public static Collection<Profile> getLiveProfiles() {
+        return new ArrayList<>( Profile.PROFILES_BY_THREAD.values() );
+    }
+
+    /**
+     * Returns the methods known to the agent.
+     *
+     * @return
+     */
+    public static ClassMethodsContainer getLiveMethods() {
+        return Profile.CLASS_METHOD_CONTAINER;
+    }
+
+    /**
+     * Copies all profiles being recorded.
+     *
+     * @return copies, profiles that could not be copied are missing
+     */
+    public static List<Profile> copyAll()
+    {
+        final List<Profile> result = new ArrayList<>();
+        for ( Profile profile : getLiveProfiles() )
+        {
+            final Profile copy = copy( profile );
+            if ( copy != null ) {
+                result.add( copy );
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Copies a profile, it may be getting recorded while being copied.
+     *
+     * @param live
+     * @return copy or <code>null</code> if the profile kept changing while being copied
+     */
+    public static Profile copy(Profile live)
+    {
+        for ( int attempt = 0 ; attempt < MAX_ATTEMPTS ; attempt++ )
+        {
+            try
+            {
+                final Profile result = new Profile( live.getThreadName() );
+                result.setCreationTime( live.getCreationTimeMillis() );
+                final MethodStats root = live.getTopLevelMethod();
+                // the thread has not discarded its call tree yet
+                if ( root != null && ! live.isResetPending() ) {
+                    result.setTopLevelMethod( copy( root ) );
+                }
+                return result;
+            }
+            catch(RuntimeException e) {
+                // concurrent modification, try again
+            }
+        }
+        return null;
+    }
+
+    private static MethodStats copy(MethodStats root)
+    {
+        final MethodStats result = copyNode( root , null );
+        final Deque<MethodStats> sources = new ArrayDeque<>();
+        final Deque<MethodStats> targets = new ArrayDeque<>();
+        sources.push( root );
+        targets.push( result );
+        while ( ! sources.isEmpty() )
+        {
+            final MethodStats source = sources.pop();
+            final MethodStats target = targets.pop();
+            // copy the values first, so the callee map is only iterated once
+            final MethodStats[] callees = source.getCallees().values().toArray( new MethodStats[0] );
+            for ( MethodStats callee : callees )
+            {
+                final MethodStats copy = copyNode( callee , target );
+                target.getCallees().put( copy.getMethodId() , copy );
+                sources.push( callee );
+                targets.push( copy );
+            }
+        }
+        return result;
+    }
+
+    private static MethodStats copyNode(MethodStats source,MethodStats parent)
+    {
+        final MethodStats result = new MethodStats( source.getMethodId() , parent );
+        result.setInvocationCount( source.getInvocationCount() );
+        result.setTotalTimeMillis( source.getTotalTimeMillisRaw() );
+        return result;
+    }
+}
@@ -13,6 +13,15 @@ public class Viewer
 {
     public static void main(String[] args) throws HeadlessException, FileNotFoundException, InvocationTargetException, IOException, InterruptedException 
     {
+        if ( args.length > 0 && args[0].equals("-export") ) 
+        {
+            // kept for backwards compatibility, same as the 'export' command
+            args[0] = "export";
+        }
+        if ( args.length > 0 && Analyzer.isCommand( args[0] ) ) 
+        {
+            System.exit( Analyzer.run( args ) );
+        }
         if ( Arrays.stream(args).anyMatch( arg -> arg.equals("-s" ) ) ) 
         {
             TreeTableViewer.main( args );
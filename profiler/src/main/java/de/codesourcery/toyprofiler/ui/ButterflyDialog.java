@@ -0,0 +1,151 @@
+package de.codesourcery.toyprofiler.ui;
+
+import java.awt.Dimension;
+import java.awt.Frame;
+import java.awt.GridBagLayout;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
+import java.util.Collections;
+import java.util.List;
+
+import javax.swing.JDialog;
+import javax.swing.JLabel;
+import javax.swing.JPanel;
+import javax.swing.JScrollPane;
+import javax.swing.JTable;
+import javax.swing.table.AbstractTableModel;
+
+import de.codesourcery.toyprofiler.IClassMethodsContainer;
+import de.codesourcery.toyprofiler.Profile;
+import de.codesourcery.toyprofiler.Profile.MethodIdentifier;
+import de.codesourcery.toyprofiler.util.Butterfly;
+import de.codesourcery.toyprofiler.util.IGridBagHelper;
+
+/**
+ * Shows the callers and callees of a method.
+ *
+ * Double-clicking a caller or callee shows its butterfly instead.
+ */
+public final class ButterflyDialog extends JDialog
+{
+    private final Profile profile;
+    private final IClassMethodsContainer methods;
+
+    private final JLabel header = new JLabel();
+    private final EntryTableModel callers = new EntryTableModel("Caller");
+    private final EntryTableModel callees = new EntryTableModel("Callee");
+
+    private Butterfly butterfly;
+
+    private final class EntryTableModel extends AbstractTableModel
+    {
+        private final String[] columns;
+        private List<Butterfly.Entry> entries = Collections.emptyList();
+
+        public EntryTableModel(String name)
+        {
+            this.columns = new String[] { name , "Total time" , "% of method time" , "Invocations" };
+        }
+
+        public void setEntries(List<Butterfly.Entry> entries)
+        {
+            this.entries = entries;
+            fireTableDataChanged();
+        }
+
+        public Butterfly.Entry getRow(int row) {
+            return entries.get( row );
+        }
+
+        @Override
+        public int getRowCount() {
+            return entries.size();
+        }
+
+        @Override
+        public int getColumnCount() {
+            return columns.length;
+        }
+
+        @Override
+        public String getColumnName(int column) {
+            return columns[column];
+        }
+
+        @Override
+        public Object getValueAt(int row, int column)
+        {
+            final Butterfly.Entry entry = entries.get( row );
+            switch( column )
+            {
+                case 0: return getName( entry.methodId );
+                case 1: return FlameGraphViewer.millisToString( entry.totalTimeMillis );
+                case 2: return butterfly.totalTimeMillis <= 0 ? "" : FlameGraphViewer.PERCENTAGE_FORMAT.format( 100*entry.totalTimeMillis / butterfly.totalTimeMillis );
+                case 3: return FlameGraphViewer.INVOCATION_COUNT_FORMAT.format( entry.invocationCount );
+                default:
+                    throw new IllegalArgumentException("Invalid column "+column);
+            }
+        }
+    }
+
+    public ButterflyDialog(Profile profile,IClassMethodsContainer methods)
+    {
+        super((Frame) null, "Callers / Callees", false );
+        this.profile = profile;
+        this.methods = methods;
+        setDefaultCloseOperation( JDialog.DISPOSE_ON_CLOSE );
+
+        final JPanel panel = new JPanel();
+        panel.setLayout( new GridBagLayout() );
+        panel.add( new JScrollPane( createTable( callers ) ) , IGridBagHelper.cnstrs(0,0).weightX(1).weightY(0.5).build() );
+        panel.add( header , IGridBagHelper.cnstrs(0,1).weightX(1).weightY(0).build() );
+        panel.add( new JScrollPane( createTable( callees ) ) , IGridBagHelper.cnstrs(0,2).weightX(1).weightY(0.5).build() );
+        add( panel );
+        setPreferredSize( new Dimension( 640 , 480 ) );
+        pack();
+        setLocationRelativeTo( null );
+    }
+
+    private JTable createTable(EntryTableModel model)
+    {
+        final JTable table = new JTable( model );
+        table.addMouseListener( new MouseAdapter()
+        {
+            @Override
+            public void mouseClicked(MouseEvent e)
+            {
+                if ( e.getClickCount() >= 2 && e.getButton() == MouseEvent.BUTTON1 )
+                {
+                    final int row = table.rowAtPoint( e.getPoint() );
+                    if ( row != -1 ) {
+                        showMethod( model.getRow( row ).methodId );
+                    }
+                }
+            }
+        });
+        return table;
+    }
+
+    /**
+     * Shows the callers and callees of a method.
+     *
+     * @param methodId
+     */
+    public void showMethod(int methodId)
+    {
+        butterfly = Butterfly.compute( profile , methodId );
+        final String share = butterfly.profileTimeMillis <= 0 ? "" : " ("+FlameGraphViewer.PERCENTAGE_FORMAT.format( 100*butterfly.totalTimeMillis / butterfly.profileTimeMillis )+" %)";
+        header.setText( "<HTML><B>"+getName( methodId )+"</B> - total time: "+FlameGraphViewer.millisToString( butterfly.totalTimeMillis )+share+
+                ", self time: "+FlameGraphViewer.millisToString( butterfly.selfTimeMillis )+
+                ", invocations: "+FlameGraphViewer.INVOCATION_COUNT_FORMAT.format( butterfly.invocationCount )+"</HTML>" );
+        setTitle( "Callers / Callees of "+getName( methodId )+" ["+profile.getThreadName()+"]" );
+        callers.setEntries( butterfly.getCallers() );
+        callees.setEntries( butterfly.getCallees() );
+    }
+
+    private String getName(int methodId)
+    {
+        final MethodIdentifier method = methods.getRawMethodName( methodId );
+        return method == null ? "<unknown method "+methodId+">" : method.className.replace('/','.')+"."+method.methodName;
+    }
+}
@@ -103,6 +103,27 @@ public class ColorScheme
         return badDifferenceColor;
     }
     
+    /**
+     * Returns the color for a difference, fading into the background color as the confidence drops.
+     *
+     * @param worse whether the difference is a regression
+     * @param confidence 0...1
+     * @param background color of the frame the difference is drawn on
+     * @return
+     */
+    public Color getDifferenceColor(boolean worse,double confidence,Color background)
+    {
+        final Color color = worse ? badDifferenceColor : goodDifferenceColor;
+        if ( confidence >= 1 ) {
+            return color;
+        }
+        // even barely significant differences need to stand out a bit
+        final double f = 0.3 + 0.7 * Math.max( 0 , confidence );
+        return new Color( (int) Math.round( background.getRed() + f * ( color.getRed() - background.getRed() ) ),
+                (int) Math.round( background.getGreen() + f * ( color.getGreen() - background.getGreen() ) ),
+                (int) Math.round( background.getBlue() + f * ( color.getBlue() - background.getBlue() ) ) );
+    }
+
     public void setGoodDifferenceColor(Color goodDifferenceColor) {
         this.goodDifferenceColor = goodDifferenceColor;
     }
@@ -140,6 +161,15 @@ public class ColorScheme
         return gradient[index];
     }
     
+    /**
+     * Returns the colors frames cycle through.
+     * 
+     * @return
+     */
+    public Color[] getGradient() {
+        return Arrays.copyOf( gradient , gradient.length );
+    }
+    
     public static Color[] createGradient(final Color src ,final Color dst,int colorCount) 
     {
         final Color[] gradient = new Color[colorCount];
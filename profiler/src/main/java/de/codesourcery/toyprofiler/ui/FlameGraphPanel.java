@@ -15,18 +15,23 @@ import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.function.IntPredicate;
 
 import javax.swing.JPanel;
+import javax.swing.SwingWorker;
 
+import de.codesourcery.toyprofiler.IClassMethodsContainer;
 import de.codesourcery.toyprofiler.MethodStatsHelper;
 import de.codesourcery.toyprofiler.Profile.MethodStats;
 import de.codesourcery.toyprofiler.ui.FlameGraphRenderer.FlameGraph;
 import de.codesourcery.toyprofiler.ui.FlameGraphRenderer.IDataProvider;
-import de.codesourcery.toyprofiler.ui.FlameGraphRenderer.IVisitor;
 import de.codesourcery.toyprofiler.ui.FlameGraphRenderer.RectangularRegion;
 import de.codesourcery.toyprofiler.ui.FlameGraphViewer.MethodDataProvider;
 import de.codesourcery.toyprofiler.ui.Preferences.IPrefChangeListener;
 import de.codesourcery.toyprofiler.ui.ViewingHistory.IViewChangeListener;
+import de.codesourcery.toyprofiler.util.MethodIdMapping;
 
 public class FlameGraphPanel extends JPanel implements IViewChangeListener
 {
@@ -35,6 +40,8 @@ public class FlameGraphPanel extends JPanel implements IViewChangeListener
         public void selectionChanged(MethodStats stats,MethodStatsHelper helper);
     }
     
+    private static final Color HIGHLIGHT_COLOR = new Color( 255 , 0 , 255 , 128 );
+
     private final List<IMethodStatSelectionListener> listeners = new ArrayList<>();
     
     private FlameGraphRenderer<MethodStats> renderer;
@@ -43,21 +50,34 @@ public class FlameGraphPanel extends JPanel implements IViewChangeListener
     private int h = -1;
     
     private MethodStatsHelper resolver;
+    // method container of the data being shown, null if not set through viewChanged()
+    private IClassMethodsContainer methods;
     private IDataProvider<MethodStats> dataProvider;
     
     private FlameGraph<MethodStats> graph;
+    // true if graph no longer matches the current data/zoom/preferences
+    private boolean graphOutdated = true;
+
+    // background rendering in progress (if any) and the latest coarse preview it published
+    private SwingWorker<FlameGraph<MethodStats>,BufferedImage> renderWorker;
+    private BufferedImage preview;
+    // message shown instead of the graph if rendering it failed, until the data or size changes
+    private String renderError;
 
     private RectangularRegion<MethodStats> highlight;
     
     private RectangularRegion<MethodStats> currentSelection;
     private MethodStats zoom;
 
+    // methods whose frames are highlighted, may be null
+    private IntPredicate highlightedMethods;
+
     private final MouseAdapter mouseListener = new MouseAdapter()
     {
         @Override
         public void mouseMoved(java.awt.event.MouseEvent e)
         {
-            if ( graph != null )
+            if ( isGraphUpToDate() )
             {
                 final RectangularRegion<MethodStats> region = graph.getRegion( e.getX() ,  e.getY() );
                 setToolTipText( region == null ? null : getToolTip( region.stats ) );
@@ -75,7 +95,7 @@ public class FlameGraphPanel extends JPanel implements IViewChangeListener
         @Override
         public void mouseClicked(java.awt.event.MouseEvent e)
         {
-            if ( graph == null ) {
+            if ( ! isGraphUpToDate() ) {
                 return;
             }
             
@@ -126,6 +146,7 @@ public class FlameGraphPanel extends JPanel implements IViewChangeListener
         this.renderer = renderer;
         this.dataProvider = dataProvider;
         this.resolver = resolver;
+        applyPreferences( renderer , preferences );
         
         registerListeners();
     }    
@@ -145,7 +166,14 @@ public class FlameGraphPanel extends JPanel implements IViewChangeListener
         {
             private final IPrefChangeListener l = prefs -> 
             {
-                renderer.setColorScheme( prefs.getDefaultColorScheme() );
+                if ( renderer != null ) 
+                {
+                    renderer.setColorScheme( getColorScheme() );
+                    applyPreferences( renderer , prefs );
+                    if ( dataProvider instanceof MethodDataProvider ) {
+                        ((MethodDataProvider) dataProvider).invalidateLabels();
+                    }
+                }
                 forcedRepaint();
             };
             
@@ -162,6 +190,15 @@ public class FlameGraphPanel extends JPanel implements IViewChangeListener
         });        
     }
     
+    /**
+     * Returns the node the user clicked on.
+     *
+     * @return
+     */
+    public java.util.Optional<MethodStats> getSelection() {
+        return java.util.Optional.ofNullable( currentSelection ).map( region -> region.stats );
+    }
+
     public void addListener( IMethodStatSelectionListener l ) {
         this.listeners.add(l);
     }
@@ -176,8 +213,22 @@ public class FlameGraphPanel extends JPanel implements IViewChangeListener
         listeners.forEach( l -> l.selectionChanged(newSelection,resolver) );
     }
     
+    /**
+     * Highlights all frames of some methods (for example search matches).
+     *
+     * @param methodIds predicate to test method IDs with or <code>null</code> to clear the highlight
+     */
+    public void setHighlightedMethods(IntPredicate methodIds)
+    {
+        this.highlightedMethods = methodIds;
+        repaint();
+    }
+
     public void viewChanged(java.util.Optional<ProfileData> data,boolean triggeredFromComboBox) 
     {
+        highlightedMethods = null;
+        final IClassMethodsContainer previousMethods = methods;
+        methods = data.orElse( null );
         if ( data.isPresent() ) 
         {
             resolver = new MethodStatsHelper( data.get() );
@@ -188,29 +239,55 @@ public class FlameGraphPanel extends JPanel implements IViewChangeListener
             resolver = MethodStatsHelper.NOP_INSTANCE;
         }
         renderer = new FlameGraphRenderer<MethodStats>( dataProvider , getColorScheme() );
+        applyPreferences( renderer , preferences );
         if ( zoom != null ) // map zoom to (possibly) new method tree
         {
-            final MethodStats[] newZoom = { null };
-            final IVisitor<MethodStats> visitor = new IVisitor<MethodStats>() {
-
-                @Override
-                public void visit(MethodStats item, int depth) 
-                {
-                    if ( newZoom[0] == null && ( item == zoom || dataProvider.areEquivalent( item, zoom ) ) ) {
-                        newZoom[0] = item;
-                    }
-                }
-            };
-            dataProvider.visitSubtree( dataProvider.getRoot() , visitor );
-            zoom = newZoom[0];
+            zoom = dataProvider == null ? null : mapZoom( zoom , previousMethods == null || methods == null ? 
+                    MethodIdMapping.IDENTITY : MethodIdMapping.between( previousMethods , methods ) );
         }
         forcedRepaint();
     }
 
-    private void forcedRepaint() {
-        graph = null;
+    /**
+     * Maps a node from the previously displayed tree to the current one by walking
+     * the path from the root, only materializing the nodes along that path.
+     *
+     * The trees may come from different files, so the path's IDs get mapped to the current method container.
+     */
+    private MethodStats mapZoom(MethodStats oldZoom,MethodIdMapping mapping)
+    {
+        final int[] path = oldZoom.getPathFromRoot();
+        MethodStats current = dataProvider.getRoot();
+        if ( current == null || current.getMethodId() != mapping.map( path[0] ) ) {
+            return null;
+        }
+        for ( int i = 1 ; i < path.length && current != null ; i++ ) {
+            current = current.getCallees().get( mapping.map( path[i] ) );
+        }
+        return current;
+    }
+
+    private static void applyPreferences(FlameGraphRenderer<?> renderer,Preferences preferences) 
+    {
+        renderer.setMinFrameWidth( preferences.getMinFrameWidth() );
+        renderer.setAggregateSmallFrames( preferences.isAggregateSmallFrames() );
+    }
+
+    private void forcedRepaint()
+    {
+        if ( renderWorker != null )
+        {
+            renderWorker.cancel( false );
+            renderWorker = null;
+        }
+        graphOutdated = true;
+        renderError = null;
         repaint();
     }
+
+    private boolean isGraphUpToDate() {
+        return graph != null && ! graphOutdated && getWidth() == w && getHeight() == h;
+    }
     
     protected ColorScheme getColorScheme() 
     {
@@ -245,22 +322,41 @@ public class FlameGraphPanel extends JPanel implements IViewChangeListener
             return;
         }
         
-        if ( graph == null || getWidth() != w || getHeight() != h )
+        if ( renderError != null && getWidth() == w && getHeight() == h )
         {
-            w = getWidth();
-            h = getHeight();
+            setBackground(Color.WHITE);
+            super.paintComponent(g);
+            FlameGraphRenderer.drawCentered("< rendering failed: "+renderError+" >", new Rectangle(0,0,getWidth(),getHeight() ), (Graphics2D) g);
+            return;
+        }
 
-            graph = renderGraph(w,h);
-            if ( currentSelection != null ) {
-                currentSelection = graph.find( currentSelection.stats , dataProvider );
-                selectionChanged( currentSelection == null ? null : currentSelection.stats );
+        if ( graph == null || graphOutdated || getWidth() != w || getHeight() != h )
+        {
+            if ( ( renderWorker == null || getWidth() != w || getHeight() != h ) && getWidth() > 0 && getHeight() > 0 ) {
+                startRendering();
             }
-            if ( highlight != null ) {
-                highlight = graph.find( highlight.stats , dataProvider );
+            // show whatever we have, scaled to the new size, until rendering finishes
+            final BufferedImage image = preview != null ? preview : graph != null ? graph.getImage() : null;
+            setBackground(Color.WHITE);
+            super.paintComponent(g);
+            if ( image != null ) {
+                g.drawImage( image , 0 , 0 , getWidth() , getHeight() , null );
             }
+            return;
         }
         g.drawImage( graph.getImage() , 0 , 0 , null );
 
+        if ( highlightedMethods != null )
+        {
+            g.setColor( HIGHLIGHT_COLOR );
+            for ( RectangularRegion<MethodStats> region : graph.getRegions() )
+            {
+                if ( highlightedMethods.test( region.stats.getMethodId() ) ) {
+                    g.fillRect( region.x , region.y , region.width , region.height );
+                }
+            }
+        }
+
         final RectangularRegion<MethodStats> toHighlight = currentSelection != null ? currentSelection : highlight;
         if ( toHighlight != null )
         {
@@ -268,6 +364,85 @@ public class FlameGraphPanel extends JPanel implements IViewChangeListener
             ((Graphics2D) g).draw( toHighlight );
         }
     }
+
+    /**
+     * Renders the flame graph for the current size on a background thread, cancelling
+     * any rendering that is still in progress.
+     *
+     * Must be called on the EDT.
+     */
+    private void startRendering()
+    {
+        if ( renderWorker != null ) {
+            renderWorker.cancel( false );
+        }
+        w = getWidth();
+        h = getHeight();
+        preview = null;
+        renderError = null;
+        graphOutdated = true;
+
+        final FlameGraphRenderer<MethodStats> renderer = this.renderer;
+        final IDataProvider<MethodStats> dataProvider = this.dataProvider;
+        final MethodStats root = zoom != null ? zoom : dataProvider.getRoot();
+        final int width = w;
+        final int height = h;
+        renderWorker = new SwingWorker<FlameGraph<MethodStats>,BufferedImage>()
+        {
+            @Override
+            protected FlameGraph<MethodStats> doInBackground() throws Exception
+            {
+                return renderer.render( root , width , height , this::isCancelled , this::publish );
+            }
+
+            @Override
+            protected void process(List<BufferedImage> chunks)
+            {
+                if ( renderWorker == this )
+                {
+                    preview = chunks.get( chunks.size() - 1 );
+                    repaint();
+                }
+            }
+
+            @Override
+            protected void done()
+            {
+                if ( renderWorker != this || isCancelled() ) {
+                    return;
+                }
+                renderWorker = null;
+                preview = null;
+                try {
+                    graph = get();
+                }
+                catch (InterruptedException | CancellationException e) {
+                    return;
+                }
+                catch (ExecutionException e)
+                {
+                    if ( e.getCause() instanceof CancellationException ) {
+                        return;
+                    }
+                    // not retried on every repaint, only once the data or the size changes
+                    e.getCause().printStackTrace();
+                    renderError = e.getCause().getMessage() != null ? e.getCause().getMessage() : e.getCause().getClass().getSimpleName();
+                    repaint();
+                    return;
+                }
+                graphOutdated = false;
+                if ( currentSelection != null ) {
+                    currentSelection = graph.find( currentSelection.stats , dataProvider );
+                    selectionChanged( currentSelection == null ? null : currentSelection.stats );
+                }
+                if ( highlight != null ) {
+                    highlight = graph.find( highlight.stats , dataProvider );
+                }
+                repaint();
+            }
+        };
+        renderWorker.execute();
+    }
     
     protected String getToolTip( MethodStats stats )
     {
@@ -6,29 +6,99 @@ import java.awt.Graphics2D;
 import java.awt.Rectangle;
 import java.awt.Shape;
 import java.awt.image.BufferedImage;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.NoSuchElementException;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 
 public class FlameGraphRenderer<T>
 {
-    private int maxDepth;
+    public static final int DEFAULT_MIN_FRAME_WIDTH = 1;
 
-    private BufferedImage image;
-    private Graphics2D graphics;
+    private static final Color OTHER_FRAMES_COLOR = Color.LIGHT_GRAY;
 
-    private int height;
-    private int heightPerRow;
+    // frames at least this wide are drawn in the coarse preview
+    private static final int PREVIEW_MIN_FRAME_WIDTH = 8;
 
-    private ColorScheme colorScheme;
+    // images narrower than this are not split into tiles
+    private static final int MIN_TILE_WIDTH = 256;
 
-    private boolean doRender;
+    // how often (in frames) to check for cancellation
+    private static final int CANCEL_CHECK_INTERVAL = 1024;
+
+    private volatile ColorScheme colorScheme;
+
+    private volatile int minFrameWidth = DEFAULT_MIN_FRAME_WIDTH;
+    private volatile boolean aggregateSmallFrames = true;
 
     private final IDataProvider<T> dataProvider;
 
-    private List<RectangularRegion<T>> regions = new ArrayList<>(1000);
+    /**
+     * Callback used to check whether a render operation should be aborted.
+     */
+    @FunctionalInterface
+    public interface ICancellationCheck
+    {
+        public boolean isCancelled();
+    }
+
+    /**
+     * Receives intermediate results of a render operation.
+     */
+    @FunctionalInterface
+    public interface IPreviewListener
+    {
+        /**
+         * Invoked with a coarse image of the final graph.
+         *
+         * @param preview
+         */
+        public void preview(BufferedImage preview);
+    }
+
+    /**
+     * A laid out frame, the y coordinate is only known after layout is complete.
+     */
+    private static final class Frame<T>
+    {
+        public final T node; // null for frames aggregating frames that were too small
+        public final int x;
+        public final int width;
+        public final int depth;
+        public final int colorIndex;
+
+        public Frame(T node,int x,int width,int depth,int colorIndex)
+        {
+            this.node = node;
+            this.x = x;
+            this.width = width;
+            this.depth = depth;
+            this.colorIndex = colorIndex;
+        }
+    }
+
+    /**
+     * A frame whose children still need to be laid out.
+     */
+    private static final class Pending<T>
+    {
+        public final Frame<T> frame;
+        public final int colorIndexIncrement;
+
+        public Pending(Frame<T> frame,int colorIndexIncrement)
+        {
+            this.frame = frame;
+            this.colorIndexIncrement = colorIndexIncrement;
+        }
+    }
 
     public interface IVisitor<T>
     {
@@ -44,10 +114,37 @@ public class FlameGraphRenderer<T>
 
         public double getPreviousPercentageValue(T node) throws NoSuchElementException,IllegalStateException;
 
+        /**
+         * Returns how confident the difference to the previous profile is.
+         *
+         * @param node
+         * @return 0 if the difference is not significant and should not be shown, up to 1 for certain
+         */
+        public default double getDifferenceConfidence(T node) {
+            return 1;
+        }
+
         public List<T> getChildren(T node);
 
         public void visitSubtree(T startNode,IVisitor<T> visitor);
 
+        /**
+         * Returns the depth of the subtree below a given node.
+         *
+         * @param node
+         * @return subtree depth, 0 if the node has no children
+         */
+        public default int getMaxDepth(T node)
+        {
+            final int[] md = {0};
+            visitSubtree(node , (child,depth) -> {
+                if ( depth > md[0] ) {
+                    md[0]=depth;
+                }
+            });
+            return md[0];
+        }
+
         public String getLabel(T node,Graphics2D graphics,int maxWidth);
         
         public boolean areEquivalent(T a,T b);
@@ -72,20 +169,109 @@ public class FlameGraphRenderer<T>
         }
     }
 
+    /**
+     * A rendered flame graph along with the screen regions of all nodes.
+     *
+     * Regions are indexed by node identity and by row, rows being sorted by x coordinate
+     * so hit-testing only takes a row lookup plus a binary search.
+     */
     public static final class FlameGraph<T>
     {
         private final BufferedImage image;
         private final List<RectangularRegion<T>> regions;
+        private final Map<T,RectangularRegion<T>> regionsByNode;
+
+        // rows sorted ascending by y coordinate
+        private final int[] rowY;
+        private final int[] rowHeight;
+        private final Row<T>[] rows;
 
-        public FlameGraph(BufferedImage image,List<RectangularRegion<T>> rects) {
+        private static final class Row<T>
+        {
+            public final int[] startX;
+            public final List<RectangularRegion<T>> regions;
+
+            public Row(List<RectangularRegion<T>> regions)
+            {
+                this.regions = regions;
+                this.startX = new int[ regions.size() ];
+                for ( int i = 0 ; i < startX.length ; i++ ) {
+                    startX[i] = regions.get(i).x;
+                }
+            }
+
+            public RectangularRegion<T> find(int x,int y)
+            {
+                // first region starting after x
+                int low = 0;
+                int high = startX.length;
+                while ( low < high )
+                {
+                    final int mid = (low + high) >>> 1;
+                    if ( startX[mid] <= x ) {
+                        low = mid + 1;
+                    } else {
+                        high = mid;
+                    }
+                }
+                // regions within a row never overlap, so only the last
+                // non-empty one starting at or before x can contain the point
+                for ( int i = low - 1 ; i >= 0 ; i-- )
+                {
+                    final RectangularRegion<T> r = regions.get(i);
+                    if ( r.width > 0 ) {
+                        return r.contains(x,y) ? r : null;
+                    }
+                }
+                return null;
+            }
+        }
+
+        public FlameGraph(BufferedImage image,List<RectangularRegion<T>> rects) 
+        {
             this.image = image;
             this.regions = new ArrayList<>(rects);
+            this.regionsByNode = new IdentityHashMap<>( regions.size()*2 );
+            for ( int i = regions.size()-1 ; i >= 0 ; i-- ) { // first region wins
+                regionsByNode.put( regions.get(i).stats , regions.get(i) );
+            }
+
+            final List<RectangularRegion<T>> sorted = new ArrayList<>( regions );
+            sorted.sort( (a,b) -> a.y != b.y ? Integer.compare( a.y , b.y ) : Integer.compare( a.x , b.x ) );
+            final List<Row<T>> rowList = new ArrayList<>();
+            final List<int[]> bounds = new ArrayList<>();
+            for ( int start = 0 , len = sorted.size() ; start < len ; )
+            {
+                final int y = sorted.get( start ).y;
+                int end = start;
+                int height = 0;
+                while ( end < len && sorted.get( end ).y == y ) {
+                    height = Math.max( height , sorted.get( end++ ).height );
+                }
+                rowList.add( new Row<T>( new ArrayList<>( sorted.subList( start , end ) ) ) );
+                bounds.add( new int[] { y , height } );
+                start = end;
+            }
+            @SuppressWarnings("unchecked")
+            final Row<T>[] rowArray = rowList.toArray( (Row<T>[]) new Row<?>[ rowList.size() ] );
+            this.rows = rowArray;
+            this.rowY = new int[ rows.length ];
+            this.rowHeight = new int[ rows.length ];
+            for ( int i = 0 ; i < rows.length ; i++ )
+            {
+                rowY[i] = bounds.get(i)[0];
+                rowHeight[i] = bounds.get(i)[1];
+            }
         }
 
         public BufferedImage getImage() {
             return image;
         }
 
+        public List<RectangularRegion<T>> getRegions() {
+            return Collections.unmodifiableList( regions );
+        }
+
         public RectangularRegion<T> getFirst()
         {
             return regions.isEmpty() ? null : regions.get(0);
@@ -93,18 +279,29 @@ public class FlameGraphRenderer<T>
 
         public RectangularRegion<T> getRegion(int x,int y)
         {
-            for (int i = 0,len = regions.size() ; i < len ; i++)
-            {
-                final RectangularRegion<T> r = regions.get(i);
-                if ( r.contains(x,y) ) {
-                    return r;
-                }
+            int row = Arrays.binarySearch( rowY , y );
+            if ( row < 0 ) {
+                row = -row - 2;
             }
-            return null;
+            if ( row < 0 || y >= rowY[row] + rowHeight[row] ) {
+                return null;
+            }
+            return rows[row].find( x , y );
         }
 
+        /**
+         * Returns the region of a node.
+         *
+         * @param stats
+         * @param dataProvider used to find an equivalent node if the node itself has not been rendered
+         * @return region or <code>null</code>
+         */
         public RectangularRegion<T> find(T stats,IDataProvider<T> dataProvider) 
         {
+            final RectangularRegion<T> result = regionsByNode.get( stats );
+            if ( result != null ) {
+                return result;
+            }
             for (int i = 0,len = regions.size() ; i < len ; i++)
             {
                 final RectangularRegion<T> r = regions.get(i);
@@ -122,33 +319,25 @@ public class FlameGraphRenderer<T>
         this.colorScheme = colorScheme;
     }
 
-    private int calcMaxDepth(T root)
-    {
-        final int[] md = {0};
-        if ( root != null )
-        {
-            dataProvider.visitSubtree(root , (node,depth) -> {
-                if ( depth > md[0] ) {
-                    md[0]=depth;
-                }
-            });
-        }
-        return md[0];
+    /**
+     * Sets the minimum width (in pixels) a frame needs to have to be drawn.
+     *
+     * Subtrees below frames that are too narrow are not traversed at all.
+     *
+     * @param minFrameWidth
+     */
+    public void setMinFrameWidth(int minFrameWidth) {
+        this.minFrameWidth = Math.max( 1 , minFrameWidth );
     }
 
-    private void reset(T root,int width,int height)
-    {
-        this.regions.clear();
-        this.doRender = true;
-        this.maxDepth = calcMaxDepth( root );
-        this.height = height;
-        this.regions = new ArrayList<>(1000);
-        this.image = new BufferedImage(width,height,BufferedImage.TYPE_INT_RGB );
-        if ( this.graphics != null )
-        {
-            this.graphics.dispose();
-        }
-        this.graphics = image.createGraphics();
+    /**
+     * Sets whether the frames that are too narrow to be drawn should be
+     * summed up and drawn as a single "other" frame next to their siblings.
+     *
+     * @param aggregateSmallFrames
+     */
+    public void setAggregateSmallFrames(boolean aggregateSmallFrames) {
+        this.aggregateSmallFrames = aggregateSmallFrames;
     }
 
     public FlameGraph<T> render(int width,int height)
@@ -158,108 +347,210 @@ public class FlameGraphRenderer<T>
 
     public FlameGraph<T> render(T root,int width,int height)
     {
-        // first rendering pass
-        reset(root,width,height);
-        doRender = false; // do not render, just calculate layout
-        onePass(root,width,height);
-
-        // determine visible height by discarding all
-        // regions that are too tiny to see at the
-        // current zoom level
-        final Map<Integer,List<RectangularRegion<T>>> childAtDepth = new HashMap<>();
-
-        dataProvider.visitSubtree(root ,  (child,depth ) -> {
-
-            final RectangularRegion<T> region = regions.stream().filter( r -> r.stats == child ).findFirst().orElse( null );
-            if ( region != null && isVisible(region) )
-            {
-                List<RectangularRegion<T>> list = childAtDepth.get( depth );
-                if ( list == null ) {
-                    list = new ArrayList<>();
-                    childAtDepth.put(depth,list);
-                }
-                list.add( region );
-            }
-        });
-
-        final int visibleDepth = childAtDepth.keySet().stream().mapToInt( k -> k.intValue() ).max().orElse(0);
-
-        // second rendering pass
-        reset(root,width,height);
-        maxDepth = visibleDepth;
-        onePass(root,width,height);
-
-        final FlameGraph<T> result = new FlameGraph<T>(image,regions);
-
-        // release memory just in case someone rendered a super-big graph
-        cleanup();
-        return result;
+        return render( root , width , height , () -> false , null );
     }
 
-    private void cleanup() 
+    /**
+     * Renders a flame graph.
+     *
+     * This method may be invoked from any thread and concurrently with other invocations.
+     * The frames' layout is computed first, then frames that are wide enough are drawn
+     * into a preview image that is passed to the listener. Finally, the whole graph is
+     * drawn with the image being split into vertical tiles that are rendered in parallel.
+     *
+     * @param root
+     * @param width
+     * @param height
+     * @param cancellation checked periodically, rendering stops with a {@link CancellationException} once it returns <code>true</code>
+     * @param previewListener listener to receive a coarse preview image, may be <code>null</code>
+     * @return
+     * @throws CancellationException
+     */
+    public FlameGraph<T> render(T root,int width,int height,ICancellationCheck cancellation,IPreviewListener previewListener) throws CancellationException
     {
-        this.regions.clear();
-        this.image = null;
-        this.graphics.dispose();
-        this.graphics = null;
+        return new Pass( width , height , cancellation ).render( root , previewListener );
     }
 
-    private boolean isVisible(RectangularRegion<T> r)
+    /**
+     * State of a single render operation.
+     */
+    private final class Pass
     {
-        return r.width > 0;
-    }
+        private final int width;
+        private final int height;
+        private final ICancellationCheck cancellation;
 
-    private void onePass(T root,int width,int height)
-    {
-        if ( doRender ) {
-            graphics.setColor( Color.WHITE );
-            graphics.fillRect( 0 , 0 ,width , height );
-        }
+        // settings are captured once so they cannot change half-way
+        private final ColorScheme colorScheme = FlameGraphRenderer.this.colorScheme;
+        private final int minFrameWidth = FlameGraphRenderer.this.minFrameWidth;
+        private final boolean aggregateSmallFrames = FlameGraphRenderer.this.aggregateSmallFrames;
 
-        if ( root != null )
-        {
-            heightPerRow = height / (maxDepth+1);
+        private final List<Frame<T>> frames = new ArrayList<>(1000);
+        private int visibleDepth;
+        private int heightPerRow;
 
-            final Rectangle currentBox = new Rectangle(0,height-heightPerRow,width,heightPerRow);
-            processPath( 0 , 1, root , currentBox , 1 );
+        public Pass(int width,int height,ICancellationCheck cancellation)
+        {
+            this.width = width;
+            this.height = height;
+            this.cancellation = cancellation;
         }
-    }
 
-    private void processPath(int currentColor,int colorIndexIncrement,T parent,Rectangle rect,int currentDepth)
-    {
-        regions.add( new RectangularRegion<T>(rect, parent) );
-
-        if ( doRender ) 
+        private void checkCancelled()
         {
-            render( currentColor , parent , rect );
+            if ( cancellation.isCancelled() ) {
+                throw new CancellationException();
+            }
         }
 
-        currentColor += colorIndexIncrement;
-        if ( currentColor == colorScheme.getColorCount() ) 
+        public FlameGraph<T> render(T root,IPreviewListener previewListener)
         {
-            currentColor -= 2;
-            colorIndexIncrement = -1;
+            // lay out visible frames only, this also
+            // tells us how many rows we need to draw
+            if ( root != null ) {
+                layout( root );
+            }
+            heightPerRow = height / (visibleDepth+1);
+
+            if ( previewListener != null && frames.size() > CANCEL_CHECK_INTERVAL ) 
+            {
+                final BufferedImage preview = new BufferedImage(width,height,BufferedImage.TYPE_INT_RGB );
+                draw( preview , 0 , PREVIEW_MIN_FRAME_WIDTH , false );
+                checkCancelled();
+                previewListener.preview( preview );
+            }
+
+            final BufferedImage image = new BufferedImage(width,height,BufferedImage.TYPE_INT_RGB );
+            final int tileCount = Math.max( 1 , Math.min( Runtime.getRuntime().availableProcessors() , width / MIN_TILE_WIDTH ) );
+            if ( tileCount == 1 ) 
+            {
+                draw( image , 0 , 0 , true );
+            } 
+            else 
+            {
+                final int tileWidth = ( width + tileCount - 1 ) / tileCount;
+                final List<ForkJoinTask<BufferedImage>> tiles = new ArrayList<>();
+                for ( int tileX = 0 ; tileX < width ; tileX += tileWidth ) 
+                {
+                    final int x = tileX;
+                    final int w = Math.min( tileWidth , width - tileX );
+                    tiles.add( ForkJoinPool.commonPool().submit( () -> 
+                    {
+                        final BufferedImage tile = new BufferedImage( w , height , BufferedImage.TYPE_INT_RGB );
+                        draw( tile , x , 0 , true );
+                        return tile;
+                    }));
+                }
+                final Graphics2D graphics = image.createGraphics();
+                try 
+                {
+                    for ( int i = 0 ; i < tiles.size() ; i++ ) {
+                        graphics.drawImage( tiles.get(i).join() , i * tileWidth , 0 , null );
+                    }
+                } 
+                finally {
+                    graphics.dispose();
+                }
+            }
+            checkCancelled();
+
+            final List<RectangularRegion<T>> regions = new ArrayList<>( frames.size() );
+            for ( int i = 0 , len = frames.size() ; i < len ; i++ )
+            {
+                final Frame<T> frame = frames.get(i);
+                if ( frame.node != null ) {
+                    regions.add( new RectangularRegion<T>( bounds( frame , new Rectangle() ) , frame.node ) );
+                }
+            }
+            return new FlameGraph<T>( image , regions );
         }
-        else if ( currentColor == -1 ) 
+
+        private Rectangle bounds(Frame<T> frame,Rectangle rect)
         {
-            currentColor += 2;
-            colorIndexIncrement = 1;
+            rect.setBounds( frame.x , height-(frame.depth+1)*heightPerRow , frame.width , heightPerRow );
+            return rect;
         }
 
-        final List<T> sorted = dataProvider.getChildren( parent ) ; 
-
-        int x = rect.x;
-        final int y = height-(currentDepth+1)*heightPerRow;
-
-        for ( T child : sorted )
+        /**
+         * Draws all frames overlapping an image.
+         *
+         * @param image
+         * @param offsetX x coordinate of the image's left edge in the flame graph
+         * @param minWidth minimum frame width
+         * @param drawLabels
+         */
+        private void draw(BufferedImage image,int offsetX,int minWidth,boolean drawLabels)
         {
-            final double percentageThisNode= dataProvider.getPercentageValue( child);
-            final int w = (int) ( rect.width * percentageThisNode);
+            final Graphics2D graphics = image.createGraphics();
+            try
+            {
+                graphics.setColor( Color.WHITE );
+                graphics.fillRect( 0 , 0 , image.getWidth() , image.getHeight() );
+                graphics.translate( -offsetX , 0 );
+
+                final int endX = offsetX + image.getWidth();
+                final Rectangle rect = new Rectangle();
+                for ( int i = 0 , len = frames.size() ; i < len ; i++ )
+                {
+                    if ( ( i % CANCEL_CHECK_INTERVAL ) == 0 ) {
+                        checkCancelled();
+                    }
+                    final Frame<T> frame = frames.get(i);
+                    if ( frame.width < minWidth || frame.x >= endX || frame.x + frame.width <= offsetX ) {
+                        continue;
+                    }
+                    bounds( frame , rect );
+                    if ( frame.node == null )
+                    {
+                        graphics.setColor( OTHER_FRAMES_COLOR );
+                        graphics.fillRect( rect.x , rect.y , rect.width , rect.height );
+                    }
+                    else
+                    {
+                        render( graphics , frame.colorIndex , frame.node , rect , drawLabels );
+                    }
+                }
+            } 
+            finally {
+                graphics.dispose();
+            }
+        }
 
-            final Rectangle currentBox = new Rectangle( x  , y , w ,heightPerRow);
-            processPath( currentColor , colorIndexIncrement , child , currentBox , currentDepth+1 );
+        /**
+         * Lays out a frame and all of its visible descendants, in the same order a depth-first traversal would.
+         */
+        private void layout(T root)
+        {
+            // call trees can be deeper than the thread's stack allows for recursion
+            final Deque<Pending<T>> stack = new ArrayDeque<>();
+            final List<Pending<T>> children = new ArrayList<>();
+            stack.push( new Pending<T>( new Frame<T>( root , 0 , width , 0 , 0 ) , 1 ) );
+            while ( ! stack.isEmpty() )
+            {
+                final Pending<T> pending = stack.pop();
+                final Frame<T> frame = pending.frame;
+                frames.add( frame );
+                if ( frame.depth > visibleDepth ) {
+                    visibleDepth = frame.depth;
+                }
+                if ( ( frames.size() % CANCEL_CHECK_INTERVAL ) == 0 ) {
+                    checkCancelled();
+                }
+                if ( frame.node != null )
+                {
+                    layoutChildren( frame , pending.colorIndexIncrement , children );
+                    // last child gets pushed first so the first one gets laid out next
+                    for ( int i = children.size() - 1 ; i >= 0 ; i-- ) {
+                        stack.push( children.get(i) );
+                    }
+                    children.clear();
+                }
+            }
+        }
 
-            currentColor += colorIndexIncrement;
+        private void layoutChildren(Frame<T> parent,int colorIndexIncrement,List<Pending<T>> result)
+        {
+            int currentColor = parent.colorIndex + colorIndexIncrement;
             if ( currentColor == colorScheme.getColorCount() ) 
             {
                 currentColor -= 2;
@@ -271,43 +562,84 @@ public class FlameGraphRenderer<T>
                 colorIndexIncrement = 1;
             }
 
-            x += w;
-        }
-    }
+            final List<T> sorted = dataProvider.getChildren( parent.node ) ; 
 
-    private void render(int currentColorIndex , T node,Rectangle r) {
-
-        graphics.setColor( colorScheme.color( currentColorIndex ) );
+            int childX = parent.x;
+            double otherWidth = 0;
+            for ( T child : sorted )
+            {
+                final double exactWidth = parent.width * dataProvider.getPercentageValue( child );
+                final int w = (int) exactWidth;
+
+                if ( w >= minFrameWidth ) // no need to descend into subtrees that are too tiny to see
+                {
+                    result.add( new Pending<T>( new Frame<T>( child , childX , w , parent.depth+1 , currentColor ) , colorIndexIncrement ) );
+                    childX += w;
+                } 
+                else if ( exactWidth > 0 ) 
+                {
+                    otherWidth += exactWidth;
+                }
 
-        graphics.fillRect( r.x , r.y , r.width , r.height );
+                currentColor += colorIndexIncrement;
+                if ( currentColor == colorScheme.getColorCount() ) 
+                {
+                    currentColor -= 2;
+                    colorIndexIncrement = -1;
+                }
+                else if ( currentColor == -1 ) 
+                {
+                    currentColor += 2;
+                    colorIndexIncrement = 1;
+                }
+            }
 
-        if ( dataProvider.isShowDifferences() ) 
-        {
-            try 
-            {
-                final double delta = dataProvider.getPercentageValue( node ) - dataProvider.getPreviousPercentageValue( node );
-                final Color color = delta > 0 ? colorScheme.getBadDifferenceColor() : colorScheme.getGoodDifferenceColor();
-                final int w = (int) (r.width * Math.abs(delta));
-                graphics.setColor( color );
-                graphics.fillRect( r.x+r.width-w , r.y , w , r.height );
-            } 
-            catch( NoSuchElementException |  IllegalStateException e) 
+            if ( aggregateSmallFrames )
             {
-                e.printStackTrace();
-                graphics.setColor( Color.GRAY );
-                graphics.fillRect( r.x , r.y , r.width , r.height );
+                final int w = Math.min( (int) otherWidth , parent.x + parent.width - childX );
+                if ( w > 0 ) {
+                    // laid out after the subtrees of all other children
+                    result.add( new Pending<T>( new Frame<T>( null , childX , w , parent.depth+1 , currentColor ) , colorIndexIncrement ) );
+                }
             }
         }
 
-        graphics.setColor( Color.WHITE );
+        private void render(Graphics2D graphics,int currentColorIndex , T node,Rectangle r,boolean drawLabel) {
 
-        final String label = dataProvider.getLabel( node , graphics , r.width );
-        drawCentered( label , r );
-    }
+            final Color frameColor = colorScheme.color( currentColorIndex );
+            graphics.setColor( frameColor );
 
-    private void drawCentered(String text,Rectangle rectangle)
-    {
-        drawCentered(text,rectangle,graphics);
+            graphics.fillRect( r.x , r.y , r.width , r.height );
+
+            if ( dataProvider.isShowDifferences() ) 
+            {
+                try 
+                {
+                    final double delta = dataProvider.getPercentageValue( node ) - dataProvider.getPreviousPercentageValue( node );
+                    final double confidence = dataProvider.getDifferenceConfidence( node );
+                    if ( confidence > 0 )
+                    {
+                        final int w = (int) (r.width * Math.abs(delta));
+                        graphics.setColor( colorScheme.getDifferenceColor( delta > 0 , confidence , frameColor ) );
+                        graphics.fillRect( r.x+r.width-w , r.y , w , r.height );
+                    }
+                } 
+                catch( NoSuchElementException |  IllegalStateException e) 
+                {
+                    e.printStackTrace();
+                    graphics.setColor( Color.GRAY );
+                    graphics.fillRect( r.x , r.y , r.width , r.height );
+                }
+            }
+
+            if ( drawLabel ) 
+            {
+                graphics.setColor( Color.WHITE );
+
+                final String label = dataProvider.getLabel( node , graphics , r.width );
+                drawCentered( label , r , graphics );
+            }
+        }
     }
 
     public static void drawCentered(String text,Rectangle rectangle,Graphics2D graphics)
@@ -321,4 +653,4 @@ public class FlameGraphRenderer<T>
         graphics.drawString(text, x,y);
         graphics.setClip( oldClip );
     }
-}
\ No newline at end of file
+}
@@ -3,7 +3,6 @@ package de.codesourcery.toyprofiler.ui;
 import java.awt.Component;
 import java.awt.Dimension;
 import java.awt.FlowLayout;
-import java.awt.FontMetrics;
 import java.awt.Frame;
 import java.awt.Graphics2D;
 import java.awt.GridBagConstraints;
@@ -13,9 +12,9 @@ import java.awt.HeadlessException;
 import java.awt.event.KeyEvent;
 import java.awt.image.BufferedImage;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.lang.reflect.InvocationTargetException;
 import java.text.DecimalFormat;
 import java.time.format.DateTimeFormatter;
@@ -24,6 +23,9 @@ import java.util.Collections;
 import java.util.List;
 import java.util.NoSuchElementException;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Consumer;
 
 import javax.imageio.ImageIO;
 import javax.swing.DefaultComboBoxModel;
@@ -42,17 +44,33 @@ import javax.swing.JOptionPane;
 import javax.swing.JPanel;
 import javax.swing.JTextField;
 import javax.swing.KeyStroke;
+import javax.swing.SwingUtilities;
+import javax.swing.SwingWorker;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
 import javax.swing.filechooser.FileFilter;
 
 import de.codesourcery.toyprofiler.MethodStatsHelper;
 import de.codesourcery.toyprofiler.Profile;
-import de.codesourcery.toyprofiler.Profile.MethodIdentifier;
 import de.codesourcery.toyprofiler.Profile.MethodStats;
+import de.codesourcery.toyprofiler.ProfileContainer;
 import de.codesourcery.toyprofiler.ui.FlameGraphRenderer.IDataProvider;
 import de.codesourcery.toyprofiler.ui.FlameGraphRenderer.IVisitor;
+import de.codesourcery.toyprofiler.util.ChromeTraceExporter;
+import de.codesourcery.toyprofiler.util.DiffTree;
+import de.codesourcery.toyprofiler.util.FoldedStacksAdapter;
+import de.codesourcery.toyprofiler.util.HtmlFlameGraphExporter;
 import de.codesourcery.toyprofiler.util.IGridBagHelper;
+import de.codesourcery.toyprofiler.util.IProfileExporter;
 import de.codesourcery.toyprofiler.util.IProfileIOAdapter;
-import de.codesourcery.toyprofiler.util.XMLSerializer;
+import de.codesourcery.toyprofiler.util.JfrImporter;
+import de.codesourcery.toyprofiler.util.MappedProfileLoader;
+import de.codesourcery.toyprofiler.util.MethodSearchIndex;
+import de.codesourcery.toyprofiler.util.PprofExporter;
+import de.codesourcery.toyprofiler.util.ProfileFiles;
+import de.codesourcery.toyprofiler.util.SpeedscopeExporter;
+import de.codesourcery.toyprofiler.util.StatisticalComparison;
+import de.codesourcery.toyprofiler.util.StatisticalProfile;
 
 public class FlameGraphViewer extends JFrame implements IGridBagHelper
 {
@@ -67,7 +85,7 @@ public class FlameGraphViewer extends JFrame implements IGridBagHelper
     
     private File lastExportedImage;
     
-    private final IProfileIOAdapter ioAdapter = new XMLSerializer();
+    private final IProfileIOAdapter ioAdapter = new MappedProfileLoader();
     
     private final FlameGraphPanel graphPanel; 
     
@@ -77,24 +95,93 @@ public class FlameGraphViewer extends JFrame implements IGridBagHelper
     
     private final HistoryDialog historyDialog = new HistoryDialog(preferences,ioAdapter);
 
+    private final JTextField searchField = new JTextField( 15 );
+    private final JLabel searchStatus = new JLabel();
+    private SwingWorker<MethodSearchIndex.Result,Void> searchWorker;
+    private SearchState lastSearch;
+
+    private LiveView liveView;
+    // connection to an agent being established
+    private SwingWorker<LiveView.ISnapshotSource,Void> connectWorker;
+    private String lastAgentAddress = "localhost:4711";
+
+    /**
+     * Method IDs matching the last completed search.
+     */
+    private static final class SearchState
+    {
+        public final ProfileData data;
+        public final String query;
+        public final int[] methodIds;
+
+        public SearchState(ProfileData data, String query, int[] methodIds)
+        {
+            this.data = data;
+            this.query = query;
+            this.methodIds = methodIds;
+        }
+    }
+
     public static final class MethodDataProvider implements IDataProvider<MethodStats> 
     {
         private final Profile currentProfile;
         private final MethodStatsHelper currentResolver;
         
-        private final Profile previousProfile;
-        private final MethodStatsHelper previousResolver;
+        private final DiffTree diff;
+        private final StatisticalComparison statistics;
+
+        private final LabelCache labels = new LabelCache();
+        private final LabelCache.ILabelSource<MethodStats> labelSource = new LabelCache.ILabelSource<MethodStats>()
+        {
+            @Override
+            public int getKey(MethodStats node) {
+                return node.getMethodId();
+            }
+
+            @Override
+            public String getClassName(MethodStats node) {
+                return currentResolver.getSimpleClassName( node );
+            }
+
+            @Override
+            public String getMethodName(MethodStats node) {
+                return currentResolver.getMethodName( node );
+            }
+        };
 
         public MethodDataProvider(Profile currentProfile,MethodStatsHelper resolver) {
-            this(currentProfile,null,null,resolver);
+            this(currentProfile,null,resolver);
         }
         
-        public MethodDataProvider(Profile currentProfile,Profile previousProfile,MethodStatsHelper previousResolver,MethodStatsHelper currentResolver) 
+        /**
+         * Create a provider that shows the differences to a previous profile.
+         *
+         * @param currentProfile
+         * @param diff result of comparing the current profile with the previous one
+         * @param currentResolver
+         * @see DiffTree#compare(Profile, Profile)
+         */
+        public MethodDataProvider(Profile currentProfile,DiffTree diff,MethodStatsHelper currentResolver) 
+        {
+            this(currentProfile,diff,null,currentResolver);
+        }
+
+        /**
+         * Create a provider that shows the differences between two statistical profiles, only
+         * showing significant ones.
+         *
+         * @param currentProfile mean profile of the current runs
+         * @param diff result of comparing the mean profiles
+         * @param statistics
+         * @param currentResolver
+         * @see StatisticalProfile#finish()
+         */
+        public MethodDataProvider(Profile currentProfile,DiffTree diff,StatisticalComparison statistics,MethodStatsHelper currentResolver) 
         {
             this.currentProfile = currentProfile;
-            this.previousProfile = previousProfile;
+            this.diff = diff;
+            this.statistics = statistics;
             this.currentResolver = currentResolver;
-            this.previousResolver = previousResolver;
         }
 
         public Profile getCurrentProfile() {
@@ -124,51 +211,67 @@ public class FlameGraphViewer extends JFrame implements IGridBagHelper
         }
 
         @Override
-        public String getLabel(MethodStats node, Graphics2D graphics, int maxWidth)
+        public int getMaxDepth(MethodStats node)
         {
-            final String clazz = currentResolver.getSimpleClassName( node );
-            final String method = currentResolver.getMethodName( node );
-
-            String className = clazz;
-            String text = method;
-            if ( getTextWidth( text , graphics ) < maxWidth )
-            {
-                for ( int i = 0 ; i <= clazz.length() ; i++ )
-                {
-                    className = clazz.substring(0,i);
-                    String newText = (i!= clazz.length() ) ? className+"..."+method : className+"."+method;
-                    if ( getTextWidth(newText,graphics) > maxWidth ) {
-                        break;
-                    }
-                    text = newText;
-                }
-            }
-            return text;
+            return node.getSubtreeDepth();
         }
 
-        private int getTextWidth(String text,Graphics2D g)
+        @Override
+        public String getLabel(MethodStats node, Graphics2D graphics, int maxWidth)
         {
-            final FontMetrics fm = g.getFontMetrics();
-            return fm.stringWidth(text);
+            return labels.getLabel( node , labelSource , graphics , maxWidth );
+        }
+
+        /**
+         * Discards cached labels, must be called when anything affecting the label layout changed.
+         */
+        public void invalidateLabels() {
+            labels.clear();
         }
 
         @Override
         public boolean isShowDifferences() 
         {
-            return previousProfile != null;
+            return diff != null;
         }
 
         @Override
         public double getPreviousPercentageValue(MethodStats currentNode) throws NoSuchElementException,IllegalStateException
         {
-            if ( previousProfile == null ) {
+            if ( diff == null ) {
                 throw new IllegalStateException("Called without previous profile ?"); 
             }
-            final int[] methodIds = currentNode.getPathFromRoot();
-            final MethodIdentifier[] methodNames = currentResolver.resolveMethodIds( methodIds );
-            final int[] previousMethodIds = previousResolver.resolveMethodNames( methodNames );
-            final MethodStats previousNode = previousProfile.lookupByPath( previousMethodIds );
-            return previousNode.getPercentageOfParentTime();
+            final DiffTree.Node node = diff.get( currentNode );
+            if ( node == null || ! node.isMatched() ) {
+                throw new NoSuchElementException("Previous profile has no node for this call path");
+            }
+            return node.previousPercentage;
+        }
+
+        @Override
+        public double getDifferenceConfidence(MethodStats currentNode)
+        {
+            return statistics == null ? 1 : statistics.getConfidence( currentNode );
+        }
+
+        /**
+         * Returns the statistical comparison.
+         *
+         * @return comparison or <code>null</code> if not comparing statistical profiles
+         */
+        public StatisticalComparison getStatistics() {
+            return statistics;
+        }
+
+        /**
+         * Returns the comparison result for a node.
+         *
+         * @param currentNode
+         * @return diff node or <code>null</code> if not comparing profiles
+         */
+        public DiffTree.Node getDiff(MethodStats currentNode)
+        {
+            return diff == null ? null : diff.get( currentNode );
         }
         
         @Override
@@ -177,9 +280,7 @@ public class FlameGraphViewer extends JFrame implements IGridBagHelper
             if ( a == null || b == null ) {
                 throw new IllegalArgumentException();
             }
-            return a == b || (currentResolver.getClassName( a ).equals( currentResolver.getClassName( b ) ) &&
-                   currentResolver.getMethodName( a ).equals( currentResolver.getMethodName( b ) ) &&
-                   currentResolver.getMethodSignature( a ).equals( currentResolver.getMethodSignature( b ) ) );
+            return a == b || ( a.getPathHash() == b.getPathHash() && a.getMethodId() == b.getMethodId() );
         }
     }
 
@@ -259,20 +360,57 @@ public class FlameGraphViewer extends JFrame implements IGridBagHelper
         {
             if ( ! triggeredFromComboBox ) 
             {
-                final List<Profile> profiles = profile.map( ProfileData::getProfiles ).orElse( Collections.emptyList() );
+                final List<Profile> profiles = new ArrayList<>( profile.map( ProfileData::getProfiles ).orElse( Collections.emptyList() ) );
+                profiles.addAll( profile.map( ProfileData::getMergedProfiles ).orElse( Collections.emptyList() ) );
                 profileSelector.setModel( new DefaultComboBoxModel<>( profiles.toArray( new Profile[ profiles.size() ] ) ) ); 
                 final Profile selection = profile.flatMap( ProfileData::getSelectedProfile ).orElse( null );
                 profileSelector.setSelectedItem( selection );
             }
         });
         history.addListener( historyDialog );
+        history.addListener( (profile,triggeredFromComboBox) -> updateSearch() );
+
+        searchField.getDocument().addDocumentListener( new DocumentListener()
+        {
+            @Override
+            public void insertUpdate(DocumentEvent e) {
+                updateSearch();
+            }
+
+            @Override
+            public void removeUpdate(DocumentEvent e) {
+                updateSearch();
+            }
+
+            @Override
+            public void changedUpdate(DocumentEvent e) {
+                updateSearch();
+            }
+        });
 
         profileSelector.addActionListener( ev ->
         {
             final Profile selectedItem = (Profile) profileSelector.getSelectedItem();
             System.out.println("User selected: "+selectedItem);
-            if ( history.current().isPresent() ) {
-                history.setCurrentProfile( selectedItem , true );
+            if ( history.current().isPresent() && selectedItem != null )
+            {
+                final ProfileData data = history.current().get();
+                final CompletableFuture<Profile> merged = data.materialize( selectedItem );
+                if ( merged.isDone() ) {
+                    history.setCurrentProfile( selectedItem , true );
+                    return;
+                }
+                searchStatus.setText("Merging threads...");
+                merged.whenComplete( (profile,error) -> SwingUtilities.invokeLater( () ->
+                {
+                    searchStatus.setText( "" );
+                    if ( error != null ) {
+                        error( "Merging threads failed" , error );
+                    }
+                    else if ( history.current().orElse( null ) == data && profileSelector.getSelectedItem() == profile ) {
+                        history.setCurrentProfile( profile , true );
+                    }
+                }));
             }
         });
         
@@ -306,11 +444,25 @@ public class FlameGraphViewer extends JFrame implements IGridBagHelper
         cnstrs.fill = GridBagConstraints.HORIZONTAL;
         compound.add( selectionInfoPanel, cnstrs );		
 
+        // add search box
+        final JPanel searchPanel = new JPanel( new FlowLayout( FlowLayout.LEFT , 5 , 0 ) );
+        searchPanel.add( new JLabel("Search:") );
+        searchPanel.add( searchField );
+        searchPanel.add( searchStatus );
+        cnstrs = new GridBagConstraints();
+        cnstrs.weightx=0;
+        cnstrs.weighty=0;
+        cnstrs.gridx=0;
+        cnstrs.gridy=1;
+        cnstrs.gridwidth=3;
+        cnstrs.fill = GridBagConstraints.HORIZONTAL;
+        compound.add( searchPanel, cnstrs );
+
         cnstrs = new GridBagConstraints();
         cnstrs.weightx=1;
         cnstrs.weighty=1;
         cnstrs.gridx=0;
-        cnstrs.gridy=1;
+        cnstrs.gridy=2;
         cnstrs.gridwidth=3;
         cnstrs.fill = GridBagConstraints.BOTH;
         compound.add( graphPanel , cnstrs );
@@ -324,6 +476,77 @@ public class FlameGraphViewer extends JFrame implements IGridBagHelper
         history.historyChanged();
     }
 
+    /**
+     * Searches the selected profile for the text in the search box and highlights the matching frames.
+     *
+     * Searching runs in the background and gets cancelled when the text changes again, so typing never blocks.
+     * A query that extends the previous one only re-checks the previous matches.
+     */
+    private void updateSearch()
+    {
+        if ( searchWorker != null )
+        {
+            searchWorker.cancel( true );
+            searchWorker = null;
+        }
+
+        final String query = searchField.getText();
+        final Optional<ProfileData> current = history.current();
+        final Optional<Profile> selectedProfile = current.flatMap( ProfileData::getSelectedProfile );
+        if ( query.trim().isEmpty() || ! selectedProfile.isPresent() ) 
+        {
+            lastSearch = null;
+            searchStatus.setText( "" );
+            graphPanel.setHighlightedMethods( null );
+            return;
+        }
+
+        final ProfileData data = current.get();
+        final Profile profile = selectedProfile.get();
+        final SearchState previous = lastSearch != null && lastSearch.data == data && query.toLowerCase().startsWith( lastSearch.query.toLowerCase() ) ? lastSearch : null;
+        if ( ! data.getSearchIndex().isDone() ) {
+            searchStatus.setText( "Indexing..." );
+        }
+        searchWorker = new SwingWorker<MethodSearchIndex.Result,Void>()
+        {
+            private int[] methodIds;
+
+            @Override
+            protected MethodSearchIndex.Result doInBackground() throws Exception
+            {
+                final MethodSearchIndex index = data.getSearchIndex().get();
+                methodIds = previous != null ? index.refine( previous.methodIds , query ) : index.findMethods( query );
+                return index.getMatches( methodIds , profile );
+            }
+
+            @Override
+            protected void done()
+            {
+                if ( searchWorker != this || isCancelled() ) {
+                    return;
+                }
+                searchWorker = null;
+                final MethodSearchIndex.Result result;
+                try {
+                    result = get();
+                }
+                catch (InterruptedException e) {
+                    return;
+                }
+                catch (ExecutionException e)
+                {
+                    e.getCause().printStackTrace();
+                    searchStatus.setText( "Search failed" );
+                    return;
+                }
+                lastSearch = new SearchState( data , query , methodIds );
+                searchStatus.setText( result.getMethodCount()+" methods, "+result.frameCount+" frames, "+PERCENTAGE_FORMAT.format( 100*result.share )+" % of total time" );
+                graphPanel.setHighlightedMethods( result.frameCount > 0 ? result::matches : null );
+            }
+        };
+        searchWorker.execute();
+    }
+
     private JMenuBar createMenuBar() 
     {
         final JMenuBar result = new JMenuBar();
@@ -337,6 +560,17 @@ public class FlameGraphViewer extends JFrame implements IGridBagHelper
         // 'Tools' menu
         final JMenu toolsMenu = new JMenu("Tools");
         addMenuItem("Export image...", this::exportImage , toolsMenu );
+        addMenuItem("Export folded stacks...", this::exportFoldedStacks , toolsMenu );
+        addMenuItem("Export speedscope JSON...", () -> export( new SpeedscopeExporter() , SpeedscopeExporter.FILE_SUFFIX ) , toolsMenu );
+        addMenuItem("Export Chrome trace...", () -> export( new ChromeTraceExporter() , ChromeTraceExporter.FILE_SUFFIX ) , toolsMenu );
+        addMenuItem("Export pprof...", () -> export( new PprofExporter() , PprofExporter.FILE_SUFFIX ) , toolsMenu );
+        addMenuItem("Export HTML flame graph...", this::exportHtml , toolsMenu );
+
+        // 'View' menu
+        final JMenu viewMenu = new JMenu("View");
+        addMenuItem("Callers (inverted call tree)", this::showInvertedProfiles , viewMenu , key( KeyEvent.VK_I , KeyEvent.CTRL_DOWN_MASK ) );
+        addMenuItem("Callers / callees of selection...", this::showButterfly , viewMenu , key( KeyEvent.VK_B , KeyEvent.CTRL_DOWN_MASK ) );
+        addMenuItem("Hot methods...", this::showHotMethods , viewMenu , key( KeyEvent.VK_M , KeyEvent.CTRL_DOWN_MASK ) );
 
         // 'About' menu
         final JMenu aboutMenu = new JMenu("Help");
@@ -346,18 +580,14 @@ public class FlameGraphViewer extends JFrame implements IGridBagHelper
         final JMenu fileMenu = new JMenu("File");
 
         addMenuItem("Load profiles...",()->  loadProfiles() , fileMenu );
+        addMenuItem("Compare runs...", this::compareRuns , fileMenu );
+        addMenuItem("Connect to agent...", this::connectToAgent , fileMenu );
+        addMenuItem("Disconnect", this::disconnect , fileMenu );
         addMenuItem("Save current profile as...",()->  saveProfile() , fileMenu );
         
         addMenuItem("Close current", this::closeCurrent, fileMenu , key( KeyEvent.VK_W, KeyEvent.CTRL_DOWN_MASK ) );
         
-        addMenuItem("Reload", () -> 
-        { 
-            try {
-                history.reloadCurrent();
-            } catch (IOException e) {
-                error("Failed to reload file",e);
-            }
-        }, fileMenu , key( KeyEvent.VK_F5 ) );
+        addMenuItem("Reload", this::reloadCurrent , fileMenu , key( KeyEvent.VK_F5 ) );
         
         addMenuItem("Preferences...", this::editPreferences, fileMenu );
         addMenuItem("Quit", () -> System.exit(0) , fileMenu );
@@ -365,11 +595,58 @@ public class FlameGraphViewer extends JFrame implements IGridBagHelper
         // register top-level menus
         result.add( fileMenu );
         result.add( historyMenu );
+        result.add( viewMenu );
         result.add( toolsMenu );   
         result.add( aboutMenu );   
         return result;
     }
     
+    private void showInvertedProfiles()
+    {
+        if ( ! history.current().isPresent() ) {
+            error("No data loaded");
+            return;
+        }
+        final ProfileData data = history.current().get();
+        data.getInvertedProfiles().whenComplete( (container,ex) -> SwingUtilities.invokeLater( () -> 
+        {
+            if ( ex != null ) {
+                error("Failed to invert call trees",ex);
+            } else {
+                history.add( null , container );
+            }
+        }));
+    }
+
+    private void showButterfly()
+    {
+        final Optional<ProfileData> data = history.current();
+        final Optional<Profile> profile = data.flatMap( ProfileData::getSelectedProfile );
+        final Optional<MethodStats> selection = graphPanel.getSelection();
+        if ( ! profile.isPresent() || ! selection.isPresent() ) {
+            error("Please click on a method first");
+            return;
+        }
+        final ButterflyDialog dialog = new ButterflyDialog( profile.get() , data.get() );
+        dialog.showMethod( selection.get().getMethodId() );
+        dialog.setVisible( true );
+    }
+
+    private void showHotMethods()
+    {
+        if ( ! history.current().isPresent() ) {
+            error("No data loaded");
+            return;
+        }
+        final HotMethodsDialog dialog = new HotMethodsDialog( history.current().get() , methodId -> 
+        {
+            searchStatus.setText( "" );
+            graphPanel.setHighlightedMethods( id -> id == methodId );
+        });
+        dialog.refresh();
+        dialog.setVisible( true );
+    }
+
     private void showAboutDialog() 
     {
         JOptionPane.showMessageDialog( null , "ToyProfiler v0.1\n\n(C) 2015 tobias.gierke@code-sourcery.de" , "About" , JOptionPane.INFORMATION_MESSAGE );
@@ -476,16 +753,30 @@ public class FlameGraphViewer extends JFrame implements IGridBagHelper
     
     private void loadProfiles() 
     {
-        try {
-            loadProfiles(preferences,history,ioAdapter);
-        } catch (IOException e) {
-            error("Failed to load file(s)",e);
-        }
+        loadProfiles(preferences,history,ioAdapter, e -> error("Failed to load file(s)",e) );
     }
     
-    public static void loadProfiles(Preferences preferences, ViewingHistory history, IProfileIOAdapter ioAdapter) throws FileNotFoundException, IOException 
+    /**
+     * Lets the user pick profile files and adds them to the history once they are loaded.
+     *
+     * @param preferences
+     * @param history
+     * @param ioAdapter
+     * @param errorHandler invoked on the EDT if loading a file failed
+     */
+    public static void loadProfiles(Preferences preferences, ViewingHistory history, IProfileIOAdapter ioAdapter,Consumer<Exception> errorHandler)
+    {
+        final Optional<File[]> files = chooseProfileFiles( preferences , "Load profiles" );
+        if ( files.isPresent() ) 
+        {
+            loadProfiles( files.get() , history , ioAdapter , errorHandler );
+        }
+    }
+
+    private static Optional<File[]> chooseProfileFiles(Preferences preferences,String title) 
     {
         final JFileChooser chooser = new JFileChooser( );
+        chooser.setDialogTitle( title );
         final Optional<File> latestFile = preferences.getLastLoadDirectory();
         if ( latestFile.isPresent() ) 
         {
@@ -498,39 +789,320 @@ public class FlameGraphViewer extends JFrame implements IGridBagHelper
         {
             @Override
             public String getDescription() {
-                return "XML profile files";
+                return "XML profile files, folded stacks, JFR recordings";
             }
             
             @Override
             public boolean accept(File f) 
             {
-                return f.isDirectory() || ( f.isFile() && f.getName().endsWith(".xml") );
+                return f.isDirectory() || ( f.isFile() && ( f.getName().endsWith(".xml") || f.getName().endsWith(".xml"+ProfileFiles.COMPRESSED_SUFFIX) ||
+                        FoldedStacksAdapter.hasFoldedSuffix( f.getName() ) || f.getName().endsWith( JfrImporter.FILE_SUFFIX ) ) );
             }
         });
         
         if ( chooser.showOpenDialog( null ) == JFileChooser.APPROVE_OPTION && chooser.getSelectedFiles().length >= 1 ) 
         {
             preferences.setLastLoadDirectory( chooser.getSelectedFiles()[0].getParentFile() );
-            loadProfiles( chooser.getSelectedFiles() , history , ioAdapter );
+            return Optional.of( chooser.getSelectedFiles() );
+        }
+        return Optional.empty();
+    }
+
+    private void compareRuns()
+    {
+        final Optional<String> threadName = history.current().flatMap( ProfileData::getSelectedThreadName );
+        if ( ! threadName.isPresent() ) {
+            error("Please select the thread to compare first");
+            return;
+        }
+        final Optional<File[]> previous = chooseProfileFiles( preferences , "Select previous runs ("+threadName.get()+")" );
+        if ( ! previous.isPresent() ) {
+            return;
+        }
+        final Optional<File[]> current = chooseProfileFiles( preferences , "Select current runs ("+threadName.get()+")" );
+        if ( ! current.isPresent() ) {
+            return;
+        }
+        new SwingWorker<StatisticalProfile[],String>()
+        {
+            @Override
+            protected StatisticalProfile[] doInBackground() throws Exception
+            {
+                return new StatisticalProfile[] { 
+                        aggregateRuns( previous.get() , threadName.get() , msg -> publish( "Previous runs: "+msg ) ),
+                        aggregateRuns( current.get() , threadName.get() , msg -> publish( "Current runs: "+msg ) ) };
+            }
+
+            @Override
+            protected void process(List<String> chunks) {
+                searchStatus.setText( chunks.get( chunks.size() - 1 ) );
+            }
+
+            @Override
+            protected void done()
+            {
+                searchStatus.setText( "" );
+                try {
+                    final StatisticalProfile[] runs = get();
+                    HistoryDialog.compareRuns( runs[0] , runs[1] , preferences );
+                }
+                catch (InterruptedException | ExecutionException e) {
+                    error("Failed to compare runs", e.getCause() != null ? e.getCause() : e );
+                }
+            }
+        }.execute();
+    }
+
+    /**
+     * Aggregates one thread of several runs, loading one file at a time.
+     */
+    private StatisticalProfile aggregateRuns(File[] files,String threadName,Consumer<String> progress) throws IOException
+    {
+        final StatisticalProfile result = new StatisticalProfile( threadName );
+        for ( int i = 0 ; i < files.length ; i++ )
+        {
+            final File file = files[i];
+            progress.accept( "Loading "+(i+1)+" of "+files.length+"..." );
+            final ProfileContainer container = ioAdapter.load( file );
+            final ProfileData data = new ProfileData( file , container , Optional.empty() );
+            final Profile profile = data.getProfileByThreadName( threadName ).orElseThrow( () -> new IOException("File "+file.getAbsolutePath()+" has no thread '"+threadName+"'") );
+            result.add( data.materialize( profile ).join() , container.getMethodContainer() );
         }
+        return result;
     }
     
-    private void loadProfiles(File[] files) throws FileNotFoundException, IOException 
+    private void loadProfiles(File[] files)
     {
-        loadProfiles(files,history,ioAdapter);
+        loadProfiles(files,history,ioAdapter, e -> error("Failed to load file(s)",e) );
     }
     
-    private static void loadProfiles(File[] files, ViewingHistory history, IProfileIOAdapter ioAdapter) throws FileNotFoundException, IOException 
+    /**
+     * Loads files in the background, indexing a large profile takes a while.
+     *
+     * Files loaded before one failed still get added to the history.
+     */
+    private static void loadProfiles(File[] files, ViewingHistory history, IProfileIOAdapter ioAdapter,Consumer<Exception> errorHandler)
     {
-        for ( File file : files ) 
+        final List<ProfileContainer> loaded = new ArrayList<>();
+        new SwingWorker<Void,Void>()
         {
-            try ( FileInputStream in =new FileInputStream(file) )
+            @Override
+            protected Void doInBackground() throws Exception
             {
-                history.add( file , ioAdapter.load( in ) );
-            } 
+                for ( File file : files ) {
+                    loaded.add( ioAdapter.load( file ) );
+                }
+                return null;
+            }
+
+            @Override
+            protected void done()
+            {
+                // the list is only read once the worker finished
+                for ( int i = 0 ; i < loaded.size() ; i++ ) {
+                    history.add( files[i] , loaded.get(i) );
+                }
+                try {
+                    get();
+                }
+                catch (InterruptedException | ExecutionException e) {
+                    errorHandler.accept( e.getCause() instanceof Exception ? (Exception) e.getCause() : e );
+                }
+            }
+        }.execute();
+    }
+
+    private void reloadCurrent()
+    {
+        final Optional<ProfileData> current = history.current().filter( ProfileData::hasFile );
+        if ( ! current.isPresent() ) {
+            return;
         }
+        final File file = current.get().getSourceFile().get();
+        new SwingWorker<ProfileContainer,Void>()
+        {
+            @Override
+            protected ProfileContainer doInBackground() throws Exception
+            {
+                return ioAdapter.load( file );
+            }
+
+            @Override
+            protected void done()
+            {
+                try {
+                    history.reload( current.get() , get() );
+                }
+                catch (InterruptedException | ExecutionException e) {
+                    error("Failed to reload file", e.getCause() != null ? e.getCause() : e );
+                }
+            }
+        }.execute();
     }
     
+    private void connectToAgent() 
+    {
+        final JTextField address = new JTextField( lastAgentAddress , 20 );
+        final JComboBox<String> transport = new JComboBox<>( new String[] { "Socket (liveport)" , "JMX" } );
+
+        final JPanel panel = new JPanel( new GridLayout( 2 , 2 ) );
+        panel.add( new JLabel("Address (host:port):") );
+        panel.add( address );
+        panel.add( new JLabel("Connect via:") );
+        panel.add( transport );
+        if ( JOptionPane.showConfirmDialog( this , panel , "Connect to agent" , JOptionPane.OK_CANCEL_OPTION ) != JOptionPane.OK_OPTION ) {
+            return;
+        }
+
+        final String text = address.getText().trim();
+        final int idx = text.lastIndexOf( ':' );
+        final int port;
+        try {
+            port = Integer.parseInt( text.substring( idx+1 ) );
+        } 
+        catch(NumberFormatException e) {
+            error("You need to enter an address like localhost:4711");
+            return;
+        }
+        final String host = idx > 0 ? text.substring( 0 , idx ) : "localhost";
+
+        disconnect();
+        final boolean useSocket = transport.getSelectedIndex() == 0;
+        searchStatus.setText( "Connecting to "+text+"..." );
+        // connecting may take until the connection times out
+        connectWorker = new SwingWorker<LiveView.ISnapshotSource,Void>()
+        {
+            @Override
+            protected LiveView.ISnapshotSource doInBackground() throws Exception
+            {
+                return useSocket ? LiveView.connectSocket( host , port ) : LiveView.connectJMX( host , port );
+            }
+
+            @Override
+            protected void done()
+            {
+                final LiveView.ISnapshotSource source;
+                try {
+                    source = get();
+                }
+                catch (InterruptedException | ExecutionException e)
+                {
+                    if ( connectWorker == this )
+                    {
+                        connectWorker = null;
+                        searchStatus.setText( "" );
+                        error("Failed to connect to "+text, e.getCause() != null ? e.getCause() : e );
+                    }
+                    return;
+                }
+                if ( connectWorker != this ) // disconnected in the meantime
+                {
+                    try {
+                        source.close();
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                    return;
+                }
+                connectWorker = null;
+                searchStatus.setText( "" );
+                liveView = new LiveView( history , source , host+":"+port , e -> 
+                {
+                    liveView = null;
+                    error("Lost connection to agent",e);
+                });
+                liveView.start( 2000 );
+                lastAgentAddress = text;
+            }
+        };
+        connectWorker.execute();
+    }
+
+    private void disconnect() 
+    {
+        if ( connectWorker != null )
+        {
+            // the worker closes the connection once it got established
+            connectWorker = null;
+            searchStatus.setText( "" );
+        }
+        if ( liveView != null ) 
+        {
+            liveView.close();
+            liveView = null;
+        }
+    }
+
+    private void exportFoldedStacks() 
+    {
+        if ( ! history.current().isPresent() ) {
+            error("No data to export");
+            return;
+        }
+        final ProfileData profileData = history.current().get();
+
+        final JComboBox<FoldedStacksAdapter.Weight> weight = new JComboBox<>( FoldedStacksAdapter.Weight.values() );
+        weight.setSelectedItem( FoldedStacksAdapter.Weight.SELF_TIME );
+        final JComboBox<String> scope = new JComboBox<>( new String[] { "Selected thread" , "All threads" , "All threads (merged)" } );
+
+        final JPanel panel = new JPanel( new GridLayout( 2 , 2 ) );
+        panel.add( new JLabel("Weight:") );
+        panel.add( weight );
+        panel.add( new JLabel("Threads:") );
+        panel.add( scope );
+        if ( JOptionPane.showConfirmDialog( this , panel , "Export folded stacks" , JOptionPane.OK_CANCEL_OPTION ) != JOptionPane.OK_OPTION ) {
+            return;
+        }
+
+        final List<Profile> profiles = scope.getSelectedIndex() == 0 ? 
+                profileData.getSelectedProfile().map( Collections::singletonList ).orElse( Collections.emptyList() ) : profileData.getProfiles();
+        final boolean includeThreadNames = scope.getSelectedIndex() != 2;
+        export( new FoldedStacksAdapter( (FoldedStacksAdapter.Weight) weight.getSelectedItem() , includeThreadNames ) , FoldedStacksAdapter.FILE_SUFFIXES[0] , profiles );
+    }
+
+    private void exportHtml() 
+    {
+        if ( ! history.current().isPresent() ) {
+            error("No data to export");
+            return;
+        }
+        final ProfileData profileData = history.current().get();
+        final ColorScheme scheme = preferences.getDefaultColorScheme();
+        final String title = profileData.getSourceFile().map( File::getName ).orElse("Flame graph");
+        export( new HtmlFlameGraphExporter( title , HtmlFlameGraphExporter.DEFAULT_MIN_FRAME_WIDTH , scheme.getGradient() , scheme.getSelectionColor() ) , HtmlFlameGraphExporter.FILE_SUFFIX );
+    }
+
+    private void export(IProfileExporter exporter,String fileSuffix) 
+    {
+        if ( ! history.current().isPresent() ) {
+            error("No data to export");
+            return;
+        }
+        export( exporter , fileSuffix , history.current().get().getProfiles() );
+    }
+
+    private void export(IProfileExporter exporter,String fileSuffix,List<Profile> profiles) 
+    {
+        final ProfileData profileData = history.current().get();
+        final JFileChooser chooser = new JFileChooser();
+        if ( profileData.hasFile() ) 
+        {
+            final File source = profileData.getSourceFile().get();
+            chooser.setCurrentDirectory( source.getParentFile() );
+            chooser.setSelectedFile( new File( source.getParentFile() , source.getName().replaceAll("\\.[^.]+$", "" )+fileSuffix ) );
+        }
+        if ( chooser.showSaveDialog( this ) != JFileChooser.APPROVE_OPTION ) {
+            return;
+        }
+        try ( OutputStream out = ProfileFiles.openOutput( chooser.getSelectedFile() ) ) 
+        {
+            exporter.save( profileData.getProfileContainer().getMethodContainer() , profiles , out );
+        } 
+        catch (IOException e) {
+            error("Export failed",e);
+        }
+    }
+
     private void exportImage() 
     {
         if ( history.size() == 0 ) {
@@ -0,0 +1,225 @@
+package de.codesourcery.toyprofiler.ui;
+
+import java.awt.Dimension;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.regex.Pattern;
+
+import javax.imageio.ImageIO;
+
+import de.codesourcery.toyprofiler.MethodStatsHelper;
+import de.codesourcery.toyprofiler.Profile;
+import de.codesourcery.toyprofiler.Profile.MethodStats;
+import de.codesourcery.toyprofiler.ui.FlameGraphViewer.MethodDataProvider;
+
+/**
+ * Renders flame graph images to PNG files without a display.
+ *
+ * Each profile is rendered by a task on a fixed thread pool, with its own {@link FlameGraphRenderer} and data provider.
+ * Encoding an image is a separate task on the same pool, so it overlaps with rendering the next one. At most one image per thread
+ * waits for being encoded, beyond that the rendering thread encodes the image itself so rendering cannot outpace encoding.
+ * Image file names that are already taken (for example by a file of the same name in another directory) get a numeric suffix.
+ * Besides the whole call tree, the graph gets rendered zoomed into the heaviest call path of each zoom method.
+ *
+ * Requires <code>java.awt.headless</code> to be set when no display is available.
+ */
+public final class HeadlessRenderer implements AutoCloseable
+{
+    private final ColorScheme colorScheme;
+    private final List<Dimension> sizes;
+    private final List<Pattern> zoomMethods;
+    private final File outputDirectory;
+    private final ExecutorService pool;
+
+    // encoding tasks that have been submitted so far
+    private final List<CompletableFuture<File>> images = Collections.synchronizedList( new ArrayList<>() );
+    // images waiting for an encoding task
+    private final Semaphore pendingImages;
+    // names of the image files, guarded by itself
+    private final Set<String> fileNames = new HashSet<>();
+
+    /**
+     * Create renderer.
+     *
+     * @param colorScheme
+     * @param sizes image sizes to render
+     * @param zoomMethods patterns matched against <code>package.Class.method</code>, each one adds an image zoomed into the heaviest matching call path
+     * @param outputDirectory
+     * @param threadCount size of the thread pool
+     */
+    public HeadlessRenderer(ColorScheme colorScheme,List<Dimension> sizes,List<Pattern> zoomMethods,File outputDirectory,int threadCount)
+    {
+        this.colorScheme = colorScheme;
+        this.sizes = sizes;
+        this.zoomMethods = zoomMethods;
+        this.outputDirectory = outputDirectory;
+        this.pendingImages = new Semaphore( threadCount );
+        this.pool = Executors.newFixedThreadPool( threadCount , runnable ->
+        {
+            final Thread thread = new Thread( runnable , "flamegraph-renderer" );
+            thread.setDaemon( true );
+            return thread;
+        });
+    }
+
+    /**
+     * Renders all profiles of a file.
+     *
+     * Merged profiles are materialized by the rendering task.
+     *
+     * @param prefix file name prefix of the images
+     * @param data
+     * @param profiles
+     * @return completes once all images have been rendered, they may still be getting encoded
+     */
+    public CompletableFuture<Void> render(String prefix,ProfileData data,List<Profile> profiles)
+    {
+        final List<CompletableFuture<Void>> renders = new ArrayList<>();
+        for ( Profile profile : profiles ) {
+            renders.add( CompletableFuture.runAsync( () -> render( prefix , data , data.materialize( profile ).join() ) , pool ) );
+        }
+        return CompletableFuture.allOf( renders.toArray( new CompletableFuture<?>[ renders.size() ] ) );
+    }
+
+    private void render(String prefix,ProfileData data,Profile profile)
+    {
+        final MethodStats root = profile.getTopLevelMethod();
+        if ( root == null ) {
+            return;
+        }
+        final MethodStatsHelper resolver = new MethodStatsHelper( data );
+        final FlameGraphRenderer<MethodStats> renderer = new FlameGraphRenderer<>( new MethodDataProvider( profile , resolver ) , colorScheme );
+
+        final List<MethodStats> roots = new ArrayList<>();
+        roots.add( root );
+        for ( Pattern pattern : zoomMethods )
+        {
+            final MethodStats zoom = findHeaviest( root , pattern , resolver );
+            if ( zoom != null && ! roots.contains( zoom ) ) {
+                roots.add( zoom );
+            }
+        }
+
+        for ( MethodStats zoom : roots )
+        {
+            final String zoomName = zoom == root ? "" : "_"+sanitize( resolver.getSimpleClassName( zoom )+"."+resolver.getMethodName( zoom ) );
+            for ( Dimension size : sizes )
+            {
+                final BufferedImage image = renderer.render( zoom , size.width , size.height ).getImage();
+                final File file = newFile( sanitize( prefix )+"_"+sanitize( profile.getThreadName() )+zoomName+"_"+size.width+"x"+size.height );
+                if ( pendingImages.tryAcquire() ) {
+                    images.add( CompletableFuture.supplyAsync( () -> encode( image , file ) , pool ).whenComplete( (result,error) -> pendingImages.release() ) );
+                } else {
+                    images.add( CompletableFuture.supplyAsync( () -> encode( image , file ) , Runnable::run ) );
+                }
+            }
+        }
+        System.out.println("Rendered "+roots.size()*sizes.size()+" images of "+profile.getThreadName());
+    }
+
+    private File newFile(String baseName)
+    {
+        String name = baseName;
+        synchronized( fileNames )
+        {
+            for ( int i = 2 ; ! fileNames.add( name ) ; i++ ) {
+                name = baseName+"_"+i;
+            }
+        }
+        if ( ! name.equals( baseName ) ) {
+            System.out.println("Image "+baseName+" already exists, writing "+name+" instead");
+        }
+        return new File( outputDirectory , name+".png" );
+    }
+
+    private static File encode(BufferedImage image,File file)
+    {
+        try
+        {
+            if ( ! ImageIO.write( image , "png" , file ) ) {
+                throw new IOException("No PNG writer available?");
+            }
+            return file;
+        }
+        catch(IOException e) {
+            throw new UncheckedIOException( "Failed to write "+file.getAbsolutePath() , e );
+        }
+    }
+
+    private static MethodStats findHeaviest(MethodStats root,Pattern pattern,MethodStatsHelper resolver)
+    {
+        MethodStats result = null;
+        final Deque<MethodStats> stack = new ArrayDeque<>();
+        stack.push( root );
+        while ( ! stack.isEmpty() )
+        {
+            final MethodStats node = stack.pop();
+            if ( pattern.matcher( resolver.getClassName( node )+"."+resolver.getMethodName( node ) ).find() )
+            {
+                if ( result == null || node.getTotalTimeMillis() > result.getTotalTimeMillis() ) {
+                    result = node;
+                }
+                // callees of a match are never heavier
+                continue;
+            }
+            // nothing lighter than the best match so far can replace it
+            for ( MethodStats child : node.getCallees().values() )
+            {
+                if ( result == null || child.getTotalTimeMillis() > result.getTotalTimeMillis() ) {
+                    stack.push( child );
+                }
+            }
+        }
+        return result;
+    }
+
+    private static String sanitize(String name) {
+        return name.replaceAll("[^a-zA-Z0-9._-]+","_").replaceAll("^_+|_+$","");
+    }
+
+    /**
+     * Waits until all images have been written.
+     *
+     * @return the image files
+     * @throws IOException if writing an image failed
+     */
+    public List<File> finish() throws IOException
+    {
+        final List<File> result = new ArrayList<>();
+        synchronized( images )
+        {
+            try
+            {
+                for ( CompletableFuture<File> image : images ) {
+                    result.add( image.join() );
+                }
+            }
+            catch(RuntimeException e)
+            {
+                if ( e.getCause() instanceof UncheckedIOException ) {
+                    throw ((UncheckedIOException) e.getCause()).getCause();
+                }
+                throw e;
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public void close() {
+        pool.shutdownNow();
+    }
+}
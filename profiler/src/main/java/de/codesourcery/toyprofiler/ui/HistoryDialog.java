@@ -8,8 +8,9 @@ import java.awt.event.MouseEvent;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
-import java.util.NoSuchElementException;
 import java.util.Optional;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
 import javax.swing.JButton;
@@ -17,15 +18,18 @@ import javax.swing.JDialog;
 import javax.swing.JPanel;
 import javax.swing.JScrollPane;
 import javax.swing.JTable;
+import javax.swing.SwingWorker;
 
 import de.codesourcery.toyprofiler.MethodStatsHelper;
 import de.codesourcery.toyprofiler.Profile;
 import de.codesourcery.toyprofiler.Profile.MethodStats;
-import de.codesourcery.toyprofiler.ui.FlameGraphRenderer.IDataProvider;
 import de.codesourcery.toyprofiler.ui.FlameGraphViewer.MethodDataProvider;
 import de.codesourcery.toyprofiler.ui.ViewingHistory.IViewChangeListener;
+import de.codesourcery.toyprofiler.util.DiffTree;
 import de.codesourcery.toyprofiler.util.IGridBagHelper;
 import de.codesourcery.toyprofiler.util.IProfileIOAdapter;
+import de.codesourcery.toyprofiler.util.StatisticalComparison;
+import de.codesourcery.toyprofiler.util.StatisticalProfile;
 
 public final class HistoryDialog extends JDialog implements IViewChangeListener , IGridBagHelper
 {
@@ -70,14 +74,7 @@ public final class HistoryDialog extends JDialog implements IViewChangeListener
         });
         
         final JButton load = new JButton("Load");
-        load.addActionListener( ev -> 
-        {
-            try {
-                FlameGraphViewer.loadProfiles( preferences , tableModel.getHistory() , ioAdapter );
-            } catch (Exception e1) {
-                error("Failed to load files");
-            }
-        });
+        load.addActionListener( ev -> FlameGraphViewer.loadProfiles( preferences , tableModel.getHistory() , ioAdapter , e -> error("Failed to load files: "+e.getMessage() ) ) );
         
         
         final JButton moveUp = new JButton("Up");
@@ -170,13 +167,24 @@ public final class HistoryDialog extends JDialog implements IViewChangeListener
         final ProfileData previous = rows[0];
         final ProfileData current  = rows[1];
         try {
-            compareProfiles(previous,current,preferences);
+            compareProfiles(previous,current,preferences, e -> error( e.getMessage() ) );
         } catch (Exception e) {
             error( e.getMessage() );
         }
     }
     
-    public static void compareProfiles(ProfileData previous,ProfileData current,Preferences preferences) throws Exception
+    /**
+     * Compares the selected thread of a profile with the same thread of another one.
+     *
+     * Merging threads and aligning the call trees happens in the background, the comparison shows up once that is done.
+     *
+     * @param previous
+     * @param current
+     * @param preferences
+     * @param errorHandler invoked on the EDT if the comparison failed
+     * @throws Exception if the profiles cannot be compared
+     */
+    public static void compareProfiles(ProfileData previous,ProfileData current,Preferences preferences,Consumer<Exception> errorHandler) throws Exception
     {
         if ( ! current.getSelectedThreadName().isPresent() ) {
             throw new Exception("Profile "+current+" has no thread selected");
@@ -187,10 +195,57 @@ public final class HistoryDialog extends JDialog implements IViewChangeListener
         if ( ! previousProfile.isPresent() ) {
             throw new Exception("Profile "+previous+" has no thread named '"+currentProfile.getThreadName() );
         } 
-        final MethodStatsHelper previousResolver = new MethodStatsHelper( previous );
-        final MethodStatsHelper currentResolver = new MethodStatsHelper( current );
-        final IDataProvider<MethodStats> dataProvider = new MethodDataProvider(currentProfile, previousProfile.get(), previousResolver, currentResolver );
-        
+        new SwingWorker<DiffTree,Void>()
+        {
+            @Override
+            protected DiffTree doInBackground() throws Exception
+            {
+                // merged profiles (all threads / thread groups) may not have been merged yet
+                current.materialize( currentProfile ).join();
+                previous.materialize( previousProfile.get() ).join();
+                return DiffTree.compare( currentProfile , current , previousProfile.get() , previous );
+            }
+
+            @Override
+            protected void done()
+            {
+                final DiffTree diff;
+                try {
+                    diff = get();
+                }
+                catch (InterruptedException | ExecutionException e)
+                {
+                    e.printStackTrace();
+                    errorHandler.accept( e.getCause() instanceof Exception ? (Exception) e.getCause() : e );
+                    return;
+                }
+                final MethodStatsHelper currentResolver = new MethodStatsHelper( current );
+                final MethodDataProvider dataProvider = new MethodDataProvider(currentProfile, diff, currentResolver );
+                showComparison( "current: "+current+" / previous: "+previous , dataProvider , currentResolver , preferences );
+            }
+        }.execute();
+    }
+
+    /**
+     * Compares the runs of two statistical profiles, showing only significant differences.
+     *
+     * @param previous
+     * @param current
+     * @param preferences
+     */
+    public static void compareRuns(StatisticalProfile previous,StatisticalProfile current,Preferences preferences) 
+    {
+        final Profile currentProfile = current.finish();
+        final MethodStatsHelper currentResolver = new MethodStatsHelper( current.getMethods() );
+        final DiffTree diff = DiffTree.compare( currentProfile , current.getMethods() , previous.finish() , previous.getMethods() );
+        final StatisticalComparison statistics = new StatisticalComparison( current , previous , preferences.getSignificanceLevel() );
+        final MethodDataProvider dataProvider = new MethodDataProvider(currentProfile, diff, statistics, currentResolver );
+        showComparison( "current: "+current.getRunCount()+" runs / previous: "+previous.getRunCount()+" runs ["+current.getThreadName()+"]" , 
+                dataProvider , currentResolver , preferences );
+    }
+
+    private static void showComparison(String title,MethodDataProvider dataProvider,MethodStatsHelper currentResolver,Preferences preferences)
+    {
         final FlameGraphRenderer<MethodStats> cmpRenderer = new FlameGraphRenderer<MethodStats>( dataProvider , preferences.getDefaultCompareColorScheme() );
         
         final SelectionInfoPanel infoPanel = new SelectionInfoPanel();
@@ -202,14 +257,26 @@ public final class HistoryDialog extends JDialog implements IViewChangeListener
                 final String key = "Time difference to other profile";
                 
                 final Map<String, String> map = createToolTipMap(stats,currentResolver);
-                try {
-                    double currentValue = dataProvider.getPercentageValue( stats );
-                    double previousValue = dataProvider.getPreviousPercentageValue( stats );
-                    double delta = 100*(currentValue - previousValue);
-                    map.put(key, FlameGraphViewer.PERCENTAGE_FORMAT.format( delta )+" %" );
-                } catch(NoSuchElementException | IllegalStateException e) {
+                final DiffTree.Node node = dataProvider.getDiff( stats );
+                if ( node != null && node.isMatched() ) 
+                {
+                    map.put(key, FlameGraphViewer.PERCENTAGE_FORMAT.format( 100*node.getPercentageDelta() )+" %" );
+                    map.put("Total time in other profile", FlameGraphViewer.DURATION_FORMAT.format( node.previousTotalTimeMillis )+" ms" );
+                    map.put("Invocations in other profile", FlameGraphViewer.INVOCATION_COUNT_FORMAT.format( node.previousInvocationCount ) );
+                } else {
                     map.put(key,"<comparison failed, different call flows>");
                 }
+                final StatisticalComparison statistics = dataProvider.getStatistics();
+                if ( statistics != null ) 
+                {
+                    final StatisticalProfile.Summary cur = statistics.current.getSummary( stats.getPathHash() );
+                    final StatisticalProfile.Summary prev = statistics.previous.getSummary( stats.getPathHash() );
+                    map.put("Mean time (std. dev.)", summaryToString( cur ) );
+                    map.put("Mean time in other profile (std. dev.)", summaryToString( prev ) );
+                    final double p = statistics.getPValue( stats );
+                    map.put("p-value", Double.isNaN( p ) ? "<single runs only>" : 
+                        String.format("%.4f (%s)", p , p <= statistics.significanceLevel ? "significant" : "not significant" ) );
+                }
                 return map;
             }       
             
@@ -228,7 +295,7 @@ public final class HistoryDialog extends JDialog implements IViewChangeListener
         container.add( infoPanel , IGridBagHelper.cnstrs(0,0).weightX(1.0).build() );
         container.add( graphPanel , IGridBagHelper.cnstrs(0,1).weightX(1.0).weightY(1.0).resizeBoth().build() );
         
-        final JDialog tmp = new JDialog((Frame) null,"current: "+current+" / previous: "+previous,true);
+        final JDialog tmp = new JDialog((Frame) null,title,true);
         tmp.setDefaultCloseOperation( JDialog.DISPOSE_ON_CLOSE );
         
         tmp.add( container );
@@ -239,6 +306,12 @@ public final class HistoryDialog extends JDialog implements IViewChangeListener
         tmp.setVisible(true);
     }
     
+    private static String summaryToString(StatisticalProfile.Summary summary) 
+    {
+        return FlameGraphViewer.millisToString( summary.meanTimeMillis )+" ("+FlameGraphViewer.millisToString( summary.getTimeStdDev() )+"), "+
+                summary.samples+" of "+summary.runs+" runs";
+    }
+    
     @Override
     public void setVisible(boolean b) 
     {
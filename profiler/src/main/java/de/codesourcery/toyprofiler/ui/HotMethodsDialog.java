@@ -0,0 +1,240 @@
+package de.codesourcery.toyprofiler.ui;
+
+import java.awt.Dimension;
+import java.awt.Frame;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntConsumer;
+
+import javax.swing.JDialog;
+import javax.swing.JScrollPane;
+import javax.swing.JTable;
+import javax.swing.ListSelectionModel;
+import javax.swing.RowSorter;
+import javax.swing.SortOrder;
+import javax.swing.SwingWorker;
+import javax.swing.table.AbstractTableModel;
+import javax.swing.table.DefaultTableCellRenderer;
+import javax.swing.table.TableRowSorter;
+
+import de.codesourcery.toyprofiler.Profile;
+import de.codesourcery.toyprofiler.Profile.MethodIdentifier;
+import de.codesourcery.toyprofiler.Profile.MethodStats;
+import de.codesourcery.toyprofiler.util.MethodAggregates;
+
+/**
+ * Sortable table of all methods, aggregated across all call paths and threads.
+ *
+ * Threads are aggregated one by one in the background, the table gets updated after each thread.
+ * Selecting a row highlights all frames of the method in the flame graph.
+ */
+public final class HotMethodsDialog extends JDialog
+{
+    private static final int COL_METHOD = 0;
+    private static final int COL_THREADS = 1;
+    private static final int COL_FRAMES = 2;
+    private static final int COL_INVOCATIONS = 3;
+    private static final int COL_SELF_TIME = 4;
+    private static final int COL_SELF_PERCENTAGE = 5;
+    private static final int COL_TOTAL_TIME = 6;
+    private static final int COL_TOTAL_PERCENTAGE = 7;
+    private static final int COL_AVG_TIME = 8;
+
+    private static final String[] COLUMNS = { "Method" , "Threads" , "Frames" , "Invocations" , "Self time" , "Self %" , "Total time" , "Total %" , "Avg. time" };
+    private static final Class<?>[] COLUMN_TYPES = { String.class , Integer.class , Integer.class , Long.class , Double.class , Double.class , Double.class , Double.class , Double.class };
+
+    private final ProfileData data;
+    private final TableModel tableModel = new TableModel();
+    private final JTable table = new JTable( tableModel );
+
+    private SwingWorker<Void,List<MethodAggregates.Row>> worker;
+
+    private final class TableModel extends AbstractTableModel
+    {
+        private List<MethodAggregates.Row> rows = Collections.emptyList();
+        // time of all profiles, percentages are relative to this
+        private double totalTimeMillis;
+
+        public void setRows(List<MethodAggregates.Row> rows,double totalTimeMillis)
+        {
+            this.rows = rows;
+            this.totalTimeMillis = totalTimeMillis;
+            fireTableDataChanged();
+        }
+
+        public MethodAggregates.Row getRow(int row) {
+            return rows.get( row );
+        }
+
+        @Override
+        public int getRowCount() {
+            return rows.size();
+        }
+
+        @Override
+        public int getColumnCount() {
+            return COLUMNS.length;
+        }
+
+        @Override
+        public String getColumnName(int column) {
+            return COLUMNS[column];
+        }
+
+        @Override
+        public Class<?> getColumnClass(int column) {
+            return COLUMN_TYPES[column];
+        }
+
+        @Override
+        public Object getValueAt(int rowIndex, int column)
+        {
+            final MethodAggregates.Row row = rows.get( rowIndex );
+            switch( column )
+            {
+                case COL_METHOD:           return getName( row.methodId );
+                case COL_THREADS:          return row.threadCount;
+                case COL_FRAMES:           return row.frameCount;
+                case COL_INVOCATIONS:      return row.invocationCount;
+                case COL_SELF_TIME:        return row.selfTimeMillis;
+                case COL_SELF_PERCENTAGE:  return percentage( row.selfTimeMillis );
+                case COL_TOTAL_TIME:       return row.totalTimeMillis;
+                case COL_TOTAL_PERCENTAGE: return percentage( row.totalTimeMillis );
+                case COL_AVG_TIME:         return row.getAverageTimeMillis();
+                default:
+                    throw new IllegalArgumentException("Invalid column "+column);
+            }
+        }
+
+        private double percentage(double timeMillis) {
+            return totalTimeMillis <= 0 ? 0 : 100 * timeMillis / totalTimeMillis;
+        }
+    }
+
+    public HotMethodsDialog(ProfileData data,IntConsumer selectionListener)
+    {
+        super((Frame) null, "Hot methods", false );
+        this.data = data;
+        setDefaultCloseOperation( JDialog.DISPOSE_ON_CLOSE );
+
+        final DefaultTableCellRenderer timeRenderer = new DefaultTableCellRenderer()
+        {
+            @Override
+            protected void setValue(Object value) {
+                setText( value == null ? "" : FlameGraphViewer.millisToString( (Double) value ) );
+            }
+        };
+        final DefaultTableCellRenderer percentageRenderer = new DefaultTableCellRenderer()
+        {
+            @Override
+            protected void setValue(Object value) {
+                setText( value == null ? "" : FlameGraphViewer.PERCENTAGE_FORMAT.format( value )+" %" );
+            }
+        };
+        timeRenderer.setHorizontalAlignment( DefaultTableCellRenderer.RIGHT );
+        percentageRenderer.setHorizontalAlignment( DefaultTableCellRenderer.RIGHT );
+        for ( int column : new int[] { COL_SELF_TIME , COL_TOTAL_TIME , COL_AVG_TIME } ) {
+            table.getColumnModel().getColumn( column ).setCellRenderer( timeRenderer );
+        }
+        for ( int column : new int[] { COL_SELF_PERCENTAGE , COL_TOTAL_PERCENTAGE } ) {
+            table.getColumnModel().getColumn( column ).setCellRenderer( percentageRenderer );
+        }
+        table.getColumnModel().getColumn( COL_METHOD ).setPreferredWidth( 300 );
+
+        final TableRowSorter<TableModel> sorter = new TableRowSorter<>( tableModel );
+        sorter.setSortKeys( Collections.singletonList( new RowSorter.SortKey( COL_SELF_TIME , SortOrder.DESCENDING ) ) );
+        table.setRowSorter( sorter );
+
+        table.setSelectionMode( ListSelectionModel.SINGLE_SELECTION );
+        table.getSelectionModel().addListSelectionListener( ev ->
+        {
+            final int row = table.getSelectedRow();
+            if ( ! ev.getValueIsAdjusting() && row != -1 ) {
+                selectionListener.accept( tableModel.getRow( table.convertRowIndexToModel( row ) ).methodId );
+            }
+        });
+
+        add( new JScrollPane( table ) );
+        setPreferredSize( new Dimension( 900 , 480 ) );
+        pack();
+        setLocationRelativeTo( null );
+    }
+
+    /**
+     * Starts aggregating the profiles in the background.
+     */
+    public void refresh()
+    {
+        if ( worker != null ) {
+            worker.cancel( true );
+        }
+        final List<Profile> profiles = new ArrayList<>( data.getProfiles() );
+        final double totalTime = profiles.stream().map( Profile::getTopLevelMethod ).filter( m -> m != null ).mapToDouble( MethodStats::getTotalTimeMillis ).sum();
+        worker = new SwingWorker<Void,List<MethodAggregates.Row>>()
+        {
+            // written by the worker thread, read on the EDT
+            private final AtomicInteger done = new AtomicInteger();
+
+            @Override
+            protected Void doInBackground() throws Exception
+            {
+                final MethodAggregates aggregates = new MethodAggregates();
+                for ( Profile profile : profiles )
+                {
+                    if ( isCancelled() ) {
+                        break;
+                    }
+                    aggregates.add( profile );
+                    done.incrementAndGet();
+                    publish( aggregates.getRows() );
+                }
+                return null;
+            }
+
+            @Override
+            protected void process(List<List<MethodAggregates.Row>> chunks)
+            {
+                if ( worker == this && ! isCancelled() )
+                {
+                    tableModel.setRows( chunks.get( chunks.size() - 1 ) , totalTime );
+                    setTitle( "Hot methods ("+done.get()+" of "+profiles.size()+" threads)" );
+                }
+            }
+
+            @Override
+            protected void done()
+            {
+                if ( worker != this || isCancelled() ) {
+                    return;
+                }
+                try {
+                    get();
+                    setTitle( "Hot methods ("+profiles.size()+" threads)" );
+                }
+                catch (InterruptedException | ExecutionException e) {
+                    e.printStackTrace();
+                    setTitle( "Hot methods (failed: "+e.getMessage()+")" );
+                }
+            }
+        };
+        worker.execute();
+    }
+
+    @Override
+    public void dispose()
+    {
+        if ( worker != null ) {
+            worker.cancel( true );
+        }
+        super.dispose();
+    }
+
+    private String getName(int methodId)
+    {
+        final MethodIdentifier method = data.getRawMethodName( methodId );
+        return method == null ? "<unknown method "+methodId+">" : method.className.replace('/','.')+"."+method.methodName;
+    }
+}
@@ -0,0 +1,144 @@
+package de.codesourcery.toyprofiler.ui;
+
+import java.awt.Font;
+import java.awt.FontMetrics;
+import java.awt.Graphics2D;
+import java.awt.font.FontRenderContext;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Caches the labels of flame graph frames.
+ *
+ * A label is the method name, prefixed with as many characters of the class name
+ * as fit into the frame ("Cla...method" or "Class.method" if the whole class name fits).
+ * For each method and font the widths of all candidate labels are computed once from the
+ * cumulative character advances. Since candidates only get wider, the label for a given frame
+ * width is found by binary search and the resulting string is cached per candidate, so
+ * fitting a label takes neither string measuring nor string concatenation.
+ *
+ * Thread-safe, labels may be requested concurrently by the tiles of a flame graph.
+ */
+public final class LabelCache
+{
+    private static final String ELLIPSIS = "...";
+
+    public interface ILabelSource<T>
+    {
+        public int getKey(T node);
+
+        public String getClassName(T node);
+
+        public String getMethodName(T node);
+    }
+
+    private static final class FontKey
+    {
+        private final Font font;
+        private final FontRenderContext context;
+
+        public FontKey(Font font, FontRenderContext context)
+        {
+            this.font = font;
+            this.context = context;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * font.hashCode() + context.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object obj)
+        {
+            if ( obj instanceof FontKey ) {
+                final FontKey other = (FontKey) obj;
+                return font.equals( other.font ) && context.equals( other.context );
+            }
+            return false;
+        }
+    }
+
+    private static final class Entry
+    {
+        private final String className;
+        private final String methodName;
+        private final int methodWidth;
+        // widths[i] = width of the widest of the first (i+1) candidates
+        private final int[] widths;
+        // lazily created candidate strings
+        private final String[] labels;
+
+        public Entry(String className,String methodName,FontMetrics fm)
+        {
+            this.className = className;
+            this.methodName = methodName;
+            this.methodWidth = fm.stringWidth( methodName );
+
+            final int len = className.length();
+            final int ellipsisWidth = fm.stringWidth( ELLIPSIS );
+            widths = new int[ len + 1 ];
+            labels = new String[ len + 1 ];
+            int prefixWidth = 0;
+            for ( int i = 0 ; i < len ; i++ )
+            {
+                widths[i] = prefixWidth + ellipsisWidth + methodWidth;
+                prefixWidth += fm.charWidth( className.charAt( i ) );
+            }
+            final int fullWidth = prefixWidth + fm.charWidth('.') + methodWidth;
+            widths[len] = len == 0 ? fullWidth : Math.max( widths[len-1] , fullWidth );
+        }
+
+        public String getLabel(int maxWidth)
+        {
+            if ( methodWidth >= maxWidth ) {
+                return methodName;
+            }
+            // number of candidates that fit
+            int low = 0;
+            int high = widths.length;
+            while ( low < high )
+            {
+                final int mid = (low + high) >>> 1;
+                if ( widths[mid] <= maxWidth ) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            if ( low == 0 ) {
+                return methodName;
+            }
+            final int index = low - 1;
+            String result = labels[index];
+            if ( result == null )
+            {
+                result = index != className.length() ? className.substring(0,index)+ELLIPSIS+methodName : className+"."+methodName;
+                labels[index] = result;
+            }
+            return result;
+        }
+    }
+
+    private final ConcurrentHashMap<FontKey,ConcurrentHashMap<Integer,Entry>> cache = new ConcurrentHashMap<>();
+
+    public <T> String getLabel(T node,ILabelSource<T> source,Graphics2D graphics,int maxWidth)
+    {
+        final FontMetrics fm = graphics.getFontMetrics();
+        final ConcurrentHashMap<Integer,Entry> entries = cache.computeIfAbsent( new FontKey( fm.getFont() , graphics.getFontRenderContext() ) , key -> new ConcurrentHashMap<>( 2000 ) );
+        final int key = source.getKey( node );
+        Entry entry = entries.get( key );
+        if ( entry == null )
+        {
+            entry = new Entry( source.getClassName( node ) , source.getMethodName( node ) , fm );
+            entries.putIfAbsent( key , entry );
+        }
+        return entry.getLabel( maxWidth );
+    }
+
+    /**
+     * Discards all cached labels.
+     */
+    public void clear() {
+        cache.clear();
+    }
+}
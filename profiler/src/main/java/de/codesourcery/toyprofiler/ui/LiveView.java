@@ -0,0 +1,267 @@
+package de.codesourcery.toyprofiler.ui;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import javax.management.JMX;
+import javax.management.ObjectName;
+import javax.management.remote.JMXConnector;
+import javax.management.remote.JMXConnectorFactory;
+import javax.management.remote.JMXServiceURL;
+import javax.swing.SwingUtilities;
+
+import de.codesourcery.toyprofiler.AgentRemoteControlMBean;
+import de.codesourcery.toyprofiler.Profile;
+import de.codesourcery.toyprofiler.ProfileContainer;
+import de.codesourcery.toyprofiler.util.IncrementalSnapshot;
+
+/**
+ * Shows the profiles of a running application, updating them every few seconds.
+ *
+ * A background thread pulls {@link IncrementalSnapshot}s from the agent and replaces the history entry of the
+ * application with a copy of the updated call trees. The selected thread is kept, the flame graph maps zoom and selection
+ * to the new call trees by path.
+ */
+public final class LiveView implements AutoCloseable
+{
+    private final ViewingHistory history;
+    private final ISnapshotSource source;
+    private final String address;
+    private final Consumer<Exception> errorHandler;
+
+    private final String sessionId = UUID.randomUUID().toString();
+    private final IncrementalSnapshot.Decoder decoder = new IncrementalSnapshot.Decoder();
+    private final ScheduledExecutorService executor;
+
+    // only accessed by the EDT
+    private ProfileData current;
+    private boolean closed;
+
+    // thread selected when the last update got applied
+    private volatile String selectedThread;
+    // an update got skipped because the selected thread changed
+    private volatile boolean selectionChanged;
+
+    /**
+     * Connection to the agent.
+     */
+    public interface ISnapshotSource extends AutoCloseable
+    {
+        /**
+         * @see AgentRemoteControlMBean#getSnapshot(String, long)
+         */
+        public byte[] getSnapshot(String sessionId,long lastSequence) throws IOException;
+
+        @Override
+        public void close() throws IOException;
+    }
+
+    /**
+     * Connects to the socket an agent started with the <code>liveport</code> argument listens on.
+     *
+     * @param host
+     * @param port
+     * @return
+     * @throws IOException
+     */
+    public static ISnapshotSource connectSocket(String host,int port) throws IOException
+    {
+        final Socket socket = new Socket( host , port );
+        final DataInputStream in = new DataInputStream( new BufferedInputStream( socket.getInputStream() ) );
+        final DataOutputStream out = new DataOutputStream( new BufferedOutputStream( socket.getOutputStream() ) );
+        return new ISnapshotSource()
+        {
+            @Override
+            public byte[] getSnapshot(String sessionId, long lastSequence) throws IOException
+            {
+                out.writeUTF( sessionId );
+                out.writeLong( lastSequence );
+                out.flush();
+                final byte[] result = new byte[ in.readInt() ];
+                in.readFully( result );
+                return result;
+            }
+
+            @Override
+            public void close() throws IOException {
+                socket.close();
+            }
+        };
+    }
+
+    /**
+     * Connects to the JMX remote port of an application (<code>-Dcom.sun.management.jmxremote.port</code>).
+     *
+     * @param host
+     * @param port
+     * @return
+     * @throws IOException
+     */
+    public static ISnapshotSource connectJMX(String host,int port) throws IOException
+    {
+        final JMXConnector connector = JMXConnectorFactory.connect( new JMXServiceURL( "service:jmx:rmi:///jndi/rmi://"+host+":"+port+"/jmxrmi" ) );
+        final AgentRemoteControlMBean agent;
+        try {
+            agent = JMX.newMBeanProxy( connector.getMBeanServerConnection() ,
+                    new ObjectName("de.codesourcery.toyprofiler:type=AgentRemoteControlMBean") , AgentRemoteControlMBean.class );
+        }
+        catch(Exception e)
+        {
+            connector.close();
+            throw new IOException("Failed to look up profiling agent: "+e.getMessage(),e);
+        }
+        return new ISnapshotSource()
+        {
+            @Override
+            public byte[] getSnapshot(String sessionId, long lastSequence) throws IOException
+            {
+                try {
+                    return agent.getSnapshot( sessionId , lastSequence );
+                }
+                catch(RuntimeException e) // JMX wraps remote failures
+                {
+                    throw new IOException( e.getCause() != null ? e.getCause().getMessage() : e.getMessage() , e );
+                }
+            }
+
+            @Override
+            public void close() throws IOException {
+                connector.close();
+            }
+        };
+    }
+
+    /**
+     * Create live view.
+     *
+     * @param history history to add the application's profiles to
+     * @param source
+     * @param address shown in the history
+     * @param errorHandler invoked on the EDT if pulling a snapshot failed, updates stop after that
+     */
+    public LiveView(ViewingHistory history,ISnapshotSource source,String address,Consumer<Exception> errorHandler)
+    {
+        this.history = history;
+        this.source = source;
+        this.address = address;
+        this.errorHandler = errorHandler;
+        this.executor = Executors.newSingleThreadScheduledExecutor( runnable ->
+        {
+            final Thread thread = new Thread( runnable , "live-view" );
+            thread.setDaemon( true );
+            return thread;
+        });
+    }
+
+    /**
+     * Starts pulling snapshots.
+     *
+     * @param intervalMillis
+     */
+    public void start(long intervalMillis)
+    {
+        executor.scheduleWithFixedDelay( this::update , 0 , intervalMillis , TimeUnit.MILLISECONDS );
+    }
+
+    private void update()
+    {
+        final ProfileData replacement;
+        try
+        {
+            final boolean changed = decoder.apply( source.getSnapshot( sessionId , decoder.getSequence() ) );
+            if ( ! changed && ! selectionChanged ) {
+                return;
+            }
+            selectionChanged = false;
+            final ProfileContainer container = decoder.toContainer();
+            if ( container.isEmpty() ) {
+                return;
+            }
+            replacement = new ProfileData( null , container , Optional.empty() );
+            final String threadName = selectedThread;
+            Profile selection = threadName == null ? null : replacement.getProfileByThreadName( threadName ).orElse( null );
+            if ( selection == null ) {
+                selection = container.getProfiles().get(0);
+            }
+            // merging threads may take a while, do it here rather than on the EDT
+            replacement.setSelectedProfile( replacement.materialize( selection ).join() );
+        }
+        catch(Exception e)
+        {
+            executor.shutdown();
+            SwingUtilities.invokeLater( () ->
+            {
+                if ( ! closed )
+                {
+                    close();
+                    errorHandler.accept( e );
+                }
+            });
+            return;
+        }
+        SwingUtilities.invokeLater( () -> apply( replacement ) );
+    }
+
+    private void apply(ProfileData replacement)
+    {
+        if ( closed ) {
+            return;
+        }
+        if ( current == null )
+        {
+            System.out.println("Live view of "+address+" started");
+            history.add( null , replacement.getProfileContainer() );
+            current = history.current().get();
+        }
+        else
+        {
+            // user may have picked another thread in the meantime
+            final Optional<String> threadName = current.getSelectedThreadName();
+            if ( threadName.isPresent() && ! threadName.equals( replacement.getSelectedThreadName() ) )
+            {
+                final Optional<Profile> selection = replacement.getProfileByThreadName( threadName.get() );
+                if ( selection.isPresent() && replacement.isMergedProfile( selection.get() ) )
+                {
+                    // skip this update, the next one gets merged in the background
+                    selectedThread = threadName.get();
+                    selectionChanged = true;
+                    return;
+                }
+                selection.ifPresent( replacement::setSelectedProfile );
+            }
+            if ( ! history.replace( current , replacement ) )
+            {
+                System.out.println("Live view of "+address+" got closed");
+                close();
+                return;
+            }
+            current = replacement;
+        }
+        selectedThread = current.getSelectedThreadName().orElse( null );
+    }
+
+    /**
+     * Stops pulling snapshots and disconnects, the profiles stay in the history.
+     */
+    @Override
+    public void close()
+    {
+        closed = true;
+        executor.shutdownNow();
+        try {
+            source.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -35,6 +35,12 @@ public class Preferences
     
     private static final String KEY_LAST_LOAD_DIRECTORY = "last.load.directory";
 
+    private static final String KEY_MIN_FRAME_WIDTH = "flamegraph.min.frame.width";
+    private static final String KEY_AGGREGATE_SMALL_FRAMES = "flamegraph.aggregate.small.frames";
+
+    private static final String KEY_SIGNIFICANCE_LEVEL = "compare.significance.level";
+    private static final double DEFAULT_SIGNIFICANCE_LEVEL = 0.05;
+
     private final Map<String,String> properties = new HashMap<>();
     
     private final List<IPrefChangeListener> listeners = new ArrayList<>();
@@ -229,18 +235,15 @@ public class Preferences
             final File file = new File( entry.getValue() );
             if ( file.exists() && file.isFile() && file.canRead() ) 
             {
-                try ( FileInputStream profileIn = new FileInputStream(file) ) 
-                {
-                    final ProfileContainer container = adapter.load( profileIn );
-                    result.add( file , container);
-                    final String currentThreadKey = KEY_HISTORY_ENTRY_CURRENT_THREAD+"."+id;
-                    final String selectedThread = properties.get( currentThreadKey );
-                    if ( selectedThread != null ) {
-                        container.getProfiles().stream().filter( p -> selectedThread.equals( p.getThreadName() ) ).findFirst().ifPresent( profile -> 
-                        {
-                            result.setCurrentProfile( profile , false );
-                        });
-                    }
+                final ProfileContainer container = adapter.load( file );
+                result.add( file , container);
+                final String currentThreadKey = KEY_HISTORY_ENTRY_CURRENT_THREAD+"."+id;
+                final String selectedThread = properties.get( currentThreadKey );
+                if ( selectedThread != null ) {
+                    container.getProfiles().stream().filter( p -> selectedThread.equals( p.getThreadName() ) ).findFirst().ifPresent( profile -> 
+                    {
+                        result.setCurrentProfile( profile , false );
+                    });
                 }
             }
         }
@@ -285,6 +288,58 @@ public class Preferences
         return getOrUpdate( KEY_DEFAULT_COMPARE_COLORSCHENME_NAME , ColorScheme.getDefaultCompare().getName() );
     }
     
+    /**
+     * Returns the minimum width (in pixels) of frames drawn by the flame graph.
+     *
+     * @return
+     */
+    public int getMinFrameWidth() 
+    {
+        try {
+            return Math.max( 1 , Integer.parseInt( getOrUpdate( KEY_MIN_FRAME_WIDTH , Integer.toString( FlameGraphRenderer.DEFAULT_MIN_FRAME_WIDTH ) ) ) );
+        } 
+        catch(NumberFormatException e) {
+            return FlameGraphRenderer.DEFAULT_MIN_FRAME_WIDTH;
+        }
+    }
+
+    public void setMinFrameWidth(int width) {
+        this.properties.put( KEY_MIN_FRAME_WIDTH , Integer.toString( Math.max( 1 , width ) ) );
+    }
+
+    /**
+     * Returns whether frames below the minimum width should be drawn as a single "other" frame.
+     *
+     * @return
+     */
+    public boolean isAggregateSmallFrames() {
+        return Boolean.parseBoolean( getOrUpdate( KEY_AGGREGATE_SMALL_FRAMES , "true" ) );
+    }
+
+    public void setAggregateSmallFrames(boolean aggregate) {
+        this.properties.put( KEY_AGGREGATE_SMALL_FRAMES , Boolean.toString( aggregate ) );
+    }
+
+    /**
+     * Returns the maximum p-value of differences shown when comparing several runs.
+     *
+     * @return
+     */
+    public double getSignificanceLevel() 
+    {
+        try {
+            final double level = Double.parseDouble( getOrUpdate( KEY_SIGNIFICANCE_LEVEL , Double.toString( DEFAULT_SIGNIFICANCE_LEVEL ) ) );
+            return level > 0 && level < 1 ? level : DEFAULT_SIGNIFICANCE_LEVEL;
+        } 
+        catch(NumberFormatException e) {
+            return DEFAULT_SIGNIFICANCE_LEVEL;
+        }
+    }
+
+    public void setSignificanceLevel(double level) {
+        this.properties.put( KEY_SIGNIFICANCE_LEVEL , Double.toString( level ) );
+    }
+
     private String getOrUpdate(String key,String defaultValue) 
     {
         final String value = properties.get( key );
@@ -12,10 +12,12 @@ import java.util.function.Supplier;
 import javax.swing.AbstractListModel;
 import javax.swing.ComboBoxModel;
 import javax.swing.DefaultListCellRenderer;
+import javax.swing.JCheckBox;
 import javax.swing.JComboBox;
 import javax.swing.JDialog;
 import javax.swing.JList;
 import javax.swing.JPanel;
+import javax.swing.JTextField;
 
 import de.codesourcery.toyprofiler.util.ConstraintBuilder;
 import de.codesourcery.toyprofiler.util.IGridBagHelper;
@@ -35,6 +37,10 @@ public abstract class PreferencesPanel extends JPanel implements IGridBagHelper
     
     private final JComboBox<ColorScheme> defaultScheme;
     private final JComboBox<ColorScheme> compareScheme;
+
+    private final JTextField minFrameWidth;
+    private final JCheckBox aggregateSmallFrames;
+    private final JTextField significanceLevel;
     
     protected final class MyComboModel extends AbstractListModel<ColorScheme> implements ComboBoxModel<ColorScheme>{
         
@@ -127,9 +133,22 @@ public abstract class PreferencesPanel extends JPanel implements IGridBagHelper
             updateComboBoxModels();
         }) ,  cnstrs(2,1 ) );
         
+        // flame graph level-of-detail
+        label( "Min. frame width (pixels)" , cnstrs( 0 , 2 ).anchorLeft() );
+        minFrameWidth = new JTextField( Integer.toString( toEdit.getMinFrameWidth() ) );
+        add( minFrameWidth , cnstrs( 1 , 2 ).width(2).build() );
+
+        aggregateSmallFrames = new JCheckBox( "Show frames below min. width as a single 'other' frame" , toEdit.isAggregateSmallFrames() );
+        add( aggregateSmallFrames , cnstrs( 0 , 3 ).width(3).anchorLeft().build() );
+
+        // comparing runs
+        label( "Significance level (comparing runs)" , cnstrs( 0 , 4 ).anchorLeft() );
+        significanceLevel = new JTextField( Double.toString( toEdit.getSignificanceLevel() ) );
+        add( significanceLevel , cnstrs( 1 , 4 ).width(2).build() );
+
         // buttons
-        button("Cancel" , this::cancel , cnstrs( 0 , 2 ) );
-        button("Save" , this::save , cnstrs( 1 , 2 ).width(2) );
+        button("Cancel" , this::cancel , cnstrs( 0 , 5 ) );
+        button("Save" , this::save , cnstrs( 1 , 5 ).width(2) );
     }
     
     private void updateComboBoxModels() 
@@ -183,7 +202,30 @@ public abstract class PreferencesPanel extends JPanel implements IGridBagHelper
     
     protected abstract void cancel();
     
-    private void save() {
+    private void save() 
+    {
+        try {
+            toEdit.setMinFrameWidth( Integer.parseInt( minFrameWidth.getText().trim() ) );
+        } 
+        catch(NumberFormatException e) 
+        {
+            error("Invalid minimum frame width: '"+minFrameWidth.getText()+"'");
+            return;
+        }
+        try 
+        {
+            final double level = Double.parseDouble( significanceLevel.getText().trim() );
+            if ( level <= 0 || level >= 1 ) {
+                throw new NumberFormatException();
+            }
+            toEdit.setSignificanceLevel( level );
+        } 
+        catch(NumberFormatException e) 
+        {
+            error("Invalid significance level (must be between 0 and 1): '"+significanceLevel.getText()+"'");
+            return;
+        }
+        toEdit.setAggregateSmallFrames( aggregateSmallFrames.isSelected() );
         this.original.populateFrom( toEdit );
         this.original.setColorSchemes( colorSchemes );
         onSave( this.original );
@@ -1,13 +1,17 @@
 package de.codesourcery.toyprofiler.ui;
 
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.time.ZonedDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
 import java.util.function.Consumer;
 
 import de.codesourcery.toyprofiler.IClassMethodsContainer;
@@ -15,15 +19,27 @@ import de.codesourcery.toyprofiler.Profile;
 import de.codesourcery.toyprofiler.Profile.MethodIdentifier;
 import de.codesourcery.toyprofiler.ProfileContainer;
 import de.codesourcery.toyprofiler.util.IProfileIOAdapter;
+import de.codesourcery.toyprofiler.util.InvertedCallTree;
+import de.codesourcery.toyprofiler.util.MethodSearchIndex;
 import de.codesourcery.toyprofiler.util.ParameterMap;
+import de.codesourcery.toyprofiler.util.ProfileMerger;
+import de.codesourcery.toyprofiler.util.ProfileFiles;
 
 public final class ProfileData implements IClassMethodsContainer
 {
+    public static final String ALL_THREADS = "<all threads>";
+
     private File sourceFile;
     private final ProfileContainer container;
     private final List<Profile> profiles;
     private Profile selectedProfile;
     private boolean isDirty = false;
+    private CompletableFuture<MethodSearchIndex> searchIndex;
+    private CompletableFuture<ProfileContainer> invertedProfiles;
+
+    // merged profile -> profiles it is made of
+    private Map<Profile,List<Profile>> mergedProfiles;
+    private final Map<Profile,CompletableFuture<Profile>> merges = new IdentityHashMap<>();
 
     public ProfileData(File sourceFile,ProfileContainer container,Optional<Profile> selectedProfile)
     {
@@ -37,6 +53,120 @@ public final class ProfileData implements IClassMethodsContainer
         return profiles;
     }
 
+    /**
+     * Returns the search index for this data, building it in the background on first request.
+     *
+     * @return
+     */
+    public synchronized CompletableFuture<MethodSearchIndex> getSearchIndex()
+    {
+        if ( searchIndex == null ) {
+            searchIndex = CompletableFuture.supplyAsync( () -> MethodSearchIndex.build( this , profiles ) );
+        }
+        return searchIndex;
+    }
+
+    /**
+     * Returns the inverted (callers) call trees of all profiles, building them in the background on first request.
+     *
+     * @return
+     * @see InvertedCallTree
+     */
+    public synchronized CompletableFuture<ProfileContainer> getInvertedProfiles()
+    {
+        if ( invertedProfiles == null ) {
+            invertedProfiles = CompletableFuture.supplyAsync( () -> InvertedCallTree.build( this , profiles ) );
+        }
+        return invertedProfiles;
+    }
+
+    /**
+     * Returns the merged profiles (all threads and thread groups).
+     *
+     * A thread group consists of all threads whose names only differ in digits (like <code>worker-0</code>, <code>worker-1</code>, ...).
+     * The returned profiles have no call tree until they got merged by {@link #materialize(Profile)}.
+     *
+     * @return
+     */
+    public synchronized List<Profile> getMergedProfiles()
+    {
+        if ( mergedProfiles == null )
+        {
+            mergedProfiles = new LinkedHashMap<>();
+            if ( profiles.size() > 1 )
+            {
+                addMergedProfile( ALL_THREADS , profiles );
+                final Map<String,List<Profile>> groups = new LinkedHashMap<>();
+                for ( Profile profile : profiles ) {
+                    groups.computeIfAbsent( profile.getThreadName().replaceAll("[0-9]+","*") , key -> new ArrayList<>() ).add( profile );
+                }
+                groups.forEach( (name,members) ->
+                {
+                    if ( members.size() > 1 && members.size() < profiles.size() ) {
+                        addMergedProfile( "<group "+name+">" , members );
+                    }
+                });
+            }
+        }
+        return new ArrayList<>( mergedProfiles.keySet() );
+    }
+
+    private void addMergedProfile(String name,List<Profile> members)
+    {
+        final Profile profile = new Profile( name );
+        members.stream().filter( p -> p.getCreationTime().isPresent() ).mapToLong( Profile::getCreationTimeMillis ).min().ifPresent( profile::setCreationTime );
+        mergedProfiles.put( profile , members );
+    }
+
+    public synchronized boolean isMergedProfile(Profile profile)
+    {
+        getMergedProfiles();
+        return mergedProfiles.containsKey( profile );
+    }
+
+    /**
+     * Makes sure a profile has its call tree, merging the threads of a merged profile in the background on first request.
+     *
+     * @param profile
+     * @return the profile itself, once its call tree is available
+     * @see #getMergedProfiles()
+     */
+    public synchronized CompletableFuture<Profile> materialize(Profile profile)
+    {
+        final List<Profile> members = isMergedProfile( profile ) ? mergedProfiles.get( profile ) : null;
+        if ( members == null ) {
+            return CompletableFuture.completedFuture( profile );
+        }
+        return merges.computeIfAbsent( profile , key -> CompletableFuture.supplyAsync( () ->
+        {
+            final Profile merged = ProfileMerger.merge( profile.getThreadName() , members , container.getMethodContainer() );
+            profile.setTopLevelMethod( merged.getTopLevelMethod() );
+            return profile;
+        }));
+    }
+
+    /**
+     * Releases the call trees and everything derived from them, called once this data got removed from the history.
+     */
+    public synchronized void close()
+    {
+        searchIndex = null;
+        invertedProfiles = null;
+        merges.clear();
+        if ( mergedProfiles != null )
+        {
+            mergedProfiles.keySet().forEach( profile -> profile.setTopLevelMethod( null ) );
+            mergedProfiles = null;
+        }
+        profiles.forEach( profile -> profile.setTopLevelMethod( null ) );
+        try {
+            container.close();
+        }
+        catch(IOException e) {
+            e.printStackTrace();
+        }
+    }
+
     public boolean isDirty() {
         return isDirty;
     }
@@ -51,7 +181,7 @@ public final class ProfileData implements IClassMethodsContainer
 
     public void save(File file,IProfileIOAdapter serializer) throws IOException
     {
-       try ( FileOutputStream out = new FileOutputStream(file) )
+       try ( OutputStream out = ProfileFiles.openOutput( file ) )
         {
             serializer.save( container.getMethodContainer() , container.getProfiles() , out );
         }
@@ -136,9 +266,15 @@ public final class ProfileData implements IClassMethodsContainer
         return container.getMethodId( rawMethodName );
     }
 
+    @Override
+    public int findMethodId(MethodIdentifier method) {
+        return container.findMethodId( method );
+    }
+
     public Optional<Profile> getProfileByThreadName(String threadName)
     {
-        return profiles.stream().filter( p -> threadName.equals( p.getThreadName() ) ).findFirst();
+        final Optional<Profile> result = profiles.stream().filter( p -> threadName.equals( p.getThreadName() ) ).findFirst();
+        return result.isPresent() ? result : getMergedProfiles().stream().filter( p -> threadName.equals( p.getThreadName() ) ).findFirst();
     }
 
 	@Override
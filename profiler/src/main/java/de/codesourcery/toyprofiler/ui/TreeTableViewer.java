@@ -1,6 +1,6 @@
 package de.codesourcery.toyprofiler.ui;
 
-import java.io.FileInputStream;
+import java.io.File;
 import java.io.IOException;
 import java.text.DecimalFormat;
 import java.util.ArrayList;
@@ -169,8 +169,7 @@ public class TreeTableViewer extends Application {
         
         final ProfileContainer profiles;
         try {
-            FileInputStream in = new FileInputStream( fileToLoad );
-            profiles = new XMLSerializer().load( in );
+            profiles = new XMLSerializer().load( new File( fileToLoad ) );
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
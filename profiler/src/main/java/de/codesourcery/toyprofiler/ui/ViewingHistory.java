@@ -1,10 +1,8 @@
 package de.codesourcery.toyprofiler.ui;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.time.ZonedDateTime;
 import java.util.ArrayList;
 import java.util.Comparator;
@@ -14,7 +12,7 @@ import java.util.Optional;
 import de.codesourcery.toyprofiler.Profile;
 import de.codesourcery.toyprofiler.ProfileContainer;
 import de.codesourcery.toyprofiler.util.IProfileIOAdapter;
-import de.codesourcery.toyprofiler.util.XMLSerializer;
+import de.codesourcery.toyprofiler.util.ProfileFiles;
 
 public final class ViewingHistory
 {
@@ -69,21 +67,44 @@ public final class ViewingHistory
         return Optional.empty();
     }
 
-    public void reloadCurrent() throws FileNotFoundException, IOException
+    /**
+     * Replaces an entry by its file's reloaded profiles, keeping the selected thread.
+     *
+     * @param data
+     * @param reloaded profiles loaded from the entry's file, get closed if the entry is no longer part of the history
+     * @return <code>false</code> if the entry is no longer part of the history
+     */
+    public boolean reload(ProfileData data,ProfileContainer reloaded)
     {
-        final Optional<File> currentFile = current().filter( ProfileData::hasFile ).flatMap( ProfileData::getSourceFile );
-        if ( currentFile.isPresent() )
+        final Optional<Profile> newSelection = data.getSelectedProfile().flatMap( profile -> reloaded.getProfileForThread( profile.getThreadName() ) );
+        final ProfileData replacement = new ProfileData( data.getSourceFile().get() , reloaded , newSelection );
+        if ( ! replace( data , replacement ) )
         {
-            final File file = currentFile.get();
+            replacement.close();
+            return false;
+        }
+        return true;
+    }
 
-            try ( FileInputStream in =new FileInputStream( file ) )
-            {
-                final ProfileContainer profiles = new XMLSerializer().load( in );
-                final Optional<Profile> newSelection = findSameProfile( profiles );
-                history.set( ptr , new ProfileData(file,profiles, newSelection ) );
-                notifyListeners( current() );
-            }
+    /**
+     * Replaces an entry, keeping its position in the history.
+     *
+     * @param data
+     * @param replacement
+     * @return <code>false</code> if the entry is no longer part of the history
+     */
+    public boolean replace(ProfileData data,ProfileData replacement)
+    {
+        final int idx = history.indexOf( data );
+        if ( idx == -1 ) {
+            return false;
         }
+        history.set( idx , replacement );
+        if ( idx == ptr ) {
+            notifyListeners( current() );
+        }
+        data.close();
+        return true;
     }
 
     public void setCurrentProfile(Profile profile,boolean triggeredFromComboBox)
@@ -104,9 +125,11 @@ public final class ViewingHistory
 
     public void clear()
     {
+        final List<ProfileData> removed = new ArrayList<>( history );
         history.clear();
         ptr=0;
         notifyListeners(Optional.empty());
+        removed.forEach( ProfileData::close );
     }
 
     public void historyChanged() {
@@ -149,7 +172,11 @@ public final class ViewingHistory
 
     public void remove(ProfileData data)
     {
-        remove(data,true);
+        if ( history.contains( data ) )
+        {
+            remove(data,true);
+            data.close();
+        }
     }
 
     private boolean remove(ProfileData data,boolean notify)
@@ -163,15 +190,14 @@ public final class ViewingHistory
             history.remove( idx );
         } else if ( idx == ptr ) { // element is at the current ptr, stays the same
             history.remove( idx );
-            if ( ptr >= history.size() ) {
-                while ( ptr > 0 && ptr >= history.size() ) {
-                    ptr--;
-                }
-                if ( notify ) {
-                    notifyListeners( current() );
-                }
-                return true;
+            while ( ptr > 0 && ptr >= history.size() ) {
+                ptr--;
             }
+            // the entry being shown changed, views must not keep showing the removed one
+            if ( notify ) {
+                notifyListeners( current() );
+            }
+            return true;
         }
         else
         {
@@ -226,20 +252,28 @@ public final class ViewingHistory
     public void unload(List<ProfileData> toUnload)
     {
         boolean notify = false;
+        final List<ProfileData> removed = new ArrayList<>();
         for (ProfileData profileData : toUnload)
         {
             System.out.println("Unloading "+profileData);
+            if ( history.contains( profileData ) ) {
+                removed.add( profileData );
+            }
             notify |= remove( profileData , false );
         }
         if ( notify ) {
             notifyListeners( current() );
         }
+        removed.forEach( ProfileData::close );
     }
 
     public void saveCurrent(File file,IProfileIOAdapter ioAdapter) throws IOException
     {
         final ProfileData profileData = current().get();
-        ioAdapter.save( profileData.getProfileContainer().getMethodContainer() , profileData.getProfiles() , new FileOutputStream( file ) );
+        try ( OutputStream out = ProfileFiles.openOutput( file ) )
+        {
+            ioAdapter.save( profileData.getProfileContainer().getMethodContainer() , profileData.getProfiles() , out );
+        }
         profileData.setFile( file );
         notifyListeners( current() );
     }
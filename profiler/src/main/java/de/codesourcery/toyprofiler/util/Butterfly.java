@@ -0,0 +1,146 @@
+package de.codesourcery.toyprofiler.util;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+
+import de.codesourcery.toyprofiler.Profile;
+import de.codesourcery.toyprofiler.Profile.MethodStats;
+import net.openhft.koloboke.collect.map.hash.HashIntObjMap;
+import net.openhft.koloboke.collect.map.hash.HashIntObjMaps;
+
+/**
+ * Callers and callees of a method, aggregated across all call paths of a profile.
+ *
+ * Recursive invocations are only counted once: total times, callers and callees come from the
+ * outermost invocations of the method, while the self time is summed up across all invocations.
+ * Computed by a single traversal of the call tree.
+ */
+public final class Butterfly
+{
+    public final int methodId;
+    public final float totalTimeMillis;
+    public final float selfTimeMillis;
+    public final long invocationCount;
+    /** Time of the whole profile */
+    public final float profileTimeMillis;
+
+    private final List<Entry> callers;
+    private final List<Entry> callees;
+
+    public static final class Entry
+    {
+        public final int methodId;
+        /** Time spent in the method (for callers) or the callee (for callees) on these call paths */
+        public float totalTimeMillis;
+        public long invocationCount;
+
+        private Entry(int methodId) {
+            this.methodId = methodId;
+        }
+    }
+
+    private Butterfly(int methodId,float totalTimeMillis,float selfTimeMillis,long invocationCount,float profileTimeMillis,List<Entry> callers,List<Entry> callees)
+    {
+        this.methodId = methodId;
+        this.totalTimeMillis = totalTimeMillis;
+        this.selfTimeMillis = selfTimeMillis;
+        this.invocationCount = invocationCount;
+        this.profileTimeMillis = profileTimeMillis;
+        this.callers = Collections.unmodifiableList( callers );
+        this.callees = Collections.unmodifiableList( callees );
+    }
+
+    /**
+     * Returns the callers, sorted descending by time.
+     *
+     * @return
+     */
+    public List<Entry> getCallers() {
+        return callers;
+    }
+
+    /**
+     * Returns the callees, sorted descending by time.
+     *
+     * @return
+     */
+    public List<Entry> getCallees() {
+        return callees;
+    }
+
+    public static Butterfly compute(Profile profile,int methodId)
+    {
+        final HashIntObjMap<Entry> callers = HashIntObjMaps.newMutableMap();
+        final HashIntObjMap<Entry> callees = HashIntObjMaps.newMutableMap();
+        float totalTime = 0;
+        float selfTime = 0;
+        long invocations = 0;
+
+        final MethodStats root = profile.getTopLevelMethod();
+        if ( root != null )
+        {
+            // number of invocations of the method on the current path
+            int nesting = 0;
+            final Deque<MethodStats> path = new ArrayDeque<>();
+            final Deque<Iterator<MethodStats>> stack = new ArrayDeque<>();
+            MethodStats next = root;
+            while ( next != null || ! stack.isEmpty() )
+            {
+                if ( next != null )
+                {
+                    final MethodStats node = next;
+                    next = null;
+                    if ( node.getMethodId() == methodId )
+                    {
+                        selfTime += node.getTotalOwnTimeMillis();
+                        if ( nesting == 0 )
+                        {
+                            totalTime += node.getTotalTimeMillis();
+                            invocations += node.getInvocationCount();
+                            if ( node.getParent() != null ) {
+                                add( callers , node.getParent().getMethodId() , node.getTotalTimeMillis() , node.getInvocationCount() );
+                            }
+                            for ( MethodStats callee : node.getCallees().values() ) {
+                                add( callees , callee.getMethodId() , callee.getTotalTimeMillis() , callee.getInvocationCount() );
+                            }
+                        }
+                        nesting++;
+                    }
+                    path.push( node );
+                    stack.push( node.getCallees().values().iterator() );
+                    continue;
+                }
+                final Iterator<MethodStats> it = stack.peek();
+                if ( it.hasNext() ) {
+                    next = it.next();
+                }
+                else
+                {
+                    stack.pop();
+                    if ( path.pop().getMethodId() == methodId ) {
+                        nesting--;
+                    }
+                }
+            }
+        }
+        return new Butterfly( methodId , totalTime , selfTime , invocations , root == null ? 0 : root.getTotalTimeMillis() , sorted( callers ) , sorted( callees ) );
+    }
+
+    private static void add(HashIntObjMap<Entry> entries,int methodId,float timeMillis,long invocations)
+    {
+        final Entry entry = entries.computeIfAbsent( methodId , Entry::new );
+        entry.totalTimeMillis += timeMillis;
+        entry.invocationCount += invocations;
+    }
+
+    private static List<Entry> sorted(HashIntObjMap<Entry> entries)
+    {
+        final List<Entry> result = new ArrayList<>( entries.values() );
+        result.sort( (a,b) -> Float.compare( b.totalTimeMillis , a.totalTimeMillis ) );
+        return result;
+    }
+}
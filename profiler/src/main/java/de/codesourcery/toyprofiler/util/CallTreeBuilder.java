@@ -0,0 +1,263 @@
+package de.codesourcery.toyprofiler.util;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import de.codesourcery.toyprofiler.ClassMethodsContainer;
+import de.codesourcery.toyprofiler.Profile;
+import de.codesourcery.toyprofiler.Profile.MethodIdentifier;
+import de.codesourcery.toyprofiler.Profile.MethodStats;
+import de.codesourcery.toyprofiler.ProfileContainer;
+import net.openhft.koloboke.collect.map.hash.HashIntIntMap;
+import net.openhft.koloboke.collect.map.hash.HashIntIntMaps;
+
+/**
+ * Builds {@link Profile} call trees from individual stack traces (as found in folded stack files
+ * or sampling profiler recordings).
+ *
+ * Stacks are added root-first, weights are added as <b>self</b> time of the last frame and
+ * total times are derived when {@link #build()} is called (unless {@link #setInclusiveWeights(boolean) inclusive weights}
+ * are used). Threads whose stacks do not share a common root frame get a synthetic root node.
+ */
+public final class CallTreeBuilder
+{
+    public static final String SYNTHETIC_ROOT_NAME = "<root>";
+
+    private final ClassMethodsContainer methods = new ClassMethodsContainer();
+    private final Map<String,MethodIdentifier> methodsByKey = new HashMap<>();
+    private final Map<String,MethodStats> rootsByThread = new LinkedHashMap<>();
+    private final Map<String,Long> creationTimes = new HashMap<>();
+
+    private final int rootMethodId;
+    private boolean inclusiveWeights;
+
+    public CallTreeBuilder()
+    {
+        rootMethodId = methodId( SYNTHETIC_ROOT_NAME , SYNTHETIC_ROOT_NAME , "()V" , -1 );
+    }
+
+    /**
+     * Returns the (content-addressed) ID for a method, registering it if necessary.
+     *
+     * @param className JVM-internal class name (using '/')
+     * @param methodName
+     * @param signature method descriptor, must start with '('
+     * @param lineNumber line number or -1 if unknown
+     * @return
+     */
+    public int methodId(String className,String methodName,String signature,int lineNumber)
+    {
+        final String key = className+"|"+methodName+"|"+signature+"|"+lineNumber;
+        MethodIdentifier existing = methodsByKey.get( key );
+        if ( existing == null )
+        {
+            final int id = methods.allocateId( className , methodName , signature , lineNumber > 0 ? lineNumber : -1 );
+            if ( lineNumber > 0 ) {
+                existing = new MethodIdentifier( id , className , methodName , signature , lineNumber );
+            } else {
+                existing = new MethodIdentifier( id , className , methodName , signature );
+            }
+            methodsByKey.put( key , existing );
+            methods.registerMethod( existing );
+        }
+        return existing.id;
+    }
+
+    /**
+     * Sets whether weights passed to {@link #addWeight(MethodStats, float, long)} are
+     * total times (instead of self times).
+     *
+     * @param inclusiveWeights
+     */
+    public void setInclusiveWeights(boolean inclusiveWeights) {
+        this.inclusiveWeights = inclusiveWeights;
+    }
+
+    public void setCreationTime(String threadName,long creationTime) {
+        creationTimes.put( threadName , creationTime );
+    }
+
+    /**
+     * Records a timestamp for a thread, the earliest timestamp becomes the profile's creation time.
+     *
+     * @param threadName
+     * @param timestamp
+     */
+    public void addTimestamp(String threadName,long timestamp) {
+        creationTimes.merge( threadName , timestamp , Math::min );
+    }
+
+    /**
+     * Multiplies all weights added so far with a factor.
+     *
+     * @param factor
+     */
+    public void scaleWeights(float factor)
+    {
+        final Deque<MethodStats> stack = new ArrayDeque<>( rootsByThread.values() );
+        while ( ! stack.isEmpty() )
+        {
+            final MethodStats node = stack.pop();
+            node.setTotalTimeMillis( node.getTotalTimeMillisRaw() * factor );
+            node.getCallees().values().forEach( stack::push );
+        }
+    }
+
+    /**
+     * Adds a stack trace.
+     *
+     * @param threadName
+     * @param stack method IDs, root frame first
+     * @param length number of valid entries in <code>stack</code>
+     * @return node for the last frame of the stack
+     */
+    public MethodStats addStack(String threadName,int[] stack,int length)
+    {
+        MethodStats current = rootsByThread.get( threadName );
+        if ( current == null ) {
+            current = new MethodStats( rootMethodId );
+            rootsByThread.put( threadName , current );
+        }
+        for ( int i = 0 ; i < length ; i++ )
+        {
+            final int methodId = stack[i];
+            MethodStats child = current.getCallees().get( methodId );
+            if ( child == null )
+            {
+                child = new MethodStats( methodId , current );
+                current.getCallees().put( methodId , child );
+            }
+            current = child;
+        }
+        return current;
+    }
+
+    /**
+     * Adds self time and invocation counts to a node returned by {@link #addStack(String, int[], int)}.
+     *
+     * @param node
+     * @param timeMillis self time (or total time if inclusive weights are used)
+     * @param invocations
+     */
+    public static void addWeight(MethodStats node,float timeMillis,long invocations)
+    {
+        // total time holds the self time until build() is called
+        node.setTotalTimeMillis( node.getTotalTimeMillisRaw() + timeMillis );
+        node.setInvocationCount( node.getInvocationCount() + invocations );
+    }
+
+    /**
+     * Adds all stacks of another builder to this one.
+     *
+     * Neither builder must have been {@link #build() built} yet and both must use the same kind of weights.
+     *
+     * @param other
+     */
+    public void merge(CallTreeBuilder other)
+    {
+        final HashIntIntMap idMap = HashIntIntMaps.newMutableMap( 2000 );
+        other.methods.visitMethods( name -> {
+            idMap.put( name.id , methodId( name.className , name.methodName , name.methodSignature , name.lineNumber ) );
+        });
+
+        other.creationTimes.forEach( this::addTimestamp );
+
+        final Deque<MethodStats> sources = new ArrayDeque<>();
+        final Deque<MethodStats> targets = new ArrayDeque<>();
+        for ( Map.Entry<String,MethodStats> entry : other.rootsByThread.entrySet() )
+        {
+            final MethodStats root = addStack( entry.getKey() , null , 0 );
+            addWeight( root , entry.getValue().getTotalTimeMillisRaw() , entry.getValue().getInvocationCount() );
+            for ( MethodStats child : entry.getValue().getCallees().values() )
+            {
+                sources.push( child );
+                targets.push( root );
+            }
+            while ( ! sources.isEmpty() )
+            {
+                final MethodStats source = sources.pop();
+                final MethodStats parent = targets.pop();
+                final int methodId = idMap.get( source.getMethodId() );
+                MethodStats target = parent.getCallees().get( methodId );
+                if ( target == null )
+                {
+                    target = new MethodStats( methodId , parent );
+                    parent.getCallees().put( methodId , target );
+                }
+                addWeight( target , source.getTotalTimeMillisRaw() , source.getInvocationCount() );
+                for ( MethodStats child : source.getCallees().values() )
+                {
+                    sources.push( child );
+                    targets.push( target );
+                }
+            }
+        }
+    }
+
+    /**
+     * Creates the profiles.
+     *
+     * This builder must not be used afterwards.
+     *
+     * @return
+     */
+    public ProfileContainer build()
+    {
+        final List<Profile> profiles = new ArrayList<>();
+        for ( Map.Entry<String,MethodStats> entry : rootsByThread.entrySet() )
+        {
+            final Profile profile = new Profile( entry.getKey() );
+            final Long creationTime = creationTimes.get( entry.getKey() );
+            if ( creationTime != null ) {
+                profile.setCreationTime( creationTime );
+            }
+            MethodStats root = entry.getValue();
+            final boolean rootHasWeight = root.getTotalTimeMillisRaw() != 0;
+            computeTotals( root );
+            if ( root.getCallees().size() == 1 && ! rootHasWeight )
+            {
+                // single real root, discard the synthetic one
+                root = root.getCallees().values().iterator().next();
+                root.setParent( null );
+            }
+            profile.setTopLevelMethod( root );
+            profiles.add( profile );
+        }
+        return new ProfileContainer( profiles , methods );
+    }
+
+    private void computeTotals(MethodStats root)
+    {
+        // visit children before their parents, turning self times into total times
+        // and deriving invocation counts for nodes that never were the last frame of a stack
+        final Deque<MethodStats> stack = new ArrayDeque<>();
+        final List<MethodStats> postOrder = new ArrayList<>();
+        stack.push( root );
+        while ( ! stack.isEmpty() )
+        {
+            final MethodStats node = stack.pop();
+            postOrder.add( node );
+            node.getCallees().values().forEach( stack::push );
+        }
+        for ( int i = postOrder.size()-1 ; i >= 0 ; i-- )
+        {
+            final MethodStats node = postOrder.get(i);
+            if ( ! inclusiveWeights ) {
+                node.setTotalTimeMillis( node.getTotalTimeMillisRaw() + node.getSumTotalChildTimeMillis() );
+            }
+            if ( node.getInvocationCount() == 0 )
+            {
+                long invocations = 0;
+                for ( MethodStats child : node.getCallees().values() ) {
+                    invocations += child.getInvocationCount();
+                }
+                node.setInvocationCount( Math.max( 1 , invocations ) );
+            }
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package de.codesourcery.toyprofiler.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Collection;
+
+import de.codesourcery.toyprofiler.ClassMethodsContainer;
+import de.codesourcery.toyprofiler.Profile;
+import de.codesourcery.toyprofiler.Profile.MethodIdentifier;
+import de.codesourcery.toyprofiler.Profile.MethodStats;
+import net.openhft.koloboke.collect.map.hash.HashIntObjMap;
+import net.openhft.koloboke.collect.map.hash.HashIntObjMaps;
+
+/**
+ * Exports profiles in the Chrome trace-event JSON format (chrome://tracing, Perfetto).
+ *
+ * Each thread gets its own track, call tree nodes become complete ('X') events laid out
+ * by {@link TimelineLayout}.
+ */
+public class ChromeTraceExporter implements IProfileExporter
+{
+    public static final String FILE_SUFFIX = ".trace.json";
+
+    private static final int PID = 1;
+
+    @Override
+    public void save(ClassMethodsContainer methodContainer, Collection<Profile> profiles, OutputStream out) throws IOException
+    {
+        final HashIntObjMap<String[]> names = HashIntObjMaps.newMutableMap( 2000 );
+        try ( JsonWriter json = new JsonWriter( out ) )
+        {
+            json.beginObject();
+            json.property( "displayTimeUnit" , "ms" );
+            json.name( "traceEvents" ).beginArray();
+
+            int tid = 0;
+            for ( Profile profile : profiles )
+            {
+                final MethodStats root = profile.getTopLevelMethod();
+                if ( root == null ) {
+                    continue;
+                }
+                System.out.println("Writing trace events for "+profile.getThreadName()+" ...");
+                final int threadId = ++tid;
+                json.beginObject();
+                json.property( "name" , "thread_name" ).property( "ph" , "M" ).property( "pid" , PID ).property( "tid" , threadId );
+                json.name( "args" ).beginObject().property( "name" , profile.getThreadName() ).endObject();
+                json.endObject();
+
+                TimelineLayout.layout( root , 0 , new TimelineLayout.ISpanVisitor()
+                {
+                    @Override
+                    public void open(MethodStats node, double startMicros, double durationMicros, int depth) throws IOException
+                    {
+                        String[] name = names.get( node.getMethodId() );
+                        if ( name == null )
+                        {
+                            final MethodIdentifier method = methodContainer.getRawMethodName( node.getMethodId() );
+                            if ( method == null ) {
+                                name = new String[] { "unknown_"+node.getMethodId() , "unknown" };
+                            } else {
+                                final String className = method.className.replace('/','.');
+                                name = new String[] { className+"."+method.methodName , className };
+                            }
+                            names.put( node.getMethodId() , name );
+                        }
+                        json.beginObject();
+                        json.property( "name" , name[0] ).property( "cat" , name[1] ).property( "ph" , "X" );
+                        json.property( "ts" , startMicros ).property( "dur" , durationMicros );
+                        json.property( "pid" , PID ).property( "tid" , threadId );
+                        json.name( "args" ).beginObject();
+                        json.property( "invocations" , node.getInvocationCount() );
+                        json.property( "selfTimeMillis" , (double) node.getTotalOwnTimeMillis() );
+                        json.endObject();
+                        json.endObject();
+                    }
+
+                    @Override
+                    public void close(MethodStats node, double endMicros, int depth) {
+                    }
+                });
+            }
+            json.endArray();
+            json.endObject();
+        }
+    }
+}
@@ -0,0 +1,315 @@
+package de.codesourcery.toyprofiler.util;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+import de.codesourcery.toyprofiler.IClassMethodsContainer;
+import de.codesourcery.toyprofiler.Profile;
+import de.codesourcery.toyprofiler.Profile.MethodStats;
+import net.openhft.koloboke.collect.map.hash.HashLongObjMap;
+import net.openhft.koloboke.collect.map.hash.HashLongObjMaps;
+import net.openhft.koloboke.collect.set.hash.HashIntSet;
+import net.openhft.koloboke.collect.set.hash.HashIntSets;
+
+/**
+ * Immutable result of aligning the call trees of two profiles.
+ *
+ * Nodes are matched by call path, method IDs of profiles using different method containers
+ * are mapped by {@link MethodIdMapping}.
+ * The alignment runs once, forking subtrees onto the common fork/join pool, and afterwards
+ * the diff node for any node of the current tree can be looked up in constant time.
+ */
+public final class DiffTree
+{
+    public static enum Status
+    {
+        /**
+         * Call path exists in both profiles.
+         */
+        MATCHED,
+        /**
+         * Call path only exists in the current profile.
+         */
+        ADDED,
+        /**
+         * Call path only exists in the previous profile.
+         */
+        REMOVED
+    }
+
+    public static final class Node
+    {
+        /**
+         * ID in the current profile's method container, also for {@link Status#REMOVED} nodes.
+         * -1 if the node was removed and the current profile does not know its method at all.
+         */
+        public final int methodId;
+        /** ID in the previous profile's method container, -1 if {@link Status#ADDED} */
+        public final int previousMethodId;
+        public final Status status;
+        /** Node from the current profile, <code>null</code> if {@link Status#REMOVED} */
+        public final MethodStats current;
+        /** Node from the previous profile, <code>null</code> if {@link Status#ADDED} */
+        public final MethodStats previous;
+
+        public final float currentTotalTimeMillis;
+        public final float previousTotalTimeMillis;
+        public final long currentInvocationCount;
+        public final long previousInvocationCount;
+        /** time relative to the parent's time (0...1) */
+        public final double currentPercentage;
+        public final double previousPercentage;
+
+        private final List<Node> children;
+
+        private Node(int methodId,MethodStats current,MethodStats previous,List<Node> children)
+        {
+            this.methodId = methodId;
+            this.previousMethodId = previous == null ? -1 : previous.getMethodId();
+            this.current = current;
+            this.previous = previous;
+            this.status = current == null ? Status.REMOVED : previous == null ? Status.ADDED : Status.MATCHED;
+            this.currentTotalTimeMillis = current == null ? 0 : current.getTotalTimeMillis();
+            this.previousTotalTimeMillis = previous == null ? 0 : previous.getTotalTimeMillis();
+            this.currentInvocationCount = current == null ? 0 : current.getInvocationCount();
+            this.previousInvocationCount = previous == null ? 0 : previous.getInvocationCount();
+            this.currentPercentage = current == null ? 0 : current.getPercentageOfParentTime();
+            this.previousPercentage = previous == null ? 0 : previous.getPercentageOfParentTime();
+            this.children = Collections.unmodifiableList( children );
+        }
+
+        public boolean isMatched() {
+            return status == Status.MATCHED;
+        }
+
+        /**
+         * Returns the change of the time relative to the parent (current minus previous).
+         *
+         * @return
+         */
+        public double getPercentageDelta() {
+            return currentPercentage - previousPercentage;
+        }
+
+        public List<Node> getChildren() {
+            return children;
+        }
+    }
+
+    private final List<Node> roots;
+    private final HashLongObjMap<Node> nodesByPathHash;
+
+    private DiffTree(List<Node> roots,HashLongObjMap<Node> nodesByPathHash)
+    {
+        this.roots = Collections.unmodifiableList( roots );
+        this.nodesByPathHash = nodesByPathHash;
+    }
+
+    /**
+     * Aligns the call trees of two profiles that use the same method container.
+     *
+     * @param current
+     * @param previous
+     * @return
+     * @see #compare(Profile, IClassMethodsContainer, Profile, IClassMethodsContainer)
+     */
+    public static DiffTree compare(Profile current,Profile previous)
+    {
+        return compare( current , previous , MethodIdMapping.IDENTITY , MethodIdMapping.IDENTITY );
+    }
+
+    /**
+     * Aligns the call trees of two profiles.
+     *
+     * Both trees are fully traversed (and thus materialized if they are loaded lazily).
+     *
+     * @param current
+     * @param currentMethods method container of the current profile
+     * @param previous
+     * @param previousMethods method container of the previous profile
+     * @return
+     */
+    public static DiffTree compare(Profile current,IClassMethodsContainer currentMethods,Profile previous,IClassMethodsContainer previousMethods)
+    {
+        return compare( current , previous , MethodIdMapping.between( currentMethods , previousMethods ) , MethodIdMapping.between( previousMethods , currentMethods ) );
+    }
+
+    private static DiffTree compare(Profile current,Profile previous,MethodIdMapping mapping,MethodIdMapping reverseMapping)
+    {
+        final long start = System.currentTimeMillis();
+        final MethodStats currentRoot = current.getTopLevelMethod();
+        final MethodStats previousRoot = previous.getTopLevelMethod();
+
+        final List<Node> roots = new ArrayList<>( 2 );
+        if ( currentRoot == null || previousRoot == null || mapping.map( currentRoot.getMethodId() ) == previousRoot.getMethodId() )
+        {
+            if ( currentRoot != null || previousRoot != null ) {
+                roots.add( ForkJoinPool.commonPool().invoke( new AlignTask( currentRoot , previousRoot , mapping , reverseMapping , 0 ) ) );
+            }
+        }
+        else
+        {
+            // different top-level methods means nothing matches, the whole previous tree got removed
+            roots.add( ForkJoinPool.commonPool().invoke( new AlignTask( currentRoot , null , mapping , reverseMapping , 0 ) ) );
+            roots.add( ForkJoinPool.commonPool().invoke( new AlignTask( null , previousRoot , mapping , reverseMapping , 0 ) ) );
+        }
+
+        // index nodes of the current tree
+        final HashLongObjMap<Node> index = HashLongObjMaps.newMutableMap();
+        if ( ! roots.isEmpty() )
+        {
+            final Deque<Node> stack = new ArrayDeque<>( roots );
+            while ( ! stack.isEmpty() )
+            {
+                final Node node = stack.pop();
+                if ( node.current != null ) {
+                    index.put( node.current.getPathHash() , node );
+                }
+                node.children.forEach( stack::push );
+            }
+        }
+        System.out.println("Aligned "+index.size()+" nodes of '"+current.getThreadName()+"' in "+(System.currentTimeMillis()-start)+" ms");
+        return new DiffTree( roots , HashLongObjMaps.newImmutableMap( index ) );
+    }
+
+    private static final class AlignTask extends RecursiveTask<Node>
+    {
+        // joining a task may run it on the joining thread's stack, so only subtrees near the root get forked
+        private static final int MAX_FORK_DEPTH = 16;
+
+        private final MethodStats current;
+        private final MethodStats previous;
+        // current method IDs -> previous method IDs
+        private final MethodIdMapping mapping;
+        // previous method IDs -> current method IDs
+        private final MethodIdMapping reverseMapping;
+        private final int depth;
+
+        /**
+         * Pair of nodes whose children still need to be aligned.
+         */
+        private static final class Pending
+        {
+            public final MethodStats current;
+            public final MethodStats previous;
+            // receives the diff node once all children are done
+            public final List<Node> siblings;
+            public final int depth;
+            public List<Node> children;
+            public List<AlignTask> forked;
+
+            public Pending(MethodStats current,MethodStats previous,List<Node> siblings,int depth)
+            {
+                this.current = current;
+                this.previous = previous;
+                this.siblings = siblings;
+                this.depth = depth;
+            }
+        }
+
+        public AlignTask(MethodStats current,MethodStats previous,MethodIdMapping mapping,MethodIdMapping reverseMapping,int depth)
+        {
+            this.current = current;
+            this.previous = previous;
+            this.mapping = mapping;
+            this.reverseMapping = reverseMapping;
+            this.depth = depth;
+        }
+
+        @Override
+        protected Node compute()
+        {
+            // call trees can be deeper than the thread's stack allows for recursion
+            final List<Node> result = new ArrayList<>( 1 );
+            final Deque<Pending> stack = new ArrayDeque<>();
+            stack.push( new Pending( current , previous , result , depth ) );
+            while ( ! stack.isEmpty() )
+            {
+                final Pending pending = stack.peek();
+                if ( pending.children == null ) {
+                    expand( pending , stack );
+                    continue;
+                }
+                stack.pop();
+                for ( AlignTask task : pending.forked ) {
+                    pending.children.add( task.join() );
+                }
+                pending.siblings.add( createNode( pending.current , pending.previous , pending.children ) );
+            }
+            return result.get(0);
+        }
+
+        private void expand(Pending pending,Deque<Pending> stack)
+        {
+            final MethodStats current = pending.current;
+            final MethodStats previous = pending.previous;
+            pending.children = new ArrayList<>();
+            pending.forked = new ArrayList<>();
+            final HashIntSet matched = HashIntSets.newMutableSet();
+            if ( current != null )
+            {
+                for ( MethodStats child : current.getCallees().values() )
+                {
+                    final MethodStats previousChild = previous == null ? null : previous.getCallees().get( mapping.map( child.getMethodId() ) );
+                    if ( previousChild != null ) {
+                        matched.add( previousChild.getMethodId() );
+                    }
+                    alignChild( child , previousChild , pending , stack );
+                }
+            }
+            if ( previous != null )
+            {
+                for ( MethodStats previousChild : previous.getCallees().values() )
+                {
+                    if ( ! matched.contains( previousChild.getMethodId() ) ) {
+                        alignChild( null , previousChild , pending , stack );
+                    }
+                }
+            }
+        }
+
+        private void alignChild(MethodStats current,MethodStats previous,Pending parent,Deque<Pending> stack)
+        {
+            final boolean hasChildren = ( current != null && current.hasChildren() ) || ( previous != null && previous.hasChildren() );
+            if ( ! hasChildren ) {
+                parent.children.add( createNode( current , previous , new ArrayList<>( 0 ) ) );
+            } else if ( parent.depth < MAX_FORK_DEPTH && getSurplusQueuedTaskCount() < 3 ) {
+                // keep idle workers busy
+                parent.forked.add( (AlignTask) new AlignTask( current , previous , mapping , reverseMapping , parent.depth+1 ).fork() );
+            } else {
+                stack.push( new Pending( current , previous , parent.children , parent.depth+1 ) );
+            }
+        }
+
+        private Node createNode(MethodStats current,MethodStats previous,List<Node> children) {
+            return new Node( current != null ? current.getMethodId() : reverseMapping.map( previous.getMethodId() ) , current , previous , children );
+        }
+    }
+
+    /**
+     * Returns the top-level nodes.
+     *
+     * @return empty if both profiles are empty, two nodes (the current tree {@link Status#ADDED}, the previous one {@link Status#REMOVED})
+     * if the profiles have different top-level methods, otherwise one node.
+     */
+    public List<Node> getRoots() {
+        return roots;
+    }
+
+    /**
+     * Returns the diff node for a node of the current profile.
+     *
+     * @param current
+     * @return diff node or <code>null</code> if the node is not part of the current profile's tree
+     */
+    public Node get(MethodStats current)
+    {
+        final Node result = nodesByPathHash.get( current.getPathHash() );
+        return result != null && result.methodId == current.getMethodId() ? result : null;
+    }
+}
@@ -0,0 +1,389 @@
+package de.codesourcery.toyprofiler.util;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import de.codesourcery.toyprofiler.ClassMethodsContainer;
+import de.codesourcery.toyprofiler.Profile;
+import de.codesourcery.toyprofiler.Profile.MethodIdentifier;
+import de.codesourcery.toyprofiler.Profile.MethodStats;
+import de.codesourcery.toyprofiler.ProfileContainer;
+import net.openhft.koloboke.collect.map.hash.HashIntObjMap;
+import net.openhft.koloboke.collect.map.hash.HashIntObjMaps;
+
+/**
+ * Reads and writes call trees in the 'folded stacks' (collapsed) format understood by
+ * Brendan Gregg's FlameGraph scripts and many other tools:
+ * one line per call path, frames separated by ';' and followed by a space and the path's weight.
+ *
+ * Frames are written as <code>className.methodName</code> (using the JVM-internal class name),
+ * time weights are written in microseconds. When thread names are included, each
+ * stack starts with a <code>[threadName]</code> frame and importing such a file yields one profile per thread.
+ *
+ * Files start with a <code># toyprofiler weight=&lt;WEIGHT&gt;</code> comment line naming the {@link Weight} they were written with.
+ * When importing, that line takes precedence over the weight the adapter was created with; files without it
+ * (written by other tools) are read with the adapter's weight.
+ *
+ * Note that the format has no room for method signatures or line numbers, overloaded
+ * methods end up as a single method when importing.
+ */
+public class FoldedStacksAdapter implements IProfileIOAdapter
+{
+    public static final String[] FILE_SUFFIXES = { ".folded" , ".collapsed" };
+
+    public static final String DEFAULT_THREAD_NAME = "folded stacks";
+
+    private static final String UNKNOWN_SIGNATURE = "()V";
+
+    private static final String WEIGHT_HEADER = "# toyprofiler weight=";
+
+    private static final int SNIFF_BYTES = 64*1024;
+    private static final int SNIFF_LINES = 10;
+
+    public enum Weight
+    {
+        /**
+         * Inclusive time of each call path (tools that sum up child paths will over-count).
+         */
+        TOTAL_TIME,
+        /**
+         * Exclusive time of each call path, the usual weight for flame graphs.
+         */
+        SELF_TIME,
+        /**
+         * Invocation count of each call path. When importing, the counts are also used as
+         * (self) time so that the flame graph shows the distribution of calls.
+         */
+        INVOCATIONS;
+
+        /**
+         * Parses a weight name, case-insensitive and with '-' instead of '_' (<code>total-time</code>).
+         *
+         * @param name
+         * @return
+         * @throws IllegalArgumentException if the name is unknown
+         */
+        public static Weight parse(String name) throws IllegalArgumentException
+        {
+            final String normalized = name.trim().toUpperCase().replace('-','_');
+            for ( Weight weight : values() )
+            {
+                if ( weight.name().equals( normalized ) ) {
+                    return weight;
+                }
+            }
+            throw new IllegalArgumentException("Unknown weight '"+name+"', valid are: total-time, self-time, invocations");
+        }
+    }
+
+    private final Weight weight;
+    private final boolean includeThreadNames;
+
+    public FoldedStacksAdapter()
+    {
+        this( Weight.SELF_TIME , true );
+    }
+
+    public FoldedStacksAdapter(Weight weight,boolean includeThreadNames)
+    {
+        if ( weight == null ) {
+            throw new IllegalArgumentException("Weight must not be NULL");
+        }
+        this.weight = weight;
+        this.includeThreadNames = includeThreadNames;
+    }
+
+    public static boolean hasFoldedSuffix(String fileName)
+    {
+        final String name = fileName.toLowerCase();
+        return Arrays.stream( FILE_SUFFIXES ).anyMatch( s -> name.endsWith( s ) || name.endsWith( s+ProfileFiles.COMPRESSED_SUFFIX ) );
+    }
+
+    /**
+     * Checks whether a (possibly compressed) file looks like folded stacks.
+     *
+     * Only the first few lines are checked, they must be text of the form <code>&lt;frame&gt;;&lt;frame&gt;;... &lt;weight&gt;</code>.
+     *
+     * @param file
+     * @return
+     * @throws IOException
+     */
+    public static boolean isFoldedStacks(File file) throws IOException
+    {
+        final byte[] head = ProfileFiles.readHead( file , SNIFF_BYTES );
+        final String text = new String( head , StandardCharsets.UTF_8 );
+        int checked = 0;
+        int start = 0;
+        while ( start < text.length() && checked < SNIFF_LINES )
+        {
+            int end = text.indexOf( '\n' , start );
+            if ( end == -1 )
+            {
+                if ( head.length == SNIFF_BYTES ) {
+                    // line got cut off, can only check it contains no binary data
+                    return checked > 0 || isText( text.substring( start ) );
+                }
+                end = text.length();
+            }
+            final String line = text.substring( start , end ).trim();
+            start = end+1;
+            if ( line.isEmpty() || line.startsWith("#") ) {
+                continue;
+            }
+            if ( ! isText( line ) ) {
+                return false;
+            }
+            final int valueStart = line.lastIndexOf(' ');
+            if ( valueStart <= 0 || line.substring( 0 , valueStart ).trim().isEmpty() ) {
+                return false;
+            }
+            try
+            {
+                final double value = Double.parseDouble( line.substring( valueStart+1 ) );
+                if ( Double.isNaN( value ) || Double.isInfinite( value ) || value < 0 ) {
+                    return false;
+                }
+            }
+            catch(NumberFormatException e) {
+                return false;
+            }
+            checked++;
+        }
+        return checked > 0;
+    }
+
+    private static boolean isText(String s)
+    {
+        for ( int i = 0 , len = s.length() ; i < len ; i++ )
+        {
+            final char c = s.charAt( i );
+            if ( ( c < 0x20 && c != '\t' && c != '\r' ) || c == 0xfffd ) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public ProfileContainer load(InputStream in) throws IOException
+    {
+        final CallTreeBuilder builder = new CallTreeBuilder();
+        Weight weight = this.weight;
+        builder.setInclusiveWeights( weight == Weight.TOTAL_TIME );
+        boolean readStack = false;
+
+        final Map<String,Integer> frameIds = new HashMap<>();
+        int[] stack = new int[64];
+
+        final BufferedReader reader = new BufferedReader( new InputStreamReader( ProfileFiles.decompressIfNecessary( in ) , StandardCharsets.UTF_8 ) );
+        int lineNo = 0;
+        String line;
+        while ( ( line = reader.readLine() ) != null )
+        {
+            lineNo++;
+            line = line.trim();
+            if ( line.isEmpty() ) {
+                continue;
+            }
+            if ( line.startsWith("#") )
+            {
+                // written by save(), tells what the weights mean
+                if ( ! readStack && line.startsWith( WEIGHT_HEADER ) )
+                {
+                    try {
+                        weight = Weight.parse( line.substring( WEIGHT_HEADER.length() ) );
+                    } catch(IllegalArgumentException e) {
+                        throw new IOException("Malformed header on line "+lineNo+": "+e.getMessage());
+                    }
+                    builder.setInclusiveWeights( weight == Weight.TOTAL_TIME );
+                }
+                continue;
+            }
+            readStack = true;
+            final int valueStart = line.lastIndexOf(' ');
+            if ( valueStart <= 0 ) {
+                throw new IOException("Malformed line "+lineNo+", expected '<frame>;<frame>;... <weight>' but got: "+line);
+            }
+            final double value;
+            try {
+                value = Double.parseDouble( line.substring( valueStart+1 ) );
+            } catch(NumberFormatException e) {
+                throw new IOException("Malformed weight on line "+lineNo+": "+line);
+            }
+
+            String threadName = DEFAULT_THREAD_NAME;
+            boolean firstFrame = true;
+            int depth = 0;
+            int start = 0;
+            while ( start < valueStart )
+            {
+                int end = line.indexOf( ';' , start );
+                if ( end == -1 || end > valueStart ) {
+                    end = valueStart;
+                }
+                final String frame = line.substring( start , end ).trim();
+                start = end+1;
+                if ( frame.isEmpty() ) {
+                    continue;
+                }
+                if ( firstFrame && isThreadFrame( frame ) )
+                {
+                    threadName = frame.substring( 1 , frame.length()-1 );
+                    firstFrame = false;
+                    continue;
+                }
+                firstFrame = false;
+                Integer id = frameIds.get( frame );
+                if ( id == null ) {
+                    id = parseFrame( frame , builder );
+                    frameIds.put( frame , id );
+                }
+                if ( depth == stack.length ) {
+                    stack = Arrays.copyOf( stack , depth*2 );
+                }
+                stack[depth++] = id;
+            }
+
+            final MethodStats node = builder.addStack( threadName , stack , depth );
+            switch( weight )
+            {
+                case INVOCATIONS:
+                    CallTreeBuilder.addWeight( node , (float) value , Math.round( value ) );
+                    break;
+                default:
+                    CallTreeBuilder.addWeight( node , (float) ( value / 1000d ) , 1 );
+            }
+        }
+        return builder.build();
+    }
+
+    private static boolean isThreadFrame(String frame) {
+        return frame.length() >= 2 && frame.charAt(0) == '[' && frame.charAt( frame.length()-1 ) == ']';
+    }
+
+    private static int parseFrame(String frame,CallTreeBuilder builder)
+    {
+        String name = frame;
+        // strip frame type annotations (_[j] , _[i] , _[k] ...) as written by async-profiler
+        if ( name.length() > 4 && name.endsWith("]") && name.charAt( name.length()-4 ) == '_' && name.charAt( name.length()-3 ) == '[' ) {
+            name = name.substring( 0 , name.length()-4 );
+        }
+        int idx = name.lastIndexOf( "::" );
+        if ( idx > 0 ) {
+            return builder.methodId( name.substring( 0 , idx ) , name.substring( idx+2 ) , UNKNOWN_SIGNATURE , -1 );
+        }
+        idx = name.lastIndexOf( '.' );
+        if ( idx > 0 && idx < name.length()-1 ) {
+            return builder.methodId( name.substring( 0 , idx ).replace('.','/') , name.substring( idx+1 ) , UNKNOWN_SIGNATURE , -1 );
+        }
+        return builder.methodId( "" , name , UNKNOWN_SIGNATURE , -1 );
+    }
+
+    /**
+     * Writes all call paths of the given profiles.
+     *
+     * Output is streamed while traversing the trees, only the current path is kept in memory.
+     */
+    @Override
+    public void save(ClassMethodsContainer methodContainer, Collection<Profile> profiles, OutputStream out) throws IOException
+    {
+        final Writer writer = new BufferedWriter( new OutputStreamWriter( out , StandardCharsets.UTF_8 ) , 64*1024 );
+        final HashIntObjMap<String> frames = HashIntObjMaps.newMutableMap( 2000 );
+
+        final StringBuilder path = new StringBuilder();
+        final Deque<Iterator<MethodStats>> stack = new ArrayDeque<>();
+        int[] pathLengths = new int[64];
+        writer.append( WEIGHT_HEADER ).append( weight.name() ).append('\n');
+        for ( Profile profile : profiles )
+        {
+            final MethodStats root = profile.getTopLevelMethod();
+            if ( root == null ) {
+                continue;
+            }
+            System.out.println("Writing folded stacks for "+profile.getThreadName()+" ...");
+
+            path.setLength( 0 );
+            if ( includeThreadNames ) {
+                path.append('[').append( sanitize( profile.getThreadName() ) ).append(']');
+            }
+            int depth = 0;
+            pathLengths[depth++] = path.length();
+            appendFrame( root , path , frames , methodContainer );
+            writeLine( root , path , writer );
+            stack.push( root.getCallees().values().iterator() );
+            while ( ! stack.isEmpty() )
+            {
+                final Iterator<MethodStats> it = stack.peek();
+                if ( it.hasNext() )
+                {
+                    final MethodStats child = it.next();
+                    if ( depth == pathLengths.length ) {
+                        pathLengths = Arrays.copyOf( pathLengths , depth*2 );
+                    }
+                    pathLengths[depth++] = path.length();
+                    appendFrame( child , path , frames , methodContainer );
+                    writeLine( child , path , writer );
+                    stack.push( child.getCallees().values().iterator() );
+                }
+                else
+                {
+                    stack.pop();
+                    path.setLength( pathLengths[--depth] );
+                }
+            }
+        }
+        writer.flush();
+    }
+
+    private static void appendFrame(MethodStats node,StringBuilder path,HashIntObjMap<String> frames,ClassMethodsContainer methodContainer)
+    {
+        String frame = frames.get( node.getMethodId() );
+        if ( frame == null )
+        {
+            final MethodIdentifier name = methodContainer.getRawMethodName( node.getMethodId() );
+            frame = name == null ? "unknown_"+node.getMethodId() : sanitize( name.className+"."+name.methodName );
+            frames.put( node.getMethodId() , frame );
+        }
+        if ( path.length() > 0 ) {
+            path.append(';');
+        }
+        path.append( frame );
+    }
+
+    private void writeLine(MethodStats node,StringBuilder path,Writer writer) throws IOException
+    {
+        final long value;
+        switch( weight )
+        {
+            case TOTAL_TIME:  value = Math.round( node.getTotalTimeMillis() * 1000d ); break;
+            case SELF_TIME:   value = Math.round( node.getTotalOwnTimeMillis() * 1000d ); break;
+            case INVOCATIONS: value = node.getInvocationCount(); break;
+            default:
+                throw new RuntimeException("Unhandled weight: "+weight);
+        }
+        if ( value > 0 )
+        {
+            writer.append( path ).append(' ').append( Long.toString( value ) ).append('\n');
+        }
+    }
+
+    private static String sanitize(String s)
+    {
+        return s.replace(';',':').replace('\n',' ').replace('\r',' ');
+    }
+}
@@ -0,0 +1,220 @@
+package de.codesourcery.toyprofiler.util;
+
+import java.awt.Color;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.zip.GZIPOutputStream;
+
+import de.codesourcery.toyprofiler.ClassMethodsContainer;
+import de.codesourcery.toyprofiler.Profile;
+import de.codesourcery.toyprofiler.Profile.MethodIdentifier;
+import de.codesourcery.toyprofiler.Profile.MethodStats;
+import net.openhft.koloboke.collect.map.hash.HashIntIntMap;
+import net.openhft.koloboke.collect.map.hash.HashIntIntMaps;
+
+/**
+ * Exports profiles as a single self-contained HTML file with an interactive SVG flame graph.
+ *
+ * The call trees are embedded as gzip-compressed, base64-encoded JSON that the page decompresses
+ * and renders client-side, supporting zooming, searching and tooltips. Frames narrower than a fraction of
+ * their thread's total time are omitted, so the file size is bounded no matter how large the profile is.
+ * The output is written while the call trees are traversed, subtrees that get omitted are never materialized.
+ */
+public class HtmlFlameGraphExporter implements IProfileExporter
+{
+    public static final String FILE_SUFFIX = ".html";
+
+    /** Default minimum width of a frame, relative to the total time of its thread */
+    public static final double DEFAULT_MIN_FRAME_WIDTH = 0.0005;
+
+    private static final String TEMPLATE = "/flamegraph.html";
+    private static final String DATA_MARKER = "@DATA@";
+
+    private final String title;
+    private final double minFrameWidth;
+    private final Color[] gradient;
+    private final Color highlightColor;
+
+    /**
+     * Create exporter.
+     *
+     * @param title page title
+     * @param minFrameWidth minimum width of a frame relative to the total time of its thread (0...1), narrower frames are omitted
+     * @param gradient colors frames cycle through
+     * @param highlightColor color of search matches
+     */
+    public HtmlFlameGraphExporter(String title,double minFrameWidth,Color[] gradient,Color highlightColor)
+    {
+        if ( gradient.length == 0 ) {
+            throw new IllegalArgumentException("Gradient must not be empty");
+        }
+        this.title = title;
+        this.minFrameWidth = minFrameWidth;
+        this.gradient = gradient;
+        this.highlightColor = highlightColor;
+    }
+
+    @Override
+    public void save(ClassMethodsContainer methodContainer, Collection<Profile> profiles, OutputStream out) throws IOException
+    {
+        final String template = loadTemplate()
+                .replace( "@TITLE@" , escapeHTML( title ) )
+                .replace( "@GRADIENT@" , "[" + Arrays.stream( gradient ).map( c -> "\""+toHex( c )+"\"" ).collect( Collectors.joining(",") ) + "]" )
+                .replace( "@HIGHLIGHT@" , toHex( highlightColor ) );
+        final int marker = template.lastIndexOf( DATA_MARKER );
+
+        // neither the text nor the data stream may close the output stream
+        final OutputStream target = new FilterOutputStream( out )
+        {
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                out.write( b , off , len );
+            }
+
+            @Override
+            public void close() throws IOException {
+                flush();
+            }
+        };
+
+        final Writer writer = new OutputStreamWriter( target , StandardCharsets.UTF_8 );
+        writer.write( template , 0 , marker );
+        writer.flush();
+
+        final OutputStream base64 = Base64.getMimeEncoder( 76 , new byte[] { '\n' } ).wrap( target );
+        final GZIPOutputStream gzip = new GZIPOutputStream( base64 , 64*1024 );
+        try ( JsonWriter json = new JsonWriter( gzip ) )
+        {
+            writeData( methodContainer , profiles , json );
+        }
+        gzip.finish();
+        base64.close();
+
+        writer.write( template , marker + DATA_MARKER.length() , template.length() - marker - DATA_MARKER.length() );
+        writer.flush();
+    }
+
+    private void writeData(ClassMethodsContainer methodContainer, Collection<Profile> profiles,JsonWriter json) throws IOException
+    {
+        // method ID -> index into names array, only methods that actually show up get written
+        final HashIntIntMap nameIndices = HashIntIntMaps.newMutableMap( 2000 );
+        final List<Integer> methodIds = new ArrayList<>();
+
+        json.beginObject();
+        json.name( "threads" ).beginArray();
+        for ( Profile profile : profiles )
+        {
+            final MethodStats root = profile.getTopLevelMethod();
+            json.beginObject();
+            json.property( "name" , profile.getThreadName() );
+            if ( root == null )
+            {
+                json.endObject();
+                continue;
+            }
+            System.out.println("Writing HTML flame graph for "+profile.getThreadName()+" ...");
+            final double minTime = root.getTotalTimeMillis() * minFrameWidth;
+            json.property( "minTime" , micros( minTime ) );
+            json.name( "root" );
+
+            // node = [ name index , total time , self time , invocations , children... ]
+            long pruned = 0;
+            final Deque<Iterator<MethodStats>> stack = new ArrayDeque<>();
+            writeNode( root , json , nameIndices , methodIds );
+            stack.push( root.getCallees().values().iterator() );
+            while ( ! stack.isEmpty() )
+            {
+                final Iterator<MethodStats> it = stack.peek();
+                if ( ! it.hasNext() )
+                {
+                    stack.pop();
+                    json.endArray();
+                    continue;
+                }
+                final MethodStats child = it.next();
+                if ( child.getTotalTimeMillis() < minTime )
+                {
+                    pruned++;
+                    continue;
+                }
+                writeNode( child , json , nameIndices , methodIds );
+                stack.push( child.getCallees().values().iterator() );
+            }
+            json.property( "pruned" , pruned );
+            json.endObject();
+        }
+        json.endArray();
+
+        json.name( "names" ).beginArray();
+        for ( int methodId : methodIds )
+        {
+            final MethodIdentifier method = methodContainer.getRawMethodName( methodId );
+            json.beginArray();
+            json.value( method == null ? "<unknown>" : method.className.replace('/','.') );
+            json.value( method == null ? Integer.toString( methodId ) : method.methodName );
+            json.endArray();
+        }
+        json.endArray();
+        json.endObject();
+    }
+
+    private static void writeNode(MethodStats node,JsonWriter json,HashIntIntMap nameIndices,List<Integer> methodIds) throws IOException
+    {
+        int index = nameIndices.getOrDefault( node.getMethodId() , -1 );
+        if ( index == -1 )
+        {
+            index = methodIds.size();
+            nameIndices.put( node.getMethodId() , index );
+            methodIds.add( node.getMethodId() );
+        }
+        json.beginArray();
+        json.value( index );
+        json.value( micros( node.getTotalTimeMillis() ) );
+        json.value( micros( node.getTotalOwnTimeMillis() ) );
+        json.value( node.getInvocationCount() );
+    }
+
+    private static long micros(double millis) {
+        return Math.round( millis * 1000 );
+    }
+
+    private static String loadTemplate() throws IOException
+    {
+        try ( InputStream in = HtmlFlameGraphExporter.class.getResourceAsStream( TEMPLATE ) )
+        {
+            if ( in == null ) {
+                throw new IOException("Failed to find classpath resource "+TEMPLATE);
+            }
+            final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+            final byte[] tmp = new byte[ 8192 ];
+            int len;
+            while ( ( len = in.read( tmp ) ) > 0 ) {
+                buffer.write( tmp , 0 , len );
+            }
+            return new String( buffer.toByteArray() , StandardCharsets.UTF_8 );
+        }
+    }
+
+    private static String toHex(Color color) {
+        return String.format( "#%02x%02x%02x" , color.getRed() , color.getGreen() , color.getBlue() );
+    }
+
+    private static String escapeHTML(String text) {
+        return text.replace("&","&amp;").replace("<","&lt;").replace(">","&gt;").replace("\"","&quot;");
+    }
+}
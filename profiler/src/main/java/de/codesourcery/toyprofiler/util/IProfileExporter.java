@@ -0,0 +1,19 @@
+package de.codesourcery.toyprofiler.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Collection;
+
+import de.codesourcery.toyprofiler.ClassMethodsContainer;
+import de.codesourcery.toyprofiler.Profile;
+
+/**
+ * Writes profiles in a file format.
+ *
+ * @see IProfileImporter
+ * @see IProfileIOAdapter
+ */
+public interface IProfileExporter
+{
+    public void save(ClassMethodsContainer methodContainer, Collection<Profile> profiles,OutputStream out) throws IOException;
+}
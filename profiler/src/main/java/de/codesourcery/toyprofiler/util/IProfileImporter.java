@@ -0,0 +1,26 @@
+package de.codesourcery.toyprofiler.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+
+import de.codesourcery.toyprofiler.ProfileContainer;
+
+/**
+ * Reads profiles from a file format.
+ *
+ * @see IProfileExporter
+ * @see IProfileIOAdapter
+ */
+public interface IProfileImporter
+{
+    public ProfileContainer load(InputStream in) throws IOException;
+
+    public default ProfileContainer load(File file) throws IOException
+    {
+        try ( InputStream in = ProfileFiles.openInput( file ) )
+        {
+            return load( in );
+        }
+    }
+}
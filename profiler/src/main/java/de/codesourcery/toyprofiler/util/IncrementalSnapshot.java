@@ -0,0 +1,388 @@
+package de.codesourcery.toyprofiler.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import de.codesourcery.toyprofiler.ClassMethodsContainer;
+import de.codesourcery.toyprofiler.IClassMethodsContainer;
+import de.codesourcery.toyprofiler.Profile;
+import de.codesourcery.toyprofiler.Profile.MethodIdentifier;
+import de.codesourcery.toyprofiler.Profile.MethodStats;
+import de.codesourcery.toyprofiler.ProfileContainer;
+import de.codesourcery.toyprofiler.ProfileSnapshot;
+import net.openhft.koloboke.collect.map.hash.HashLongIntMap;
+import net.openhft.koloboke.collect.map.hash.HashLongIntMaps;
+import net.openhft.koloboke.collect.map.hash.HashLongLongMap;
+import net.openhft.koloboke.collect.map.hash.HashLongLongMaps;
+import net.openhft.koloboke.collect.map.hash.HashLongObjMap;
+import net.openhft.koloboke.collect.map.hash.HashLongObjMaps;
+import net.openhft.koloboke.collect.set.hash.HashIntSet;
+import net.openhft.koloboke.collect.set.hash.HashIntSets;
+
+/**
+ * Gzip-compressed snapshots of the profiles a running agent records, holding only what changed since the previous snapshot.
+ *
+ * An {@link Encoder} remembers what it sent to one client, the client's {@link Decoder} applies the changes to its own copy
+ * of the call trees. Nodes are identified by their {@link MethodStats#getPathHash() path hash}.
+ * Every snapshot carries a sequence number, a client that missed a snapshot gets sent everything again.
+ */
+public final class IncrementalSnapshot
+{
+    private static final int MAGIC = 0x544f5953;
+
+    private static final byte END = 0;
+    // int thread ID, UTF name, long creation time, boolean discard existing call tree
+    private static final byte THREAD = 1;
+    // int method ID, long invocations, float total time, applies to the preceding thread
+    private static final byte ROOT = 2;
+    // long path hash of parent, int method ID, long invocations, float total time
+    private static final byte NODE = 3;
+    // int ID, UTF class, UTF method, UTF signature, int line number
+    private static final byte METHOD = 4;
+
+    private IncrementalSnapshot() {
+    }
+
+    /**
+     * Creates snapshots for a single client.
+     *
+     * Thread-safe.
+     */
+    public static final class Encoder
+    {
+        private final Map<Profile,ThreadState> threads = new IdentityHashMap<>();
+        private final HashIntSet sentMethods = HashIntSets.newMutableSet( 2000 );
+        // methods that were not registered yet when a node calling them got sent
+        private final List<Integer> unresolvedMethods = new ArrayList<>();
+        private long sequence;
+        private int nextThreadId;
+
+        private static final class ThreadState
+        {
+            public final int id;
+            public MethodStats liveRoot;
+            // path hash -> last values sent
+            public final HashLongLongMap invocations = HashLongLongMaps.newMutableMap();
+            public final HashLongIntMap times = HashLongIntMaps.newMutableMap();
+
+            public ThreadState(int id) {
+                this.id = id;
+            }
+        }
+
+        /**
+         * Creates the next snapshot.
+         *
+         * @param lastSequence sequence number of the last snapshot the client received, see {@link Decoder#getSequence()}
+         * @param profiles profiles being recorded, copied with {@link ProfileSnapshot#copy(Profile)}
+         * @param methods
+         * @return
+         * @throws IOException
+         */
+        public synchronized byte[] encode(long lastSequence,Collection<Profile> profiles,IClassMethodsContainer methods) throws IOException
+        {
+            final boolean full = sequence == 0 || lastSequence != sequence;
+            if ( full )
+            {
+                threads.clear();
+                sentMethods.clear();
+                unresolvedMethods.clear();
+                nextThreadId = 0;
+            }
+            sequence++;
+
+            // forget threads whose profiles are gone, the client keeps what it got sent
+            final Set<Profile> current = Collections.newSetFromMap( new IdentityHashMap<>() );
+            current.addAll( profiles );
+            threads.keySet().retainAll( current );
+
+            final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+            try ( DataOutputStream out = new DataOutputStream( new GZIPOutputStream( buffer , 64*1024 ) ) )
+            {
+                out.writeInt( MAGIC );
+                out.writeLong( sequence );
+                out.writeBoolean( full );
+
+                final List<Integer> newMethods = new ArrayList<>( unresolvedMethods );
+                unresolvedMethods.clear();
+                for ( Profile live : profiles )
+                {
+                    final MethodStats liveRoot = live.getTopLevelMethod();
+                    final Profile copy = ProfileSnapshot.copy( live );
+                    if ( copy != null ) {
+                        // copies of threads with pending resets have no call tree
+                        encode( live , copy.getTopLevelMethod() == null ? null : liveRoot , copy , out , newMethods );
+                    }
+                }
+
+                for ( int methodId : newMethods )
+                {
+                    final MethodIdentifier method = methods.getRawMethodName( methodId );
+                    if ( method == null ) {
+                        unresolvedMethods.add( methodId );
+                        continue;
+                    }
+                    out.writeByte( METHOD );
+                    out.writeInt( method.id );
+                    out.writeUTF( method.className );
+                    out.writeUTF( method.methodName );
+                    out.writeUTF( method.methodSignature );
+                    out.writeInt( method.lineNumber );
+                }
+                out.writeByte( END );
+            }
+            return buffer.toByteArray();
+        }
+
+        private void encode(Profile live,MethodStats liveRoot,Profile copy,DataOutputStream out,List<Integer> newMethods) throws IOException
+        {
+            ThreadState state = threads.get( live );
+            final boolean isNew = state == null;
+            if ( isNew )
+            {
+                state = new ThreadState( nextThreadId++ );
+                threads.put( live , state );
+            }
+
+            // the recording thread started a new call tree
+            final boolean replace = state.liveRoot != liveRoot;
+            if ( replace )
+            {
+                state.liveRoot = liveRoot;
+                state.invocations.clear();
+                state.times.clear();
+            }
+
+            boolean headerWritten = false;
+            if ( isNew || replace )
+            {
+                writeThread( copy , state , replace , out );
+                headerWritten = true;
+            }
+
+            final MethodStats root = copy.getTopLevelMethod();
+            if ( root == null ) {
+                return;
+            }
+            final Deque<MethodStats> stack = new ArrayDeque<>();
+            stack.push( root );
+            while ( ! stack.isEmpty() )
+            {
+                final MethodStats node = stack.pop();
+                final long hash = node.getPathHash();
+                final int time = Float.floatToIntBits( node.getTotalTimeMillisRaw() );
+                final boolean changed = ! state.invocations.containsKey( hash ) ||
+                        state.invocations.get( hash ) != node.getInvocationCount() ||
+                        state.times.get( hash ) != time;
+                if ( changed )
+                {
+                    if ( ! headerWritten )
+                    {
+                        writeThread( copy , state , false , out );
+                        headerWritten = true;
+                    }
+                    state.invocations.put( hash , node.getInvocationCount() );
+                    state.times.put( hash , time );
+                    if ( node.getParent() == null ) {
+                        out.writeByte( ROOT );
+                    } else {
+                        out.writeByte( NODE );
+                        out.writeLong( node.getParent().getPathHash() );
+                    }
+                    out.writeInt( node.getMethodId() );
+                    out.writeLong( node.getInvocationCount() );
+                    out.writeFloat( node.getTotalTimeMillisRaw() );
+                    if ( sentMethods.add( node.getMethodId() ) ) {
+                        newMethods.add( node.getMethodId() );
+                    }
+                }
+                // a new callee's parent gets written before it
+                for ( MethodStats child : node.getCallees().values() ) {
+                    stack.push( child );
+                }
+            }
+        }
+
+        private static void writeThread(Profile profile,ThreadState state,boolean replace,DataOutputStream out) throws IOException
+        {
+            out.writeByte( THREAD );
+            out.writeInt( state.id );
+            out.writeUTF( profile.getThreadName() );
+            out.writeLong( profile.getCreationTimeMillis() );
+            out.writeBoolean( replace );
+        }
+    }
+
+    /**
+     * Applies snapshots to a copy of the call trees.
+     *
+     * Not thread-safe.
+     */
+    public static final class Decoder
+    {
+        private final Map<Integer,ThreadState> threads = new LinkedHashMap<>();
+        private final Map<Integer,MethodIdentifier> methods = new HashMap<>();
+        private long sequence;
+
+        private static final class ThreadState
+        {
+            public final Profile profile;
+            // path hash -> node
+            public final HashLongObjMap<MethodStats> nodes = HashLongObjMaps.newMutableMap();
+
+            public ThreadState(String threadName) {
+                this.profile = new Profile( threadName );
+            }
+        }
+
+        /**
+         * Returns the sequence number of the last snapshot that got applied.
+         *
+         * @return
+         */
+        public long getSequence() {
+            return sequence;
+        }
+
+        /**
+         * Applies a snapshot.
+         *
+         * @param snapshot
+         * @return <code>true</code> if any call tree changed
+         * @throws IOException if the snapshot is malformed or does not follow the last one
+         */
+        public boolean apply(byte[] snapshot) throws IOException
+        {
+            try ( DataInputStream in = new DataInputStream( new GZIPInputStream( new ByteArrayInputStream( snapshot ) ) ) )
+            {
+                if ( in.readInt() != MAGIC ) {
+                    throw new IOException("Not a profile snapshot");
+                }
+                final long newSequence = in.readLong();
+                final boolean full = in.readBoolean();
+                if ( ! full && newSequence != sequence+1 ) {
+                    throw new IOException("Expected snapshot "+(sequence+1)+" but got "+newSequence);
+                }
+                if ( full )
+                {
+                    threads.clear();
+                    methods.clear();
+                }
+
+                boolean changed = full;
+                ThreadState thread = null;
+                byte type;
+                while ( ( type = in.readByte() ) != END )
+                {
+                    switch( type )
+                    {
+                        case THREAD:
+                            final int id = in.readInt();
+                            final String name = in.readUTF();
+                            final long creationTime = in.readLong();
+                            final boolean replace = in.readBoolean();
+                            thread = threads.get( id );
+                            if ( thread == null || replace )
+                            {
+                                thread = new ThreadState( name );
+                                threads.put( id , thread );
+                            }
+                            thread.profile.setCreationTime( creationTime );
+                            changed = true;
+                            break;
+                        case ROOT:
+                        case NODE:
+                            if ( thread == null ) {
+                                throw new IOException("Call tree node without thread");
+                            }
+                            applyNode( thread , type == ROOT ? null : in.readLong() , in );
+                            break;
+                        case METHOD:
+                            final int methodId = in.readInt();
+                            final String className = in.readUTF();
+                            final String methodName = in.readUTF();
+                            final String signature = in.readUTF();
+                            final int line = in.readInt();
+                            methods.put( methodId , line < 1 ? new MethodIdentifier( methodId , className , methodName , signature ) :
+                                new MethodIdentifier( methodId , className , methodName , signature , line ) );
+                            break;
+                        default:
+                            throw new IOException("Unknown record type "+type);
+                    }
+                }
+                sequence = newSequence;
+                return changed;
+            }
+        }
+
+        private static void applyNode(ThreadState thread,Long parentHash,DataInputStream in) throws IOException
+        {
+            final int methodId = in.readInt();
+            final long invocations = in.readLong();
+            final float time = in.readFloat();
+
+            MethodStats node;
+            if ( parentHash == null )
+            {
+                node = thread.profile.getTopLevelMethod();
+                if ( node == null || node.getMethodId() != methodId )
+                {
+                    node = new MethodStats( methodId );
+                    thread.profile.setTopLevelMethod( node );
+                    thread.nodes.clear();
+                }
+            }
+            else
+            {
+                final MethodStats parent = thread.nodes.get( parentHash.longValue() );
+                if ( parent == null ) {
+                    throw new IOException("Unknown parent node in thread "+thread.profile.getThreadName());
+                }
+                node = parent.getCallees().get( methodId );
+                if ( node == null )
+                {
+                    node = new MethodStats( methodId , parent );
+                    parent.getCallees().put( methodId , node );
+                }
+            }
+            thread.nodes.put( node.getPathHash() , node );
+            node.setInvocationCount( invocations );
+            node.setTotalTimeMillis( time );
+        }
+
+        /**
+         * Copies the current call trees.
+         *
+         * The result is independent of snapshots applied later on.
+         *
+         * @return threads that have a call tree
+         */
+        public ProfileContainer toContainer()
+        {
+            final List<Profile> profiles = new ArrayList<>();
+            for ( ThreadState thread : threads.values() )
+            {
+                if ( thread.profile.getTopLevelMethod() != null ) {
+                    profiles.add( ProfileSnapshot.copy( thread.profile ) );
+                }
+            }
+            return new ProfileContainer( profiles , new ClassMethodsContainer( methods ) );
+        }
+    }
+}
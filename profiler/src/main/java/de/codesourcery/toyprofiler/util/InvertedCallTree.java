@@ -0,0 +1,166 @@
+package de.codesourcery.toyprofiler.util;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import de.codesourcery.toyprofiler.ClassMethodsContainer;
+import de.codesourcery.toyprofiler.IClassMethodsContainer;
+import de.codesourcery.toyprofiler.Profile;
+import de.codesourcery.toyprofiler.Profile.ICalleeSource;
+import de.codesourcery.toyprofiler.Profile.MethodIdentifier;
+import de.codesourcery.toyprofiler.Profile.MethodStats;
+import de.codesourcery.toyprofiler.ProfileContainer;
+import net.openhft.koloboke.collect.map.hash.HashIntObjMap;
+import net.openhft.koloboke.collect.map.hash.HashIntObjMaps;
+
+/**
+ * Builds inverted (bottom-up) call trees, showing which call paths lead to the time spent in each method.
+ *
+ * Below a synthetic root there is one node per method holding the method's self time summed up
+ * across all call paths. The children of a node are the callers, again weighted by the
+ * self time of the method at the top, so a node's own time is the self time spent on call paths
+ * that start with it.
+ *
+ * Each call tree is traversed exactly once to collect the nodes with self time per method.
+ * Caller nodes are materialized on demand (see {@link ICalleeSource}) by grouping the collected
+ * nodes by their ancestors, so only the expanded part of the inverted tree is ever built.
+ * Profiles are inverted in parallel.
+ */
+public final class InvertedCallTree
+{
+    private InvertedCallTree() {
+    }
+
+    /**
+     * Inverts the call trees of some profiles.
+     *
+     * @param methods methods of the profiles
+     * @param profiles
+     * @return one inverted profile (with the same thread name) per profile
+     */
+    public static ProfileContainer build(IClassMethodsContainer methods,List<Profile> profiles)
+    {
+        final long start = System.currentTimeMillis();
+
+        final ClassMethodsContainer container = new ClassMethodsContainer();
+        methods.visitMethods( container::registerMethod );
+        final String rootName = CallTreeBuilder.SYNTHETIC_ROOT_NAME;
+        final MethodIdentifier root = new MethodIdentifier( container.allocateId( rootName , rootName , "()V" , -1 ) , rootName , rootName , "()V" );
+        container.registerMethod( root );
+
+        final List<Profile> result = profiles.parallelStream().map( profile -> invert( profile , root.id ) ).collect( Collectors.toList() );
+        System.out.println("Inverted "+profiles.size()+" call trees in "+(System.currentTimeMillis()-start)+" ms");
+        return new ProfileContainer( result , container );
+    }
+
+    private static Profile invert(Profile profile,int rootMethodId)
+    {
+        final Profile result = new Profile( profile.getThreadName() );
+        if ( profile.getCreationTime().isPresent() ) {
+            result.setCreationTime( profile.getCreationTimeMillis() );
+        }
+        final MethodStats root = new MethodStats( rootMethodId );
+        result.setTopLevelMethod( root );
+
+        final MethodStats topLevel = profile.getTopLevelMethod();
+        if ( topLevel == null ) {
+            return result;
+        }
+
+        // single pass collecting all nodes with self time, grouped by method
+        final HashIntObjMap<Occurrences> byMethod = HashIntObjMaps.newMutableMap();
+        final Deque<MethodStats> stack = new ArrayDeque<>();
+        final Deque<Integer> depths = new ArrayDeque<>();
+        stack.push( topLevel );
+        depths.push( 0 );
+        while ( ! stack.isEmpty() )
+        {
+            final MethodStats node = stack.pop();
+            final int depth = depths.pop();
+            final float selfTime = node.getTotalOwnTimeMillis();
+            if ( selfTime > 0 ) {
+                byMethod.computeIfAbsent( node.getMethodId() , key -> new Occurrences() ).add( node , selfTime , node.getInvocationCount() , depth );
+            }
+            for ( MethodStats child : node.getCallees().values() )
+            {
+                stack.push( child );
+                depths.push( depth + 1 );
+            }
+        }
+
+        final float[] totalTime = { 0 };
+        byMethod.forEach( (int methodId,Occurrences occurrences) ->
+        {
+            final MethodStats node = occurrences.createNode( methodId , root );
+            root.getCallees().put( methodId , node );
+            totalTime[0] += node.getTotalTimeMillisRaw();
+        });
+        root.setTotalTimeMillis( totalTime[0] );
+        root.setInvocationCount( topLevel.getInvocationCount() );
+        return result;
+    }
+
+    /**
+     * Nodes of the original call tree that contribute to a node of the inverted tree.
+     *
+     * For each contributing node we keep its self time and the ancestor that corresponds to
+     * the inverted node's position (the node itself at the top level, its caller one level below and so on).
+     */
+    private static final class Occurrences implements ICalleeSource
+    {
+        private MethodStats[] ancestors = new MethodStats[4];
+        private float[] selfTimes = new float[4];
+        private long[] invocations = new long[4];
+        // number of ancestors above ancestors[i]
+        private int[] depths = new int[4];
+        private int size;
+
+        private float totalTime;
+        private long totalInvocations;
+        private int maxDepth;
+
+        public void add(MethodStats ancestor,float selfTime,long invocationCount,int depth)
+        {
+            if ( size == ancestors.length )
+            {
+                ancestors = Arrays.copyOf( ancestors , size*2 );
+                selfTimes = Arrays.copyOf( selfTimes , size*2 );
+                invocations = Arrays.copyOf( invocations , size*2 );
+                depths = Arrays.copyOf( depths , size*2 );
+            }
+            ancestors[size] = ancestor;
+            selfTimes[size] = selfTime;
+            invocations[size] = invocationCount;
+            depths[size] = depth;
+            size++;
+            totalTime += selfTime;
+            totalInvocations += invocationCount;
+            maxDepth = Math.max( maxDepth , depth );
+        }
+
+        public MethodStats createNode(int methodId,MethodStats parent)
+        {
+            final MethodStats node = new MethodStats( methodId , parent , maxDepth > 0 ? this : null , 0 , 4 , maxDepth );
+            node.setTotalTimeMillis( totalTime );
+            node.setInvocationCount( totalInvocations );
+            return node;
+        }
+
+        @Override
+        public void loadCallees(MethodStats node, int nodeIndex, HashIntObjMap<MethodStats> callees)
+        {
+            final HashIntObjMap<Occurrences> byCaller = HashIntObjMaps.newMutableMap();
+            for ( int i = 0 ; i < size ; i++ )
+            {
+                final MethodStats caller = ancestors[i].getParent();
+                if ( caller != null ) {
+                    byCaller.computeIfAbsent( caller.getMethodId() , key -> new Occurrences() ).add( caller , selfTimes[i] , invocations[i] , depths[i] - 1 );
+                }
+            }
+            byCaller.forEach( (int methodId,Occurrences occurrences) -> callees.put( methodId , occurrences.createNode( methodId , node ) ) );
+        }
+    }
+}
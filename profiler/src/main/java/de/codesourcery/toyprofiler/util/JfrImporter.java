@@ -0,0 +1,544 @@
+package de.codesourcery.toyprofiler.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+import de.codesourcery.toyprofiler.ProfileContainer;
+
+/**
+ * Imports execution samples from JDK Flight Recorder files.
+ *
+ * Each <code>jdk.ExecutionSample</code> event adds one sampling period worth of self time to the
+ * sampled stack of its thread. Events are streamed, recordings that consist of several chunks are
+ * split and the chunks are read in parallel.
+ *
+ * Requires a runtime that ships the <code>jdk.jfr</code> API (8u262+ or 11+), loading fails with an
+ * {@link IOException} on older runtimes. The API is only accessed reflectively through {@link JfrApi}, so the
+ * project still compiles against Java 8 class libraries that lack it.
+ */
+public class JfrImporter implements IProfileImporter
+{
+    public static final String FILE_SUFFIX = ".jfr";
+
+    private static final String EXECUTION_SAMPLE = "jdk.ExecutionSample";
+    private static final String ACTIVE_SETTING = "jdk.ActiveSetting";
+
+    private static final byte[] CHUNK_MAGIC = { 'F' , 'L' , 'R' , 0 };
+    private static final int CHUNK_HEADER_SIZE = 16;
+
+    private static final float DEFAULT_PERIOD_MILLIS = 20;
+
+    private final boolean includeLineNumbers;
+
+    public JfrImporter()
+    {
+        this( true );
+    }
+
+    /**
+     * Create instance.
+     *
+     * @param includeLineNumbers whether frames executing different lines of the same method become distinct nodes
+     */
+    public JfrImporter(boolean includeLineNumbers)
+    {
+        this.includeLineNumbers = includeLineNumbers;
+    }
+
+    /**
+     * Checks whether a file starts with a JFR chunk header.
+     *
+     * @param file
+     * @return
+     * @throws IOException
+     */
+    public static boolean isRecording(File file) throws IOException
+    {
+        try ( FileChannel channel = FileChannel.open( file.toPath() , StandardOpenOption.READ ) )
+        {
+            final ByteBuffer header = ByteBuffer.allocate( CHUNK_MAGIC.length );
+            channel.read( header , 0 );
+            return Arrays.equals( header.array() , CHUNK_MAGIC );
+        }
+    }
+
+    /**
+     * Checks whether the runtime ships the <code>jdk.jfr</code> API.
+     *
+     * @return
+     */
+    public static boolean isSupported()
+    {
+        try {
+            Class.forName( "jdk.jfr.consumer.RecordingFile" , false , JfrImporter.class.getClassLoader() );
+            return true;
+        }
+        catch(ClassNotFoundException | LinkageError e) {
+            return false;
+        }
+    }
+
+    @Override
+    public ProfileContainer load(InputStream in) throws IOException
+    {
+        // RecordingFile can only read from files
+        final File tmpFile = File.createTempFile( "toyprofiler" , FILE_SUFFIX );
+        try
+        {
+            Files.copy( in , tmpFile.toPath() , StandardCopyOption.REPLACE_EXISTING );
+            return load( tmpFile );
+        }
+        finally {
+            tmpFile.delete();
+        }
+    }
+
+    @Override
+    public ProfileContainer load(File file) throws IOException
+    {
+        if ( ! isSupported() ) {
+            throw new IOException("Importing JFR recordings requires a Java runtime that ships the jdk.jfr API (8u262+ or 11+), running on "+System.getProperty("java.version"));
+        }
+        final long start = System.currentTimeMillis();
+        final List<long[]> chunks = findChunks( file );
+        final CallTreeBuilder result;
+        if ( chunks.size() < 2 )
+        {
+            result = new ChunkReader( includeLineNumbers ).read( file.toPath() );
+        }
+        else
+        {
+            System.out.println("Reading "+chunks.size()+" chunks of "+file.getAbsolutePath()+" in parallel");
+            final List<ForkJoinTask<CallTreeBuilder>> tasks = new ArrayList<>();
+            for ( long[] chunk : chunks )
+            {
+                tasks.add( ForkJoinPool.commonPool().submit( () ->
+                {
+                    final Path tmpFile = Files.createTempFile( "toyprofiler-chunk" , FILE_SUFFIX );
+                    try
+                    {
+                        try ( FileChannel src = FileChannel.open( file.toPath() , StandardOpenOption.READ ) ;
+                              FileChannel dst = FileChannel.open( tmpFile , StandardOpenOption.WRITE ) )
+                        {
+                            long position = chunk[0];
+                            final long end = chunk[0] + chunk[1];
+                            while ( position < end ) {
+                                position += src.transferTo( position , end - position , dst );
+                            }
+                        }
+                        return new ChunkReader( includeLineNumbers ).read( tmpFile );
+                    }
+                    finally {
+                        Files.deleteIfExists( tmpFile );
+                    }
+                }));
+            }
+            result = new CallTreeBuilder();
+            for ( ForkJoinTask<CallTreeBuilder> task : tasks )
+            {
+                try {
+                    result.merge( task.join() );
+                }
+                catch(RuntimeException e)
+                {
+                    if ( e.getCause() instanceof IOException ) {
+                        throw (IOException) e.getCause();
+                    }
+                    throw e;
+                }
+            }
+        }
+        final ProfileContainer container = result.build();
+        System.out.println("Imported "+container.size()+" threads from "+file.getAbsolutePath()+" in "+(System.currentTimeMillis()-start)+" ms");
+        return container;
+    }
+
+    /**
+     * Returns the offset and size of all chunks in a recording, an empty list if the file could not be split.
+     */
+    private static List<long[]> findChunks(File file) throws IOException
+    {
+        final List<long[]> result = new ArrayList<>();
+        try ( FileChannel channel = FileChannel.open( file.toPath() , StandardOpenOption.READ ) )
+        {
+            final long fileSize = channel.size();
+            final ByteBuffer header = ByteBuffer.allocate( CHUNK_HEADER_SIZE );
+            long offset = 0;
+            while ( offset < fileSize )
+            {
+                header.clear();
+                if ( channel.read( header , offset ) != CHUNK_HEADER_SIZE ) {
+                    return new ArrayList<>();
+                }
+                header.flip();
+                final byte[] magic = new byte[ CHUNK_MAGIC.length ];
+                header.get( magic );
+                header.getShort(); // major version
+                header.getShort(); // minor version
+                final long size = header.getLong();
+                if ( ! Arrays.equals( magic , CHUNK_MAGIC ) || size <= CHUNK_HEADER_SIZE || offset + size > fileSize ) {
+                    return new ArrayList<>();
+                }
+                result.add( new long[] { offset , size } );
+                offset += size;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * The parts of the <code>jdk.jfr</code> API this importer uses, looked up once.
+     */
+    private static final class JfrApi
+    {
+        private static JfrApi instance;
+
+        private final Constructor<?> newRecordingFile;
+        private final Method readEventTypes;
+        private final Method hasMoreEvents;
+        private final Method readEvent;
+        private final Method closeRecordingFile;
+
+        private final Method eventTypeName;
+        private final Method eventTypeId;
+
+        private final Method getEventType;
+        private final Method getStackTrace;
+        private final Method getStartTime;
+        private final Method getLong;
+        private final Method getString;
+        private final Method getThread;
+
+        private final Method getFrames;
+        private final Method isJavaFrame;
+        private final Method getMethod;
+        private final Method getLineNumber;
+
+        private final Method methodType;
+        private final Method methodName;
+        private final Method methodDescriptor;
+        private final Method classId;
+        private final Method className;
+
+        private final Method threadJavaName;
+        private final Method threadOSName;
+        private final Method threadOSId;
+
+        private JfrApi() throws ReflectiveOperationException
+        {
+            final Class<?> recordingFile = type( "jdk.jfr.consumer.RecordingFile" );
+            newRecordingFile = recordingFile.getConstructor( Path.class );
+            readEventTypes = recordingFile.getMethod( "readEventTypes" );
+            hasMoreEvents = recordingFile.getMethod( "hasMoreEvents" );
+            readEvent = recordingFile.getMethod( "readEvent" );
+            closeRecordingFile = recordingFile.getMethod( "close" );
+
+            final Class<?> eventType = type( "jdk.jfr.EventType" );
+            eventTypeName = eventType.getMethod( "getName" );
+            eventTypeId = eventType.getMethod( "getId" );
+
+            final Class<?> event = type( "jdk.jfr.consumer.RecordedEvent" );
+            getEventType = event.getMethod( "getEventType" );
+            getStackTrace = event.getMethod( "getStackTrace" );
+            getStartTime = event.getMethod( "getStartTime" );
+            getLong = event.getMethod( "getLong" , String.class );
+            getString = event.getMethod( "getString" , String.class );
+            getThread = event.getMethod( "getThread" , String.class );
+
+            getFrames = type( "jdk.jfr.consumer.RecordedStackTrace" ).getMethod( "getFrames" );
+
+            final Class<?> frame = type( "jdk.jfr.consumer.RecordedFrame" );
+            isJavaFrame = frame.getMethod( "isJavaFrame" );
+            getMethod = frame.getMethod( "getMethod" );
+            getLineNumber = frame.getMethod( "getLineNumber" );
+
+            final Class<?> method = type( "jdk.jfr.consumer.RecordedMethod" );
+            methodType = method.getMethod( "getType" );
+            methodName = method.getMethod( "getName" );
+            methodDescriptor = method.getMethod( "getDescriptor" );
+
+            final Class<?> clazz = type( "jdk.jfr.consumer.RecordedClass" );
+            classId = clazz.getMethod( "getId" );
+            className = clazz.getMethod( "getName" );
+
+            final Class<?> thread = type( "jdk.jfr.consumer.RecordedThread" );
+            threadJavaName = thread.getMethod( "getJavaName" );
+            threadOSName = thread.getMethod( "getOSName" );
+            threadOSId = thread.getMethod( "getOSThreadId" );
+        }
+
+        private static Class<?> type(String name) throws ClassNotFoundException {
+            return Class.forName( name , true , JfrImporter.class.getClassLoader() );
+        }
+
+        public static synchronized JfrApi get() throws IOException
+        {
+            if ( instance == null )
+            {
+                try {
+                    instance = new JfrApi();
+                }
+                catch(ReflectiveOperationException | LinkageError e) {
+                    throw new IOException("Failed to access the jdk.jfr API: "+e.getMessage(),e);
+                }
+            }
+            return instance;
+        }
+
+        private static Object invoke(Method method,Object target,Object... arguments) throws IOException
+        {
+            try {
+                return method.invoke( target , arguments );
+            }
+            catch (InvocationTargetException e)
+            {
+                if ( e.getCause() instanceof IOException ) {
+                    throw (IOException) e.getCause();
+                }
+                if ( e.getCause() instanceof RuntimeException ) {
+                    throw (RuntimeException) e.getCause();
+                }
+                throw new IOException( e.getCause() );
+            }
+            catch (IllegalAccessException e) {
+                throw new IOException( e );
+            }
+        }
+
+        public Object open(Path path) throws IOException
+        {
+            try {
+                return newRecordingFile.newInstance( path );
+            }
+            catch (InvocationTargetException e) {
+                throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException( e.getCause() );
+            }
+            catch (ReflectiveOperationException e) {
+                throw new IOException( e );
+            }
+        }
+
+        public void close(Object recording) throws IOException {
+            invoke( closeRecordingFile , recording );
+        }
+
+        public long eventTypeId(Object recording,String eventName) throws IOException
+        {
+            for ( Object type : (List<?>) invoke( readEventTypes , recording ) )
+            {
+                if ( eventName.equals( invoke( eventTypeName , type ) ) ) {
+                    return (Long) invoke( eventTypeId , type );
+                }
+            }
+            return -1;
+        }
+
+        public boolean hasMoreEvents(Object recording) throws IOException {
+            return (Boolean) invoke( hasMoreEvents , recording );
+        }
+
+        public Object readEvent(Object recording) throws IOException {
+            return invoke( readEvent , recording );
+        }
+
+        public String eventName(Object event) throws IOException {
+            return (String) invoke( eventTypeName , invoke( getEventType , event ) );
+        }
+
+        public long getLong(Object event,String field) throws IOException {
+            return (Long) invoke( getLong , event , field );
+        }
+
+        public String getString(Object event,String field) throws IOException {
+            return (String) invoke( getString , event , field );
+        }
+
+        public Object getThread(Object event,String field) throws IOException {
+            return invoke( getThread , event , field );
+        }
+
+        public long startTimeMillis(Object event) throws IOException {
+            return ( (Instant) invoke( getStartTime , event ) ).toEpochMilli();
+        }
+
+        /**
+         * @return frames ordered top-most first, <code>null</code> if the event has no stack trace
+         */
+        public List<?> getFrames(Object event) throws IOException
+        {
+            final Object trace = invoke( getStackTrace , event );
+            return trace == null ? null : (List<?>) invoke( getFrames , trace );
+        }
+
+        public boolean isJavaFrame(Object frame) throws IOException {
+            return (Boolean) invoke( isJavaFrame , frame );
+        }
+
+        public Object getMethod(Object frame) throws IOException {
+            return invoke( getMethod , frame );
+        }
+
+        public int getLineNumber(Object frame) throws IOException {
+            return (Integer) invoke( getLineNumber , frame );
+        }
+
+        public long classId(Object method) throws IOException {
+            return (Long) invoke( classId , invoke( methodType , method ) );
+        }
+
+        public String className(Object method) throws IOException {
+            return (String) invoke( className , invoke( methodType , method ) );
+        }
+
+        public String methodName(Object method) throws IOException {
+            return (String) invoke( methodName , method );
+        }
+
+        public String methodDescriptor(Object method) throws IOException {
+            return (String) invoke( methodDescriptor , method );
+        }
+
+        public String threadName(Object thread) throws IOException
+        {
+            if ( thread == null ) {
+                return "<unknown thread>";
+            }
+            final String javaName = (String) invoke( threadJavaName , thread );
+            if ( javaName != null ) {
+                return javaName;
+            }
+            final String osName = (String) invoke( threadOSName , thread );
+            return osName != null ? osName : "thread-"+invoke( threadOSId , thread );
+        }
+    }
+
+    /**
+     * Reads a single chunk through the <code>jdk.jfr</code> API.
+     */
+    private static final class ChunkReader
+    {
+        private final boolean includeLineNumbers;
+
+        public ChunkReader(boolean includeLineNumbers) {
+            this.includeLineNumbers = includeLineNumbers;
+        }
+
+        public CallTreeBuilder read(Path path) throws IOException
+        {
+            final JfrApi api = JfrApi.get();
+            final CallTreeBuilder builder = new CallTreeBuilder();
+            final Map<String,Integer> methodIds = new HashMap<>();
+            int[] stack = new int[128];
+
+            float periodMillis = DEFAULT_PERIOD_MILLIS;
+            final Object recording = api.open( path );
+            try
+            {
+                final long sampleEventId = api.eventTypeId( recording , EXECUTION_SAMPLE );
+
+                while ( api.hasMoreEvents( recording ) )
+                {
+                    final Object event = api.readEvent( recording );
+                    final String eventName = api.eventName( event );
+                    if ( ACTIVE_SETTING.equals( eventName ) )
+                    {
+                        if ( api.getLong( event , "id" ) == sampleEventId && "period".equals( api.getString( event , "name" ) ) ) {
+                            periodMillis = parsePeriod( api.getString( event , "value" ) , periodMillis );
+                        }
+                        continue;
+                    }
+                    if ( ! EXECUTION_SAMPLE.equals( eventName ) ) {
+                        continue;
+                    }
+                    final List<?> frames = api.getFrames( event );
+                    if ( frames == null ) {
+                        continue;
+                    }
+                    final String threadName = api.threadName( api.getThread( event , "sampledThread" ) );
+                    int depth = 0;
+                    // frames are ordered top-most first
+                    for ( int i = frames.size()-1 ; i >= 0 ; i-- )
+                    {
+                        final Object frame = frames.get(i);
+                        if ( ! api.isJavaFrame( frame ) || api.getMethod( frame ) == null ) {
+                            continue;
+                        }
+                        if ( depth == stack.length ) {
+                            stack = Arrays.copyOf( stack , depth*2 );
+                        }
+                        stack[depth++] = methodId( api , frame , builder , methodIds );
+                    }
+                    builder.addTimestamp( threadName , api.startTimeMillis( event ) );
+                    // count samples, times are derived once the sampling period is known
+                    CallTreeBuilder.addWeight( builder.addStack( threadName , stack , depth ) , 1 , 1 );
+                }
+            }
+            finally {
+                api.close( recording );
+            }
+            builder.scaleWeights( periodMillis );
+            return builder;
+        }
+
+        private int methodId(JfrApi api,Object frame,CallTreeBuilder builder,Map<String,Integer> methodIds) throws IOException
+        {
+            final Object method = api.getMethod( frame );
+            final int line = includeLineNumbers ? api.getLineNumber( frame ) : -1;
+            final String name = api.methodName( method );
+            final String descriptor = api.methodDescriptor( method );
+            final String key = api.classId( method )+" "+name+descriptor+" "+line;
+            Integer id = methodIds.get( key );
+            if ( id == null )
+            {
+                id = builder.methodId( api.className( method ).replace('.','/') , name , descriptor , line > 0 ? line : -1 );
+                methodIds.put( key , id );
+            }
+            return id;
+        }
+    }
+
+    protected static float parsePeriod(String value,float defaultValue)
+    {
+        if ( value == null ) {
+            return defaultValue;
+        }
+        final String[] parts = value.trim().split("\\s+");
+        if ( parts.length != 2 ) {
+            return defaultValue;
+        }
+        try
+        {
+            final float number = Float.parseFloat( parts[0] );
+            switch( parts[1] )
+            {
+                case "ns": return number / 1000_000f;
+                case "us": return number / 1000f;
+                case "ms": return number;
+                case "s":  return number * 1000f;
+                default:
+                    return defaultValue;
+            }
+        }
+        catch(NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+}
@@ -0,0 +1,189 @@
+package de.codesourcery.toyprofiler.util;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Minimal streaming JSON writer.
+ *
+ * Only the nesting state is kept in memory, everything else is written to the underlying stream right away.
+ * Closing this writer flushes but does not close the underlying stream.
+ */
+public final class JsonWriter implements Closeable
+{
+    private final Writer writer;
+
+    // one entry per open object/array: true if no element has been written yet
+    private boolean[] firstElement = new boolean[16];
+    private int depth;
+    private boolean afterName;
+
+    public JsonWriter(OutputStream out)
+    {
+        this.writer = new BufferedWriter( new OutputStreamWriter( out , StandardCharsets.UTF_8 ) , 64*1024 );
+    }
+
+    public JsonWriter beginObject() throws IOException
+    {
+        beforeValue();
+        writer.write('{');
+        push();
+        return this;
+    }
+
+    public JsonWriter endObject() throws IOException
+    {
+        pop();
+        writer.write('}');
+        return this;
+    }
+
+    public JsonWriter beginArray() throws IOException
+    {
+        beforeValue();
+        writer.write('[');
+        push();
+        return this;
+    }
+
+    public JsonWriter endArray() throws IOException
+    {
+        pop();
+        writer.write(']');
+        return this;
+    }
+
+    public JsonWriter name(String name) throws IOException
+    {
+        if ( afterName ) {
+            throw new IllegalStateException("Expected a value after name");
+        }
+        beforeValue();
+        writeString( name );
+        writer.write(':');
+        afterName = true;
+        return this;
+    }
+
+    public JsonWriter value(String value) throws IOException
+    {
+        beforeValue();
+        if ( value == null ) {
+            writer.write("null");
+        } else {
+            writeString( value );
+        }
+        return this;
+    }
+
+    public JsonWriter value(long value) throws IOException
+    {
+        beforeValue();
+        writer.write( Long.toString( value ) );
+        return this;
+    }
+
+    public JsonWriter value(double value) throws IOException
+    {
+        if ( Double.isNaN( value ) || Double.isInfinite( value ) ) {
+            throw new IllegalArgumentException("JSON does not support "+value);
+        }
+        beforeValue();
+        if ( value == (long) value ) {
+            writer.write( Long.toString( (long) value ) );
+        } else {
+            writer.write( Double.toString( value ) );
+        }
+        return this;
+    }
+
+    public JsonWriter value(boolean value) throws IOException
+    {
+        beforeValue();
+        writer.write( value ? "true" : "false" );
+        return this;
+    }
+
+    public JsonWriter property(String name,String value) throws IOException {
+        return name( name ).value( value );
+    }
+
+    public JsonWriter property(String name,long value) throws IOException {
+        return name( name ).value( value );
+    }
+
+    public JsonWriter property(String name,double value) throws IOException {
+        return name( name ).value( value );
+    }
+
+    private void push()
+    {
+        if ( depth == firstElement.length ) {
+            firstElement = Arrays.copyOf( firstElement , depth*2 );
+        }
+        firstElement[ depth++ ] = true;
+    }
+
+    private void pop()
+    {
+        if ( depth == 0 || afterName ) {
+            throw new IllegalStateException("Unbalanced JSON structure");
+        }
+        depth--;
+    }
+
+    private void beforeValue() throws IOException
+    {
+        if ( afterName )
+        {
+            afterName = false;
+            return;
+        }
+        if ( depth > 0 )
+        {
+            if ( ! firstElement[ depth-1 ] ) {
+                writer.write(',');
+            }
+            firstElement[ depth-1 ] = false;
+        }
+    }
+
+    private void writeString(String s) throws IOException
+    {
+        writer.write('"');
+        for ( int i = 0 , len = s.length() ; i < len ; i++ )
+        {
+            final char c = s.charAt(i);
+            switch( c )
+            {
+                case '"':  writer.write("\\\""); break;
+                case '\\': writer.write("\\\\"); break;
+                case '\n': writer.write("\\n"); break;
+                case '\r': writer.write("\\r"); break;
+                case '\t': writer.write("\\t"); break;
+                default:
+                    if ( c < 0x20 ) {
+                        writer.write( String.format( "\\u%04x" , (int) c ) );
+                    } else {
+                        writer.write( c );
+                    }
+            }
+        }
+        writer.write('"');
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        if ( depth != 0 ) {
+            throw new IllegalStateException("Unbalanced JSON structure, "+depth+" elements still open");
+        }
+        writer.flush();
+    }
+}
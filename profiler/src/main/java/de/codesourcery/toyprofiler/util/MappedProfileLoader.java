@@ -0,0 +1,54 @@
+package de.codesourcery.toyprofiler.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Collection;
+
+import de.codesourcery.toyprofiler.ClassMethodsContainer;
+import de.codesourcery.toyprofiler.Profile;
+import de.codesourcery.toyprofiler.ProfileContainer;
+
+/**
+ * Loads XML profile files through a memory-mapped {@link ProfileIndex}, materializing
+ * call trees lazily.
+ *
+ * Files in folded stacks format and JFR recordings are detected and loaded through {@link FoldedStacksAdapter}
+ * and {@link JfrImporter} respectively, files in any other format are rejected.
+ * Loading from a stream and saving fall back to {@link XMLSerializer}.
+ */
+public class MappedProfileLoader implements IProfileIOAdapter
+{
+    private final XMLSerializer serializer = new XMLSerializer();
+
+    @Override
+    public ProfileContainer load(File file) throws IOException
+    {
+        if ( file.getName().toLowerCase().endsWith( JfrImporter.FILE_SUFFIX ) || JfrImporter.isRecording( file ) ) {
+            return new JfrImporter().load( file );
+        }
+        if ( FoldedStacksAdapter.hasFoldedSuffix( file.getName() ) ) {
+            return new FoldedStacksAdapter().load( file );
+        }
+        if ( ProfileFiles.isProfileXML( file ) ) {
+            return ProfileIndex.open( file ).createContainer();
+        }
+        if ( FoldedStacksAdapter.isFoldedStacks( file ) ) {
+            return new FoldedStacksAdapter().load( file );
+        }
+        throw new IOException("Unsupported file format: "+file.getAbsolutePath()+" is neither a profile, folded stacks nor a JFR recording");
+    }
+
+    @Override
+    public ProfileContainer load(InputStream in) throws IOException
+    {
+        return serializer.load( in );
+    }
+
+    @Override
+    public void save(ClassMethodsContainer methodContainer, Collection<Profile> profiles, OutputStream out) throws IOException
+    {
+        serializer.save( methodContainer , profiles , out );
+    }
+}
@@ -0,0 +1,175 @@
+package de.codesourcery.toyprofiler.util;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+
+import de.codesourcery.toyprofiler.Profile;
+import de.codesourcery.toyprofiler.Profile.MethodStats;
+import net.openhft.koloboke.collect.map.hash.HashIntIntMap;
+import net.openhft.koloboke.collect.map.hash.HashIntIntMaps;
+
+/**
+ * Per-method statistics aggregated across all call paths of one or more profiles.
+ *
+ * Profiles are added one at a time, each taking a single traversal of its call tree. Inclusive time is
+ * recursion-safe: a node only contributes if the method is not already on the path from the root, so
+ * time spent in recursive calls is not counted twice. Self time and invocations are summed up across all nodes.
+ *
+ * Values are kept in columns indexed by a per-method row number, so adding a node costs one primitive
+ * map lookup. Not thread-safe.
+ */
+public final class MethodAggregates
+{
+    // method ID -> row
+    private final HashIntIntMap rows = HashIntIntMaps.newMutableMap( 2000 );
+
+    private int size;
+    private int[] methodIds = new int[256];
+    private long[] invocations = new long[256];
+    private long[] outermostInvocations = new long[256];
+    private double[] selfTimes = new double[256];
+    private double[] totalTimes = new double[256];
+    private int[] frames = new int[256];
+    private int[] threads = new int[256];
+    // last profile a method was seen in, to count threads
+    private int[] lastProfile = new int[256];
+
+    private int profileCount;
+
+    public static final class Row
+    {
+        public final int methodId;
+        public final long invocationCount;
+        public final double selfTimeMillis;
+        /** Inclusive time, not counting recursive invocations twice */
+        public final double totalTimeMillis;
+        /** Number of call tree nodes (frames) */
+        public final int frameCount;
+        /** Number of profiles (threads) the method was invoked in */
+        public final int threadCount;
+        private final long outermostInvocations;
+
+        private Row(int methodId, long invocationCount, long outermostInvocations, double selfTimeMillis, double totalTimeMillis, int frameCount, int threadCount)
+        {
+            this.methodId = methodId;
+            this.invocationCount = invocationCount;
+            this.outermostInvocations = outermostInvocations;
+            this.selfTimeMillis = selfTimeMillis;
+            this.totalTimeMillis = totalTimeMillis;
+            this.frameCount = frameCount;
+            this.threadCount = threadCount;
+        }
+
+        /**
+         * Returns the average inclusive time per (non-recursive) invocation.
+         *
+         * @return
+         */
+        public double getAverageTimeMillis() {
+            return outermostInvocations == 0 ? 0 : totalTimeMillis / outermostInvocations;
+        }
+    }
+
+    /**
+     * Adds all nodes of a profile.
+     *
+     * @param profile
+     */
+    public void add(Profile profile)
+    {
+        final int profileId = ++profileCount;
+        final MethodStats root = profile.getTopLevelMethod();
+        if ( root == null ) {
+            return;
+        }
+
+        // method ID -> number of invocations on the current path
+        final HashIntIntMap onPath = HashIntIntMaps.newMutableMap();
+        final Deque<Iterator<MethodStats>> stack = new ArrayDeque<>();
+        final Deque<MethodStats> path = new ArrayDeque<>();
+        MethodStats next = root;
+        while ( next != null || ! stack.isEmpty() )
+        {
+            if ( next != null )
+            {
+                final MethodStats node = next;
+                next = null;
+                final int row = row( node.getMethodId() );
+                invocations[row] += node.getInvocationCount();
+                selfTimes[row] += node.getTotalOwnTimeMillis();
+                frames[row]++;
+                if ( lastProfile[row] != profileId )
+                {
+                    lastProfile[row] = profileId;
+                    threads[row]++;
+                }
+                if ( onPath.addValue( node.getMethodId() , 1 ) == 1 )
+                {
+                    totalTimes[row] += node.getTotalTimeMillis();
+                    outermostInvocations[row] += node.getInvocationCount();
+                }
+                path.push( node );
+                stack.push( node.getCallees().values().iterator() );
+                continue;
+            }
+            final Iterator<MethodStats> it = stack.peek();
+            if ( it.hasNext() ) {
+                next = it.next();
+            }
+            else
+            {
+                stack.pop();
+                final int methodId = path.pop().getMethodId();
+                if ( onPath.addValue( methodId , -1 ) == 0 ) {
+                    onPath.remove( methodId );
+                }
+            }
+        }
+    }
+
+    private int row(int methodId)
+    {
+        int row = rows.getOrDefault( methodId , -1 );
+        if ( row == -1 )
+        {
+            if ( size == methodIds.length )
+            {
+                final int newSize = size*2;
+                methodIds = Arrays.copyOf( methodIds , newSize );
+                invocations = Arrays.copyOf( invocations , newSize );
+                outermostInvocations = Arrays.copyOf( outermostInvocations , newSize );
+                selfTimes = Arrays.copyOf( selfTimes , newSize );
+                totalTimes = Arrays.copyOf( totalTimes , newSize );
+                frames = Arrays.copyOf( frames , newSize );
+                threads = Arrays.copyOf( threads , newSize );
+                lastProfile = Arrays.copyOf( lastProfile , newSize );
+            }
+            row = size++;
+            methodIds[row] = methodId;
+            rows.put( methodId , row );
+        }
+        return row;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns a snapshot of the aggregated values.
+     *
+     * @return one row per method, in no particular order
+     */
+    public List<Row> getRows()
+    {
+        final List<Row> result = new ArrayList<>( size );
+        for ( int i = 0 ; i < size ; i++ ) {
+            result.add( new Row( methodIds[i] , invocations[i] , outermostInvocations[i] , selfTimes[i] , totalTimes[i] , frames[i] , threads[i] ) );
+        }
+        return result;
+    }
+}
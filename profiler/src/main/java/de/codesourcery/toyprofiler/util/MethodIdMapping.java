@@ -0,0 +1,81 @@
+package de.codesourcery.toyprofiler.util;
+
+import de.codesourcery.toyprofiler.ClassMethodsContainer;
+import de.codesourcery.toyprofiler.IClassMethodsContainer;
+import de.codesourcery.toyprofiler.Profile.MethodIdentifier;
+
+/**
+ * Maps the method IDs of one method container to the IDs the same methods have in another one.
+ *
+ * Method IDs are content-addressed, so a method almost always has the same ID in every container. After a hash
+ * collision the colliding methods get their IDs in the order they were registered though, and two containers that
+ * each know only one of the colliding methods use the same ID for different methods. Code comparing call trees
+ * from different containers therefore maps IDs through this class instead of trusting that equal IDs
+ * denote the same method.
+ *
+ * Only the method with the ID in question is compared, so mapping is cheap as long as IDs agree. Thread-safe.
+ */
+public final class MethodIdMapping
+{
+    /**
+     * Mapping between IDs of the same container.
+     */
+    public static final MethodIdMapping IDENTITY = new MethodIdMapping( null , null , null );
+
+    private final IClassMethodsContainer source;
+    private final IClassMethodsContainer target;
+    // methods unknown to the target get registered with it if set
+    private final ClassMethodsContainer registerWith;
+
+    private MethodIdMapping(IClassMethodsContainer source,IClassMethodsContainer target,ClassMethodsContainer registerWith)
+    {
+        this.source = source;
+        this.target = target;
+        this.registerWith = registerWith;
+    }
+
+    /**
+     * Maps to the IDs of another container, methods unknown to it are mapped to -1.
+     *
+     * @param source
+     * @param target
+     * @return
+     */
+    public static MethodIdMapping between(IClassMethodsContainer source,IClassMethodsContainer target) {
+        return source == target ? IDENTITY : new MethodIdMapping( source , target , null );
+    }
+
+    /**
+     * Maps to the IDs of another container, registering methods it does not know yet.
+     *
+     * @param source
+     * @param target
+     * @return
+     */
+    public static MethodIdMapping into(IClassMethodsContainer source,ClassMethodsContainer target) {
+        return source == target ? IDENTITY : new MethodIdMapping( source , target , target );
+    }
+
+    /**
+     * Maps a method ID.
+     *
+     * @param sourceId
+     * @return ID of the same method in the target container or -1 if the target does not know it.
+     * IDs the source container cannot resolve are returned as-is.
+     */
+    public int map(int sourceId)
+    {
+        if ( source == target ) {
+            return sourceId;
+        }
+        final MethodIdentifier method = source.getRawMethodName( sourceId );
+        if ( method == null || method.matches( target.getRawMethodName( sourceId ) ) ) {
+            return sourceId;
+        }
+        final int id = target.findMethodId( method );
+        if ( id == -1 && registerWith != null ) {
+            return registerWith.registerWithContentId( method ).id;
+        }
+        return id;
+    }
+}
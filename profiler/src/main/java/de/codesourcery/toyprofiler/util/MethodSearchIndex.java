@@ -0,0 +1,362 @@
+package de.codesourcery.toyprofiler.util;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CancellationException;
+
+import de.codesourcery.toyprofiler.IClassMethodsContainer;
+import de.codesourcery.toyprofiler.Profile;
+import de.codesourcery.toyprofiler.Profile.MethodIdentifier;
+import de.codesourcery.toyprofiler.Profile.MethodStats;
+import net.openhft.koloboke.collect.map.hash.HashIntIntMap;
+import net.openhft.koloboke.collect.map.hash.HashIntIntMaps;
+import net.openhft.koloboke.collect.map.hash.HashIntObjMap;
+import net.openhft.koloboke.collect.map.hash.HashIntObjMaps;
+import net.openhft.koloboke.collect.set.hash.HashIntSet;
+import net.openhft.koloboke.collect.set.hash.HashIntSets;
+
+/**
+ * Inverted index from name tokens to methods, plus flattened call trees to evaluate matches.
+ *
+ * Each method is indexed by the segments of its package, its class name (including nested class names)
+ * and its method name. Class and method names are also indexed by every camel-case suffix, so 'map'
+ * finds <code>ConcurrentHashMap</code> and 'absent' finds <code>computeIfAbsent</code>.
+ *
+ * A query is split into terms at whitespace and at '.', '/' and '$'. A method matches if every term is a prefix
+ * of at least one of its tokens (case-insensitive). Tokens are kept sorted, so each term takes two binary searches
+ * to resolve. Matches of a query that extends the previous one can be found by {@link #refine(int[], String)}
+ * without touching the index again.
+ *
+ * Building the index traverses (and thus materializes) all call trees, searching never does.
+ */
+public final class MethodSearchIndex
+{
+    private final String[] tokens;
+    private final int[][] methodsByToken;
+
+    private final HashIntObjMap<String[]> tokensByMethod;
+
+    private final Map<Profile,FlatTree> nodesByProfile;
+
+    public static final class Result
+    {
+        private final HashIntSet methodIds;
+        /** Number of matched frames (call tree nodes) */
+        public final int frameCount;
+        /** Time spent in matched call paths relative to the total time of the profile (0...1) */
+        public final double share;
+
+        private Result(HashIntSet methodIds,int frameCount,double share)
+        {
+            this.methodIds = methodIds;
+            this.frameCount = frameCount;
+            this.share = share;
+        }
+
+        public int getMethodCount() {
+            return methodIds.size();
+        }
+
+        public boolean matches(int methodId) {
+            return methodIds.contains( methodId );
+        }
+    }
+
+    /**
+     * Call tree of a profile in pre-order, so the nodes of any subtree are a contiguous range.
+     */
+    private static final class FlatTree
+    {
+        public int size;
+        public int[] methodIds = new int[1024];
+        public float[] totalTimes = new float[1024];
+        // index of the first node after a node's subtree
+        public int[] subtreeEnd = new int[1024];
+        public float rootTime;
+        public final HashIntIntMap nodeCounts = HashIntIntMaps.newMutableMap();
+
+        public int add(MethodStats node)
+        {
+            if ( size == methodIds.length )
+            {
+                methodIds = Arrays.copyOf( methodIds , size*2 );
+                totalTimes = Arrays.copyOf( totalTimes , size*2 );
+                subtreeEnd = Arrays.copyOf( subtreeEnd , size*2 );
+            }
+            methodIds[size] = node.getMethodId();
+            totalTimes[size] = node.getTotalTimeMillis();
+            nodeCounts.addValue( node.getMethodId() , 1 );
+            return size++;
+        }
+    }
+
+    private MethodSearchIndex(String[] tokens,int[][] methodsByToken,HashIntObjMap<String[]> tokensByMethod,Map<Profile,FlatTree> nodesByProfile)
+    {
+        this.tokens = tokens;
+        this.methodsByToken = methodsByToken;
+        this.tokensByMethod = tokensByMethod;
+        this.nodesByProfile = nodesByProfile;
+    }
+
+    public static MethodSearchIndex build(IClassMethodsContainer methods,List<Profile> profiles)
+    {
+        final long start = System.currentTimeMillis();
+
+        final TreeMap<String,HashIntSet> inverted = new TreeMap<>();
+        final HashIntObjMap<String[]> tokensByMethod = HashIntObjMaps.newMutableMap( 2000 );
+        methods.visitMethods( method ->
+        {
+            final String[] methodTokens = tokenize( method );
+            tokensByMethod.put( method.id , methodTokens );
+            for ( String token : methodTokens ) {
+                inverted.computeIfAbsent( token , key -> HashIntSets.newMutableSet() ).add( method.id );
+            }
+        });
+
+        final String[] tokens = inverted.keySet().toArray( new String[ inverted.size() ] );
+        final int[][] methodsByToken = new int[ tokens.length ][];
+        for ( int i = 0 ; i < tokens.length ; i++ ) {
+            methodsByToken[i] = inverted.get( tokens[i] ).toIntArray();
+        }
+
+        final Map<Profile,FlatTree> nodesByProfile = new IdentityHashMap<>();
+        int nodeCount = 0;
+        for ( Profile profile : profiles )
+        {
+            final FlatTree tree = flatten( profile );
+            nodeCount += tree.size;
+            nodesByProfile.put( profile , tree );
+        }
+        System.out.println("Indexed "+tokensByMethod.size()+" methods ("+tokens.length+" tokens) and "+nodeCount+" nodes in "+(System.currentTimeMillis()-start)+" ms");
+        return new MethodSearchIndex( tokens , methodsByToken , tokensByMethod , nodesByProfile );
+    }
+
+    private static FlatTree flatten(Profile profile)
+    {
+        final FlatTree tree = new FlatTree();
+        final MethodStats root = profile.getTopLevelMethod();
+        if ( root != null )
+        {
+            tree.rootTime = root.getTotalTimeMillis();
+            final Deque<Iterator<MethodStats>> stack = new ArrayDeque<>();
+            final Deque<Integer> indices = new ArrayDeque<>();
+            indices.push( tree.add( root ) );
+            stack.push( root.getCallees().values().iterator() );
+            while ( ! stack.isEmpty() )
+            {
+                final Iterator<MethodStats> it = stack.peek();
+                if ( it.hasNext() )
+                {
+                    final MethodStats child = it.next();
+                    indices.push( tree.add( child ) );
+                    stack.push( child.getCallees().values().iterator() );
+                }
+                else
+                {
+                    stack.pop();
+                    tree.subtreeEnd[ indices.pop() ] = tree.size;
+                }
+            }
+        }
+        return tree;
+    }
+
+    private static String[] tokenize(MethodIdentifier method)
+    {
+        final Set<String> result = new LinkedHashSet<>();
+        final String[] packageAndClass = method.className.split("/");
+        for ( int i = 0 ; i < packageAndClass.length - 1 ; i++ ) {
+            addToken( packageAndClass[i] , result );
+        }
+        final String className = packageAndClass[ packageAndClass.length - 1 ];
+        addCamelCaseTokens( className , result );
+        for ( String nested : className.split("\\$") ) {
+            addCamelCaseTokens( nested , result );
+        }
+        addCamelCaseTokens( method.methodName , result );
+        return result.toArray( new String[ result.size() ] );
+    }
+
+    private static void addCamelCaseTokens(String name,Set<String> tokens)
+    {
+        addToken( name , tokens );
+        for ( int i = 1 ; i < name.length() ; i++ )
+        {
+            if ( Character.isUpperCase( name.charAt( i ) ) && ! Character.isUpperCase( name.charAt( i - 1 ) ) ) {
+                addToken( name.substring( i ) , tokens );
+            }
+        }
+    }
+
+    private static void addToken(String token,Set<String> tokens)
+    {
+        if ( token.length() > 0 ) {
+            tokens.add( token.toLowerCase( Locale.ROOT ) );
+        }
+    }
+
+    private static String[] terms(String query)
+    {
+        final List<String> result = new ArrayList<>();
+        for ( String term : query.toLowerCase( Locale.ROOT ).split("[\\s./$]+") )
+        {
+            if ( term.length() > 0 ) {
+                result.add( term );
+            }
+        }
+        return result.toArray( new String[ result.size() ] );
+    }
+
+    /**
+     * Returns the IDs of all methods matching a query.
+     *
+     * @param query
+     * @return method IDs, empty if the query has no terms
+     */
+    public int[] findMethods(String query)
+    {
+        final String[] terms = terms( query );
+        if ( terms.length == 0 ) {
+            return new int[0];
+        }
+        HashIntSet result = null;
+        for ( String term : terms )
+        {
+            final HashIntSet matches = HashIntSets.newMutableSet();
+            final int from = lowerBound( term );
+            for ( int i = from ; i < tokens.length && tokens[i].startsWith( term ) ; i++ )
+            {
+                for ( int methodId : methodsByToken[i] )
+                {
+                    if ( result == null || result.contains( methodId ) ) {
+                        matches.add( methodId );
+                    }
+                }
+            }
+            result = matches;
+            if ( result.isEmpty() ) {
+                break;
+            }
+        }
+        return result.toIntArray();
+    }
+
+    /**
+     * Returns the methods matching a query, given the matches of a query the new query starts with.
+     *
+     * Every term of a query starting with the previous query is either an extension of
+     * the previous query's last term or an additional term, so only the previous matches
+     * can match again.
+     *
+     * @param previousMatches methods matching the previous query
+     * @param query
+     * @return method IDs
+     */
+    public int[] refine(int[] previousMatches,String query)
+    {
+        final String[] terms = terms( query );
+        if ( terms.length == 0 ) {
+            return new int[0];
+        }
+        int count = 0;
+        final int[] result = new int[ previousMatches.length ];
+        for ( int methodId : previousMatches )
+        {
+            if ( matches( tokensByMethod.get( methodId ) , terms ) ) {
+                result[ count++ ] = methodId;
+            }
+        }
+        return Arrays.copyOf( result , count );
+    }
+
+    private static boolean matches(String[] methodTokens,String[] terms)
+    {
+        if ( methodTokens == null ) {
+            return false;
+        }
+outer:
+        for ( String term : terms )
+        {
+            for ( String token : methodTokens ) {
+                if ( token.startsWith( term ) ) {
+                    continue outer;
+                }
+            }
+            return false;
+        }
+        return true;
+    }
+
+    private int lowerBound(String term)
+    {
+        int low = 0;
+        int high = tokens.length;
+        while ( low < high )
+        {
+            final int mid = (low + high) >>> 1;
+            if ( tokens[mid].compareTo( term ) < 0 ) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Determines the frames of the given methods in one of the indexed profiles.
+     *
+     * The share of time only counts frames that have no matched ancestor, so recursive
+     * calls are not counted twice. This takes a single scan over the flattened call tree
+     * that skips the subtrees of matched frames.
+     *
+     * @param methodIds
+     * @param profile
+     * @return
+     * @throws CancellationException if the current thread got interrupted
+     */
+    public Result getMatches(int[] methodIds,Profile profile) throws CancellationException
+    {
+        final FlatTree tree;
+        synchronized( nodesByProfile ) {
+            // profiles not known at build time (merged threads) are flattened on first search
+            tree = nodesByProfile.computeIfAbsent( profile , MethodSearchIndex::flatten );
+        }
+        final HashIntSet matchedMethods = HashIntSets.newImmutableSet( methodIds );
+        int frameCount = 0;
+        for ( int methodId : methodIds ) {
+            frameCount += tree.nodeCounts.getOrDefault( methodId , 0 );
+        }
+
+        double matchedTime = 0;
+        if ( frameCount > 0 )
+        {
+            final int[] ids = tree.methodIds;
+            for ( int i = 0 , checks = 0 , len = tree.size ; i < len ; )
+            {
+                if ( ( ++checks & 0xffff ) == 0 && Thread.currentThread().isInterrupted() ) {
+                    throw new CancellationException();
+                }
+                if ( matchedMethods.contains( ids[i] ) )
+                {
+                    matchedTime += tree.totalTimes[i];
+                    i = tree.subtreeEnd[i];
+                } else {
+                    i++;
+                }
+            }
+        }
+        final double share = tree.rootTime <= 0 ? 0 : Math.min( 1 , matchedTime / tree.rootTime );
+        return new Result( matchedMethods , frameCount , share );
+    }
+}
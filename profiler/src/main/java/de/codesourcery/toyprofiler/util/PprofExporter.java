@@ -0,0 +1,265 @@
+package de.codesourcery.toyprofiler.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import de.codesourcery.toyprofiler.ClassMethodsContainer;
+import de.codesourcery.toyprofiler.Profile;
+import de.codesourcery.toyprofiler.Profile.MethodIdentifier;
+import de.codesourcery.toyprofiler.Profile.MethodStats;
+import net.openhft.koloboke.collect.map.hash.HashIntIntMap;
+import net.openhft.koloboke.collect.map.hash.HashIntIntMaps;
+
+/**
+ * Exports profiles as pprof protocol buffers (see github.com/google/pprof, profile.proto).
+ *
+ * The output is not compressed, pprof expects files to be gzip-compressed which {@link ProfileFiles#openOutput(java.io.File)}
+ * does for files ending with {@link #FILE_SUFFIX}.
+ *
+ * Every call tree node becomes one sample whose location stack is the node's path from the root.
+ * Each method is mapped to exactly one function and one location, so the location table
+ * stays as small as the method table no matter how large the trees are. Samples carry the
+ * thread name as a label and three values:
+ * <ol>
+ * <li>calls/count - invocation count</li>
+ * <li>self/nanoseconds - exclusive time (default sample type)</li>
+ * <li>total/nanoseconds - inclusive time of the call path (must not be summed up across samples)</li>
+ * </ol>
+ *
+ * Samples are streamed while walking the trees; locations, functions and the string table follow at the end.
+ */
+public class PprofExporter implements IProfileExporter
+{
+    public static final String FILE_SUFFIX = ".pb.gz";
+
+    // Profile
+    private static final int PROFILE_SAMPLE_TYPE = 1;
+    private static final int PROFILE_SAMPLE = 2;
+    private static final int PROFILE_LOCATION = 4;
+    private static final int PROFILE_FUNCTION = 5;
+    private static final int PROFILE_STRING_TABLE = 6;
+    private static final int PROFILE_TIME_NANOS = 9;
+    private static final int PROFILE_DURATION_NANOS = 10;
+    private static final int PROFILE_DEFAULT_SAMPLE_TYPE = 14;
+
+    // ValueType
+    private static final int VALUE_TYPE_TYPE = 1;
+    private static final int VALUE_TYPE_UNIT = 2;
+
+    // Sample
+    private static final int SAMPLE_LOCATION_ID = 1;
+    private static final int SAMPLE_VALUE = 2;
+    private static final int SAMPLE_LABEL = 3;
+
+    // Label
+    private static final int LABEL_KEY = 1;
+    private static final int LABEL_STR = 2;
+
+    // Location
+    private static final int LOCATION_ID = 1;
+    private static final int LOCATION_LINE = 4;
+
+    // Line
+    private static final int LINE_FUNCTION_ID = 1;
+    private static final int LINE_LINE = 2;
+
+    // Function
+    private static final int FUNCTION_ID = 1;
+    private static final int FUNCTION_NAME = 2;
+    private static final int FUNCTION_SYSTEM_NAME = 3;
+    private static final int FUNCTION_FILENAME = 4;
+    private static final int FUNCTION_START_LINE = 5;
+
+    private static final class StringTable
+    {
+        private final Map<String,Integer> indices = new HashMap<>();
+        private final List<String> strings = new ArrayList<>();
+
+        public StringTable() {
+            index( "" ); // index 0 must be the empty string
+        }
+
+        public int index(String s)
+        {
+            Integer result = indices.get( s );
+            if ( result == null )
+            {
+                result = strings.size();
+                strings.add( s );
+                indices.put( s , result );
+            }
+            return result;
+        }
+    }
+
+    @Override
+    public void save(ClassMethodsContainer methodContainer, Collection<Profile> profiles, OutputStream out) throws IOException
+    {
+        final StringTable strings = new StringTable();
+        final ProtobufEncoder encoder = new ProtobufEncoder( 64*1024 );
+        final ProtobufEncoder message = new ProtobufEncoder();
+        final ProtobufEncoder nested = new ProtobufEncoder();
+
+        // sample types
+        final String[][] sampleTypes = { { "calls" , "count" } , { "self" , "nanoseconds" } , { "total" , "nanoseconds" } };
+        for ( String[] type : sampleTypes )
+        {
+            message.reset();
+            message.int64( VALUE_TYPE_TYPE , strings.index( type[0] ) ).int64( VALUE_TYPE_UNIT , strings.index( type[1] ) );
+            encoder.message( PROFILE_SAMPLE_TYPE , message );
+        }
+        encoder.int64( PROFILE_DEFAULT_SAMPLE_TYPE , strings.index( "self" ) );
+
+        long earliestCreationTime = Long.MAX_VALUE;
+        long longestDuration = 0;
+
+        // method ID -> location/function ID
+        final HashIntIntMap locationIds = HashIntIntMaps.newMutableMap( 2000 );
+        final int threadLabel = strings.index( "thread" );
+        final long[] values = new long[3];
+        long[] locationStack = new long[64];
+        long[] reversed = new long[64];
+        final Deque<Iterator<MethodStats>> stack = new ArrayDeque<>();
+        for ( Profile profile : profiles )
+        {
+            final MethodStats root = profile.getTopLevelMethod();
+            if ( root == null ) {
+                continue;
+            }
+            System.out.println("Writing pprof samples for "+profile.getThreadName()+" ...");
+            earliestCreationTime = Math.min( earliestCreationTime , profile.getCreationTimeMillis() );
+            longestDuration = Math.max( longestDuration , toNanos( root.getTotalTimeMillis() ) );
+
+            final ProtobufEncoder label = new ProtobufEncoder( 16 );
+            label.int64( LABEL_KEY , threadLabel ).int64( LABEL_STR , strings.index( profile.getThreadName() ) );
+
+            int depth = 0;
+            locationStack[depth++] = locationId( root , locationIds );
+            writeSample( root , locationStack , reversed , depth , values , label , encoder , message );
+            stack.push( root.getCallees().values().iterator() );
+            while ( ! stack.isEmpty() )
+            {
+                final Iterator<MethodStats> it = stack.peek();
+                if ( it.hasNext() )
+                {
+                    final MethodStats child = it.next();
+                    if ( depth == locationStack.length )
+                    {
+                        locationStack = Arrays.copyOf( locationStack , depth*2 );
+                        reversed = new long[ locationStack.length ];
+                    }
+                    locationStack[depth++] = locationId( child , locationIds );
+                    writeSample( child , locationStack , reversed , depth , values , label , encoder , message );
+                    stack.push( child.getCallees().values().iterator() );
+                }
+                else
+                {
+                    stack.pop();
+                    depth--;
+                }
+                if ( encoder.size() > 32*1024 )
+                {
+                    encoder.writeTo( out );
+                    encoder.reset();
+                }
+            }
+        }
+
+        // locations and functions, one per method
+        final IOException[] error = { null };
+        locationIds.forEach( (int methodId,int id) ->
+        {
+            final MethodIdentifier method = methodContainer.getRawMethodName( methodId );
+            final String className = method == null ? "unknown" : method.className.replace('/','.');
+            final String methodName = method == null ? "unknown_"+methodId : method.methodName;
+            final int line = method != null && method.hasLineNumber() ? method.lineNumber : 0;
+
+            nested.reset();
+            nested.int64( LINE_FUNCTION_ID , id ).int64( LINE_LINE , line );
+            message.reset();
+            message.int64( LOCATION_ID , id ).message( LOCATION_LINE , nested );
+            encoder.message( PROFILE_LOCATION , message );
+
+            message.reset();
+            message.int64( FUNCTION_ID , id );
+            message.int64( FUNCTION_NAME , strings.index( className+"."+methodName ) );
+            message.int64( FUNCTION_SYSTEM_NAME , strings.index( method == null ? methodName : method.className+"."+methodName+method.methodSignature ) );
+            message.int64( FUNCTION_FILENAME , strings.index( className ) );
+            message.int64( FUNCTION_START_LINE , line );
+            encoder.message( PROFILE_FUNCTION , message );
+            if ( encoder.size() > 32*1024 )
+            {
+                try
+                {
+                    encoder.writeTo( out );
+                    encoder.reset();
+                } catch(IOException e) {
+                    error[0] = e;
+                }
+            }
+        });
+        if ( error[0] != null ) {
+            throw error[0];
+        }
+
+        if ( earliestCreationTime != Long.MAX_VALUE ) {
+            encoder.int64( PROFILE_TIME_NANOS , earliestCreationTime * 1000_000L );
+        }
+        encoder.int64( PROFILE_DURATION_NANOS , longestDuration );
+
+        for ( String s : strings.strings )
+        {
+            encoder.string( PROFILE_STRING_TABLE , s );
+            if ( encoder.size() > 32*1024 )
+            {
+                encoder.writeTo( out );
+                encoder.reset();
+            }
+        }
+        encoder.writeTo( out );
+        out.flush();
+    }
+
+    private static int locationId(MethodStats node,HashIntIntMap locationIds)
+    {
+        int id = locationIds.getOrDefault( node.getMethodId() , 0 );
+        if ( id == 0 )
+        {
+            id = locationIds.size()+1; // IDs must be non-zero
+            locationIds.put( node.getMethodId() , id );
+        }
+        return id;
+    }
+
+    private static void writeSample(MethodStats node,long[] locationStack,long[] reversed,int depth,long[] values,ProtobufEncoder label,ProtobufEncoder encoder,ProtobufEncoder message)
+    {
+        values[0] = node.getInvocationCount();
+        values[1] = toNanos( node.getTotalOwnTimeMillis() );
+        values[2] = toNanos( node.getTotalTimeMillis() );
+        if ( values[0] == 0 && values[1] == 0 ) {
+            return;
+        }
+        // leaf first
+        for ( int i = 0 ; i < depth ; i++ ) {
+            reversed[i] = locationStack[ depth - 1 - i ];
+        }
+        message.reset();
+        message.packed( SAMPLE_LOCATION_ID , reversed , depth );
+        message.packed( SAMPLE_VALUE , values , values.length );
+        message.message( SAMPLE_LABEL , label );
+        encoder.message( PROFILE_SAMPLE , message );
+    }
+
+    private static long toNanos(float millis) {
+        return Math.max( 0 , Math.round( millis * 1000_000d ) );
+    }
+}
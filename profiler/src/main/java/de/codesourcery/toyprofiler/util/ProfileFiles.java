@@ -0,0 +1,164 @@
+package de.codesourcery.toyprofiler.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Opens profile files for reading/writing through large buffers, with optional GZIP compression.
+ */
+public final class ProfileFiles
+{
+    public static final String COMPRESSED_SUFFIX = ".gz";
+
+    private static final int BUFFER_SIZE = 1024*1024;
+    private static final int GZIP_BUFFER_SIZE = 64*1024;
+
+    private ProfileFiles() {
+    }
+
+    /**
+     * Returns whether a file should be written compressed, based on its name.
+     *
+     * @param file
+     * @return
+     */
+    public static boolean isCompressedName(File file) {
+        return file.getName().toLowerCase().endsWith( COMPRESSED_SUFFIX );
+    }
+
+    /**
+     * Opens a file for writing, compressing the output if the file name ends with {@link #COMPRESSED_SUFFIX}.
+     *
+     * @param file
+     * @return
+     * @throws IOException
+     */
+    public static OutputStream openOutput(File file) throws IOException {
+        return openOutput( file , isCompressedName( file ) );
+    }
+
+    public static OutputStream openOutput(File file,boolean compress) throws IOException
+    {
+        final FileChannel channel = FileChannel.open( file.toPath() , StandardOpenOption.CREATE , StandardOpenOption.TRUNCATE_EXISTING , StandardOpenOption.WRITE );
+        final OutputStream out = new BufferedOutputStream( Channels.newOutputStream( channel ) , BUFFER_SIZE );
+        if ( compress ) {
+            return new GZIPOutputStream( out , GZIP_BUFFER_SIZE );
+        }
+        return out;
+    }
+
+    /**
+     * Opens a file for reading, transparently decompressing GZIP data.
+     *
+     * @param file
+     * @return
+     * @throws IOException
+     */
+    public static InputStream openInput(File file) throws IOException
+    {
+        final FileChannel channel = FileChannel.open( file.toPath() , StandardOpenOption.READ );
+        return decompressIfNecessary( Channels.newInputStream( channel ) );
+    }
+
+    /**
+     * Wraps a stream so that GZIP data is transparently decompressed.
+     *
+     * @param in
+     * @return
+     * @throws IOException
+     */
+    public static InputStream decompressIfNecessary(InputStream in) throws IOException
+    {
+        final BufferedInputStream buffered = new BufferedInputStream( in , BUFFER_SIZE );
+        buffered.mark( 2 );
+        final int b0 = buffered.read();
+        final int b1 = buffered.read();
+        buffered.reset();
+        if ( b0 == ( GZIPInputStream.GZIP_MAGIC & 0xff ) && b1 == ( GZIPInputStream.GZIP_MAGIC >>> 8 ) ) {
+            return new GZIPInputStream( buffered , GZIP_BUFFER_SIZE );
+        }
+        return buffered;
+    }
+
+    /**
+     * Reads the first bytes of a (possibly compressed) file.
+     *
+     * @param file
+     * @param maxBytes
+     * @return up to <code>maxBytes</code> bytes, fewer if the file is shorter
+     * @throws IOException
+     */
+    public static byte[] readHead(File file,int maxBytes) throws IOException
+    {
+        try ( InputStream in = openInput( file ) )
+        {
+            final byte[] buffer = new byte[ maxBytes ];
+            int len = 0;
+            for ( int read ; len < maxBytes && ( read = in.read( buffer , len , maxBytes - len ) ) != -1 ; ) {
+                len += read;
+            }
+            return len == maxBytes ? buffer : Arrays.copyOf( buffer , len );
+        }
+    }
+
+    /**
+     * Checks whether a (possibly compressed) file is an XML document with the root element written by {@link XMLSerializer}.
+     *
+     * @param file
+     * @return
+     * @throws IOException
+     */
+    public static boolean isProfileXML(File file) throws IOException
+    {
+        final String head = new String( readHead( file , 4096 ) , StandardCharsets.ISO_8859_1 );
+        int ptr = head.startsWith( "\u00ef\u00bb\u00bf" ) ? 3 : 0; // UTF-8 BOM
+        while ( true )
+        {
+            while ( ptr < head.length() && Character.isWhitespace( head.charAt( ptr ) ) ) {
+                ptr++;
+            }
+            // skip XML declaration, processing instructions, comments and DOCTYPE
+            final String end = head.startsWith( "<?" , ptr ) ? "?>" : head.startsWith( "<!--" , ptr ) ? "-->" : head.startsWith( "<!" , ptr ) ? ">" : null;
+            if ( end == null ) {
+                break;
+            }
+            final int idx = head.indexOf( end , ptr );
+            if ( idx == -1 ) {
+                return false;
+            }
+            ptr = idx + end.length();
+        }
+        final String rootTag = "<"+XMLSerializer.ROOT_ELEMENT;
+        if ( ! head.startsWith( rootTag , ptr ) ) {
+            return false;
+        }
+        ptr += rootTag.length();
+        return ptr < head.length() && ( Character.isWhitespace( head.charAt( ptr ) ) || head.charAt( ptr ) == '>' || head.charAt( ptr ) == '/' );
+    }
+
+    /**
+     * Checks whether a file starts with the GZIP magic bytes.
+     *
+     * @param file
+     * @return
+     * @throws IOException
+     */
+    public static boolean isCompressed(File file) throws IOException
+    {
+        try ( InputStream in = Channels.newInputStream( FileChannel.open( file.toPath() , StandardOpenOption.READ ) ) )
+        {
+            return in.read() == ( GZIPInputStream.GZIP_MAGIC & 0xff ) && in.read() == ( GZIPInputStream.GZIP_MAGIC >>> 8 );
+        }
+    }
+}
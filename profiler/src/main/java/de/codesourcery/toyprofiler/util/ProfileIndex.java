@@ -0,0 +1,915 @@
+package de.codesourcery.toyprofiler.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+import de.codesourcery.toyprofiler.ClassMethodsContainer;
+import de.codesourcery.toyprofiler.Profile;
+import de.codesourcery.toyprofiler.Profile.ICalleeSource;
+import de.codesourcery.toyprofiler.Profile.MethodIdentifier;
+import de.codesourcery.toyprofiler.Profile.MethodStats;
+import de.codesourcery.toyprofiler.ProfileContainer;
+import net.openhft.koloboke.collect.map.hash.HashIntIntMap;
+import net.openhft.koloboke.collect.map.hash.HashIntIntMaps;
+import net.openhft.koloboke.collect.map.hash.HashIntObjMap;
+import net.openhft.koloboke.collect.map.hash.HashIntObjMaps;
+
+/**
+ * Memory-mapped binary index of an XML profile file.
+ *
+ * The index is created by a single sequential scan of the XML file and stored next to it
+ * (<code>&lt;file&gt;.idx</code>, falling back to a cache directory below <code>java.io.tmpdir</code> if the directory is not writable).
+ * The thread profiles of uncompressed files get indexed concurrently.
+ * It holds one fixed-size record per <code>&lt;invocation/&gt;</code> element in document (pre-)order,
+ * so the first child of a node always immediately follows it and its next sibling
+ * is found by skipping the node's subtree size.
+ *
+ * {@link MethodStats} nodes are only materialized when their parent's callees
+ * are first accessed, so opening a profile with an up-to-date index is (almost) free and
+ * heap usage is proportional to the part of the call tree that was actually looked at.
+ * Closing the index releases the mapping once the nodes materialized from it are no longer referenced.
+ *
+ * @see MappedProfileLoader
+ */
+public final class ProfileIndex implements ICalleeSource, Closeable
+{
+    private static final long MAGIC = 0x544f5950524f4658L; // "TOYPROFX"
+    private static final int VERSION = 3; // 2: content-addressed method IDs, 3: line numbers are part of the content
+
+    private static final int HEADER_SIZE = 64;
+
+    private static final int RECORD_SIZE = 28;
+
+    private static final int OFFSET_METHOD_ID = 0;
+    private static final int OFFSET_INVOCATIONS = 4;
+    private static final int OFFSET_TOTAL_TIME = 12;
+    private static final int OFFSET_SUBTREE_SIZE = 16;
+    private static final int OFFSET_CHILD_COUNT = 20;
+    private static final int OFFSET_SUBTREE_DEPTH = 24;
+
+    private static final int SEGMENT_SHIFT = 20;
+    private static final int RECORDS_PER_SEGMENT = 1 << SEGMENT_SHIFT;
+    private static final int SEGMENT_MASK = RECORDS_PER_SEGMENT-1;
+    private static final long SEGMENT_SIZE = (long) RECORDS_PER_SEGMENT * RECORD_SIZE;
+
+    // null after the index got closed
+    private volatile MappedByteBuffer[] segments;
+    private final HashIntObjMap<MethodIdentifier> methods;
+    private final List<ProfileEntry> profiles;
+
+    private static final class ProfileEntry
+    {
+        public final String threadName;
+        public final long creationTime;
+        public int rootIndex = -1;
+
+        public ProfileEntry(String threadName, long creationTime)
+        {
+            this.threadName = threadName;
+            this.creationTime = creationTime;
+        }
+    }
+
+    private ProfileIndex(MappedByteBuffer[] segments,HashIntObjMap<MethodIdentifier> methods,List<ProfileEntry> profiles)
+    {
+        this.segments = segments;
+        this.methods = methods;
+        this.profiles = profiles;
+    }
+
+    /**
+     * Opens the index for a profile file, (re-)building it if it does not exist or is outdated.
+     *
+     * @param profileFile XML profile file
+     * @return
+     * @throws IOException
+     */
+    public static ProfileIndex open(File profileFile) throws IOException
+    {
+        final File indexFile = new File( profileFile.getAbsolutePath()+".idx" );
+        final File cachedFile = getCachedIndexFile( profileFile );
+        for ( File candidate : Arrays.asList( indexFile , cachedFile ) )
+        {
+            if ( candidate.exists() )
+            {
+                final ProfileIndex existing = tryOpen( profileFile , candidate );
+                if ( existing != null ) {
+                    return existing;
+                }
+            }
+        }
+
+        final File parent = indexFile.getAbsoluteFile().getParentFile();
+        final File toWrite = parent != null && parent.canWrite() ? indexFile : cachedFile;
+        if ( ! toWrite.getParentFile().isDirectory() && ! toWrite.getParentFile().mkdirs() ) {
+            throw new IOException("Failed to create directory "+toWrite.getParentFile().getAbsolutePath());
+        }
+        // never rewrite an existing index in-place, it might still be mapped by a previously loaded profile
+        final File tmpFile = File.createTempFile( profileFile.getName() , ".idx.tmp" , toWrite.getParentFile() );
+        System.out.println("Indexing "+profileFile.getAbsolutePath()+" into "+toWrite.getAbsolutePath()+" ...");
+        final long start = System.currentTimeMillis();
+        boolean success = false;
+        try
+        {
+            build( profileFile , tmpFile );
+            Files.move( tmpFile.toPath() , toWrite.toPath() , StandardCopyOption.REPLACE_EXISTING , StandardCopyOption.ATOMIC_MOVE );
+            success = true;
+        }
+        finally
+        {
+            if ( ! success ) {
+                tmpFile.delete();
+            }
+        }
+        System.out.println("Indexing finished after "+(System.currentTimeMillis()-start)+" ms");
+        final ProfileIndex result = tryOpen( profileFile , toWrite );
+        if ( result == null ) {
+            throw new IOException("Failed to open freshly created index "+toWrite.getAbsolutePath());
+        }
+        return result;
+    }
+
+    /**
+     * Returns where the index of a profile in a directory that is not writable goes.
+     *
+     * The name includes a hash of the profile's path, so profiles with the same name in different directories
+     * get different index files. An index that belongs to another file gets rebuilt since its size or timestamp won't match.
+     */
+    private static File getCachedIndexFile(File profileFile)
+    {
+        final File directory = new File( System.getProperty("java.io.tmpdir") , "toyprofiler-index" );
+        return new File( directory , profileFile.getName()+"-"+Integer.toHexString( profileFile.getAbsolutePath().hashCode() )+".idx" );
+    }
+
+    /**
+     * Creates a profile container whose call trees are materialized on demand.
+     *
+     * @return
+     */
+    public ProfileContainer createContainer()
+    {
+        final MappedByteBuffer[] segments = segments();
+        final List<Profile> result = new ArrayList<>();
+        for ( ProfileEntry entry : profiles )
+        {
+            final Profile profile = new Profile( entry.threadName );
+            profile.setCreationTime( entry.creationTime );
+            if ( entry.rootIndex != -1 ) {
+                profile.setTopLevelMethod( materialize( segments , entry.rootIndex , null ) );
+            }
+            result.add( profile );
+        }
+        return new ProfileContainer( result , new ClassMethodsContainer( methods ) , this );
+    }
+
+    /**
+     * Drops the memory mapping, nodes whose callees were not loaded yet can no longer load them afterwards.
+     *
+     * The mapping is not unmapped explicitly, since nodes might still be loading on other threads.
+     * It gets released when it is garbage-collected.
+     */
+    @Override
+    public void close()
+    {
+        segments = null;
+    }
+
+    @Override
+    public void loadCallees(MethodStats node, int nodeIndex, HashIntObjMap<MethodStats> callees)
+    {
+        final MappedByteBuffer[] segments = segments();
+        int child = nodeIndex+1;
+        for ( int i = getInt( segments , nodeIndex , OFFSET_CHILD_COUNT ) ; i > 0 ; i-- )
+        {
+            final MethodStats stats = materialize( segments , child , node );
+            callees.put( stats.getMethodId() , stats );
+            child += getInt( segments , child , OFFSET_SUBTREE_SIZE );
+        }
+    }
+
+    private MappedByteBuffer[] segments()
+    {
+        final MappedByteBuffer[] segments = this.segments;
+        if ( segments == null ) {
+            throw new IllegalStateException("Profile index has been closed, the profile needs to be loaded again");
+        }
+        return segments;
+    }
+
+    private MethodStats materialize(MappedByteBuffer[] segments,int index,MethodStats parent)
+    {
+        final int childCount = getInt( segments , index , OFFSET_CHILD_COUNT );
+        final MethodStats result = new MethodStats( getInt( segments , index , OFFSET_METHOD_ID ) , parent , childCount == 0 ? null : this , index , childCount , getInt( segments , index , OFFSET_SUBTREE_DEPTH ) );
+        result.setInvocationCount( segment( segments , index ).getLong( offset( index ) + OFFSET_INVOCATIONS ) );
+        result.setTotalTimeMillis( segment( segments , index ).getFloat( offset( index ) + OFFSET_TOTAL_TIME ) );
+        return result;
+    }
+
+    private static int getInt(MappedByteBuffer[] segments,int index,int fieldOffset) {
+        return segment( segments , index ).getInt( offset( index ) + fieldOffset );
+    }
+
+    private static MappedByteBuffer segment(MappedByteBuffer[] segments,int index) {
+        return segments[ index >>> SEGMENT_SHIFT ];
+    }
+
+    private static int offset(int index) {
+        return ( index & SEGMENT_MASK ) * RECORD_SIZE;
+    }
+
+    private static ProfileIndex tryOpen(File profileFile,File indexFile) throws IOException
+    {
+        try ( RandomAccessFile raf = new RandomAccessFile( indexFile , "r" ) ; FileChannel channel = raf.getChannel() )
+        {
+            if ( channel.size() < HEADER_SIZE ) {
+                return null;
+            }
+            final ByteBuffer header = ByteBuffer.allocate( HEADER_SIZE );
+            channel.read( header , 0 );
+            header.flip();
+            if ( header.getLong() != MAGIC || header.getInt() != VERSION ) {
+                return null;
+            }
+            if ( header.getLong() != profileFile.length() || header.getLong() != profileFile.lastModified() ) {
+                System.out.println("Index "+indexFile.getAbsolutePath()+" is outdated");
+                return null;
+            }
+            final int nodeCount = header.getInt();
+            final long tableOffset = header.getLong();
+
+            final HashIntObjMap<MethodIdentifier> methods = HashIntObjMaps.newMutableMap( 2000 );
+            final List<ProfileEntry> profiles = new ArrayList<>();
+            final DataInputStream in = new DataInputStream( new BufferedInputStream( Channels.newInputStream( channel.position( tableOffset ) ) ) );
+            for ( int count = in.readInt() ; count > 0 ; count-- )
+            {
+                final int id = in.readInt();
+                methods.put( id , MethodIdentifier.fromString( id , in.readUTF() ) );
+            }
+            for ( int count = in.readInt() ; count > 0 ; count-- )
+            {
+                final ProfileEntry entry = new ProfileEntry( in.readUTF() , in.readLong() );
+                entry.rootIndex = in.readInt();
+                profiles.add( entry );
+            }
+
+            final int segmentCount = ( nodeCount + RECORDS_PER_SEGMENT - 1 ) / RECORDS_PER_SEGMENT;
+            final MappedByteBuffer[] segments = new MappedByteBuffer[ segmentCount ];
+            for ( int i = 0 ; i < segmentCount ; i++ )
+            {
+                final long start = i * SEGMENT_SIZE;
+                final long size = Math.min( SEGMENT_SIZE , (long) nodeCount * RECORD_SIZE - start );
+                segments[i] = channel.map( MapMode.READ_ONLY , HEADER_SIZE + start , size );
+            }
+            return new ProfileIndex( segments , methods , profiles );
+        }
+    }
+
+    private static void build(File profileFile,File indexFile) throws IOException
+    {
+        final long sourceLength = profileFile.length();
+        final long sourceLastModified = profileFile.lastModified();
+
+        try ( RandomAccessFile raf = new RandomAccessFile( indexFile , "rw" ) ;
+              FileChannel channel = raf.getChannel() )
+        {
+            IndexBuilder builder = ProfileFiles.isCompressed( profileFile ) ? null : buildConcurrently( profileFile , channel );
+            if ( builder == null )
+            {
+                builder = new IndexBuilder( channel , HEADER_SIZE , HashIntIntMaps.newMutableMap( 2000 ) );
+                try ( InputStream in = ProfileFiles.openInput( profileFile ) ) {
+                    new Scanner( in , builder ).scan();
+                }
+                builder.force();
+                builder.unmap();
+            }
+
+            // write tables right after the last node record
+            final long tableOffset = HEADER_SIZE + (long) builder.nodeCount * RECORD_SIZE;
+            channel.position( tableOffset );
+            final DataOutputStream out = new DataOutputStream( new BufferedOutputStream( Channels.newOutputStream( channel ) ) );
+            out.writeInt( builder.methods.size() );
+            for ( MethodIdentifier id : builder.methods )
+            {
+                out.writeInt( id.id );
+                out.writeUTF( id.toString() );
+            }
+            out.writeInt( builder.profiles.size() );
+            for ( ProfileEntry entry : builder.profiles )
+            {
+                out.writeUTF( entry.threadName );
+                out.writeLong( entry.creationTime );
+                out.writeInt( entry.rootIndex );
+            }
+            out.flush();
+            try {
+                // drop the unused tail of the last segment
+                channel.truncate( channel.position() );
+            }
+            catch(IOException e) {
+                // the segments could not be unmapped and the platform refuses to truncate mapped files, the index is still valid
+            }
+
+            // write header last so a partially written index is never considered valid
+            final ByteBuffer header = ByteBuffer.allocate( HEADER_SIZE );
+            header.putLong( MAGIC );
+            header.putInt( VERSION );
+            header.putLong( sourceLength );
+            header.putLong( sourceLastModified );
+            header.putInt( builder.nodeCount );
+            header.putLong( tableOffset );
+            header.position( 0 );
+            channel.write( header , 0 );
+        }
+    }
+
+    /**
+     * Indexes the thread profiles of an uncompressed file concurrently, the same way {@link XMLSerializer#load(File)} parses them.
+     *
+     * Each <code>&lt;profile&gt;</code> element gets indexed into a temporary file of its own. Since node records
+     * only refer to other nodes relative to their own position, the parts are simply concatenated afterwards.
+     *
+     * @param profileFile
+     * @param channel index file to write the node records to
+     * @return builder holding the method names, profiles and node count or <code>null</code> if the file
+     * structure is unexpected and it needs to be indexed sequentially
+     * @throws IOException
+     */
+    private static IndexBuilder buildConcurrently(File profileFile,FileChannel channel) throws IOException
+    {
+        final List<Fragment> fragments = new ArrayList<>();
+        try ( RandomAccessFile raf = new RandomAccessFile( profileFile , "r" ) ; FileChannel source = raf.getChannel() )
+        {
+            final XMLSerializer.FragmentScanner fragmentScanner = new XMLSerializer.FragmentScanner();
+            fragmentScanner.scan( source );
+            if ( ! fragmentScanner.isValid() ) {
+                return null;
+            }
+
+            final IndexBuilder result = new IndexBuilder( null , 0 , HashIntIntMaps.newMutableMap( 2000 ) );
+            new Scanner( new XMLSerializer.ByteBufferInputStream( XMLSerializer.map( source , fragmentScanner.methodNamesStart , fragmentScanner.methodNamesEnd ) ) , result ).scan();
+
+            final List<ForkJoinTask<Fragment>> tasks = new ArrayList<>();
+            for ( int i = 0 ; i < fragmentScanner.profileStarts.size() ; i++ )
+            {
+                final ByteBuffer xml = XMLSerializer.map( source , fragmentScanner.profileStarts.get(i) , fragmentScanner.profileEnds.get(i) );
+                tasks.add( ForkJoinPool.commonPool().submit( () -> Fragment.build( xml , result.methodIds ) ) );
+            }
+            IOException failure = null;
+            for ( ForkJoinTask<Fragment> task : tasks )
+            {
+                try {
+                    fragments.add( task.join() );
+                }
+                catch(RuntimeException e)
+                {
+                    if ( failure == null ) {
+                        failure = e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException( e );
+                    }
+                }
+            }
+            if ( failure != null ) {
+                throw failure;
+            }
+
+            long position = HEADER_SIZE;
+            for ( Fragment fragment : fragments )
+            {
+                for ( ProfileEntry entry : fragment.profiles )
+                {
+                    if ( entry.rootIndex != -1 ) {
+                        entry.rootIndex += result.nodeCount;
+                    }
+                    result.profiles.add( entry );
+                }
+                try ( RandomAccessFile part = new RandomAccessFile( fragment.file , "r" ) ; FileChannel partChannel = part.getChannel() )
+                {
+                    final long size = (long) fragment.nodeCount * RECORD_SIZE;
+                    channel.position( position );
+                    for ( long copied = 0 ; copied < size ; ) {
+                        copied += partChannel.transferTo( copied , size - copied , channel );
+                    }
+                    position += size;
+                }
+                result.nodeCount += fragment.nodeCount;
+            }
+            return result;
+        }
+        finally
+        {
+            fragments.forEach( fragment -> fragment.file.delete() );
+        }
+    }
+
+    /**
+     * Node records of a single thread profile.
+     */
+    private static final class Fragment
+    {
+        public final File file;
+        public final int nodeCount;
+        public final List<ProfileEntry> profiles;
+
+        private Fragment(File file,IndexBuilder builder)
+        {
+            this.file = file;
+            this.nodeCount = builder.nodeCount;
+            this.profiles = builder.profiles;
+        }
+
+        public static Fragment build(ByteBuffer xml,HashIntIntMap methodIds) throws IOException
+        {
+            final File file = File.createTempFile( "toyprofiler" , ".idx.part" );
+            boolean success = false;
+            try ( RandomAccessFile raf = new RandomAccessFile( file , "rw" ) ; FileChannel channel = raf.getChannel() )
+            {
+                final IndexBuilder builder = new IndexBuilder( channel , 0 , methodIds );
+                new Scanner( new XMLSerializer.ByteBufferInputStream( xml ) , builder ).scan();
+                builder.unmap();
+                success = true;
+                return new Fragment( file , builder );
+            }
+            finally
+            {
+                if ( ! success ) {
+                    file.delete();
+                }
+            }
+        }
+    }
+
+    /**
+     * Unmaps a buffer right away instead of when it gets garbage-collected.
+     *
+     * Only possible through JDK internals, does nothing if they are not accessible.
+     *
+     * @param buffer buffer that is no longer accessed by any thread
+     */
+    private static void unmap(MappedByteBuffer buffer)
+    {
+        try
+        {
+            final Class<?> unsafeClass = Class.forName( "sun.misc.Unsafe" );
+            Method invokeCleaner;
+            try {
+                invokeCleaner = unsafeClass.getMethod( "invokeCleaner" , ByteBuffer.class );
+            }
+            catch(NoSuchMethodException e)
+            {
+                // JDK 8
+                final Method cleanerMethod = buffer.getClass().getMethod( "cleaner" );
+                cleanerMethod.setAccessible( true );
+                final Object cleaner = cleanerMethod.invoke( buffer );
+                if ( cleaner != null ) {
+                    cleaner.getClass().getMethod( "clean" ).invoke( cleaner );
+                }
+                return;
+            }
+            final Field theUnsafe = unsafeClass.getDeclaredField( "theUnsafe" );
+            theUnsafe.setAccessible( true );
+            invokeCleaner.invoke( theUnsafe.get( null ) , buffer );
+        }
+        catch(Exception e) {
+            // not possible on this JVM, the mapping gets released on garbage collection
+        }
+    }
+
+    /**
+     * Receives parsing events and writes node records.
+     */
+    private static final class IndexBuilder
+    {
+        private final FileChannel channel;
+        private final long baseOffset;
+        private final List<MappedByteBuffer> segments = new ArrayList<>();
+
+        public final List<MethodIdentifier> methods = new ArrayList<>();
+        private final ClassMethodsContainer methodContainer = new ClassMethodsContainer();
+        // file ID -> content-addressed ID, only read once all method names got registered
+        public final HashIntIntMap methodIds;
+        public final List<ProfileEntry> profiles = new ArrayList<>();
+        private ProfileEntry currentProfile;
+
+        public int nodeCount;
+
+        // stack of open <invocation/> elements
+        private int stackPtr;
+        private int[] openNodes = new int[256];
+        private int[] childCounts = new int[256];
+        private int[] depths = new int[256];
+
+        /**
+         * Create builder.
+         *
+         * @param channel file to write node records to
+         * @param baseOffset file offset of the first node record
+         * @param methodIds map to store the method ID mapping in or to read it from
+         */
+        public IndexBuilder(FileChannel channel,long baseOffset,HashIntIntMap methodIds)
+        {
+            this.channel = channel;
+            this.baseOffset = baseOffset;
+            this.methodIds = methodIds;
+        }
+
+        public void methodName(int id,String name)
+        {
+            final MethodIdentifier method = methodContainer.registerWithContentId( MethodIdentifier.fromString( id , name ) );
+            methodIds.put( id , method.id );
+            methods.add( method );
+        }
+
+        public void startProfile(String threadName,long creationTime)
+        {
+            currentProfile = new ProfileEntry( threadName , creationTime );
+            profiles.add( currentProfile );
+        }
+
+        public void startInvocation(int methodId,long invocations,float totalTime) throws IOException
+        {
+            final int index = nodeCount++;
+            final MappedByteBuffer segment = writableSegment( index );
+            final int offset = offset( index );
+            segment.putInt( offset + OFFSET_METHOD_ID , methodIds.getOrDefault( methodId , methodId ) );
+            segment.putLong( offset + OFFSET_INVOCATIONS , invocations );
+            segment.putFloat( offset + OFFSET_TOTAL_TIME , totalTime );
+
+            if ( stackPtr == 0 && currentProfile != null && currentProfile.rootIndex == -1 ) {
+                currentProfile.rootIndex = index;
+            }
+            if ( stackPtr == openNodes.length )
+            {
+                openNodes = Arrays.copyOf( openNodes , stackPtr*2 );
+                childCounts = Arrays.copyOf( childCounts , stackPtr*2 );
+                depths = Arrays.copyOf( depths , stackPtr*2 );
+            }
+            openNodes[stackPtr] = index;
+            childCounts[stackPtr] = 0;
+            depths[stackPtr] = 0;
+            stackPtr++;
+        }
+
+        public void endInvocation()
+        {
+            stackPtr--;
+            final int index = openNodes[stackPtr];
+            final MappedByteBuffer segment = segments.get( index >>> SEGMENT_SHIFT );
+            final int offset = offset( index );
+            segment.putInt( offset + OFFSET_SUBTREE_SIZE , nodeCount - index );
+            segment.putInt( offset + OFFSET_CHILD_COUNT , childCounts[stackPtr] );
+            segment.putInt( offset + OFFSET_SUBTREE_DEPTH , depths[stackPtr] );
+            if ( stackPtr > 0 )
+            {
+                childCounts[stackPtr-1]++;
+                depths[stackPtr-1] = Math.max( depths[stackPtr-1] , depths[stackPtr]+1 );
+            }
+        }
+
+        public void endProfile()
+        {
+            currentProfile = null;
+        }
+
+        public void force()
+        {
+            segments.forEach( MappedByteBuffer::force );
+        }
+
+        /**
+         * Unmaps all segments, they must not be accessed afterwards.
+         */
+        public void unmap()
+        {
+            segments.forEach( ProfileIndex::unmap );
+            segments.clear();
+        }
+
+        private MappedByteBuffer writableSegment(int index) throws IOException
+        {
+            final int segment = index >>> SEGMENT_SHIFT;
+            while ( segment >= segments.size() ) {
+                segments.add( channel.map( MapMode.READ_WRITE , baseOffset + segments.size() * SEGMENT_SIZE , SEGMENT_SIZE ) );
+            }
+            return segments.get( segment );
+        }
+    }
+
+    /**
+     * Minimal byte-level scanner for the XML files written by {@link XMLSerializer}.
+     */
+    private static final class Scanner
+    {
+        private static final byte[] METHOD_NAME = "methodName".getBytes( StandardCharsets.US_ASCII );
+        private static final byte[] PROFILE = "profile".getBytes( StandardCharsets.US_ASCII );
+        private static final byte[] INVOCATION = "invocation".getBytes( StandardCharsets.US_ASCII );
+
+        private final InputStream in;
+        private final IndexBuilder builder;
+
+        private final byte[] buffer = new byte[ 1024*1024 ];
+        private int bufferPtr;
+        private int bufferLen;
+
+        private final byte[] name = new byte[64];
+        private int nameLen;
+
+        // attributes of the current element
+        private int attrCount;
+        private byte[][] attrNames = new byte[8][64];
+        private int[] attrNameLen = new int[8];
+        private byte[][] attrValues = new byte[8][256];
+        private int[] attrValueLen = new int[8];
+
+        public Scanner(InputStream in,IndexBuilder builder)
+        {
+            this.in = in;
+            this.builder = builder;
+        }
+
+        private int read() throws IOException
+        {
+            if ( bufferPtr == bufferLen )
+            {
+                bufferLen = in.read( buffer );
+                bufferPtr = 0;
+                if ( bufferLen <= 0 ) {
+                    bufferLen = 0;
+                    return -1;
+                }
+            }
+            return buffer[bufferPtr++] & 0xff;
+        }
+
+        private int readNonEOF() throws IOException
+        {
+            final int c = read();
+            if ( c == -1 ) {
+                throw new IOException("Premature end of file");
+            }
+            return c;
+        }
+
+        private static boolean isWhitespace(int c) {
+            return c == ' ' || c == '\n' || c == '\r' || c == '\t';
+        }
+
+        public void scan() throws IOException
+        {
+            int c;
+            while ( ( c = read() ) != -1 )
+            {
+                if ( c != '<' ) {
+                    continue;
+                }
+                c = readNonEOF();
+                if ( c == '?' || c == '!' )
+                {
+                    while ( readNonEOF() != '>' ) { }
+                    continue;
+                }
+                final boolean endTag = c == '/';
+                if ( endTag ) {
+                    c = readNonEOF();
+                }
+                nameLen = 0;
+                while ( ! isWhitespace( c ) && c != '>' && c != '/' )
+                {
+                    if ( nameLen < name.length ) {
+                        name[nameLen++] = (byte) c;
+                    }
+                    c = readNonEOF();
+                }
+                if ( endTag )
+                {
+                    while ( c != '>' ) {
+                        c = readNonEOF();
+                    }
+                    endElement();
+                    continue;
+                }
+                final boolean isEmpty = readAttributes( c );
+                startElement();
+                if ( isEmpty ) {
+                    endElement();
+                }
+            }
+        }
+
+        /**
+         * @return <code>true</code> if this was an empty element (<code>&lt;element/&gt;</code>)
+         */
+        private boolean readAttributes(int c) throws IOException
+        {
+            attrCount = 0;
+            while ( true )
+            {
+                while ( isWhitespace( c ) ) {
+                    c = readNonEOF();
+                }
+                if ( c == '>' ) {
+                    return false;
+                }
+                if ( c == '/' )
+                {
+                    while ( c != '>' ) {
+                        c = readNonEOF();
+                    }
+                    return true;
+                }
+                if ( attrCount == attrNames.length )
+                {
+                    attrNames = Arrays.copyOf( attrNames , attrCount*2 );
+                    attrValues = Arrays.copyOf( attrValues , attrCount*2 );
+                    attrNameLen = Arrays.copyOf( attrNameLen , attrCount*2 );
+                    attrValueLen = Arrays.copyOf( attrValueLen , attrCount*2 );
+                    for ( int i = attrCount ; i < attrNames.length ; i++ ) {
+                        attrNames[i] = new byte[64];
+                        attrValues[i] = new byte[256];
+                    }
+                }
+                int len = 0;
+                while ( c != '=' && ! isWhitespace( c ) )
+                {
+                    if ( len < attrNames[attrCount].length ) {
+                        attrNames[attrCount][len++] = (byte) c;
+                    }
+                    c = readNonEOF();
+                }
+                attrNameLen[attrCount] = len;
+                while ( c != '"' && c != '\'' ) {
+                    c = readNonEOF();
+                }
+                final int quote = c;
+                len = 0;
+                while ( ( c = readNonEOF() ) != quote )
+                {
+                    if ( len == attrValues[attrCount].length ) {
+                        attrValues[attrCount] = Arrays.copyOf( attrValues[attrCount] , len*2 );
+                    }
+                    attrValues[attrCount][len++] = (byte) c;
+                }
+                attrValueLen[attrCount] = len;
+                attrCount++;
+                c = readNonEOF();
+            }
+        }
+
+        private boolean nameIs(byte[] expected)
+        {
+            if ( nameLen != expected.length ) {
+                return false;
+            }
+            for ( int i = 0 ; i < nameLen ; i++ )
+            {
+                if ( name[i] != expected[i] ) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private int attribute(String attrName)
+        {
+            outer:
+            for ( int i = 0 ; i < attrCount ; i++ )
+            {
+                if ( attrNameLen[i] == attrName.length() )
+                {
+                    for ( int j = 0 ; j < attrNameLen[i] ; j++ )
+                    {
+                        if ( attrNames[i][j] != attrName.charAt( j ) ) {
+                            continue outer;
+                        }
+                    }
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        private String stringAttribute(String attrName,String defaultValue)
+        {
+            final int idx = attribute( attrName );
+            if ( idx == -1 ) {
+                if ( defaultValue == null ) {
+                    throw new RuntimeException("Internal error, <"+new String( name , 0 , nameLen , StandardCharsets.UTF_8 )+"/> tag lacks '"+attrName+"' attribute");
+                }
+                return defaultValue;
+            }
+            return unescape( new String( attrValues[idx] , 0 , attrValueLen[idx] , StandardCharsets.UTF_8 ) );
+        }
+
+        private String stringAttribute(String attrName)
+        {
+            return stringAttribute( attrName , null );
+        }
+
+        private long longAttribute(String attrName)
+        {
+            final int idx = attribute( attrName );
+            if ( idx == -1 ) {
+                throw new RuntimeException("Internal error, <"+new String( name , 0 , nameLen , StandardCharsets.UTF_8 )+"/> tag lacks '"+attrName+"' attribute");
+            }
+            final byte[] value = attrValues[idx];
+            final int len = attrValueLen[idx];
+            final boolean negative = len > 0 && value[0] == '-';
+            long result = 0;
+            for ( int i = negative ? 1 : 0 ; i < len ; i++ )
+            {
+                final int digit = value[i] - '0';
+                if ( digit < 0 || digit > 9 ) {
+                    return Long.parseLong( new String( value , 0 , len , StandardCharsets.US_ASCII ).trim() );
+                }
+                result = result*10 + digit;
+            }
+            return negative ? -result : result;
+        }
+
+        private void startElement() throws IOException
+        {
+            if ( nameIs( INVOCATION ) )
+            {
+                builder.startInvocation( (int) longAttribute( "methodNameId" ) , longAttribute( "invocations" ) ,
+                        Float.parseFloat( stringAttribute( "totalTime" ) ) );
+            }
+            else if ( nameIs( METHOD_NAME ) )
+            {
+                builder.methodName( (int) longAttribute( "id" ) , stringAttribute( "name" ) );
+            }
+            else if ( nameIs( PROFILE ) )
+            {
+                final String creationTime = stringAttribute( "creationTime" , "0" );
+                builder.startProfile( stringAttribute( "threadName" ) , Long.parseLong( creationTime.trim().isEmpty() ? "0" : creationTime.trim() ) );
+            }
+        }
+
+        private void endElement()
+        {
+            if ( nameIs( INVOCATION ) ) {
+                builder.endInvocation();
+            } else if ( nameIs( PROFILE ) ) {
+                builder.endProfile();
+            }
+        }
+
+        private static String unescape(String s)
+        {
+            int idx = s.indexOf('&');
+            if ( idx == -1 ) {
+                return s;
+            }
+            final StringBuilder result = new StringBuilder( s.length() );
+            int last = 0;
+            while ( idx != -1 )
+            {
+                final int end = s.indexOf( ';' , idx );
+                if ( end == -1 ) {
+                    break;
+                }
+                result.append( s , last , idx );
+                final String entity = s.substring( idx+1 , end );
+                switch( entity )
+                {
+                    case "lt":   result.append('<'); break;
+                    case "gt":   result.append('>'); break;
+                    case "amp":  result.append('&'); break;
+                    case "quot": result.append('"'); break;
+                    case "apos": result.append('\''); break;
+                    default:
+                        if ( entity.startsWith("#x") ) {
+                            result.appendCodePoint( Integer.parseInt( entity.substring(2) , 16 ) );
+                        } else if ( entity.startsWith("#") ) {
+                            result.appendCodePoint( Integer.parseInt( entity.substring(1) ) );
+                        } else {
+                            result.append('&').append( entity ).append(';');
+                        }
+                }
+                last = end+1;
+                idx = s.indexOf( '&' , last );
+            }
+            result.append( s , last , s.length() );
+            return result.toString();
+        }
+    }
+}
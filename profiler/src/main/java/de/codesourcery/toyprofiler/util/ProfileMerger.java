@@ -0,0 +1,240 @@
+package de.codesourcery.toyprofiler.util;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+import de.codesourcery.toyprofiler.ClassMethodsContainer;
+import de.codesourcery.toyprofiler.IClassMethodsContainer;
+import de.codesourcery.toyprofiler.Profile;
+import de.codesourcery.toyprofiler.Profile.MethodIdentifier;
+import de.codesourcery.toyprofiler.Profile.MethodStats;
+import net.openhft.koloboke.collect.map.hash.HashIntObjMap;
+import net.openhft.koloboke.collect.map.hash.HashIntObjMaps;
+
+/**
+ * Merges the call trees of several profiles (threads) path by path.
+ *
+ * Nodes with the same call path are combined into one node, summing up invocation counts and times.
+ * All nodes of a call path are merged in one go and disjoint subtrees are merged in parallel on the common
+ * fork/join pool, so every source node is visited exactly once. The source trees are not modified.
+ *
+ * Profiles may come from different method containers, their method IDs are mapped to the target container by {@link MethodIdMapping}.
+ */
+public final class ProfileMerger
+{
+    private ProfileMerger() {
+    }
+
+    /**
+     * Merges profiles that use the same method container.
+     *
+     * @param threadName thread name of the merged profile
+     * @param profiles
+     * @param methods method container of the profiles
+     * @return
+     * @see #merge(String, List, List, ClassMethodsContainer)
+     */
+    public static Profile merge(String threadName,List<Profile> profiles,ClassMethodsContainer methods)
+    {
+        return merge( threadName , profiles , Collections.nCopies( profiles.size() , methods ) , methods );
+    }
+
+    /**
+     * Merges profiles.
+     *
+     * If the profiles do not share the same top-level method, the merged tree gets a synthetic
+     * root (see {@link CallTreeBuilder#SYNTHETIC_ROOT_NAME}) that is registered with the method container.
+     * Synthetic roots of profiles that are merges themselves are not nested but replaced by the new one.
+     *
+     * @param threadName thread name of the merged profile
+     * @param profiles
+     * @param profileMethods method container of each profile
+     * @param methods method container of the merged profile, methods it does not know yet get registered with it
+     * @return
+     */
+    public static Profile merge(String threadName,List<Profile> profiles,List<? extends IClassMethodsContainer> profileMethods,ClassMethodsContainer methods)
+    {
+        final long start = System.currentTimeMillis();
+        final Profile result = new Profile( threadName );
+
+        final List<Source> roots = new ArrayList<>();
+        long creationTime = Long.MAX_VALUE;
+        for ( int i = 0 ; i < profiles.size() ; i++ )
+        {
+            final Profile profile = profiles.get( i );
+            if ( profile.getTopLevelMethod() != null ) {
+                roots.add( new Source( profile.getTopLevelMethod() , MethodIdMapping.into( profileMethods.get( i ) , methods ) ) );
+            }
+            if ( profile.getCreationTime().isPresent() ) {
+                creationTime = Math.min( creationTime , profile.getCreationTimeMillis() );
+            }
+        }
+        if ( creationTime != Long.MAX_VALUE ) {
+            result.setCreationTime( creationTime );
+        }
+        if ( roots.isEmpty() ) {
+            return result;
+        }
+
+        final boolean sameRoot = roots.stream().allMatch( r -> r.methodId == roots.get(0).methodId );
+        final MethodStats root;
+        if ( sameRoot ) {
+            root = ForkJoinPool.commonPool().invoke( new MergeTask( roots , null , null , 0 ) );
+        }
+        else
+        {
+            final String rootName = CallTreeBuilder.SYNTHETIC_ROOT_NAME;
+            final MethodIdentifier syntheticRoot = new MethodIdentifier( methods.allocateId( rootName , rootName , "()V" , -1 ) , rootName , rootName , "()V" );
+            methods.registerMethod( syntheticRoot );
+
+            root = new MethodStats( syntheticRoot.id );
+            root.setTotalTimeMillis( (float) roots.stream().mapToDouble( r -> r.node.getTotalTimeMillis() ).sum() );
+            root.setInvocationCount( 1 );
+            // profiles that are merges themselves contribute their top-level methods, not another synthetic root
+            final List<Source> topLevel = new ArrayList<>();
+            for ( Source r : roots )
+            {
+                if ( r.methodId == syntheticRoot.id ) {
+                    r.addChildren( topLevel );
+                } else {
+                    topLevel.add( r );
+                }
+            }
+            ForkJoinPool.commonPool().invoke( new MergeTask( topLevel , null , root , 0 ) );
+        }
+        result.setTopLevelMethod( root );
+        System.out.println("Merged "+profiles.size()+" profiles into '"+threadName+"' in "+(System.currentTimeMillis()-start)+" ms");
+        return result;
+    }
+
+    /**
+     * Source node along with the mapping of its profile's method IDs.
+     */
+    private static final class Source
+    {
+        public final MethodStats node;
+        public final MethodIdMapping mapping;
+        // ID in the target container
+        public final int methodId;
+
+        public Source(MethodStats node,MethodIdMapping mapping)
+        {
+            this.node = node;
+            this.mapping = mapping;
+            this.methodId = mapping.map( node.getMethodId() );
+        }
+
+        public void addChildren(List<Source> result)
+        {
+            for ( MethodStats child : node.getCallees().values() ) {
+                result.add( new Source( child , mapping ) );
+            }
+        }
+    }
+
+    private static final class MergeTask extends RecursiveTask<MethodStats>
+    {
+        // joining a task may run it on the joining thread's stack, so only subtrees near the root get forked
+        private static final int MAX_FORK_DEPTH = 16;
+
+        private final List<Source> sources;
+        private final MethodStats parent;
+        // if not null, sources are merged as children of this node
+        private final MethodStats target;
+        private final int depth;
+
+        /**
+         * Nodes of one call path that still need to be merged.
+         */
+        private static final class Pending
+        {
+            public final List<Source> sources;
+            public final MethodStats parent;
+            public final int depth;
+
+            public Pending(List<Source> sources,MethodStats parent,int depth)
+            {
+                this.sources = sources;
+                this.parent = parent;
+                this.depth = depth;
+            }
+        }
+
+        public MergeTask(List<Source> sources,MethodStats parent,MethodStats target,int depth)
+        {
+            this.sources = sources;
+            this.parent = parent;
+            this.target = target;
+            this.depth = depth;
+        }
+
+        @Override
+        protected MethodStats compute()
+        {
+            // call trees can be deeper than the thread's stack allows for recursion
+            final Deque<Pending> stack = new ArrayDeque<>();
+            final List<MergeTask> forked = new ArrayList<>();
+            final MethodStats result;
+            if ( target != null )
+            {
+                result = target;
+                mergeChildren( target , sources , depth , stack , forked );
+            } else {
+                result = merge( sources , parent , depth , stack , forked );
+            }
+            while ( ! stack.isEmpty() )
+            {
+                final Pending pending = stack.pop();
+                final MethodStats child = merge( pending.sources , pending.parent , pending.depth , stack , forked );
+                pending.parent.getCallees().put( child.getMethodId() , child );
+            }
+            // nodes created by this task are only modified by it
+            for ( MergeTask task : forked )
+            {
+                final MethodStats child = task.join();
+                child.getParent().getCallees().put( child.getMethodId() , child );
+            }
+            return result;
+        }
+
+        private MethodStats merge(List<Source> sources,MethodStats parent,int depth,Deque<Pending> stack,List<MergeTask> forked)
+        {
+            final MethodStats result = new MethodStats( sources.get(0).methodId , parent );
+            float totalTime = 0;
+            long invocations = 0;
+            final List<Source> children = new ArrayList<>();
+            for ( Source source : sources )
+            {
+                totalTime += source.node.getTotalTimeMillis();
+                invocations += source.node.getInvocationCount();
+                source.addChildren( children );
+            }
+            result.setTotalTimeMillis( totalTime );
+            result.setInvocationCount( invocations );
+            mergeChildren( result , children , depth , stack , forked );
+            return result;
+        }
+
+        private void mergeChildren(MethodStats result,List<Source> children,int depth,Deque<Pending> stack,List<MergeTask> forked)
+        {
+            final HashIntObjMap<List<Source>> byMethod = HashIntObjMaps.newMutableMap( children.size() );
+            for ( Source child : children ) {
+                byMethod.computeIfAbsent( child.methodId , key -> new ArrayList<>( 1 ) ).add( child );
+            }
+            for ( List<Source> group : byMethod.values() )
+            {
+                if ( depth < MAX_FORK_DEPTH && group.stream().anyMatch( source -> source.node.hasChildren() ) && getSurplusQueuedTaskCount() < 3 ) {
+                    // keep idle workers busy
+                    forked.add( (MergeTask) new MergeTask( group , result , null , depth+1 ).fork() );
+                } else {
+                    stack.push( new Pending( group , result , depth+1 ) );
+                }
+            }
+        }
+    }
+}
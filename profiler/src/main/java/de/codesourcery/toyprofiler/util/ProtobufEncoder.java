@@ -0,0 +1,132 @@
+package de.codesourcery.toyprofiler.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Minimal protocol buffers encoder writing into a growable, reusable byte buffer.
+ *
+ * Only the wire types needed for pprof (varint and length-delimited) are supported.
+ */
+final class ProtobufEncoder
+{
+    private static final int WIRETYPE_VARINT = 0;
+    private static final int WIRETYPE_LENGTH_DELIMITED = 2;
+
+    private byte[] buffer;
+    private int size;
+
+    public ProtobufEncoder()
+    {
+        this( 256 );
+    }
+
+    public ProtobufEncoder(int initialCapacity)
+    {
+        buffer = new byte[ initialCapacity ];
+    }
+
+    public void reset() {
+        size = 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void writeTo(OutputStream out) throws IOException {
+        out.write( buffer , 0 , size );
+    }
+
+    /**
+     * Writes a varint field, omitting it when the value is zero (the protobuf default).
+     */
+    public ProtobufEncoder int64(int field,long value)
+    {
+        if ( value != 0 )
+        {
+            tag( field , WIRETYPE_VARINT );
+            varint( value );
+        }
+        return this;
+    }
+
+    public ProtobufEncoder string(int field,String value)
+    {
+        final byte[] bytes = value.getBytes( StandardCharsets.UTF_8 );
+        tag( field , WIRETYPE_LENGTH_DELIMITED );
+        varint( bytes.length );
+        ensureCapacity( bytes.length );
+        System.arraycopy( bytes , 0 , buffer , size , bytes.length );
+        size += bytes.length;
+        return this;
+    }
+
+    /**
+     * Writes an embedded message.
+     */
+    public ProtobufEncoder message(int field,ProtobufEncoder message)
+    {
+        tag( field , WIRETYPE_LENGTH_DELIMITED );
+        varint( message.size );
+        ensureCapacity( message.size );
+        System.arraycopy( message.buffer , 0 , buffer , size , message.size );
+        size += message.size;
+        return this;
+    }
+
+    /**
+     * Writes a packed repeated varint field.
+     */
+    public ProtobufEncoder packed(int field,long[] values,int count)
+    {
+        if ( count == 0 ) {
+            return this;
+        }
+        int length = 0;
+        for ( int i = 0 ; i < count ; i++ ) {
+            length += varintSize( values[i] );
+        }
+        tag( field , WIRETYPE_LENGTH_DELIMITED );
+        varint( length );
+        for ( int i = 0 ; i < count ; i++ ) {
+            varint( values[i] );
+        }
+        return this;
+    }
+
+    private void tag(int field,int wireType) {
+        varint( ( field << 3 ) | wireType );
+    }
+
+    private void varint(long value)
+    {
+        ensureCapacity( 10 );
+        while ( ( value & ~0x7fL ) != 0 )
+        {
+            buffer[ size++ ] = (byte) ( ( value & 0x7f ) | 0x80 );
+            value >>>= 7;
+        }
+        buffer[ size++ ] = (byte) value;
+    }
+
+    private static int varintSize(long value)
+    {
+        int result = 1;
+        while ( ( value & ~0x7fL ) != 0 )
+        {
+            result++;
+            value >>>= 7;
+        }
+        return result;
+    }
+
+    private void ensureCapacity(int bytes)
+    {
+        if ( size + bytes > buffer.length ) {
+            buffer = Arrays.copyOf( buffer , Math.max( buffer.length*2 , size + bytes ) );
+        }
+    }
+}
@@ -0,0 +1,239 @@
+package de.codesourcery.toyprofiler.util;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.Optional;
+import java.util.stream.Collectors;
+
+import de.codesourcery.toyprofiler.MethodStatsHelper;
+import de.codesourcery.toyprofiler.Profile;
+import de.codesourcery.toyprofiler.Profile.MethodStats;
+import de.codesourcery.toyprofiler.ProfileContainer;
+import net.openhft.koloboke.collect.set.hash.HashIntSet;
+
+/**
+ * Checks a candidate profile against a baseline, reporting call paths that violate {@link RegressionRule}s.
+ *
+ * Threads are matched by name and compared in parallel, each one aligned by {@link DiffTree}.
+ */
+public final class RegressionGate
+{
+    private final List<RegressionRule> rules;
+    private final double minTimeMillis;
+
+    public static final class Violation
+    {
+        public final RegressionRule rule;
+        public final String threadName;
+        /** Call path from the top-level method, as <code>package.Class.method</code> */
+        public final List<String> path;
+        public final double baseline;
+        public final double candidate;
+        /** Change that violated the rule, see {@link RegressionRule#check(double, double, boolean)} */
+        public final double change;
+
+        private Violation(RegressionRule rule,String threadName,List<String> path,double baseline,double candidate,double change)
+        {
+            this.rule = rule;
+            this.threadName = threadName;
+            this.path = path;
+            this.baseline = baseline;
+            this.candidate = candidate;
+            this.change = change;
+        }
+    }
+
+    public static final class ThreadResult
+    {
+        public final String threadName;
+        /** <code>compared</code>, <code>missing in baseline</code> or <code>missing in candidate</code> */
+        public final String status;
+        /** Number of aligned call paths */
+        public final int pathCount;
+        public final List<Violation> violations;
+
+        private ThreadResult(String threadName,String status,int pathCount,List<Violation> violations)
+        {
+            this.threadName = threadName;
+            this.status = status;
+            this.pathCount = pathCount;
+            this.violations = violations;
+        }
+    }
+
+    public static final class Report
+    {
+        public final List<ThreadResult> threads;
+
+        private Report(List<ThreadResult> threads) {
+            this.threads = threads;
+        }
+
+        public List<Violation> getViolations() {
+            return threads.stream().flatMap( t -> t.violations.stream() ).collect( Collectors.toList() );
+        }
+
+        public boolean isPassed() {
+            return threads.stream().allMatch( t -> t.violations.isEmpty() );
+        }
+
+        public void write(JsonWriter json,String baselineName,String candidateName) throws IOException
+        {
+            json.beginObject();
+            json.property( "baseline" , baselineName );
+            json.property( "candidate" , candidateName );
+            json.name( "passed" ).value( isPassed() );
+            json.name( "threads" ).beginArray();
+            for ( ThreadResult thread : threads )
+            {
+                json.beginObject();
+                json.property( "name" , thread.threadName );
+                json.property( "status" , thread.status );
+                json.property( "paths" , thread.pathCount );
+                json.property( "violations" , thread.violations.size() );
+                json.endObject();
+            }
+            json.endArray();
+            json.name( "violations" ).beginArray();
+            for ( Violation violation : getViolations() )
+            {
+                json.beginObject();
+                json.property( "rule" , violation.rule.text );
+                json.property( "metric" , violation.rule.metric.name );
+                json.property( "thread" , violation.threadName );
+                json.name( "path" ).beginArray();
+                for ( String frame : violation.path ) {
+                    json.value( frame );
+                }
+                json.endArray();
+                json.property( "baseline" , violation.baseline );
+                json.property( "candidate" , violation.candidate );
+                json.property( "limitType" , violation.rule.limitType.name().toLowerCase() );
+                json.property( "limit" , violation.rule.limit );
+                json.property( "change" , violation.change );
+                json.endObject();
+            }
+            json.endArray();
+            json.endObject();
+        }
+    }
+
+    /**
+     * Create gate.
+     *
+     * @param rules
+     * @param minTimeMillis time rules ignore call paths whose time is below this in both profiles
+     */
+    public RegressionGate(List<RegressionRule> rules,double minTimeMillis)
+    {
+        this.rules = rules;
+        this.minTimeMillis = minTimeMillis;
+    }
+
+    public Report check(ProfileContainer baseline,List<Profile> baselineProfiles,ProfileContainer candidate,List<Profile> candidateProfiles)
+    {
+        final long start = System.currentTimeMillis();
+        final List<HashIntSet[]> frames = rules.stream().map( rule -> rule.resolve( candidate ) ).collect( Collectors.toList() );
+        final MethodStatsHelper resolver = new MethodStatsHelper( candidate );
+
+        final List<String> threadNames = new ArrayList<>();
+        candidateProfiles.forEach( p -> threadNames.add( p.getThreadName() ) );
+        baselineProfiles.stream().map( Profile::getThreadName ).filter( name -> ! threadNames.contains( name ) ).forEach( threadNames::add );
+
+        final List<ThreadResult> results = threadNames.parallelStream().map( name ->
+        {
+            final Optional<Profile> b = baselineProfiles.stream().filter( p -> p.getThreadName().equals( name ) ).findFirst();
+            final Optional<Profile> c = candidateProfiles.stream().filter( p -> p.getThreadName().equals( name ) ).findFirst();
+            if ( ! b.isPresent() ) {
+                return new ThreadResult( name , "missing in baseline" , 0 , Collections.emptyList() );
+            }
+            if ( ! c.isPresent() ) {
+                return new ThreadResult( name , "missing in candidate" , 0 , Collections.emptyList() );
+            }
+            return check( name , DiffTree.compare( c.get() , candidate , b.get() , baseline ) , frames , resolver );
+        }).collect( Collectors.toList() );
+
+        System.out.println("Checked "+threadNames.size()+" threads against "+rules.size()+" rules in "+(System.currentTimeMillis()-start)+" ms");
+        return new Report( results );
+    }
+
+    private ThreadResult check(String threadName,DiffTree diff,List<HashIntSet[]> frames,MethodStatsHelper resolver)
+    {
+        final List<Violation> violations = new ArrayList<>();
+        int pathCount = 0;
+        // method IDs of the current path, index = depth
+        int[] path = new int[64];
+        final Deque<DiffTree.Node> stack = new ArrayDeque<>();
+        final Deque<Integer> depths = new ArrayDeque<>();
+        for ( DiffTree.Node root : diff.getRoots() )
+        {
+            stack.push( root );
+            depths.push( 0 );
+        }
+        while ( ! stack.isEmpty() )
+        {
+            final DiffTree.Node node = stack.pop();
+            final int depth = depths.pop();
+            if ( depth == path.length ) {
+                path = Arrays.copyOf( path , depth*2 );
+            }
+            path[depth] = node.methodId;
+            pathCount++;
+            // regressions only, call paths that vanished cannot violate a rule
+            if ( node.current != null )
+            {
+                for ( int i = 0 ; i < rules.size() ; i++ )
+                {
+                    final RegressionRule rule = rules.get( i );
+                    if ( ! matches( path , depth , frames.get( i ) ) ) {
+                        continue;
+                    }
+                    final double baseline = rule.metric.getValue( node.previous );
+                    final double candidate = rule.metric.getValue( node.current );
+                    if ( rule.metric.isTime() && baseline < minTimeMillis && candidate < minTimeMillis ) {
+                        continue;
+                    }
+                    final double change = rule.check( baseline , candidate , node.previous != null );
+                    if ( ! Double.isNaN( change ) ) {
+                        violations.add( new Violation( rule , threadName , getPath( node.current , resolver ) , baseline , candidate , change ) );
+                    }
+                }
+            }
+            for ( DiffTree.Node child : node.getChildren() )
+            {
+                stack.push( child );
+                depths.push( depth+1 );
+            }
+        }
+        return new ThreadResult( threadName , "compared" , pathCount , violations );
+    }
+
+    private static boolean matches(int[] path,int depth,HashIntSet[] frames)
+    {
+        if ( frames.length > depth+1 ) {
+            return false;
+        }
+        for ( int i = 0 ; i < frames.length ; i++ )
+        {
+            if ( ! frames[ frames.length - 1 - i ].contains( path[ depth - i ] ) ) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static List<String> getPath(MethodStats node,MethodStatsHelper resolver)
+    {
+        final List<String> result = new ArrayList<>();
+        for ( MethodStats current = node ; current != null ; current = current.getParent() ) {
+            result.add( resolver.getClassName( current )+"."+resolver.getMethodName( current ) );
+        }
+        Collections.reverse( result );
+        return result;
+    }
+}
@@ -0,0 +1,216 @@
+package de.codesourcery.toyprofiler.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Pattern;
+
+import de.codesourcery.toyprofiler.IClassMethodsContainer;
+import de.codesourcery.toyprofiler.Profile.MethodStats;
+import net.openhft.koloboke.collect.set.hash.HashIntSet;
+import net.openhft.koloboke.collect.set.hash.HashIntSets;
+
+/**
+ * A limit on how much a value of a call path may grow from a baseline profile to a candidate profile.
+ *
+ * Syntax: <code>&lt;metric&gt; &lt;path&gt; &lt;limit&gt;</code>, for example
+ * <ul>
+ *   <li><code>self-time com.acme.Parser.parse +15%</code> - self time must not grow by more than 15 percent</li>
+ *   <li><code>total-time *.Worker.run;*Dao.* +50ms</code> - total time must not grow by more than 50 milliseconds</li>
+ *   <li><code>invocations *Dao.query x2</code> - invocations must not double</li>
+ * </ul>
+ * Metrics are <code>self-time</code>, <code>total-time</code> (milliseconds) and <code>invocations</code>.
+ *
+ * The path is a list of frames separated by ';' that must match the end of a call path. Frames are
+ * matched against <code>package.Class.method</code>, '*' matches any sequence of characters.
+ * Relative limits (percentages and factors) only apply to call paths that exist in both profiles.
+ */
+public final class RegressionRule
+{
+    public static enum Metric
+    {
+        SELF_TIME("self-time"),
+        TOTAL_TIME("total-time"),
+        INVOCATIONS("invocations");
+
+        public final String name;
+
+        private Metric(String name) {
+            this.name = name;
+        }
+
+        public double getValue(MethodStats node)
+        {
+            if ( node == null ) {
+                return 0;
+            }
+            switch( this )
+            {
+                case SELF_TIME:   return node.getTotalOwnTimeMillis();
+                case TOTAL_TIME:  return node.getTotalTimeMillis();
+                case INVOCATIONS: return node.getInvocationCount();
+                default:
+                    throw new RuntimeException("Unhandled metric: "+this);
+            }
+        }
+
+        public boolean isTime() {
+            return this != INVOCATIONS;
+        }
+    }
+
+    public static enum LimitType
+    {
+        /** Maximum increase in percent */
+        PERCENT,
+        /** Maximum absolute increase */
+        ABSOLUTE,
+        /** Factor the value must stay below */
+        FACTOR
+    }
+
+    public final String text;
+    public final Metric metric;
+    public final LimitType limitType;
+    public final double limit;
+    private final Pattern[] frames;
+
+    private RegressionRule(String text,Metric metric,Pattern[] frames,LimitType limitType,double limit)
+    {
+        this.text = text;
+        this.metric = metric;
+        this.frames = frames;
+        this.limitType = limitType;
+        this.limit = limit;
+    }
+
+    /**
+     * Parses a rule.
+     *
+     * @param text
+     * @return
+     * @throws IllegalArgumentException if the rule is malformed
+     */
+    public static RegressionRule parse(String text) throws IllegalArgumentException
+    {
+        final String[] parts = text.trim().split("\\s+");
+        if ( parts.length != 3 ) {
+            throw new IllegalArgumentException("Rule '"+text+"' needs to look like <metric> <path> <limit>");
+        }
+        Metric metric = null;
+        for ( Metric m : Metric.values() )
+        {
+            if ( m.name.equals( parts[0].toLowerCase( Locale.ROOT ) ) ) {
+                metric = m;
+            }
+        }
+        if ( metric == null ) {
+            throw new IllegalArgumentException("Unknown metric '"+parts[0]+"' in rule '"+text+"', valid metrics are self-time, total-time and invocations");
+        }
+
+        final String[] framePatterns = parts[1].split(";");
+        final Pattern[] frames = new Pattern[ framePatterns.length ];
+        for ( int i = 0 ; i < framePatterns.length ; i++ )
+        {
+            final String[] literals = framePatterns[i].split("\\*",-1);
+            final StringBuilder regex = new StringBuilder();
+            for ( int j = 0 ; j < literals.length ; j++ )
+            {
+                if ( j > 0 ) {
+                    regex.append(".*");
+                }
+                if ( ! literals[j].isEmpty() ) {
+                    regex.append( Pattern.quote( literals[j] ) );
+                }
+            }
+            frames[i] = Pattern.compile( regex.toString() );
+        }
+
+        final String limit = parts[2].toLowerCase( Locale.ROOT );
+        try
+        {
+            if ( limit.startsWith("x") ) {
+                return new RegressionRule( text.trim() , metric , frames , LimitType.FACTOR , Double.parseDouble( limit.substring( 1 ) ) );
+            }
+            if ( limit.startsWith("+") && limit.endsWith("%") ) {
+                return new RegressionRule( text.trim() , metric , frames , LimitType.PERCENT , Double.parseDouble( limit.substring( 1 , limit.length()-1 ) ) );
+            }
+            if ( limit.startsWith("+") && metric.isTime() && limit.endsWith("ms") ) {
+                return new RegressionRule( text.trim() , metric , frames , LimitType.ABSOLUTE , Double.parseDouble( limit.substring( 1 , limit.length()-2 ) ) );
+            }
+            if ( limit.startsWith("+") && ! metric.isTime() ) {
+                return new RegressionRule( text.trim() , metric , frames , LimitType.ABSOLUTE , Double.parseDouble( limit.substring( 1 ) ) );
+            }
+        }
+        catch(NumberFormatException e) {
+            // fall through
+        }
+        throw new IllegalArgumentException("Invalid limit '"+parts[2]+"' in rule '"+text+"', expected +N% , "+( metric.isTime() ? "+Nms" : "+N" )+" or xN");
+    }
+
+    /**
+     * Resolves the frame patterns against the methods of both profiles, so that call paths can be matched by method ID.
+     *
+     * @param methods
+     * @return one set of matching method IDs per frame
+     */
+    public HashIntSet[] resolve(IClassMethodsContainer... methods)
+    {
+        final HashIntSet[] result = new HashIntSet[ frames.length ];
+        for ( int i = 0 ; i < frames.length ; i++ )
+        {
+            final Pattern pattern = frames[i];
+            final List<Integer> ids = new ArrayList<>();
+            for ( IClassMethodsContainer container : methods )
+            {
+                container.visitMethods( method ->
+                {
+                    if ( pattern.matcher( method.className.replace('/','.')+"."+method.methodName ).matches() ) {
+                        ids.add( method.id );
+                    }
+                });
+            }
+            result[i] = HashIntSets.newImmutableSet( ids );
+        }
+        return result;
+    }
+
+    /**
+     * Checks whether a change violates this rule.
+     *
+     * @param baseline value in the baseline profile, 0 if the call path does not exist there
+     * @param candidate value in the candidate profile
+     * @param existsInBaseline
+     * @return the change (percentage, absolute difference or factor, depending on the limit type) if the rule is violated, <code>NaN</code> otherwise
+     */
+    public double check(double baseline,double candidate,boolean existsInBaseline)
+    {
+        switch( limitType )
+        {
+            case PERCENT:
+                if ( existsInBaseline && baseline > 0 )
+                {
+                    final double change = 100 * ( candidate - baseline ) / baseline;
+                    return change > limit ? change : Double.NaN;
+                }
+                return Double.NaN;
+            case FACTOR:
+                if ( existsInBaseline && baseline > 0 )
+                {
+                    final double factor = candidate / baseline;
+                    return factor >= limit ? factor : Double.NaN;
+                }
+                return Double.NaN;
+            case ABSOLUTE:
+                final double change = candidate - baseline;
+                return change > limit ? change : Double.NaN;
+            default:
+                throw new RuntimeException("Unhandled limit type: "+limitType);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return text;
+    }
+}
@@ -0,0 +1,120 @@
+package de.codesourcery.toyprofiler.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Collection;
+
+import de.codesourcery.toyprofiler.ClassMethodsContainer;
+import de.codesourcery.toyprofiler.Profile;
+import de.codesourcery.toyprofiler.Profile.MethodStats;
+import net.openhft.koloboke.collect.map.hash.HashIntIntMap;
+import net.openhft.koloboke.collect.map.hash.HashIntIntMaps;
+
+/**
+ * Exports profiles as a speedscope (https://www.speedscope.app) JSON file.
+ *
+ * Each thread becomes an 'evented' profile whose open/close events are derived from
+ * the aggregated call tree via {@link TimelineLayout}.
+ */
+public class SpeedscopeExporter implements IProfileExporter
+{
+    public static final String FILE_SUFFIX = ".speedscope.json";
+
+    private static final String SCHEMA = "https://www.speedscope.app/file-format-schema.json";
+
+    private final String name;
+
+    public SpeedscopeExporter()
+    {
+        this( "toyprofiler" );
+    }
+
+    public SpeedscopeExporter(String name)
+    {
+        this.name = name;
+    }
+
+    @Override
+    public void save(ClassMethodsContainer methodContainer, Collection<Profile> profiles, OutputStream out) throws IOException
+    {
+        try ( JsonWriter json = new JsonWriter( out ) )
+        {
+            json.beginObject();
+            json.property( "$schema" , SCHEMA );
+            json.property( "name" , name );
+            json.property( "exporter" , "toyprofiler" );
+            json.property( "activeProfileIndex" , 0 );
+
+            // frames are shared by all profiles
+            final HashIntIntMap frameIndices = HashIntIntMaps.newMutableMap( 2000 );
+            json.name( "shared" ).beginObject().name( "frames" ).beginArray();
+            final IOException[] error = { null };
+            methodContainer.visitMethods( method ->
+            {
+                if ( error[0] != null ) {
+                    return;
+                }
+                try
+                {
+                    frameIndices.put( method.id , frameIndices.size() );
+                    json.beginObject();
+                    json.property( "name" , method.className.replace('/','.')+"."+method.methodName+method.methodSignature );
+                    json.property( "file" , method.className.replace('/','.') );
+                    if ( method.hasLineNumber() ) {
+                        json.property( "line" , method.lineNumber );
+                    }
+                    json.endObject();
+                }
+                catch(IOException e) {
+                    error[0] = e;
+                }
+            });
+            if ( error[0] != null ) {
+                throw error[0];
+            }
+            json.endArray().endObject();
+
+            json.name( "profiles" ).beginArray();
+            for ( Profile profile : profiles )
+            {
+                final MethodStats root = profile.getTopLevelMethod();
+                if ( root == null ) {
+                    continue;
+                }
+                System.out.println("Writing speedscope profile for "+profile.getThreadName()+" ...");
+                json.beginObject();
+                json.property( "type" , "evented" );
+                json.property( "name" , profile.getThreadName() );
+                json.property( "unit" , "microseconds" );
+                json.property( "startValue" , 0 );
+                json.name( "events" ).beginArray();
+                final double end = TimelineLayout.layout( root , 0 , new TimelineLayout.ISpanVisitor()
+                {
+                    @Override
+                    public void open(MethodStats node, double startMicros, double durationMicros, int depth) throws IOException {
+                        event( "O" , node , startMicros );
+                    }
+
+                    @Override
+                    public void close(MethodStats node, double endMicros, int depth) throws IOException {
+                        event( "C" , node , endMicros );
+                    }
+
+                    private void event(String type,MethodStats node,double at) throws IOException
+                    {
+                        final int frame = frameIndices.getOrDefault( node.getMethodId() , -1 );
+                        if ( frame == -1 ) {
+                            throw new IOException("Unknown method ID "+node.getMethodId());
+                        }
+                        json.beginObject().property( "type" , type ).property( "frame" , frame ).property( "at" , at ).endObject();
+                    }
+                });
+                json.endArray();
+                json.property( "endValue" , end );
+                json.endObject();
+            }
+            json.endArray();
+            json.endObject();
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package de.codesourcery.toyprofiler.util;
+
+import de.codesourcery.toyprofiler.Profile.MethodStats;
+
+/**
+ * Compares the call paths of two statistical profiles, testing each difference for significance.
+ *
+ * The tested value is a call path's time relative to its parent, the value the flame graph shows.
+ *
+ * @see WelchTTest
+ */
+public final class StatisticalComparison
+{
+    public final StatisticalProfile current;
+    public final StatisticalProfile previous;
+    /** Maximum p-value of a significant difference */
+    public final double significanceLevel;
+
+    public StatisticalComparison(StatisticalProfile current,StatisticalProfile previous,double significanceLevel)
+    {
+        this.current = current;
+        this.previous = previous;
+        this.significanceLevel = significanceLevel;
+    }
+
+    /**
+     * Returns the p-value of the difference between both profiles for a call path.
+     *
+     * @param currentNode node of the current profile
+     * @return p-value or <code>NaN</code> if both profiles consist of a single run only
+     */
+    public double getPValue(MethodStats currentNode)
+    {
+        final StatisticalProfile.Summary a = current.getSummary( currentNode.getPathHash() );
+        final StatisticalProfile.Summary b = previous.getSummary( currentNode.getPathHash() );
+        return WelchTTest.pValue( a.meanPercentage , a.percentageVariance , a.runs , b.meanPercentage , b.percentageVariance , b.runs );
+    }
+
+    /**
+     * Returns how confident a difference is.
+     *
+     * @param currentNode
+     * @return 0 if the difference is not significant, up to 1 for a p-value of zero. Always 1 if
+     * the difference cannot be tested because both profiles consist of a single run only.
+     */
+    public double getConfidence(MethodStats currentNode)
+    {
+        final double p = getPValue( currentNode );
+        if ( Double.isNaN( p ) ) {
+            return 1;
+        }
+        return p > significanceLevel ? 0 : 1 - p / significanceLevel;
+    }
+}
@@ -0,0 +1,226 @@
+package de.codesourcery.toyprofiler.util;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+import de.codesourcery.toyprofiler.ClassMethodsContainer;
+import de.codesourcery.toyprofiler.IClassMethodsContainer;
+import de.codesourcery.toyprofiler.Profile;
+import de.codesourcery.toyprofiler.Profile.MethodStats;
+import net.openhft.koloboke.collect.map.hash.HashLongObjMap;
+import net.openhft.koloboke.collect.map.hash.HashLongObjMaps;
+
+/**
+ * Per call path statistics over several runs of the same workload.
+ *
+ * Runs are added one at a time and may be discarded right afterwards, so aggregating many large runs only takes
+ * memory for the aggregate plus the run being added. Means and variances are updated with Welford's algorithm.
+ * A call path that is missing from a run counts as a zero sample for that run, so all statistics are over
+ * {@link #getRunCount()} runs, while {@link Summary#samples} tells how many runs actually contained the path.
+ *
+ * {@link #finish()} yields a profile whose nodes carry the per-run mean times and invocation counts.
+ */
+public final class StatisticalProfile
+{
+    private final String threadName;
+    private final ClassMethodsContainer methods = new ClassMethodsContainer();
+    // path hash -> statistics
+    private final HashLongObjMap<Stats> statsByPath = HashLongObjMaps.newMutableMap();
+
+    private MethodStats root;
+    private int runs;
+    private Profile result;
+
+    private static final class Stats
+    {
+        public final MethodStats node;
+        public int samples;
+        public long invocations;
+        public double timeMean;
+        public double timeM2;
+        public double percentageMean;
+        public double percentageM2;
+
+        public Stats(MethodStats node) {
+            this.node = node;
+        }
+
+        public void add(MethodStats source)
+        {
+            samples++;
+            invocations += source.getInvocationCount();
+
+            final double time = source.getTotalTimeMillis();
+            double delta = time - timeMean;
+            timeMean += delta / samples;
+            timeM2 += delta * ( time - timeMean );
+
+            final double percentage = source.getPercentageOfParentTime();
+            delta = percentage - percentageMean;
+            percentageMean += delta / samples;
+            percentageM2 += delta * ( percentage - percentageMean );
+        }
+    }
+
+    /**
+     * Statistics of one call path.
+     */
+    public static final class Summary
+    {
+        /** Number of runs */
+        public final int runs;
+        /** Number of runs that contained the call path */
+        public final int samples;
+        public final double meanTimeMillis;
+        public final double timeVariance;
+        /** Mean time relative to the parent's time (0...1) */
+        public final double meanPercentage;
+        public final double percentageVariance;
+
+        private Summary(int runs,int samples,double meanTimeMillis,double timeVariance,double meanPercentage,double percentageVariance)
+        {
+            this.runs = runs;
+            this.samples = samples;
+            this.meanTimeMillis = meanTimeMillis;
+            this.timeVariance = timeVariance;
+            this.meanPercentage = meanPercentage;
+            this.percentageVariance = percentageVariance;
+        }
+
+        public double getTimeStdDev() {
+            return Math.sqrt( timeVariance );
+        }
+
+        public double getPercentageStdDev() {
+            return Math.sqrt( percentageVariance );
+        }
+    }
+
+    public StatisticalProfile(String threadName) {
+        this.threadName = threadName;
+    }
+
+    /**
+     * Adds a run.
+     *
+     * @param profile
+     * @param profileMethods method container the profile's method IDs belong to
+     * @throws IllegalArgumentException if the profile's top-level method differs from the one of the previous runs
+     * @throws IllegalStateException if {@link #finish()} has already been called
+     */
+    public void add(Profile profile,IClassMethodsContainer profileMethods) throws IllegalArgumentException,IllegalStateException
+    {
+        if ( result != null ) {
+            throw new IllegalStateException("Already finished");
+        }
+        final MethodStats sourceRoot = profile.getTopLevelMethod();
+        if ( sourceRoot != null )
+        {
+            // runs come from different files, equal IDs do not necessarily denote the same method
+            final MethodIdMapping mapping = MethodIdMapping.into( profileMethods , methods );
+            final int rootId = mapping.map( sourceRoot.getMethodId() );
+            if ( root == null ) {
+                root = new MethodStats( rootId );
+            }
+            else if ( root.getMethodId() != rootId ) {
+                throw new IllegalArgumentException("Profile '"+profile.getThreadName()+"' has a different top-level method than the previous runs");
+            }
+            final Deque<MethodStats> sources = new ArrayDeque<>();
+            final Deque<MethodStats> targets = new ArrayDeque<>();
+            sources.push( sourceRoot );
+            targets.push( root );
+            while ( ! sources.isEmpty() )
+            {
+                final MethodStats source = sources.pop();
+                final MethodStats target = targets.pop();
+                statsByPath.computeIfAbsent( target.getPathHash() , key -> new Stats( target ) ).add( source );
+                for ( MethodStats child : source.getCallees().values() )
+                {
+                    final int childId = mapping.map( child.getMethodId() );
+                    MethodStats targetChild = target.getCallees().get( childId );
+                    if ( targetChild == null )
+                    {
+                        targetChild = new MethodStats( childId , target );
+                        target.getCallees().put( childId , targetChild );
+                    }
+                    sources.push( child );
+                    targets.push( targetChild );
+                }
+            }
+        }
+        runs++;
+    }
+
+    public int getRunCount() {
+        return runs;
+    }
+
+    public String getThreadName() {
+        return threadName;
+    }
+
+    /**
+     * Returns the methods of all runs.
+     *
+     * @return
+     */
+    public IClassMethodsContainer getMethods() {
+        return methods;
+    }
+
+    /**
+     * Returns the statistics of a call path.
+     *
+     * @param pathHash
+     * @return statistics, all zero if no run contained the path
+     * @see MethodStats#getPathHash()
+     */
+    public Summary getSummary(long pathHash)
+    {
+        final Stats stats = statsByPath.get( pathHash );
+        if ( stats == null ) {
+            return new Summary( runs , 0 , 0 , 0 , 0 , 0 );
+        }
+        return new Summary( runs , stats.samples ,
+                mean( stats.timeMean , stats.samples ) , variance( stats.timeMean , stats.timeM2 , stats.samples ) ,
+                mean( stats.percentageMean , stats.samples ) , variance( stats.percentageMean , stats.percentageM2 , stats.samples ) );
+    }
+
+    // account for runs that did not contain the path (zero samples)
+    private double mean(double mean,int samples) {
+        return runs == 0 ? 0 : mean * samples / runs;
+    }
+
+    private double variance(double mean,double m2,int samples)
+    {
+        if ( runs < 2 ) {
+            return 0;
+        }
+        // Chan et al.: combine with (runs - samples) zeros
+        final double allM2 = m2 + mean * mean * samples * (double) ( runs - samples ) / runs;
+        return allM2 / ( runs - 1 );
+    }
+
+    /**
+     * Stops adding runs and returns a profile with the per-run mean time and invocation count of each call path.
+     *
+     * @return
+     */
+    public Profile finish()
+    {
+        if ( result == null )
+        {
+            result = new Profile( threadName );
+            if ( root != null )
+            {
+                statsByPath.values().forEach( stats ->
+                {
+                    stats.node.setTotalTimeMillis( (float) mean( stats.timeMean , stats.samples ) );
+                    stats.node.setInvocationCount( Math.round( stats.invocations / (double) runs ) );
+                });
+                result.setTopLevelMethod( root );
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,110 @@
+package de.codesourcery.toyprofiler.util;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+
+import de.codesourcery.toyprofiler.Profile.MethodStats;
+
+/**
+ * Lays out an aggregated call tree as synthetic, properly nested spans on a timeline.
+ *
+ * Each node becomes a span as long as its total time, children are placed back-to-back
+ * starting at their parent's start. When the children's times add up to more than
+ * the parent's time (measurement noise), they are scaled down to fit.
+ */
+final class TimelineLayout
+{
+    public interface ISpanVisitor
+    {
+        /**
+         * Invoked when a span starts.
+         *
+         * @param node
+         * @param startMicros
+         * @param durationMicros
+         * @param depth
+         */
+        public void open(MethodStats node,double startMicros,double durationMicros,int depth) throws IOException;
+
+        /**
+         * Invoked when a span ends, after all nested spans have been closed.
+         *
+         * @param node
+         * @param endMicros
+         * @param depth
+         */
+        public void close(MethodStats node,double endMicros,int depth) throws IOException;
+    }
+
+    private static final Comparator<MethodStats> BY_METHOD_ID = (a,b) -> Integer.compare( a.getMethodId() , b.getMethodId() );
+
+    private static final class Span
+    {
+        public final MethodStats node;
+        public final double end;
+        public final double childScale;
+        public final Iterator<MethodStats> children;
+        public double cursor;
+
+        public Span(MethodStats node,double start,double duration)
+        {
+            this.node = node;
+            this.end = start + duration;
+            this.cursor = start;
+            final MethodStats[] sorted = node.getCallees().values().toArray( new MethodStats[0] );
+            Arrays.sort( sorted , BY_METHOD_ID ); // stable output
+            this.children = Arrays.asList( sorted ).iterator();
+            double childSum = 0;
+            for ( MethodStats child : sorted ) {
+                childSum += Math.max( 0 , child.getTotalTimeMillis() * 1000d );
+            }
+            this.childScale = childSum > duration && childSum > 0 ? duration / childSum : 1d;
+        }
+    }
+
+    private TimelineLayout() {
+    }
+
+    /**
+     * Lays out a tree.
+     *
+     * @param root
+     * @param startMicros start of the root span
+     * @param visitor
+     * @return end of the root span
+     * @throws IOException
+     */
+    public static double layout(MethodStats root,double startMicros,ISpanVisitor visitor) throws IOException
+    {
+        Span[] stack = new Span[ 64 ];
+        int depth = 0;
+
+        final double rootDuration = Math.max( 0 , root.getTotalTimeMillis() * 1000d );
+        visitor.open( root , startMicros , rootDuration , 0 );
+        stack[depth++] = new Span( root , startMicros , rootDuration );
+        while ( depth > 0 )
+        {
+            final Span current = stack[depth-1];
+            if ( current.children.hasNext() )
+            {
+                final MethodStats child = current.children.next();
+                final double duration = Math.max( 0 , child.getTotalTimeMillis() * 1000d * current.childScale );
+                final double start = current.cursor;
+                current.cursor += duration;
+                visitor.open( child , start , duration , depth );
+                if ( depth == stack.length ) {
+                    stack = Arrays.copyOf( stack , depth*2 );
+                }
+                stack[depth++] = new Span( child , start , duration );
+            }
+            else
+            {
+                depth--;
+                visitor.close( current.node , current.end , depth );
+            }
+        }
+        return startMicros + rootDuration;
+    }
+}
@@ -0,0 +1,116 @@
+package de.codesourcery.toyprofiler.util;
+
+/**
+ * Welch's t-test for the difference of two means with possibly unequal variances.
+ *
+ * The p-value comes from the Student t distribution, evaluated through the regularized
+ * incomplete beta function (continued fraction, see Numerical Recipes 6.4).
+ */
+public final class WelchTTest
+{
+    private static final int MAX_ITERATIONS = 200;
+    private static final double EPSILON = 1e-12;
+    private static final double TINY = 1e-300;
+
+    // Lanczos approximation of the gamma function (g=7, n=9)
+    private static final double[] LANCZOS = { 0.99999999999980993, 676.5203681218851, -1259.1392167224028, 771.32342877765313,
+            -176.61502916214059, 12.507343278686905, -0.13857109526572012, 9.9843695780195716e-6, 1.5056327351493116e-7 };
+
+    private WelchTTest() {
+    }
+
+    /**
+     * Returns the two-sided p-value for the hypothesis that both samples have the same mean.
+     *
+     * @param mean1
+     * @param variance1 sample variance (N-1 denominator)
+     * @param n1 sample size
+     * @param mean2
+     * @param variance2 sample variance (N-1 denominator)
+     * @param n2 sample size
+     * @return p-value (0...1) or <code>NaN</code> if neither sample has more than one value
+     */
+    public static double pValue(double mean1,double variance1,int n1,double mean2,double variance2,int n2)
+    {
+        if ( n1 < 2 && n2 < 2 ) {
+            return Double.NaN;
+        }
+        final double se1 = n1 < 2 ? 0 : variance1 / n1;
+        final double se2 = n2 < 2 ? 0 : variance2 / n2;
+        final double se = se1 + se2;
+        if ( se <= 0 ) {
+            return mean1 == mean2 ? 1 : 0;
+        }
+        final double t = ( mean1 - mean2 ) / Math.sqrt( se );
+        double denominator = 0;
+        if ( n1 >= 2 ) {
+            denominator += se1 * se1 / ( n1 - 1 );
+        }
+        if ( n2 >= 2 ) {
+            denominator += se2 * se2 / ( n2 - 1 );
+        }
+        final double degreesOfFreedom = se * se / denominator;
+        return regularizedIncompleteBeta( degreesOfFreedom / ( degreesOfFreedom + t * t ) , degreesOfFreedom / 2 , 0.5 );
+    }
+
+    private static double regularizedIncompleteBeta(double x,double a,double b)
+    {
+        if ( x <= 0 ) {
+            return 0;
+        }
+        if ( x >= 1 ) {
+            return 1;
+        }
+        final double front = Math.exp( logGamma( a + b ) - logGamma( a ) - logGamma( b ) + a * Math.log( x ) + b * Math.log( 1 - x ) );
+        // continued fraction converges quickly only on this side
+        if ( x < ( a + 1 ) / ( a + b + 2 ) ) {
+            return front * continuedFraction( x , a , b ) / a;
+        }
+        return 1 - front * continuedFraction( 1 - x , b , a ) / b;
+    }
+
+    private static double continuedFraction(double x,double a,double b)
+    {
+        double c = 1;
+        double d = 1 - ( a + b ) * x / ( a + 1 );
+        d = 1 / ( Math.abs( d ) < TINY ? TINY : d );
+        double result = d;
+        for ( int m = 1 ; m <= MAX_ITERATIONS ; m++ )
+        {
+            final int m2 = 2 * m;
+            // even step
+            double aa = m * ( b - m ) * x / ( ( a + m2 - 1 ) * ( a + m2 ) );
+            d = 1 + aa * d;
+            d = 1 / ( Math.abs( d ) < TINY ? TINY : d );
+            c = 1 + aa / c;
+            c = Math.abs( c ) < TINY ? TINY : c;
+            result *= d * c;
+            // odd step
+            aa = -( a + m ) * ( a + b + m ) * x / ( ( a + m2 ) * ( a + m2 + 1 ) );
+            d = 1 + aa * d;
+            d = 1 / ( Math.abs( d ) < TINY ? TINY : d );
+            c = 1 + aa / c;
+            c = Math.abs( c ) < TINY ? TINY : c;
+            final double delta = d * c;
+            result *= delta;
+            if ( Math.abs( delta - 1 ) < EPSILON ) {
+                break;
+            }
+        }
+        return result;
+    }
+
+    private static double logGamma(double x)
+    {
+        if ( x < 0.5 ) {
+            return Math.log( Math.PI / Math.abs( Math.sin( Math.PI * x ) ) ) - logGamma( 1 - x );
+        }
+        x -= 1;
+        double sum = LANCZOS[0];
+        for ( int i = 1 ; i < LANCZOS.length ; i++ ) {
+            sum += LANCZOS[i] / ( x + i );
+        }
+        final double t = x + 7.5;
+        return 0.5 * Math.log( 2 * Math.PI ) + ( x + 0.5 ) * Math.log( t ) - t + Math.log( sum );
+    }
+}
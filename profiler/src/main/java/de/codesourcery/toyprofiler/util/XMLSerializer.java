@@ -1,12 +1,22 @@
 package de.codesourcery.toyprofiler.util;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Deque;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Stack;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 import java.util.function.Consumer;
 
 import javax.xml.namespace.QName;
@@ -21,32 +31,53 @@ import de.codesourcery.toyprofiler.Profile;
 import de.codesourcery.toyprofiler.Profile.MethodIdentifier;
 import de.codesourcery.toyprofiler.Profile.MethodStats;
 import de.codesourcery.toyprofiler.ProfileContainer;
-import net.openhft.koloboke.collect.map.hash.HashIntObjMap;
-import net.openhft.koloboke.collect.map.hash.HashIntObjMaps;
+import net.openhft.koloboke.collect.map.hash.HashIntIntMap;
+import net.openhft.koloboke.collect.map.hash.HashIntIntMaps;
 
 public class XMLSerializer implements IProfileIOAdapter
 {
-    private MethodStats readMethodStats(XMLStreamReader reader) throws XMLStreamException
+    public static final String ROOT_ELEMENT = "profilingResults";
+
+    private MethodStats readMethodStats(XMLStreamReader reader,HashIntIntMap methodIds) throws XMLStreamException
     {
-        final int method = Integer.parseInt( readAttribute( "methodNameId" , reader ) );
-        final MethodStats stats = new MethodStats(method);
+        final int fileId = Integer.parseInt( readAttribute( "methodNameId" , reader ) );
+        final MethodStats stats = new MethodStats( methodIds.getOrDefault( fileId , fileId ) );
 
         stats.setInvocationCount( Long.parseLong( readAttribute("invocations",reader ) ) );
         stats.setTotalTimeMillis( Float.parseFloat( readAttribute("totalTime",reader ) ) );
         return stats;
     }
 
-    private void save(MethodStats stats,XMLStreamWriter writer) throws XMLStreamException
+    private void save(MethodStats root,XMLStreamWriter writer) throws XMLStreamException
+    {
+        // iterative depth-first traversal so that deep call trees
+        // cannot overflow the (shutdown hook) thread's stack
+        final Deque<Iterator<MethodStats>> stack = new ArrayDeque<>();
+        writeStartElement( root , writer );
+        stack.push( root.getCallees().values().iterator() );
+        while ( ! stack.isEmpty() )
+        {
+            final Iterator<MethodStats> it = stack.peek();
+            if ( it.hasNext() )
+            {
+                final MethodStats child = it.next();
+                writeStartElement( child , writer );
+                stack.push( child.getCallees().values().iterator() );
+            }
+            else
+            {
+                writer.writeEndElement();
+                stack.pop();
+            }
+        }
+    }
+
+    private static void writeStartElement(MethodStats stats,XMLStreamWriter writer) throws XMLStreamException
     {
         writer.writeStartElement("invocation");
         writer.writeAttribute( "methodNameId" , Integer.toString( stats.getMethodId() ) );
         writer.writeAttribute( "invocations" , Long.toString( stats.getInvocationCount() ) );
         writer.writeAttribute( "totalTime" , Float.toString( stats.getTotalTimeMillisRaw() ) );
-        for ( MethodStats s : stats.getCallees().values() )
-        {
-            save( s , writer );
-        }
-        writer.writeEndElement();
     }
 
     protected static final String readAttribute(String attrName,XMLStreamReader reader)
@@ -75,7 +106,21 @@ public class XMLSerializer implements IProfileIOAdapter
         return value;
     }
 
-    private Profile readProfile(XMLStreamReader reader) throws XMLStreamException
+    /**
+     * Registers a method read from the file under its content-addressed ID.
+     *
+     * @param fileId ID of the method in the file
+     * @param name
+     * @param methods
+     * @param methodIds map to store the file ID -&gt; content-addressed ID mapping in
+     */
+    private static void readMethodName(int fileId,String name,ClassMethodsContainer methods,HashIntIntMap methodIds)
+    {
+        final MethodIdentifier method = methods.registerWithContentId( MethodIdentifier.fromString( fileId , name ) );
+        methodIds.put( fileId , method.id );
+    }
+
+    private Profile readProfile(XMLStreamReader reader,HashIntIntMap methodIds) throws XMLStreamException
     {
         final String threadName=readAttribute("threadName",reader);
         final Profile profile = new Profile( threadName );
@@ -91,7 +136,7 @@ public class XMLSerializer implements IProfileIOAdapter
                 case XMLStreamReader.START_ELEMENT:
                     if ( "invocation".equals( reader.getLocalName() ) )
                     {
-                        final MethodStats stats = readMethodStats( reader );
+                        final MethodStats stats = readMethodStats( reader , methodIds );
                         if ( profile.getTopLevelMethod() == null ) {
                             profile.setTopLevelMethod( stats );
                         }
@@ -118,6 +163,278 @@ public class XMLSerializer implements IProfileIOAdapter
         return profile;
     }
 
+    /**
+     * Loads a profile file by first scanning it for <code>&lt;profile&gt;</code> element boundaries
+     * and then parsing the individual thread profiles concurrently.
+     *
+     * The method name table is parsed upfront and only read afterwards.
+     */
+    @Override
+    public ProfileContainer load(File file) throws IOException
+    {
+        if ( ProfileFiles.isCompressed( file ) ) {
+            return IProfileIOAdapter.super.load( file );
+        }
+
+        final long start = System.currentTimeMillis();
+        try ( RandomAccessFile raf = new RandomAccessFile( file , "r" ) ; FileChannel channel = raf.getChannel() )
+        {
+            final FragmentScanner scanner = new FragmentScanner();
+            scanner.scan( channel );
+            if ( ! scanner.isValid() )
+            {
+                System.out.println("Unexpected file structure, falling back to sequential loading of "+file.getAbsolutePath());
+                return IProfileIOAdapter.super.load( file );
+            }
+
+            final ClassMethodsContainer methods = new ClassMethodsContainer();
+            final HashIntIntMap methodIds = HashIntIntMaps.newMutableMap( 2000 );
+            parseFragment( map( channel , scanner.methodNamesStart , scanner.methodNamesEnd ) , reader ->
+            {
+                while ( reader.hasNext() )
+                {
+                    if ( reader.next() == XMLStreamReader.START_ELEMENT && "methodName".equals( reader.getLocalName() ) )
+                    {
+                        final int id = Integer.parseInt( readAttribute( "id" , reader ) );
+                        final String name = readAttribute( "name" , reader );
+                        readMethodName( id , name , methods , methodIds );
+                    }
+                }
+                return null;
+            });
+
+            final List<ForkJoinTask<Profile>> tasks = new ArrayList<>();
+            for ( int i = 0 ; i < scanner.profileStarts.size() ; i++ )
+            {
+                final ByteBuffer fragment = map( channel , scanner.profileStarts.get(i) , scanner.profileEnds.get(i) );
+                tasks.add( ForkJoinPool.commonPool().submit( () -> parseFragment( fragment , reader ->
+                {
+                    while ( reader.hasNext() )
+                    {
+                        if ( reader.next() == XMLStreamReader.START_ELEMENT && "profile".equals( reader.getLocalName() ) ) {
+                            return readProfile( reader , methodIds );
+                        }
+                    }
+                    throw new XMLStreamException("Found no <profile/> element");
+                })));
+            }
+
+            final List<Profile> result = new ArrayList<>();
+            for ( ForkJoinTask<Profile> task : tasks )
+            {
+                try {
+                    result.add( task.join() );
+                }
+                catch(RuntimeException e)
+                {
+                    // join() re-throws a copy of the exception that wraps the task's exception
+                    for ( Throwable cause = e.getCause() ; cause != null ; cause = cause.getCause() )
+                    {
+                        if ( cause instanceof IOException ) {
+                            throw (IOException) cause;
+                        }
+                    }
+                    throw e;
+                }
+            }
+            System.out.println("Loaded "+result.size()+" profiles from "+file.getAbsolutePath()+" in "+(System.currentTimeMillis()-start)+" ms");
+            return new ProfileContainer( result , methods );
+        }
+    }
+
+    static ByteBuffer map(FileChannel channel,long start,long end) throws IOException
+    {
+        if ( end - start > Integer.MAX_VALUE ) {
+            throw new IOException("XML fragment too large: "+(end-start)+" bytes");
+        }
+        return channel.map( MapMode.READ_ONLY , start , end - start );
+    }
+
+    @FunctionalInterface
+    private interface IFragmentParser<T>
+    {
+        public T parse(XMLStreamReader reader) throws XMLStreamException;
+    }
+
+    private static <T> T parseFragment(ByteBuffer fragment,IFragmentParser<T> parser) throws IOException
+    {
+        XMLStreamReader reader = null;
+        try
+        {
+            reader = XMLInputFactory.newFactory().createXMLStreamReader( new ByteBufferInputStream( fragment ) , "UTF-8" );
+            return parser.parse( reader );
+        }
+        catch (XMLStreamException e)
+        {
+            throw new IOException(e);
+        }
+        finally
+        {
+            if ( reader != null )
+            {
+                try { reader.close(); } catch(XMLStreamException e) { /* ok */ }
+            }
+        }
+    }
+
+    /**
+     * Locates the byte ranges of the <code>&lt;methodNames&gt;</code> element and all <code>&lt;profile&gt;</code> elements.
+     *
+     * @see ProfileIndex
+     */
+    static final class FragmentScanner
+    {
+        private static final int BUFFER_SIZE = 1024*1024;
+        private static final int MAX_NAME_LENGTH = 16;
+
+        public long methodNamesStart = -1;
+        public long methodNamesEnd = -1;
+        public final List<Long> profileStarts = new ArrayList<>();
+        public final List<Long> profileEnds = new ArrayList<>();
+
+        private boolean valid = true;
+
+        public void scan(FileChannel channel) throws IOException
+        {
+            final ByteBuffer buffer = ByteBuffer.allocateDirect( BUFFER_SIZE );
+            final byte[] name = new byte[ MAX_NAME_LENGTH ];
+
+            long offset = 0;
+            long tagStart = -1;
+            int nameLength = -1; // -1 = outside of tag, >= 0 = collecting tag name
+            boolean inTag = false;
+            boolean inQuotes = false;
+            byte quoteChar = 0;
+            byte previous = 0;
+            String tagName = null;
+
+            buffer.limit( 0 );
+            while ( true )
+            {
+                if ( ! buffer.hasRemaining() )
+                {
+                    buffer.clear();
+                    if ( channel.read( buffer , offset ) <= 0 ) {
+                        break;
+                    }
+                    buffer.flip();
+                }
+                final byte b = buffer.get();
+                if ( inQuotes )
+                {
+                    if ( b == quoteChar ) {
+                        inQuotes = false;
+                    }
+                }
+                else if ( b == '<' )
+                {
+                    tagStart = offset;
+                    nameLength = 0;
+                    inTag = true;
+                    tagName = null;
+                }
+                else if ( inTag )
+                {
+                    if ( nameLength >= 0 )
+                    {
+                        if ( b == ' ' || b == '\t' || b == '\r' || b == '\n' || b == '>' || ( b == '/' && nameLength > 0 ) )
+                        {
+                            tagName = new String( name , 0 , nameLength , "UTF-8" );
+                            nameLength = -1;
+                        }
+                        else if ( nameLength < MAX_NAME_LENGTH ) {
+                            name[ nameLength++ ] = b;
+                        } else {
+                            nameLength = -1; // not a tag we're interested in
+                        }
+                    }
+                    if ( b == '"' || b == '\'' )
+                    {
+                        inQuotes = true;
+                        quoteChar = b;
+                    }
+                    else if ( b == '>' )
+                    {
+                        inTag = false;
+                        if ( tagName != null ) {
+                            tagFound( tagName , tagStart , offset+1 , previous == '/' );
+                        }
+                    }
+                }
+                previous = b;
+                offset++;
+            }
+            valid &= methodNamesStart != -1 && methodNamesEnd != -1 && profileStarts.size() == profileEnds.size();
+        }
+
+        private void tagFound(String tagName,long start,long end,boolean selfClosing)
+        {
+            switch( tagName )
+            {
+                case "methodNames":
+                    methodNamesStart = start;
+                    if ( selfClosing ) {
+                        methodNamesEnd = end;
+                    }
+                    break;
+                case "/methodNames":
+                    methodNamesEnd = end;
+                    break;
+                case "profile":
+                    if ( profileStarts.size() != profileEnds.size() ) {
+                        valid = false;
+                    }
+                    profileStarts.add( start );
+                    if ( selfClosing ) {
+                        profileEnds.add( end );
+                    }
+                    break;
+                case "/profile":
+                    if ( profileStarts.size() != profileEnds.size()+1 ) {
+                        valid = false;
+                    }
+                    profileEnds.add( end );
+                    break;
+                default:
+            }
+        }
+
+        public boolean isValid() {
+            return valid;
+        }
+    }
+
+    static final class ByteBufferInputStream extends InputStream
+    {
+        private final ByteBuffer buffer;
+
+        public ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read()
+        {
+            return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len)
+        {
+            if ( ! buffer.hasRemaining() ) {
+                return -1;
+            }
+            final int count = Math.min( len , buffer.remaining() );
+            buffer.get( b , off , count );
+            return count;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+    }
+
     /* (non-Javadoc)
      * @see de.codesourcery.toyprofiler.util.IProfileIOAdapter#load(java.io.InputStream)
      */
@@ -126,13 +443,14 @@ public class XMLSerializer implements IProfileIOAdapter
     {
         final List<Profile> result = new ArrayList<>();
 
-        final HashIntObjMap<MethodIdentifier> methodNameMap = HashIntObjMaps.newMutableMap( 2000 );
+        final ClassMethodsContainer methods = new ClassMethodsContainer();
+        final HashIntIntMap methodIds = HashIntIntMaps.newMutableMap( 2000 );
 
         XMLStreamReader reader = null;
         try
         {
             final XMLInputFactory factory = XMLInputFactory.newFactory();
-            reader = factory.createXMLStreamReader( in );
+            reader = factory.createXMLStreamReader( ProfileFiles.decompressIfNecessary( in ) );
 
             while ( reader.hasNext() )
             {
@@ -143,11 +461,11 @@ public class XMLSerializer implements IProfileIOAdapter
                         {
                             final int id = Integer.parseInt( readAttribute( "id" , reader ) );
                             final String name = readAttribute( "name" , reader );
-                            methodNameMap.put(id, MethodIdentifier.fromString( id , name ) );
+                            readMethodName( id , name , methods , methodIds );
                         }
                         else if ( "profile".equals( reader.getLocalName() ) )
                         {
-                            result.add( readProfile( reader ) );
+                            result.add( readProfile( reader , methodIds ) );
                         }
                         break;
                     case XMLStreamReader.END_ELEMENT:
@@ -166,7 +484,7 @@ public class XMLSerializer implements IProfileIOAdapter
                 try { reader.close(); } catch(XMLStreamException e) { /* ok */ }
             }
         }
-        return new ProfileContainer( result , new ClassMethodsContainer( methodNameMap ) );
+        return new ProfileContainer( result , methods );
     }
 
     /* (non-Javadoc)
@@ -180,10 +498,10 @@ public class XMLSerializer implements IProfileIOAdapter
         try
         {
             final XMLOutputFactory factory = XMLOutputFactory.newFactory();
-            writer = factory.createXMLStreamWriter( out );
+            writer = factory.createXMLStreamWriter( out , "UTF-8" );
             writer.writeStartDocument("UTF-8", "1.0" );
 
-            writer.writeStartElement("profilingResults");  // <profilingResults>
+            writer.writeStartElement( ROOT_ELEMENT );  // <profilingResults>
 
             writer.writeStartElement("methodNames"); // <methodNames>
 
@@ -229,6 +547,7 @@ public class XMLSerializer implements IProfileIOAdapter
             writer.writeEndElement(); // </profilingResults>
 
             writer.writeEndDocument();
+            writer.flush();
             writer.close();
             success = true;
         }
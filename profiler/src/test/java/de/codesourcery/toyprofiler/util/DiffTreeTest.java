@@ -0,0 +1,239 @@
+package de.codesourcery.toyprofiler.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+import de.codesourcery.toyprofiler.ClassMethodsContainer;
+import de.codesourcery.toyprofiler.Profile;
+import de.codesourcery.toyprofiler.Profile.MethodIdentifier;
+import de.codesourcery.toyprofiler.Profile.MethodStats;
+import de.codesourcery.toyprofiler.ProfileContainer;
+import de.codesourcery.toyprofiler.util.DiffTree.Node;
+import de.codesourcery.toyprofiler.util.DiffTree.Status;
+
+public class DiffTreeTest
+{
+    @Test
+    public void testAlignment()
+    {
+        final ProfileContainer current = profile( "run;a" , 2f , "run;a;b" , 1f , "run;c" , 3f );
+        final ProfileContainer previous = profile( "run;a" , 1f , "run;a;d" , 4f , "run;c" , 3f );
+        final DiffTree diff = DiffTree.compare( main( current ) , current , main( previous ) , previous );
+
+        assertEquals( 1 , diff.getRoots().size() );
+        final Node root = diff.getRoots().get(0);
+        assertEquals( Status.MATCHED , root.status );
+        assertEquals( 6f , root.currentTotalTimeMillis , 0.0001 );
+        assertEquals( 8f , root.previousTotalTimeMillis , 0.0001 );
+
+        final Map<String,Node> nodes = byName( current , previous , root );
+        assertEquals( 5 , nodes.size() );
+        assertEquals( Status.MATCHED , nodes.get( "run/a" ).status );
+        assertEquals( Status.MATCHED , nodes.get( "run/c" ).status );
+        assertEquals( Status.ADDED , nodes.get( "run/a/b" ).status );
+        assertEquals( Status.REMOVED , nodes.get( "run/a/d" ).status );
+        assertEquals( 1f , nodes.get( "run/a/b" ).currentTotalTimeMillis , 0.0001 );
+        assertEquals( 0f , nodes.get( "run/a/b" ).previousTotalTimeMillis , 0.0001 );
+        assertEquals( -1 , nodes.get( "run/a/b" ).previousMethodId );
+        assertEquals( 4f , nodes.get( "run/a/d" ).previousTotalTimeMillis , 0.0001 );
+        assertNull( nodes.get( "run/a/d" ).current );
+
+        // lookup by current node
+        final MethodStats a = main( current ).getTopLevelMethod().getCallees().get( methodId( "a" ) );
+        assertSame( nodes.get( "run/a" ) , diff.get( a ) );
+        assertSame( root , diff.get( main( current ).getTopLevelMethod() ) );
+        assertNull( diff.get( main( previous ).getTopLevelMethod().getCallees().get( methodId( "a" ) ).getCallees().get( methodId( "d" ) ) ) );
+    }
+
+    @Test
+    public void testSameContainer()
+    {
+        final ProfileContainer container = profile( "run;a" , 2f );
+        final Profile previous = new Profile( "main" );
+        final MethodStats root = new MethodStats( methodId( "run" ) );
+        root.setTotalTimeMillis( 5 );
+        previous.setTopLevelMethod( root );
+
+        final DiffTree diff = DiffTree.compare( main( container ) , previous );
+        final Node diffRoot = diff.getRoots().get(0);
+        assertTrue( diffRoot.isMatched() );
+        assertEquals( 1 , diffRoot.getChildren().size() );
+        assertEquals( Status.ADDED , diffRoot.getChildren().get(0).status );
+    }
+
+    @Test
+    public void testRemovedNodesUseCurrentIds()
+    {
+        final ProfileContainer current = profile( "run;a" , 1f , "run;d" , 1f );
+
+        // in the previous profile, another method occupied d's content ID
+        final ClassMethodsContainer previousMethods = new ClassMethodsContainer();
+        previousMethods.registerMethod( new MethodIdentifier( methodId( "d" ) , "demo/Other" , "collides" , "()V" ) );
+        final int run = previousMethods.registerWithContentId( method( "run" ) ).id;
+        final int d = previousMethods.registerWithContentId( method( "d" ) ).id;
+        final int unknown = previousMethods.registerWithContentId( method( "unknown" ) ).id;
+        assertTrue( d != methodId( "d" ) );
+
+        final MethodStats root = new MethodStats( run );
+        root.setTotalTimeMillis( 10 );
+        final MethodStats nodeD = new MethodStats( d , root );
+        nodeD.setTotalTimeMillis( 2 );
+        root.getCallees().put( d , nodeD );
+        final MethodStats collides = new MethodStats( methodId( "d" ) , nodeD );
+        nodeD.getCallees().put( methodId( "d" ) , collides );
+        final MethodStats removed = new MethodStats( unknown , root );
+        root.getCallees().put( unknown , removed );
+        final Profile previous = new Profile( "main" );
+        previous.setTopLevelMethod( root );
+
+        // compare with "run;d" removed from the current profile
+        final ProfileContainer currentWithoutD = profile( "run;a" , 1f );
+        final DiffTree diff = DiffTree.compare( main( currentWithoutD ) , currentWithoutD , previous , previousMethods );
+        final Map<Integer,Node> byPreviousId = new HashMap<>();
+        for ( Node child : diff.getRoots().get(0).getChildren() ) {
+            byPreviousId.put( child.previousMethodId , child );
+        }
+        final Node removedD = byPreviousId.get( d );
+        assertEquals( Status.REMOVED , removedD.status );
+        assertEquals( "Method unknown to the current profile" , -1 , removedD.methodId );
+        assertEquals( Status.REMOVED , byPreviousId.get( unknown ).status );
+        assertEquals( -1 , byPreviousId.get( unknown ).methodId );
+
+        // now the current profile knows d
+        final DiffTree diff2 = DiffTree.compare( main( current ) , current , previous , previousMethods );
+        final Map<String,Node> nodes = byName( current , previousMethods , diff2.getRoots().get(0) );
+        assertEquals( Status.MATCHED , nodes.get( "run/d" ).status );
+        assertEquals( methodId( "d" ) , nodes.get( "run/d" ).methodId );
+        assertEquals( d , nodes.get( "run/d" ).previousMethodId );
+
+        final Node removedCollides = nodes.get( "run/d/collides" );
+        assertEquals( Status.REMOVED , removedCollides.status );
+        assertEquals( methodId( "d" ) , removedCollides.previousMethodId );
+        assertEquals( -1 , removedCollides.methodId );
+        assertEquals( -1 , nodes.get( "run/unknown" ).methodId );
+    }
+
+    @Test
+    public void testDifferentRoots()
+    {
+        final ProfileContainer current = profile( "run;a" , 1f );
+        final ProfileContainer previous = profile( "b;a" , 2f );
+        final DiffTree diff = DiffTree.compare( main( current ) , current , main( previous ) , previous );
+
+        assertEquals( 2 , diff.getRoots().size() );
+        final Node added = diff.getRoots().get(0);
+        final Node removed = diff.getRoots().get(1);
+        assertEquals( Status.ADDED , added.status );
+        assertEquals( methodId( "run" ) , added.methodId );
+        assertEquals( Status.ADDED , added.getChildren().get(0).status );
+        assertEquals( Status.REMOVED , removed.status );
+        assertEquals( "Method unknown to the current profile" , -1 , removed.methodId );
+        assertEquals( methodId( "b" ) , removed.previousMethodId );
+        assertEquals( 2f , removed.previousTotalTimeMillis , 0.0001 );
+        assertEquals( Status.REMOVED , removed.getChildren().get(0).status );
+        assertSame( added , diff.get( main( current ).getTopLevelMethod() ) );
+    }
+
+    @Test
+    public void testEmptyProfiles()
+    {
+        final Profile empty = new Profile( "main" );
+        assertTrue( DiffTree.compare( empty , new Profile( "main" ) ).getRoots().isEmpty() );
+
+        final ProfileContainer container = profile( "run;a" , 1f );
+        final DiffTree added = DiffTree.compare( main( container ) , empty );
+        assertEquals( 1 , added.getRoots().size() );
+        assertEquals( Status.ADDED , added.getRoots().get(0).status );
+        assertEquals( Status.ADDED , added.getRoots().get(0).getChildren().get(0).status );
+
+        final DiffTree removed = DiffTree.compare( empty , main( container ) );
+        assertEquals( 1 , removed.getRoots().size() );
+        assertEquals( Status.REMOVED , removed.getRoots().get(0).status );
+        assertEquals( methodId( "run" ) , removed.getRoots().get(0).methodId );
+    }
+
+    @Test
+    public void testDeepTree()
+    {
+        final int depth = 20000;
+        final ProfileContainer current = TreeAssert.deepProfile( depth );
+        final ProfileContainer previous = TreeAssert.deepProfile( depth );
+        final DiffTree diff = DiffTree.compare( main( current ) , current , main( previous ) , previous );
+
+        int count = 0;
+        for ( Node node = diff.getRoots().get(0) ; node != null ; count++ )
+        {
+            assertTrue( node.isMatched() );
+            node = node.getChildren().isEmpty() ? null : node.getChildren().get(0);
+        }
+        assertEquals( depth , count );
+
+        MethodStats leaf = main( current ).getTopLevelMethod();
+        while ( leaf.hasChildren() ) {
+            leaf = leaf.getCallees().values().iterator().next();
+        }
+        assertNotNull( diff.get( leaf ) );
+    }
+
+    /**
+     * Creates a profile for thread 'main' from pairs of ';'-separated method names and self times.
+     */
+    private static ProfileContainer profile(Object... stacksAndTimes)
+    {
+        final CallTreeBuilder builder = new CallTreeBuilder();
+        for ( int i = 0 ; i < stacksAndTimes.length ; i += 2 )
+        {
+            final String[] names = ((String) stacksAndTimes[i]).split(";");
+            final int[] stack = new int[ names.length ];
+            for ( int j = 0 ; j < names.length ; j++ ) {
+                stack[j] = builder.methodId( "demo/Demo" , names[j] , "()V" , -1 );
+            }
+            CallTreeBuilder.addWeight( builder.addStack( "main" , stack , stack.length ) , (Float) stacksAndTimes[i+1] , 1 );
+        }
+        return builder.build();
+    }
+
+    private static Profile main(ProfileContainer container) {
+        return container.getProfileForThread( "main" ).get();
+    }
+
+    private static MethodIdentifier method(String name) {
+        return new MethodIdentifier( 0 , "demo/Demo" , name , "()V" );
+    }
+
+    private static int methodId(String name) {
+        return MethodIdentifier.contentId( "demo/Demo" , name , "()V" , -1 );
+    }
+
+    /**
+     * Returns all diff nodes by their '<code>method/method/...</code>' path.
+     */
+    private static Map<String,Node> byName(ProfileContainer current,ClassMethodsContainer previousMethods,Node root) {
+        final Map<String,Node> result = new HashMap<>();
+        collect( current , previousMethods , root , "" , result );
+        return result;
+    }
+
+    private static Map<String,Node> byName(ProfileContainer current,ProfileContainer previous,Node root) {
+        return byName( current , previous.getMethodContainer() , root );
+    }
+
+    private static void collect(ProfileContainer current,ClassMethodsContainer previousMethods,Node node,String prefix,Map<String,Node> result)
+    {
+        final String name = node.current != null ? current.getRawMethodName( node.current.getMethodId() ).methodName :
+            previousMethods.getRawMethodName( node.previous.getMethodId() ).methodName;
+        final String path = prefix.isEmpty() ? name : prefix+"/"+name;
+        result.put( path , node );
+        for ( Node child : node.getChildren() ) {
+            collect( current , previousMethods , child , path , result );
+        }
+    }
+}
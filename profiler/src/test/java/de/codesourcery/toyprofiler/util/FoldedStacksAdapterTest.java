@@ -0,0 +1,191 @@
+package de.codesourcery.toyprofiler.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+import de.codesourcery.toyprofiler.IClassMethodsContainer;
+import de.codesourcery.toyprofiler.Profile;
+import de.codesourcery.toyprofiler.Profile.MethodIdentifier;
+import de.codesourcery.toyprofiler.Profile.MethodStats;
+import de.codesourcery.toyprofiler.ProfileContainer;
+import de.codesourcery.toyprofiler.util.FoldedStacksAdapter.Weight;
+
+public class FoldedStacksAdapterTest
+{
+    @Test
+    public void testTimeWeightsRoundTrip() throws IOException
+    {
+        final ProfileContainer expected = TreeAssert.sampleProfiles();
+        for ( Weight weight : new Weight[] { Weight.SELF_TIME , Weight.TOTAL_TIME } )
+        {
+            final ProfileContainer actual = roundTrip( expected , new FoldedStacksAdapter( weight , true ) , new FoldedStacksAdapter() );
+            final Map<String,MethodStats> expectedPaths = paths( expected );
+            final Map<String,MethodStats> actualPaths = paths( actual );
+            assertEquals( weight+": paths" , expectedPaths.keySet() , actualPaths.keySet() );
+            for ( Map.Entry<String,MethodStats> entry : expectedPaths.entrySet() )
+            {
+                assertEquals( weight+": total time of "+entry.getKey() , entry.getValue().getTotalTimeMillis() ,
+                        actualPaths.get( entry.getKey() ).getTotalTimeMillis() , 0.001 );
+            }
+        }
+    }
+
+    @Test
+    public void testInvocationsRoundTrip() throws IOException
+    {
+        final ProfileContainer expected = TreeAssert.sampleProfiles();
+        // the header must take precedence over the weight of the reading adapter
+        final ProfileContainer actual = roundTrip( expected , new FoldedStacksAdapter( Weight.INVOCATIONS , true ) , new FoldedStacksAdapter( Weight.TOTAL_TIME , true ) );
+        final Map<String,MethodStats> expectedPaths = paths( expected );
+        final Map<String,MethodStats> actualPaths = paths( actual );
+        assertEquals( expectedPaths.keySet() , actualPaths.keySet() );
+        for ( Map.Entry<String,MethodStats> entry : expectedPaths.entrySet() ) {
+            assertEquals( "Invocations of "+entry.getKey() , entry.getValue().getInvocationCount() , actualPaths.get( entry.getKey() ).getInvocationCount() );
+        }
+    }
+
+    @Test
+    public void testWithoutThreadNames() throws IOException
+    {
+        final ProfileContainer actual = roundTrip( TreeAssert.sampleProfiles() , new FoldedStacksAdapter( Weight.SELF_TIME , false ) , new FoldedStacksAdapter() );
+        assertEquals( 1 , actual.size() );
+        assertEquals( FoldedStacksAdapter.DEFAULT_THREAD_NAME , actual.getProfiles().get(0).getThreadName() );
+        // both threads share the same root method, so their stacks got merged
+        assertEquals( 1.5f + 2f + 0.25f + 1f + 4f , actual.getProfiles().get(0).getTopLevelMethod().getTotalTimeMillis() , 0.001 );
+    }
+
+    @Test
+    public void testForeignFileWithoutHeader() throws IOException
+    {
+        final ProfileContainer container = load( new FoldedStacksAdapter() ,
+            "java.lang.Thread.run;demo.Demo.a_[j];demo/Other::c 1000\n"+
+            "\n"+
+            "# a comment\n"+
+            "java.lang.Thread.run;demo.Demo.a_[j] 500\n"+
+            "java.lang.Thread.run 250\n" );
+
+        assertEquals( 1 , container.size() );
+        final Map<String,MethodStats> paths = paths( container );
+        assertEquals( 1.75 , paths.get( "folded stacks;java/lang/Thread.run" ).getTotalTimeMillis() , 0.001 );
+        assertEquals( 1.5 , paths.get( "folded stacks;java/lang/Thread.run;demo/Demo.a" ).getTotalTimeMillis() , 0.001 );
+        assertEquals( 1 , paths.get( "folded stacks;java/lang/Thread.run;demo/Demo.a;demo/Other.c" ).getTotalTimeMillis() , 0.001 );
+    }
+
+    @Test
+    public void testForeignFileUsesAdapterWeight() throws IOException
+    {
+        final ProfileContainer container = load( new FoldedStacksAdapter( Weight.INVOCATIONS , true ) , "[main];a.b;a.c 3\n[main];a.b 2\n" );
+        final Map<String,MethodStats> paths = paths( container );
+        assertEquals( 2 , paths.get( "main;a.b" ).getInvocationCount() );
+        assertEquals( 3 , paths.get( "main;a.b;a.c" ).getInvocationCount() );
+    }
+
+    @Test
+    public void testEmptyInput() throws IOException
+    {
+        assertTrue( load( new FoldedStacksAdapter() , "" ).isEmpty() );
+        assertTrue( load( new FoldedStacksAdapter() , "# toyprofiler weight=TOTAL_TIME\n" ).isEmpty() );
+    }
+
+    @Test
+    public void testDeepStackRoundTrip() throws IOException
+    {
+        final int depth = 10000;
+        final ProfileContainer actual = roundTrip( TreeAssert.deepProfile( depth ) , new FoldedStacksAdapter( Weight.SELF_TIME , true ) , new FoldedStacksAdapter() );
+        assertEquals( depth , TreeAssert.depth( actual.getProfiles().get(0).getTopLevelMethod() ) );
+    }
+
+    @Test
+    public void testMalformedInput() throws IOException
+    {
+        for ( String input : new String[] { "a.b;a.c\n" , "a.b;a.c 12x\n" , "# toyprofiler weight=bogus\na.b 1\n" , " 12\n" } )
+        {
+            try
+            {
+                load( new FoldedStacksAdapter() , input );
+                fail("Should have failed: "+input);
+            }
+            catch(IOException e) {
+                // ok
+            }
+        }
+    }
+
+    @Test
+    public void testParseWeight()
+    {
+        assertEquals( Weight.TOTAL_TIME , Weight.parse( "total-time" ) );
+        assertEquals( Weight.SELF_TIME , Weight.parse( " Self_Time " ) );
+        assertEquals( Weight.INVOCATIONS , Weight.parse( "INVOCATIONS" ) );
+        try
+        {
+            Weight.parse( "time" );
+            fail("Should have failed");
+        }
+        catch(IllegalArgumentException e) {
+            // ok
+        }
+    }
+
+    private static ProfileContainer roundTrip(ProfileContainer container,FoldedStacksAdapter writer,FoldedStacksAdapter reader) throws IOException
+    {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writer.save( container.getMethodContainer() , container.getProfiles() , out );
+        return reader.load( new ByteArrayInputStream( out.toByteArray() ) );
+    }
+
+    private static ProfileContainer load(FoldedStacksAdapter adapter,String input) throws IOException {
+        return adapter.load( new ByteArrayInputStream( input.getBytes( StandardCharsets.UTF_8 ) ) );
+    }
+
+    /**
+     * Returns all nodes by their '<code>thread;class.method;...</code>' path, the only
+     * information that survives the folded format.
+     */
+    private static Map<String,MethodStats> paths(ProfileContainer container)
+    {
+        final Map<String,MethodStats> result = new HashMap<>();
+        for ( Profile profile : container )
+        {
+            if ( profile.getTopLevelMethod() == null ) {
+                continue;
+            }
+            final Deque<MethodStats> nodes = new ArrayDeque<>();
+            final Deque<String> prefixes = new ArrayDeque<>();
+            nodes.push( profile.getTopLevelMethod() );
+            prefixes.push( profile.getThreadName() );
+            while ( ! nodes.isEmpty() )
+            {
+                final MethodStats node = nodes.pop();
+                final String path = prefixes.pop()+";"+frame( container , node );
+                assertTrue( "Duplicate path "+path , result.put( path , node ) == null );
+                for ( MethodStats callee : node.getCallees().values() )
+                {
+                    nodes.push( callee );
+                    prefixes.push( path );
+                }
+            }
+        }
+        return result;
+    }
+
+    private static String frame(IClassMethodsContainer methods,MethodStats node)
+    {
+        final MethodIdentifier method = methods.getRawMethodName( node.getMethodId() );
+        assertNotNull( method );
+        return method.className+"."+method.methodName;
+    }
+}
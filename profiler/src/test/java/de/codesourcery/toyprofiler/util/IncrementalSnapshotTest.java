@@ -0,0 +1,257 @@
+package de.codesourcery.toyprofiler.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.Test;
+
+import de.codesourcery.toyprofiler.ClassMethodsContainer;
+import de.codesourcery.toyprofiler.Profile;
+import de.codesourcery.toyprofiler.Profile.MethodIdentifier;
+import de.codesourcery.toyprofiler.Profile.MethodStats;
+import de.codesourcery.toyprofiler.ProfileContainer;
+import de.codesourcery.toyprofiler.util.IncrementalSnapshot.Decoder;
+import de.codesourcery.toyprofiler.util.IncrementalSnapshot.Encoder;
+
+public class IncrementalSnapshotTest
+{
+    @Test
+    public void testFullSnapshot() throws IOException
+    {
+        final ProfileContainer container = TreeAssert.sampleProfiles();
+        final Decoder decoder = new Decoder();
+        assertTrue( decoder.apply( new Encoder().encode( decoder.getSequence() , container.getProfiles() , container ) ) );
+        assertEquals( 1 , decoder.getSequence() );
+        TreeAssert.assertSameProfiles( container , decoder.toContainer() );
+    }
+
+    @Test
+    public void testIncrementalSnapshots() throws IOException
+    {
+        final ProfileContainer container = TreeAssert.sampleProfiles();
+        final ClassMethodsContainer methods = container.getMethodContainer();
+        final List<Profile> profiles = container.getProfiles();
+        final Encoder encoder = new Encoder();
+        final Decoder decoder = new Decoder();
+        final byte[] full = encoder.encode( decoder.getSequence() , profiles , methods );
+        decoder.apply( full );
+
+        // nothing changed
+        final byte[] empty = encoder.encode( decoder.getSequence() , profiles , methods );
+        assertFalse( decoder.apply( empty ) );
+        assertEquals( 2 , decoder.getSequence() );
+
+        // one changed node, one new callee calling a new method
+        final MethodStats root = container.getProfileForThread( "main" ).get().getTopLevelMethod();
+        final MethodStats child = root.getCallees().values().iterator().next();
+        child.setInvocationCount( child.getInvocationCount() + 5 );
+        child.setTotalTimeMillis( child.getTotalTimeMillisRaw() + 10 );
+        final int newMethod = methods.registerWithContentId( new MethodIdentifier( 0 , "demo/Demo" , "added" , "()V" ) ).id;
+        final MethodStats added = new MethodStats( newMethod , child );
+        added.setInvocationCount( 3 );
+        added.setTotalTimeMillis( 7 );
+        child.getCallees().put( newMethod , added );
+
+        final byte[] delta = encoder.encode( decoder.getSequence() , profiles , methods );
+        assertTrue( delta.length < full.length );
+        assertTrue( decoder.apply( delta ) );
+        assertEquals( 3 , decoder.getSequence() );
+        final ProfileContainer result = decoder.toContainer();
+        TreeAssert.assertSameProfiles( container , result );
+        assertEquals( "added" , result.getMethodContainer().getRawMethodName( newMethod ).methodName );
+    }
+
+    @Test
+    public void testResultIsIndependentOfLaterSnapshots() throws IOException
+    {
+        final ProfileContainer container = TreeAssert.sampleProfiles();
+        final Encoder encoder = new Encoder();
+        final Decoder decoder = new Decoder();
+        decoder.apply( encoder.encode( decoder.getSequence() , container.getProfiles() , container ) );
+        final ProfileContainer before = decoder.toContainer();
+        final float time = before.getProfileForThread( "main" ).get().getTopLevelMethod().getTotalTimeMillisRaw();
+
+        container.getProfileForThread( "main" ).get().getTopLevelMethod().setTotalTimeMillis( time + 100 );
+        decoder.apply( encoder.encode( decoder.getSequence() , container.getProfiles() , container ) );
+        assertEquals( time , before.getProfileForThread( "main" ).get().getTopLevelMethod().getTotalTimeMillisRaw() , 0.0001 );
+        assertEquals( time + 100 , decoder.toContainer().getProfileForThread( "main" ).get().getTopLevelMethod().getTotalTimeMillisRaw() , 0.0001 );
+    }
+
+    @Test
+    public void testMissedSnapshot() throws IOException
+    {
+        final ProfileContainer container = TreeAssert.sampleProfiles();
+        final Encoder encoder = new Encoder();
+        final Decoder decoder = new Decoder();
+        decoder.apply( encoder.encode( decoder.getSequence() , container.getProfiles() , container ) );
+
+        final MethodStats root = container.getProfileForThread( "main" ).get().getTopLevelMethod();
+        root.setInvocationCount( root.getInvocationCount() + 1 );
+        // got lost on the way
+        encoder.encode( decoder.getSequence() , container.getProfiles() , container );
+        root.setInvocationCount( root.getInvocationCount() + 1 );
+        final byte[] next = encoder.encode( 2 , container.getProfiles() , container );
+        try
+        {
+            decoder.apply( next );
+            fail("Should have failed");
+        }
+        catch(IOException e) {
+            // ok
+        }
+        assertEquals( 1 , decoder.getSequence() );
+
+        // the client asks again with its last sequence number and gets everything
+        decoder.apply( encoder.encode( decoder.getSequence() , container.getProfiles() , container ) );
+        assertEquals( 4 , decoder.getSequence() );
+        TreeAssert.assertSameProfiles( container , decoder.toContainer() );
+    }
+
+    @Test
+    public void testReplacedCallTree() throws IOException
+    {
+        final ProfileContainer container = TreeAssert.sampleProfiles();
+        final Encoder encoder = new Encoder();
+        final Decoder decoder = new Decoder();
+        decoder.apply( encoder.encode( decoder.getSequence() , container.getProfiles() , container ) );
+
+        // the thread started over with the same top-level method
+        final Profile main = container.getProfileForThread( "main" ).get();
+        final MethodStats newRoot = new MethodStats( main.getTopLevelMethod().getMethodId() );
+        newRoot.setInvocationCount( 1 );
+        newRoot.setTotalTimeMillis( 2 );
+        main.setTopLevelMethod( newRoot );
+
+        assertTrue( decoder.apply( encoder.encode( decoder.getSequence() , container.getProfiles() , container ) ) );
+        final MethodStats root = decoder.toContainer().getProfileForThread( "main" ).get().getTopLevelMethod();
+        assertEquals( 0 , root.getCallees().size() );
+        assertEquals( 2 , root.getTotalTimeMillisRaw() , 0.0001 );
+        TreeAssert.assertSameProfiles( container , decoder.toContainer() );
+    }
+
+    @Test
+    public void testRemovedThreadIsKept() throws IOException
+    {
+        final ProfileContainer container = TreeAssert.sampleProfiles();
+        final Encoder encoder = new Encoder();
+        final Decoder decoder = new Decoder();
+        decoder.apply( encoder.encode( decoder.getSequence() , container.getProfiles() , container ) );
+
+        final List<Profile> remaining = Arrays.asList( container.getProfileForThread( "main" ).get() );
+        assertFalse( decoder.apply( encoder.encode( decoder.getSequence() , remaining , container ) ) );
+        assertEquals( 2 , decoder.toContainer().size() );
+    }
+
+    @Test
+    public void testMethodRegisteredLater() throws IOException
+    {
+        final ClassMethodsContainer methods = new ClassMethodsContainer();
+        final int run = methods.registerWithContentId( new MethodIdentifier( 0 , "demo/Demo" , "run" , "()V" ) ).id;
+        final MethodStats root = new MethodStats( run );
+        root.setInvocationCount( 1 );
+        // callee entered before its method got registered
+        final int lateId = MethodIdentifier.contentId( "demo/Demo" , "late" , "()V" , -1 );
+        final MethodStats late = new MethodStats( lateId , root );
+        late.setInvocationCount( 1 );
+        root.getCallees().put( lateId , late );
+        final Profile profile = new Profile( "main" );
+        profile.setTopLevelMethod( root );
+        final List<Profile> profiles = Collections.singletonList( profile );
+
+        final Encoder encoder = new Encoder();
+        final Decoder decoder = new Decoder();
+        decoder.apply( encoder.encode( decoder.getSequence() , profiles , methods ) );
+        assertNull( decoder.toContainer().getMethodContainer().getRawMethodName( lateId ) );
+
+        methods.registerMethod( new MethodIdentifier( lateId , "demo/Demo" , "late" , "()V" ) );
+        decoder.apply( encoder.encode( decoder.getSequence() , profiles , methods ) );
+        assertNotNull( decoder.toContainer().getMethodContainer().getRawMethodName( lateId ) );
+        assertEquals( "late" , decoder.toContainer().getMethodContainer().getRawMethodName( lateId ).methodName );
+    }
+
+    @Test
+    public void testEmptyProfiles() throws IOException
+    {
+        final Encoder encoder = new Encoder();
+        final Decoder decoder = new Decoder();
+        assertTrue( decoder.apply( encoder.encode( 0 , Collections.<Profile>emptyList() , new ClassMethodsContainer() ) ) );
+        assertEquals( 0 , decoder.toContainer().size() );
+
+        // threads without a call tree yet
+        final List<Profile> profiles = Collections.singletonList( new Profile( "idle" ) );
+        assertTrue( decoder.apply( encoder.encode( decoder.getSequence() , profiles , new ClassMethodsContainer() ) ) );
+        assertEquals( 0 , decoder.toContainer().size() );
+        assertFalse( decoder.apply( encoder.encode( decoder.getSequence() , profiles , new ClassMethodsContainer() ) ) );
+    }
+
+    @Test
+    public void testDeepTree() throws IOException
+    {
+        final int depth = 20000;
+        final ProfileContainer container = TreeAssert.deepProfile( depth );
+        final Decoder decoder = new Decoder();
+        decoder.apply( new Encoder().encode( decoder.getSequence() , container.getProfiles() , container ) );
+        final ProfileContainer result = decoder.toContainer();
+        assertEquals( depth , TreeAssert.depth( result.getProfiles().get(0).getTopLevelMethod() ) );
+        TreeAssert.assertSameProfiles( container , result );
+    }
+
+    @Test
+    public void testMalformedInput() throws IOException
+    {
+        final ProfileContainer container = TreeAssert.sampleProfiles();
+        final byte[] valid = new Encoder().encode( 0 , container.getProfiles() , container );
+        final byte[][] inputs = {
+            new byte[0] ,
+            "not a snapshot".getBytes( "UTF-8" ) ,
+            Arrays.copyOf( valid , valid.length / 2 ) ,
+            gzip( 0x12345678 , 1L , true ) ,
+            // node before any thread
+            gzip( 0x544f5953 , 1L , true , (byte) 2 ) ,
+            // unknown record type
+            gzip( 0x544f5953 , 1L , true , (byte) 42 ) ,
+            // missing end marker
+            gzip( 0x544f5953 , 1L , true ) ,
+            // incremental snapshot for a client that has none
+            gzip( 0x544f5953 , 5L , false , (byte) 0 )
+        };
+        for ( byte[] input : inputs )
+        {
+            final Decoder decoder = new Decoder();
+            try
+            {
+                decoder.apply( input );
+                fail("Should have failed");
+            }
+            catch(IOException e) {
+                // ok
+            }
+            assertEquals( 0 , decoder.getSequence() );
+        }
+    }
+
+    private static byte[] gzip(int magic,long sequence,boolean full,byte... records) throws IOException
+    {
+        final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        try ( DataOutputStream out = new DataOutputStream( new GZIPOutputStream( buffer ) ) )
+        {
+            out.writeInt( magic );
+            out.writeLong( sequence );
+            out.writeBoolean( full );
+            out.write( records );
+        }
+        return buffer.toByteArray();
+    }
+}
@@ -0,0 +1,157 @@
+package de.codesourcery.toyprofiler.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Test;
+
+import de.codesourcery.toyprofiler.ClassMethodsContainer;
+import de.codesourcery.toyprofiler.Profile;
+import de.codesourcery.toyprofiler.Profile.MethodIdentifier;
+import de.codesourcery.toyprofiler.Profile.MethodStats;
+import de.codesourcery.toyprofiler.ProfileContainer;
+
+public class MethodIdMappingTest
+{
+    private static final int RUN_ID = MethodIdentifier.contentId( "demo/Demo" , "run" , "()V" , -1 );
+
+    @Test
+    public void testContentIdIsStable()
+    {
+        assertEquals( RUN_ID , MethodIdentifier.contentId( "demo/Demo" , "run" , "()V" , -1 ) );
+        assertTrue( RUN_ID > 0 );
+        assertFalse( RUN_ID == MethodIdentifier.contentId( "demo/Demo" , "run" , "()V" , 12 ) );
+        assertFalse( RUN_ID == MethodIdentifier.contentId( "demo/Demo" , "run" , "(I)V" , -1 ) );
+        assertFalse( RUN_ID == MethodIdentifier.contentId( "demo/Dem" , "orun" , "()V" , -1 ) );
+
+        // unknown line numbers are hashed the same way
+        assertEquals( RUN_ID , MethodIdentifier.contentId( "demo/Demo" , "run" , "()V" , 0 ) );
+        assertEquals( RUN_ID , new ClassMethodsContainer().allocateId( "demo/Demo" , "run" , "()V" , -1 ) );
+    }
+
+    @Test
+    public void testCollidingMethodGetsNextFreeId()
+    {
+        final ClassMethodsContainer container = new ClassMethodsContainer();
+        // some other method already occupies the ID
+        container.registerMethod( new MethodIdentifier( RUN_ID , "demo/Other" , "collides" , "()V" ) );
+
+        final int id = container.allocateId( "demo/Demo" , "run" , "()V" , -1 );
+        assertEquals( RUN_ID + 1 , id );
+        assertEquals( id , container.allocateId( "demo/Demo" , "run" , "()V" , -1 ) );
+
+        final MethodIdentifier registered = container.registerWithContentId( new MethodIdentifier( 42 , "demo/Demo" , "run" , "()V" ) );
+        assertEquals( id , registered.id );
+        assertEquals( "run" , container.getRawMethodName( id ).methodName );
+        assertEquals( "collides" , container.getRawMethodName( RUN_ID ).methodName );
+    }
+
+    @Test
+    public void testMappingBetweenContainers()
+    {
+        final ClassMethodsContainer source = new ClassMethodsContainer();
+        source.registerMethod( new MethodIdentifier( RUN_ID , "demo/Other" , "collides" , "()V" ) );
+        final int runInSource = source.registerWithContentId( new MethodIdentifier( 0 , "demo/Demo" , "run" , "()V" ) ).id;
+        final int a = source.registerWithContentId( new MethodIdentifier( 0 , "demo/Demo" , "a" , "(I)V" , 12 ) ).id;
+
+        final ClassMethodsContainer target = new ClassMethodsContainer();
+        target.registerWithContentId( new MethodIdentifier( 0 , "demo/Demo" , "run" , "()V" ) );
+        target.registerWithContentId( new MethodIdentifier( 0 , "demo/Demo" , "a" , "(I)V" , 12 ) );
+
+        final MethodIdMapping mapping = MethodIdMapping.between( source , target );
+        assertEquals( RUN_ID , mapping.map( runInSource ) );
+        assertEquals( a , mapping.map( a ) );
+        assertEquals( "Unknown to the target" , -1 , mapping.map( RUN_ID ) );
+        assertEquals( "Unknown to the source" , 4711 , mapping.map( 4711 ) );
+
+        assertEquals( runInSource , MethodIdMapping.between( target , source ).map( RUN_ID ) );
+        assertTrue( MethodIdMapping.IDENTITY == MethodIdMapping.between( source , source ) );
+    }
+
+    @Test
+    public void testMappingIntoContainerRegistersUnknownMethods()
+    {
+        final ClassMethodsContainer source = new ClassMethodsContainer();
+        source.registerMethod( new MethodIdentifier( RUN_ID , "demo/Other" , "collides" , "()V" ) );
+
+        final ClassMethodsContainer target = new ClassMethodsContainer();
+        target.registerWithContentId( new MethodIdentifier( 0 , "demo/Demo" , "run" , "()V" ) );
+
+        final int id = MethodIdMapping.into( source , target ).map( RUN_ID );
+        assertEquals( MethodIdentifier.contentId( "demo/Other" , "collides" , "()V" , -1 ) , id );
+        assertEquals( id , MethodIdMapping.into( source , target ).map( RUN_ID ) );
+        assertEquals( "collides" , target.getRawMethodName( id ).methodName );
+        assertEquals( "run" , target.getRawMethodName( RUN_ID ).methodName );
+    }
+
+    @Test
+    public void testFileIdsAreReplacedByContentIds() throws IOException
+    {
+        // written by an older version that numbered methods in class-loading order
+        final String xml = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>"+
+            "<profilingResults><methodNames>"+
+            "<methodName id=\"1\" name=\"demo/Demo|run|()V\"/>"+
+            "<methodName id=\"2\" name=\"demo/Demo|a|(I)V|12\"/>"+
+            "</methodNames><profiles><profile threadName=\"main\" creationTime=\"1\">"+
+            "<invocation methodNameId=\"1\" invocations=\"1\" totalTime=\"2.0\">"+
+            "<invocation methodNameId=\"2\" invocations=\"1\" totalTime=\"1.0\"/>"+
+            "</invocation></profile></profiles></profilingResults>";
+        final ProfileContainer container = new XMLSerializer().load( new ByteArrayInputStream( xml.getBytes( StandardCharsets.UTF_8 ) ) );
+
+        final MethodStats root = container.getProfiles().get(0).getTopLevelMethod();
+        assertEquals( RUN_ID , root.getMethodId() );
+        final MethodStats child = root.getCallees().values().iterator().next();
+        assertEquals( MethodIdentifier.contentId( "demo/Demo" , "a" , "(I)V" , 12 ) , child.getMethodId() );
+        assertNotNull( root.getCallees().get( child.getMethodId() ) );
+    }
+
+    @Test
+    public void testCollidingMethodsSurviveRoundTrip() throws IOException
+    {
+        final ClassMethodsContainer methods = new ClassMethodsContainer();
+        methods.registerMethod( new MethodIdentifier( RUN_ID , "demo/Other" , "collides" , "()V" ) );
+        final int run = methods.registerWithContentId( new MethodIdentifier( 0 , "demo/Demo" , "run" , "()V" ) ).id;
+
+        final MethodStats root = new MethodStats( run );
+        root.setInvocationCount( 1 );
+        root.setTotalTimeMillis( 3 );
+        final MethodStats child = new MethodStats( RUN_ID , root );
+        child.setInvocationCount( 2 );
+        child.setTotalTimeMillis( 1 );
+        root.getCallees().put( RUN_ID , child );
+        final Profile profile = new Profile( "main" );
+        profile.setTopLevelMethod( root );
+        final ProfileContainer expected = new ProfileContainer( Collections.singletonList( profile ) , methods );
+
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new XMLSerializer().save( methods , expected.getProfiles() , out );
+        final ProfileContainer actual = new XMLSerializer().load( new ByteArrayInputStream( out.toByteArray() ) );
+        TreeAssert.assertSameProfiles( expected , actual );
+    }
+
+    @Test
+    public void testPathHashesMatchAcrossProfiles()
+    {
+        final ProfileContainer first = TreeAssert.sampleProfiles();
+        final ProfileContainer second = TreeAssert.sampleProfiles();
+        final MethodStats firstRoot = first.getProfiles().get(0).getTopLevelMethod();
+        final MethodStats secondRoot = second.getProfiles().get(0).getTopLevelMethod();
+        assertEquals( firstRoot.getPathHash() , secondRoot.getPathHash() );
+        for ( MethodStats callee : firstRoot.getCallees().values() )
+        {
+            final MethodStats other = secondRoot.getCallees().get( callee.getMethodId() );
+            assertEquals( callee.getPathHash() , other.getPathHash() );
+            assertFalse( callee.getPathHash() == firstRoot.getPathHash() );
+            assertTrue( Arrays.equals( callee.getPathFromRoot() , other.getPathFromRoot() ) );
+        }
+    }
+}
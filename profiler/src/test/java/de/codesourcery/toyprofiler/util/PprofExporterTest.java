@@ -0,0 +1,254 @@
+package de.codesourcery.toyprofiler.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.GZIPInputStream;
+
+import org.junit.Test;
+
+import de.codesourcery.toyprofiler.ProfileContainer;
+
+public class PprofExporterTest
+{
+    @Test
+    public void testExportDecompressesToProfileMessage() throws IOException
+    {
+        final CallTreeBuilder builder = new CallTreeBuilder();
+        final int run = builder.methodId( "demo/Demo" , "run" , "()V" , -1 );
+        final int a = builder.methodId( "demo/Demo" , "a" , "(I)V" , 12 );
+        final int b = builder.methodId( "demo/Demo" , "b" , "(I)V" , 14 );
+        CallTreeBuilder.addWeight( builder.addStack( "main" , new int[] { run , a } , 2 ) , 1.5f , 3 );
+        CallTreeBuilder.addWeight( builder.addStack( "main" , new int[] { run , a , b } , 3 ) , 2f , 1 );
+        CallTreeBuilder.addWeight( builder.addStack( "worker-1" , new int[] { run , b } , 2 ) , 4f , 2 );
+        final ProfileContainer container = builder.build();
+
+        // written the same way as by the analyzer and the viewer
+        final File file = File.createTempFile( "toyprofiler" , PprofExporter.FILE_SUFFIX );
+        try
+        {
+            try ( OutputStream out = ProfileFiles.openOutput( file ) ) {
+                new PprofExporter().save( container.getMethodContainer() , container.getProfiles() , out );
+            }
+
+            final byte[] data;
+            try ( InputStream in = new GZIPInputStream( new FileInputStream( file ) ) ) {
+                data = readFully( in );
+            }
+            assertTrue( data.length > 2 );
+            assertFalse( "Profile is compressed twice" , ( data[0] & 0xff ) == 0x1f && ( data[1] & 0xff ) == 0x8b );
+
+            final List<String> strings = new ArrayList<>();
+            final Set<Long> locationIds = new HashSet<>();
+            final Map<Long,Long> functionNames = new HashMap<>();
+            final List<long[]> samples = new ArrayList<>();
+            final List<Long> locationFunctions = new ArrayList<>();
+            int sampleTypes = 0;
+
+            final Message profile = new Message( data , 0 , data.length );
+            while ( profile.hasMore() )
+            {
+                final int tag = (int) profile.varint();
+                switch( tag >>> 3 )
+                {
+                    case 1: // sample_type
+                        profile.message( tag );
+                        sampleTypes++;
+                        break;
+                    case 2: // sample
+                        final Message sample = profile.message( tag );
+                        while ( sample.hasMore() )
+                        {
+                            final int sampleTag = (int) sample.varint();
+                            if ( sampleTag >>> 3 == 1 ) {
+                                samples.add( sample.packed( sampleTag ) );
+                            } else {
+                                sample.skip( sampleTag );
+                            }
+                        }
+                        break;
+                    case 4: // location
+                        final Message location = profile.message( tag );
+                        while ( location.hasMore() )
+                        {
+                            final int locationTag = (int) location.varint();
+                            if ( locationTag >>> 3 == 1 ) {
+                                locationIds.add( location.varint() );
+                            }
+                            else if ( locationTag >>> 3 == 4 )
+                            {
+                                final Message line = location.message( locationTag );
+                                while ( line.hasMore() )
+                                {
+                                    final int lineTag = (int) line.varint();
+                                    if ( lineTag >>> 3 == 1 ) {
+                                        locationFunctions.add( line.varint() );
+                                    } else {
+                                        line.skip( lineTag );
+                                    }
+                                }
+                            }
+                            else {
+                                location.skip( locationTag );
+                            }
+                        }
+                        break;
+                    case 5: // function
+                        final Message function = profile.message( tag );
+                        long id = 0;
+                        long name = 0;
+                        while ( function.hasMore() )
+                        {
+                            final int functionTag = (int) function.varint();
+                            if ( functionTag >>> 3 == 1 ) {
+                                id = function.varint();
+                            } else if ( functionTag >>> 3 == 2 ) {
+                                name = function.varint();
+                            } else {
+                                function.skip( functionTag );
+                            }
+                        }
+                        functionNames.put( id , name );
+                        break;
+                    case 6: // string_table
+                        strings.add( profile.string( tag ) );
+                        break;
+                    default:
+                        profile.skip( tag );
+                }
+            }
+
+            assertEquals( 3 , sampleTypes );
+            assertEquals( "" , strings.get(0) );
+            assertEquals( 3 , locationIds.size() );
+            assertEquals( 3 , functionNames.size() );
+            assertFalse( samples.isEmpty() );
+            for ( long[] locations : samples )
+            {
+                for ( long location : locations ) {
+                    assertTrue( "Unknown location "+location , locationIds.contains( location ) );
+                }
+            }
+            for ( long function : locationFunctions ) {
+                assertTrue( "Unknown function "+function , functionNames.containsKey( function ) );
+            }
+            final Set<String> names = new HashSet<>();
+            for ( long name : functionNames.values() ) {
+                names.add( strings.get( (int) name ) );
+            }
+            assertTrue( names.contains( "demo.Demo.run" ) );
+            assertTrue( names.contains( "demo.Demo.a" ) );
+            assertTrue( names.contains( "demo.Demo.b" ) );
+        }
+        finally {
+            file.delete();
+        }
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException
+    {
+        final ByteArrayOutputStream result = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[ 4096 ];
+        int len;
+        while ( ( len = in.read( buffer ) ) > 0 ) {
+            result.write( buffer , 0 , len );
+        }
+        return result.toByteArray();
+    }
+
+    /**
+     * Minimal protocol buffers decoder.
+     */
+    private static final class Message
+    {
+        private final byte[] data;
+        private int ptr;
+        private final int end;
+
+        public Message(byte[] data,int start,int end)
+        {
+            this.data = data;
+            this.ptr = start;
+            this.end = end;
+        }
+
+        public boolean hasMore() {
+            return ptr < end;
+        }
+
+        public long varint()
+        {
+            long result = 0;
+            for ( int shift = 0 ; shift < 64 ; shift += 7 )
+            {
+                if ( ptr >= end ) {
+                    fail("Truncated varint");
+                }
+                final byte b = data[ptr++];
+                result |= (long) ( b & 0x7f ) << shift;
+                if ( ( b & 0x80 ) == 0 ) {
+                    return result;
+                }
+            }
+            fail("Malformed varint");
+            return 0;
+        }
+
+        public Message message(int tag)
+        {
+            assertEquals( "Field "+( tag >>> 3 )+" is not length-delimited" , 2 , tag & 7 );
+            final int length = (int) varint();
+            assertTrue( "Truncated field "+( tag >>> 3 ) , ptr + length <= end );
+            final Message result = new Message( data , ptr , ptr + length );
+            ptr += length;
+            return result;
+        }
+
+        public String string(int tag)
+        {
+            final Message message = message( tag );
+            return new String( data , message.ptr , message.end - message.ptr , StandardCharsets.UTF_8 );
+        }
+
+        public long[] packed(int tag)
+        {
+            if ( ( tag & 7 ) == 0 ) {
+                return new long[] { varint() };
+            }
+            final Message message = message( tag );
+            final List<Long> values = new ArrayList<>();
+            while ( message.hasMore() ) {
+                values.add( message.varint() );
+            }
+            return values.stream().mapToLong( Long::longValue ).toArray();
+        }
+
+        public void skip(int tag)
+        {
+            switch( tag & 7 )
+            {
+                case 0: varint(); break;
+                case 1: ptr += 8; break;
+                case 2: message( tag ); break;
+                case 5: ptr += 4; break;
+                default:
+                    fail("Unsupported wire type "+( tag & 7 ));
+            }
+        }
+    }
+}
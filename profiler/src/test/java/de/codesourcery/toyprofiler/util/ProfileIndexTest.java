@@ -0,0 +1,210 @@
+package de.codesourcery.toyprofiler.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+
+import org.junit.Test;
+
+import de.codesourcery.toyprofiler.ClassMethodsContainer;
+import de.codesourcery.toyprofiler.Profile;
+import de.codesourcery.toyprofiler.Profile.MethodStats;
+import de.codesourcery.toyprofiler.ProfileContainer;
+
+public class ProfileIndexTest
+{
+    @Test
+    public void testIndexedProfileMatchesXML() throws IOException
+    {
+        final ProfileContainer expected = TreeAssert.sampleProfiles();
+        final File file = File.createTempFile( "toyprofiler" , ".xml" );
+        try
+        {
+            TreeAssert.save( expected , file );
+            try ( ProfileIndex index = ProfileIndex.open( file ) )
+            {
+                assertTrue( "Index was not written next to the profile" , new File( file.getAbsolutePath()+".idx" ).exists() );
+                TreeAssert.assertSameProfiles( expected , index.createContainer() );
+            }
+        }
+        finally {
+            TreeAssert.delete( file );
+        }
+    }
+
+    @Test
+    public void testExistingIndexIsReused() throws IOException
+    {
+        final ProfileContainer expected = TreeAssert.sampleProfiles();
+        final File file = File.createTempFile( "toyprofiler" , ".xml" );
+        final File indexFile = new File( file.getAbsolutePath()+".idx" );
+        try
+        {
+            TreeAssert.save( expected , file );
+            ProfileIndex.open( file ).close();
+            final long size = indexFile.length();
+            assertTrue( indexFile.setLastModified( file.lastModified() + 5000 ) );
+            final long lastModified = indexFile.lastModified();
+
+            try ( ProfileIndex index = ProfileIndex.open( file ) ) {
+                TreeAssert.assertSameProfiles( expected , index.createContainer() );
+            }
+            assertEquals( "Index got rebuilt" , lastModified , indexFile.lastModified() );
+            assertEquals( size , indexFile.length() );
+        }
+        finally {
+            TreeAssert.delete( file );
+        }
+    }
+
+    @Test
+    public void testOutdatedIndexIsRebuilt() throws IOException
+    {
+        final File file = File.createTempFile( "toyprofiler" , ".xml" );
+        try
+        {
+            TreeAssert.save( TreeAssert.sampleProfiles() , file );
+            ProfileIndex.open( file ).close();
+
+            final ProfileContainer expected = TreeAssert.deepProfile( 10 );
+            TreeAssert.save( expected , file );
+            try ( ProfileIndex index = ProfileIndex.open( file ) ) {
+                TreeAssert.assertSameProfiles( expected , index.createContainer() );
+            }
+        }
+        finally {
+            TreeAssert.delete( file );
+        }
+    }
+
+    @Test
+    public void testCalleesAreMaterializedOnDemand() throws IOException
+    {
+        final File file = File.createTempFile( "toyprofiler" , ".xml" );
+        try
+        {
+            TreeAssert.save( TreeAssert.sampleProfiles() , file );
+            final ProfileIndex index = ProfileIndex.open( file );
+            final ProfileContainer container = index.createContainer();
+            final MethodStats root = container.getProfileForThread( "main" ).get().getTopLevelMethod();
+            final MethodStats loaded = container.getProfileForThread( "worker-1" ).get().getTopLevelMethod();
+            assertEquals( 1 , loaded.getCallees().size() );
+            index.close();
+
+            // the subtree depth is known without loading the callees
+            assertEquals( 2 , root.getSubtreeDepth() );
+            try
+            {
+                root.getCallees();
+                fail("Callees should have been loaded lazily");
+            }
+            catch(IllegalStateException e) {
+                // ok
+            }
+            // callees that were loaded before closing the index remain accessible
+            assertEquals( "demo/Other|c|()Ljava/lang/String;|-1" , TreeAssert.name( container , loaded.getCallees().values().iterator().next() ) );
+        }
+        finally {
+            TreeAssert.delete( file );
+        }
+    }
+
+    @Test
+    public void testCreateContainerFailsAfterClose() throws IOException
+    {
+        final File file = File.createTempFile( "toyprofiler" , ".xml" );
+        try
+        {
+            TreeAssert.save( TreeAssert.sampleProfiles() , file );
+            final ProfileIndex index = ProfileIndex.open( file );
+            index.close();
+            try
+            {
+                index.createContainer();
+                fail("Should have failed");
+            }
+            catch(IllegalStateException e) {
+                // ok
+            }
+        }
+        finally {
+            TreeAssert.delete( file );
+        }
+    }
+
+    @Test
+    public void testEmptyProfile() throws IOException
+    {
+        final Profile empty = new Profile( "idle" );
+        empty.setCreationTime( 1234 );
+        final ProfileContainer expected = new ProfileContainer( Collections.singletonList( empty ) , new ClassMethodsContainer() );
+        final File file = File.createTempFile( "toyprofiler" , ".xml" );
+        try
+        {
+            TreeAssert.save( expected , file );
+            try ( ProfileIndex index = ProfileIndex.open( file ) )
+            {
+                final ProfileContainer actual = index.createContainer();
+                assertEquals( 1 , actual.size() );
+                final Profile profile = actual.getProfiles().get(0);
+                assertEquals( "idle" , profile.getThreadName() );
+                assertEquals( 1234 , profile.getCreationTimeMillis() );
+                assertNull( profile.getTopLevelMethod() );
+            }
+        }
+        finally {
+            TreeAssert.delete( file );
+        }
+    }
+
+    @Test
+    public void testDeepTree() throws IOException
+    {
+        final int depth = 5000;
+        final ProfileContainer expected = TreeAssert.deepProfile( depth );
+        final File file = File.createTempFile( "toyprofiler" , ".xml" );
+        try
+        {
+            TreeAssert.save( expected , file );
+            try ( ProfileIndex index = ProfileIndex.open( file ) )
+            {
+                final ProfileContainer actual = index.createContainer();
+                final MethodStats root = actual.getProfiles().get(0).getTopLevelMethod();
+                assertEquals( depth - 1 , root.getSubtreeDepth() );
+                assertEquals( depth , TreeAssert.depth( root ) );
+                TreeAssert.assertSameProfiles( expected , actual );
+            }
+        }
+        finally {
+            TreeAssert.delete( file );
+        }
+    }
+
+    @Test
+    public void testMalformedFile() throws IOException
+    {
+        final File file = File.createTempFile( "toyprofiler" , ".xml" );
+        try
+        {
+            TreeAssert.write( file , "<?xml version=\"1.0\" encoding=\"UTF-8\"?><profilingResults><methodNames><methodName id=\"1\" name=\"a|b|()V\"/></methodNames><profiles><profile threadName=\"main\"><invocation methodNameId=\"1\"" );
+            try
+            {
+                ProfileIndex.open( file ).close();
+                fail("Should have failed");
+            }
+            catch(IOException e) {
+                // ok
+            }
+            assertFalse( "Index of a broken file was written" , new File( file.getAbsolutePath()+".idx" ).exists() );
+        }
+        finally {
+            TreeAssert.delete( file );
+        }
+    }
+}
@@ -0,0 +1,173 @@
+package de.codesourcery.toyprofiler.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+import de.codesourcery.toyprofiler.ClassMethodsContainer;
+import de.codesourcery.toyprofiler.Profile;
+import de.codesourcery.toyprofiler.Profile.MethodIdentifier;
+import de.codesourcery.toyprofiler.Profile.MethodStats;
+import de.codesourcery.toyprofiler.ProfileContainer;
+
+public class ProfileMergerTest
+{
+    @Test
+    public void testMergeSameRoot()
+    {
+        final ProfileContainer container = TreeAssert.sampleProfiles();
+        final Profile main = container.getProfileForThread( "main" ).get();
+        final Profile worker = container.getProfileForThread( "worker-1" ).get();
+        final float mainTime = main.getTopLevelMethod().getTotalTimeMillis();
+
+        final Profile merged = ProfileMerger.merge( "merged" , container.getProfiles() , container.getMethodContainer() );
+        assertEquals( "merged" , merged.getThreadName() );
+
+        // every node holds the sums of the source nodes with the same call path
+        final Map<Long,float[]> expected = new HashMap<>();
+        for ( Profile profile : container ) {
+            sum( profile.getTopLevelMethod() , expected );
+        }
+        final Map<Long,float[]> actual = new HashMap<>();
+        sum( merged.getTopLevelMethod() , actual );
+        assertEquals( expected.keySet() , actual.keySet() );
+        for ( Map.Entry<Long,float[]> entry : expected.entrySet() )
+        {
+            assertEquals( entry.getValue()[0] , actual.get( entry.getKey() )[0] , 0.0001 );
+            assertEquals( entry.getValue()[1] , actual.get( entry.getKey() )[1] , 0.0001 );
+        }
+        assertEquals( 3 , merged.getTopLevelMethod().getCallees().size() );
+
+        // sources are left alone
+        assertEquals( mainTime , main.getTopLevelMethod().getTotalTimeMillis() , 0.0001 );
+        assertEquals( 1 , worker.getTopLevelMethod().getCallees().size() );
+    }
+
+    @Test
+    public void testMergeDifferentRoots()
+    {
+        final CallTreeBuilder builder = new CallTreeBuilder();
+        final int run = builder.methodId( "demo/Demo" , "run" , "()V" , -1 );
+        final int main = builder.methodId( "demo/Demo" , "main" , "([Ljava/lang/String;)V" , -1 );
+        final int a = builder.methodId( "demo/Demo" , "a" , "(I)V" , 12 );
+        CallTreeBuilder.addWeight( builder.addStack( "t1" , new int[] { run , a } , 2 ) , 1f , 1 );
+        CallTreeBuilder.addWeight( builder.addStack( "t2" , new int[] { main , a } , 2 ) , 2f , 1 );
+        CallTreeBuilder.addWeight( builder.addStack( "t3" , new int[] { run } , 1 ) , 4f , 1 );
+        final ProfileContainer container = builder.build();
+        final ClassMethodsContainer methods = container.getMethodContainer();
+
+        final Profile t1 = container.getProfileForThread( "t1" ).get();
+        final Profile t2 = container.getProfileForThread( "t2" ).get();
+        final Profile t3 = container.getProfileForThread( "t3" ).get();
+        final Profile merged = ProfileMerger.merge( "merged" , Arrays.asList( t1 , t2 ) , methods );
+
+        final MethodStats root = merged.getTopLevelMethod();
+        assertEquals( CallTreeBuilder.SYNTHETIC_ROOT_NAME , methods.getRawMethodName( root.getMethodId() ).methodName );
+        assertEquals( 3f , root.getTotalTimeMillis() , 0.0001 );
+        assertEquals( 2 , root.getCallees().size() );
+        assertEquals( 1f , root.getCallees().get( run ).getTotalTimeMillis() , 0.0001 );
+        assertEquals( 2f , root.getCallees().get( main ).getTotalTimeMillis() , 0.0001 );
+
+        // merging a merge must not nest synthetic roots
+        final Profile again = ProfileMerger.merge( "again" , Arrays.asList( merged , t3 ) , methods );
+        final MethodStats newRoot = again.getTopLevelMethod();
+        assertEquals( root.getMethodId() , newRoot.getMethodId() );
+        assertEquals( 2 , newRoot.getCallees().size() );
+        assertEquals( 5f , newRoot.getCallees().get( run ).getTotalTimeMillis() , 0.0001 );
+        assertEquals( 1 , newRoot.getCallees().get( run ).getCallees().size() );
+    }
+
+    @Test
+    public void testMergeAcrossContainers()
+    {
+        final ProfileContainer first = TreeAssert.sampleProfiles();
+
+        // another method occupies run's content ID in the second container
+        final int contentId = MethodIdentifier.contentId( "demo/Demo" , "run" , "()V" , -1 );
+        final ClassMethodsContainer secondMethods = new ClassMethodsContainer();
+        secondMethods.registerMethod( new MethodIdentifier( contentId , "demo/Other" , "collides" , "()V" ) );
+        final int run = secondMethods.registerWithContentId( new MethodIdentifier( 0 , "demo/Demo" , "run" , "()V" ) ).id;
+        final MethodStats root = new MethodStats( run );
+        root.setTotalTimeMillis( 10 );
+        root.setInvocationCount( 1 );
+        final MethodStats collides = new MethodStats( contentId , root );
+        collides.setTotalTimeMillis( 3 );
+        collides.setInvocationCount( 5 );
+        root.getCallees().put( contentId , collides );
+        final Profile second = new Profile( "second" );
+        second.setTopLevelMethod( root );
+
+        final ClassMethodsContainer target = new ClassMethodsContainer();
+        final Profile merged = ProfileMerger.merge( "merged" , Arrays.asList( first.getProfiles().get(0) , second ) ,
+                Arrays.asList( first.getMethodContainer() , secondMethods ) , target );
+
+        final MethodStats mergedRoot = merged.getTopLevelMethod();
+        assertEquals( "run" , target.getRawMethodName( mergedRoot.getMethodId() ).methodName );
+        assertEquals( first.getProfiles().get(0).getTopLevelMethod().getTotalTimeMillis() + 10f , mergedRoot.getTotalTimeMillis() , 0.0001 );
+        MethodStats mergedCollides = null;
+        for ( MethodStats callee : mergedRoot.getCallees().values() )
+        {
+            if ( "collides".equals( target.getRawMethodName( callee.getMethodId() ).methodName ) ) {
+                mergedCollides = callee;
+            }
+        }
+        assertNotNull( "Colliding method got lost" , mergedCollides );
+        assertEquals( 5 , mergedCollides.getInvocationCount() );
+    }
+
+    @Test
+    public void testMergeEmptyProfiles()
+    {
+        final Profile first = new Profile( "a" );
+        first.setCreationTime( 2000 );
+        final Profile second = new Profile( "b" );
+        second.setCreationTime( 1000 );
+        final Profile merged = ProfileMerger.merge( "merged" , Arrays.asList( first , second ) , new ClassMethodsContainer() );
+        assertNull( merged.getTopLevelMethod() );
+        assertEquals( 1000 , merged.getCreationTimeMillis() );
+
+        assertNull( ProfileMerger.merge( "none" , Collections.<Profile>emptyList() , new ClassMethodsContainer() ).getTopLevelMethod() );
+    }
+
+    @Test
+    public void testMergeDeepTrees()
+    {
+        final int depth = 20000;
+        final ProfileContainer first = TreeAssert.deepProfile( depth );
+        final ProfileContainer second = TreeAssert.deepProfile( depth );
+        final ClassMethodsContainer target = new ClassMethodsContainer();
+        final Profile merged = ProfileMerger.merge( "merged" , Arrays.asList( first.getProfiles().get(0) , second.getProfiles().get(0) ) ,
+                Arrays.asList( first.getMethodContainer() , second.getMethodContainer() ) , target );
+
+        assertEquals( depth , TreeAssert.depth( merged.getTopLevelMethod() ) );
+        MethodStats leaf = merged.getTopLevelMethod();
+        while ( leaf.hasChildren() ) {
+            leaf = leaf.getCallees().values().iterator().next();
+        }
+        assertEquals( 2f , leaf.getTotalTimeMillis() , 0.0001 );
+        assertEquals( 2 , leaf.getInvocationCount() );
+    }
+
+    private static void sum(MethodStats root,Map<Long,float[]> result)
+    {
+        final Deque<MethodStats> stack = new ArrayDeque<>();
+        stack.push( root );
+        while ( ! stack.isEmpty() )
+        {
+            final MethodStats node = stack.pop();
+            final float[] sums = result.computeIfAbsent( node.getPathHash() , key -> new float[2] );
+            sums[0] += node.getTotalTimeMillis();
+            sums[1] += node.getInvocationCount();
+            stack.addAll( node.getCallees().values() );
+        }
+    }
+}
@@ -0,0 +1,177 @@
+package de.codesourcery.toyprofiler.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import de.codesourcery.toyprofiler.ProfileContainer;
+import de.codesourcery.toyprofiler.util.RegressionGate.Report;
+import de.codesourcery.toyprofiler.util.RegressionGate.ThreadResult;
+import de.codesourcery.toyprofiler.util.RegressionGate.Violation;
+
+public class RegressionGateTest
+{
+    @Test
+    public void testNoRegression()
+    {
+        final ProfileContainer baseline = profile( "main" , "Demo.run;Demo.a" , 10f , "Demo.run;Demo.b" , 5f );
+        final ProfileContainer candidate = profile( "main" , "Demo.run;Demo.a" , 11f , "Demo.run;Demo.b" , 4f );
+        final Report report = check( baseline , candidate , 0 , "self-time *.a +15%" , "total-time * +50%" );
+        assertTrue( report.isPassed() );
+        assertEquals( 1 , report.threads.size() );
+        assertEquals( "compared" , report.threads.get(0).status );
+        assertEquals( 3 , report.threads.get(0).pathCount );
+    }
+
+    @Test
+    public void testRegression()
+    {
+        final ProfileContainer baseline = profile( "main" , "Demo.run;Demo.a" , 10f , "Demo.run;Demo.b" , 5f );
+        final ProfileContainer candidate = profile( "main" , "Demo.run;Demo.a" , 12f , "Demo.run;Demo.b" , 5f );
+        final Report report = check( baseline , candidate , 0 , "self-time *.a +15%" );
+        assertFalse( report.isPassed() );
+        final List<Violation> violations = report.getViolations();
+        assertEquals( 1 , violations.size() );
+        final Violation violation = violations.get(0);
+        assertEquals( "main" , violation.threadName );
+        assertEquals( Arrays.asList( "demo.Demo.run" , "demo.Demo.a" ) , violation.path );
+        assertEquals( 10 , violation.baseline , 0.0001 );
+        assertEquals( 12 , violation.candidate , 0.0001 );
+        assertEquals( 20 , violation.change , 0.0001 );
+    }
+
+    @Test
+    public void testPathSuffixMatching()
+    {
+        // 'c' is called directly by 'run' and through 'a'
+        final ProfileContainer baseline = profile( "main" , "Demo.run;Demo.c" , 10f , "Demo.run;Demo.a;Demo.c" , 10f );
+        final ProfileContainer candidate = profile( "main" , "Demo.run;Demo.c" , 20f , "Demo.run;Demo.a;Demo.c" , 20f );
+
+        // only the path ending with a -> c
+        List<Violation> violations = check( baseline , candidate , 0 , "self-time *.a;*.c +10%" ).getViolations();
+        assertEquals( 1 , violations.size() );
+        assertEquals( Arrays.asList( "demo.Demo.run" , "demo.Demo.a" , "demo.Demo.c" ) , violations.get(0).path );
+
+        // only the path ending with run -> c, frames must be adjacent
+        violations = check( baseline , candidate , 0 , "self-time *.run;*.c +10%" ).getViolations();
+        assertEquals( 1 , violations.size() );
+        assertEquals( Arrays.asList( "demo.Demo.run" , "demo.Demo.c" ) , violations.get(0).path );
+
+        // both
+        assertEquals( 2 , check( baseline , candidate , 0 , "self-time *.c +10%" ).getViolations().size() );
+        // longer than any path
+        assertTrue( check( baseline , candidate , 0 , "self-time *;*;*;*.c +10%" ).isPassed() );
+    }
+
+    @Test
+    public void testAddedPaths()
+    {
+        final ProfileContainer baseline = profile( "main" , "Demo.run;Demo.a" , 10f );
+        final ProfileContainer candidate = profile( "main" , "Demo.run;Demo.a" , 10f , "Demo.run;Demo.b" , 80f );
+        // relative limits ignore new paths, absolute ones don't
+        assertTrue( check( baseline , candidate , 0 , "total-time *.b +10%" ).isPassed() );
+        final List<Violation> violations = check( baseline , candidate , 0 , "total-time *.b +50ms" ).getViolations();
+        assertEquals( 1 , violations.size() );
+        assertEquals( 0 , violations.get(0).baseline , 0.0001 );
+        assertEquals( 80 , violations.get(0).change , 0.0001 );
+    }
+
+    @Test
+    public void testRemovedPathsCannotViolate()
+    {
+        final ProfileContainer baseline = profile( "main" , "Demo.run;Demo.a" , 10f , "Demo.run;Demo.b" , 80f );
+        final ProfileContainer candidate = profile( "main" , "Demo.run;Demo.a" , 10f );
+        final Report report = check( baseline , candidate , 0 , "self-time * +1ms" );
+        assertTrue( report.isPassed() );
+        assertEquals( 3 , report.threads.get(0).pathCount );
+    }
+
+    @Test
+    public void testDifferentTopLevelMethods()
+    {
+        final ProfileContainer baseline = profile( "main" , "Demo.main;Demo.a" , 10f );
+        final ProfileContainer candidate = profile( "main" , "Demo.run;Demo.a" , 30f );
+        final Report report = check( baseline , candidate , 0 , "self-time *.a +5ms" );
+        assertEquals( 4 , report.threads.get(0).pathCount );
+        assertEquals( 1 , report.getViolations().size() );
+        assertEquals( 30 , report.getViolations().get(0).change , 0.0001 );
+    }
+
+    @Test
+    public void testMinimumTime()
+    {
+        final ProfileContainer baseline = profile( "main" , "Demo.run;Demo.a" , 1f );
+        final ProfileContainer candidate = profile( "main" , "Demo.run;Demo.a" , 4f );
+        assertTrue( check( baseline , candidate , 5 , "self-time *.a +10%" ).isPassed() );
+        assertFalse( check( baseline , candidate , 4 , "self-time *.a +10%" ).isPassed() );
+        // does not apply to invocations
+        assertFalse( check( baseline , candidate , 1000 , "invocations *.a +0" ).isPassed() );
+    }
+
+    @Test
+    public void testMissingThreads()
+    {
+        final CallTreeBuilder baselineBuilder = new CallTreeBuilder();
+        CallTreeBuilder.addWeight( baselineBuilder.addStack( "old" , new int[] { baselineBuilder.methodId( "demo/Demo" , "run" , "()V" , -1 ) } , 1 ) , 1f , 1 );
+        final ProfileContainer baseline = baselineBuilder.build();
+        final ProfileContainer candidate = profile( "new" , "Demo.run" , 100f );
+
+        final Report report = check( baseline , candidate , 0 , "self-time * +1%" );
+        assertTrue( report.isPassed() );
+        assertEquals( 2 , report.threads.size() );
+        for ( ThreadResult thread : report.threads ) {
+            assertEquals( thread.threadName.equals( "new" ) ? "missing in baseline" : "missing in candidate" , thread.status );
+        }
+    }
+
+    @Test
+    public void testDeepPath()
+    {
+        final int depth = 1000;
+        final StringBuilder stack = new StringBuilder("Demo.run");
+        for ( int i = 1 ; i < depth ; i++ ) {
+            stack.append( ";Demo.level" ).append( i % 10 );
+        }
+        stack.append(";Demo.leaf");
+        final ProfileContainer baseline = profile( "main" , stack.toString() , 1f );
+        final ProfileContainer candidate = profile( "main" , stack.toString() , 2f );
+        final List<Violation> violations = check( baseline , candidate , 0 , "self-time *.level8;*.level9;*.leaf +10%" ).getViolations();
+        assertEquals( 1 , violations.size() );
+        assertEquals( depth + 1 , violations.get(0).path.size() );
+    }
+
+    private static Report check(ProfileContainer baseline,ProfileContainer candidate,double minTimeMillis,String... rules)
+    {
+        final RegressionRule[] parsed = new RegressionRule[ rules.length ];
+        for ( int i = 0 ; i < rules.length ; i++ ) {
+            parsed[i] = RegressionRule.parse( rules[i] );
+        }
+        return new RegressionGate( Arrays.asList( parsed ) , minTimeMillis ).check( baseline , baseline.getProfiles() , candidate , candidate.getProfiles() );
+    }
+
+    /**
+     * Creates a single-thread profile from pairs of ';'-separated <code>Class.method</code> frames (in package <code>demo</code>) and self times.
+     */
+    private static ProfileContainer profile(String threadName,Object... stacksAndTimes)
+    {
+        final CallTreeBuilder builder = new CallTreeBuilder();
+        for ( int i = 0 ; i < stacksAndTimes.length ; i += 2 )
+        {
+            final String[] frames = ((String) stacksAndTimes[i]).split(";");
+            final int[] stack = new int[ frames.length ];
+            for ( int j = 0 ; j < frames.length ; j++ )
+            {
+                final String[] parts = frames[j].split("\\.");
+                stack[j] = builder.methodId( "demo/"+parts[0] , parts[1] , "()V" , -1 );
+            }
+            final float time = (Float) stacksAndTimes[i+1];
+            CallTreeBuilder.addWeight( builder.addStack( threadName , stack , stack.length ) , time , Math.round( time ) );
+        }
+        return builder.build();
+    }
+}
@@ -0,0 +1,126 @@
+package de.codesourcery.toyprofiler.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+import de.codesourcery.toyprofiler.ClassMethodsContainer;
+import de.codesourcery.toyprofiler.util.RegressionRule.LimitType;
+import de.codesourcery.toyprofiler.util.RegressionRule.Metric;
+import net.openhft.koloboke.collect.set.hash.HashIntSet;
+
+public class RegressionRuleTest
+{
+    private static final double DELTA = 1e-9;
+
+    @Test
+    public void testParse()
+    {
+        RegressionRule rule = RegressionRule.parse( "  self-time com.acme.Parser.parse +15%  " );
+        assertEquals( Metric.SELF_TIME , rule.metric );
+        assertEquals( LimitType.PERCENT , rule.limitType );
+        assertEquals( 15 , rule.limit , DELTA );
+        assertEquals( "self-time com.acme.Parser.parse +15%" , rule.text );
+
+        rule = RegressionRule.parse( "Total-Time *.Worker.run;*Dao.* +50.5ms" );
+        assertEquals( Metric.TOTAL_TIME , rule.metric );
+        assertEquals( LimitType.ABSOLUTE , rule.limitType );
+        assertEquals( 50.5 , rule.limit , DELTA );
+
+        rule = RegressionRule.parse( "invocations *Dao.query X2" );
+        assertEquals( Metric.INVOCATIONS , rule.metric );
+        assertEquals( LimitType.FACTOR , rule.limitType );
+        assertEquals( 2 , rule.limit , DELTA );
+
+        rule = RegressionRule.parse( "invocations *Dao.query +100" );
+        assertEquals( LimitType.ABSOLUTE , rule.limitType );
+        assertEquals( 100 , rule.limit , DELTA );
+    }
+
+    @Test
+    public void testMalformedRules()
+    {
+        final String[] rules = {
+            "" ,
+            "self-time a.b" ,
+            "self-time a.b +10% extra" ,
+            "cpu-time a.b +10%" ,
+            "self-time a.b 10%" ,
+            "self-time a.b +10" ,
+            "self-time a.b +ten%" ,
+            "self-time a.b x" ,
+            "invocations a.b +10ms" ,
+            "total-time a.b -10%"
+        };
+        for ( String text : rules )
+        {
+            try
+            {
+                RegressionRule.parse( text );
+                fail("Should have failed: "+text);
+            }
+            catch(IllegalArgumentException e) {
+                // ok
+            }
+        }
+    }
+
+    @Test
+    public void testPercentLimit()
+    {
+        final RegressionRule rule = RegressionRule.parse( "self-time a.b +15%" );
+        assertEquals( 16 , rule.check( 100 , 116 , true ) , DELTA );
+        assertTrue( Double.isNaN( rule.check( 100 , 115 , true ) ) );
+        assertTrue( Double.isNaN( rule.check( 100 , 50 , true ) ) );
+        // relative limits only apply to paths in both profiles
+        assertTrue( Double.isNaN( rule.check( 0 , 1000 , false ) ) );
+        assertTrue( Double.isNaN( rule.check( 0 , 1000 , true ) ) );
+    }
+
+    @Test
+    public void testFactorLimit()
+    {
+        final RegressionRule rule = RegressionRule.parse( "invocations a.b x2" );
+        assertEquals( 2 , rule.check( 10 , 20 , true ) , DELTA );
+        assertTrue( Double.isNaN( rule.check( 10 , 19 , true ) ) );
+        assertTrue( Double.isNaN( rule.check( 0 , 20 , false ) ) );
+    }
+
+    @Test
+    public void testAbsoluteLimit()
+    {
+        final RegressionRule rule = RegressionRule.parse( "total-time a.b +50ms" );
+        assertEquals( 60 , rule.check( 0 , 60 , false ) , DELTA );
+        assertEquals( 51 , rule.check( 100 , 151 , true ) , DELTA );
+        assertTrue( Double.isNaN( rule.check( 100 , 150 , true ) ) );
+    }
+
+    @Test
+    public void testResolveFrames()
+    {
+        final CallTreeBuilder builder = new CallTreeBuilder();
+        final int run = builder.methodId( "com/acme/Worker" , "run" , "()V" , -1 );
+        final int query = builder.methodId( "com/acme/UserDao" , "query" , "(I)V" , -1 );
+        final int queryLine = builder.methodId( "com/acme/UserDao" , "query" , "(I)V" , 42 );
+        final int update = builder.methodId( "com/acme/UserDao" , "update" , "()V" , -1 );
+        final int lookalike = builder.methodId( "comXacme/Worker" , "run" , "()V" , -1 );
+        final ClassMethodsContainer methods = builder.build().getMethodContainer();
+
+        final HashIntSet[] frames = RegressionRule.parse( "self-time com.acme.Worker.run;*Dao.query* +10%" ).resolve( methods );
+        assertEquals( 2 , frames.length );
+        assertTrue( frames[0].contains( run ) );
+        assertFalse( "'.' must be matched literally" , frames[0].contains( lookalike ) );
+        assertEquals( 1 , frames[0].size() );
+        assertTrue( frames[1].contains( query ) );
+        assertTrue( frames[1].contains( queryLine ) );
+        assertFalse( frames[1].contains( update ) );
+
+        final HashIntSet[] all = RegressionRule.parse( "self-time * +10%" ).resolve( methods , new ClassMethodsContainer() );
+        // includes the builder's synthetic root
+        assertEquals( 6 , all[0].size() );
+        assertEquals( 0 , RegressionRule.parse( "self-time Worker.run +10%" ).resolve( methods )[0].size() );
+    }
+}
@@ -0,0 +1,181 @@
+package de.codesourcery.toyprofiler.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+import de.codesourcery.toyprofiler.ClassMethodsContainer;
+import de.codesourcery.toyprofiler.Profile;
+import de.codesourcery.toyprofiler.Profile.MethodIdentifier;
+import de.codesourcery.toyprofiler.Profile.MethodStats;
+import de.codesourcery.toyprofiler.ProfileContainer;
+import de.codesourcery.toyprofiler.util.StatisticalProfile.Summary;
+
+public class StatisticalComparisonTest
+{
+    private static final double DELTA = 1e-6;
+
+    @Test
+    public void testSummary()
+    {
+        final StatisticalProfile profile = new StatisticalProfile( "main" );
+        add( profile , 2 , 6 );
+        add( profile , 4 , 4 );
+        add( profile , 6 , -1 );
+
+        assertEquals( 3 , profile.getRunCount() );
+        final MethodStats a = child( profile.finish() , "a" );
+        final Summary summary = profile.getSummary( a.getPathHash() );
+        assertEquals( 3 , summary.runs );
+        assertEquals( 3 , summary.samples );
+        assertEquals( 4 , summary.meanTimeMillis , DELTA );
+        assertEquals( 4 , summary.timeVariance , DELTA );
+        assertEquals( 2 , summary.getTimeStdDev() , DELTA );
+        // 2/8, 4/8 and 6/6
+        assertEquals( ( 0.25 + 0.5 + 1 ) / 3 , summary.meanPercentage , DELTA );
+
+        // missing from the last run, counts as zero
+        final MethodStats b = child( profile.finish() , "b" );
+        final Summary missing = profile.getSummary( b.getPathHash() );
+        assertEquals( 3 , missing.runs );
+        assertEquals( 2 , missing.samples );
+        assertEquals( 10 / 3d , missing.meanTimeMillis , DELTA );
+        // variance of 6, 4, 0
+        assertEquals( ( 8/3d*8/3d + 2/3d*2/3d + 10/3d*10/3d ) / 2 , missing.timeVariance , DELTA );
+
+        // finished profile holds the means
+        assertEquals( 4 , a.getTotalTimeMillis() , DELTA );
+        assertEquals( 10 / 3d , b.getTotalTimeMillis() , 1e-5 );
+        assertEquals( 1 , a.getInvocationCount() );
+    }
+
+    @Test
+    public void testUnknownPath()
+    {
+        final StatisticalProfile profile = new StatisticalProfile( "main" );
+        add( profile , 2 , 6 );
+        final Summary summary = profile.getSummary( 12345L );
+        assertEquals( 1 , summary.runs );
+        assertEquals( 0 , summary.samples );
+        assertEquals( 0 , summary.meanTimeMillis , DELTA );
+    }
+
+    @Test
+    public void testEmptyRuns()
+    {
+        final StatisticalProfile profile = new StatisticalProfile( "main" );
+        profile.add( new Profile( "main" ) , new ClassMethodsContainer() );
+        assertEquals( 1 , profile.getRunCount() );
+        assertNull( profile.finish().getTopLevelMethod() );
+    }
+
+    @Test
+    public void testDifferentRootIsRejected()
+    {
+        final StatisticalProfile profile = new StatisticalProfile( "main" );
+        add( profile , 2 , 6 );
+        final CallTreeBuilder builder = new CallTreeBuilder();
+        CallTreeBuilder.addWeight( builder.addStack( "main" , new int[] { builder.methodId( "demo/Demo" , "other" , "()V" , -1 ) } , 1 ) , 1f , 1 );
+        final ProfileContainer other = builder.build();
+        try
+        {
+            profile.add( other.getProfiles().get(0) , other );
+            fail("Should have failed");
+        }
+        catch(IllegalArgumentException e) {
+            // ok
+        }
+        assertEquals( 1 , profile.getRunCount() );
+    }
+
+    @Test
+    public void testAddAfterFinish()
+    {
+        final StatisticalProfile profile = new StatisticalProfile( "main" );
+        add( profile , 2 , 6 );
+        profile.finish();
+        try
+        {
+            add( profile , 2 , 6 );
+            fail("Should have failed");
+        }
+        catch(IllegalStateException e) {
+            // ok
+        }
+    }
+
+    @Test
+    public void testSignificantDifference()
+    {
+        final StatisticalProfile current = new StatisticalProfile( "main" );
+        add( current , 8 , 2 );
+        add( current , 8.2f , 1.8f );
+        add( current , 7.9f , 2.1f );
+        add( current , 8.1f , 1.9f );
+        final StatisticalProfile previous = new StatisticalProfile( "main" );
+        add( previous , 2 , 8 );
+        add( previous , 2.1f , 7.9f );
+        add( previous , 1.9f , 8.1f );
+        add( previous , 2.2f , 7.8f );
+
+        final StatisticalComparison comparison = new StatisticalComparison( current , previous , 0.05 );
+        final MethodStats a = child( current.finish() , "a" );
+        assertTrue( comparison.getPValue( a ) < 0.001 );
+        assertTrue( comparison.getConfidence( a ) > 0.95 );
+        assertEquals( 0 , comparison.getConfidence( current.finish().getTopLevelMethod() ) , DELTA );
+    }
+
+    @Test
+    public void testNoise()
+    {
+        final StatisticalProfile current = new StatisticalProfile( "main" );
+        add( current , 5 , 5 );
+        add( current , 4 , 6 );
+        add( current , 6 , 4 );
+        final StatisticalProfile previous = new StatisticalProfile( "main" );
+        add( previous , 4.5f , 5.5f );
+        add( previous , 6 , 4 );
+        add( previous , 5 , 5 );
+
+        final StatisticalComparison comparison = new StatisticalComparison( current , previous , 0.05 );
+        final MethodStats a = child( current.finish() , "a" );
+        assertTrue( comparison.getPValue( a ) > 0.5 );
+        assertEquals( 0 , comparison.getConfidence( a ) , DELTA );
+    }
+
+    @Test
+    public void testSingleRuns()
+    {
+        final StatisticalProfile current = new StatisticalProfile( "main" );
+        add( current , 5 , 5 );
+        final StatisticalProfile previous = new StatisticalProfile( "main" );
+        add( previous , 1 , 9 );
+
+        final StatisticalComparison comparison = new StatisticalComparison( current , previous , 0.05 );
+        final MethodStats a = child( current.finish() , "a" );
+        assertTrue( Double.isNaN( comparison.getPValue( a ) ) );
+        assertEquals( 1 , comparison.getConfidence( a ) , DELTA );
+    }
+
+    /**
+     * Adds a run where 'run' calls 'a' and 'b' with the given times, no call to 'b' if its time is negative.
+     */
+    private static void add(StatisticalProfile profile,float timeA,float timeB)
+    {
+        final CallTreeBuilder builder = new CallTreeBuilder();
+        final int run = builder.methodId( "demo/Demo" , "run" , "()V" , -1 );
+        CallTreeBuilder.addWeight( builder.addStack( "main" , new int[] { run , builder.methodId( "demo/Demo" , "a" , "()V" , -1 ) } , 2 ) , timeA , 1 );
+        if ( timeB >= 0 ) {
+            CallTreeBuilder.addWeight( builder.addStack( "main" , new int[] { run , builder.methodId( "demo/Demo" , "b" , "()V" , -1 ) } , 2 ) , timeB , 1 );
+        }
+        final ProfileContainer container = builder.build();
+        profile.add( container.getProfiles().get(0) , container );
+    }
+
+    private static MethodStats child(Profile profile,String name) {
+        return profile.getTopLevelMethod().getCallees().get( MethodIdentifier.contentId( "demo/Demo" , name , "()V" , -1 ) );
+    }
+}
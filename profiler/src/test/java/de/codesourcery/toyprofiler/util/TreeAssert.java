@@ -0,0 +1,152 @@
+package de.codesourcery.toyprofiler.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+
+import de.codesourcery.toyprofiler.IClassMethodsContainer;
+import de.codesourcery.toyprofiler.Profile;
+import de.codesourcery.toyprofiler.Profile.MethodIdentifier;
+import de.codesourcery.toyprofiler.Profile.MethodStats;
+import de.codesourcery.toyprofiler.ProfileContainer;
+
+/**
+ * Helpers for comparing and creating call trees in tests.
+ *
+ * Nodes are compared by method name rather than by method ID, so trees
+ * from different method containers can be compared.
+ */
+final class TreeAssert
+{
+    private TreeAssert() {
+    }
+
+    /**
+     * Creates a container with two threads, one of them with a branching tree and one with
+     * a single stack.
+     */
+    public static ProfileContainer sampleProfiles()
+    {
+        final CallTreeBuilder builder = new CallTreeBuilder();
+        final int run = builder.methodId( "demo/Demo" , "run" , "()V" , -1 );
+        final int a = builder.methodId( "demo/Demo" , "a" , "(I)V" , 12 );
+        final int b = builder.methodId( "demo/Demo" , "b" , "(I)V" , 14 );
+        final int c = builder.methodId( "demo/Other" , "c" , "()Ljava/lang/String;" , -1 );
+        CallTreeBuilder.addWeight( builder.addStack( "main" , new int[] { run , a } , 2 ) , 1.5f , 3 );
+        CallTreeBuilder.addWeight( builder.addStack( "main" , new int[] { run , a , b } , 3 ) , 2f , 1 );
+        CallTreeBuilder.addWeight( builder.addStack( "main" , new int[] { run , b , c } , 3 ) , 0.25f , 7 );
+        CallTreeBuilder.addWeight( builder.addStack( "main" , new int[] { run } , 1 ) , 1f , 1 );
+        CallTreeBuilder.addWeight( builder.addStack( "worker-1" , new int[] { run , c } , 2 ) , 4f , 2 );
+        return builder.build();
+    }
+
+    /**
+     * Creates a container with a single thread whose call tree is a chain of <code>depth</code> nodes.
+     */
+    public static ProfileContainer deepProfile(int depth)
+    {
+        final CallTreeBuilder builder = new CallTreeBuilder();
+        final int[] stack = new int[ depth ];
+        for ( int i = 0 ; i < depth ; i++ ) {
+            stack[i] = builder.methodId( "demo/Deep" , "level"+( i % 10 ) , "()V" , -1 );
+        }
+        CallTreeBuilder.addWeight( builder.addStack( "main" , stack , depth ) , 1f , 1 );
+        return builder.build();
+    }
+
+    public static void save(ProfileContainer container,File file) throws IOException
+    {
+        try ( OutputStream out = ProfileFiles.openOutput( file ) ) {
+            new XMLSerializer().save( container.getMethodContainer() , container.getProfiles() , out );
+        }
+    }
+
+    public static void write(File file,String content) throws IOException {
+        Files.write( file.toPath() , content.getBytes( StandardCharsets.UTF_8 ) );
+    }
+
+    /**
+     * Deletes a profile file and the index the mapped loader created next to it.
+     */
+    public static void delete(File file)
+    {
+        file.delete();
+        new File( file.getAbsolutePath()+".idx" ).delete();
+    }
+
+    public static int depth(MethodStats root)
+    {
+        int depth = 0;
+        for ( MethodStats current = root ; current != null ; depth++ ) {
+            current = current.getCallees().isEmpty() ? null : current.getCallees().values().iterator().next();
+        }
+        return depth;
+    }
+
+    public static void assertSameProfiles(ProfileContainer expected,ProfileContainer actual)
+    {
+        assertEquals( "Profile count" , expected.size() , actual.size() );
+        for ( Profile profile : expected )
+        {
+            final Profile other = actual.getProfileForThread( profile.getThreadName() ).orElse( null );
+            assertNotNull( "Missing thread "+profile.getThreadName() , other );
+            assertSameTree( expected , profile.getTopLevelMethod() , actual , other.getTopLevelMethod() );
+        }
+    }
+
+    public static void assertSameTree(IClassMethodsContainer expectedMethods,MethodStats expected,IClassMethodsContainer actualMethods,MethodStats actual)
+    {
+        if ( expected == null ) {
+            assertNull( actual );
+            return;
+        }
+        assertNotNull( "Missing tree" , actual );
+
+        final Deque<MethodStats> expectedStack = new ArrayDeque<>();
+        final Deque<MethodStats> actualStack = new ArrayDeque<>();
+        expectedStack.push( expected );
+        actualStack.push( actual );
+        while ( ! expectedStack.isEmpty() )
+        {
+            final MethodStats e = expectedStack.pop();
+            final MethodStats a = actualStack.pop();
+            final String name = name( expectedMethods , e );
+            assertEquals( name , name( actualMethods , a ) );
+            assertEquals( "Invocations of "+name , e.getInvocationCount() , a.getInvocationCount() );
+            assertEquals( "Total time of "+name , e.getTotalTimeMillis() , a.getTotalTimeMillis() , 0.0001 );
+            assertEquals( "Callees of "+name , e.getCallees().size() , a.getCallees().size() );
+
+            final Map<String,MethodStats> byName = new HashMap<>();
+            for ( MethodStats callee : a.getCallees().values() ) {
+                byName.put( name( actualMethods , callee ) , callee );
+            }
+            for ( MethodStats callee : e.getCallees().values() )
+            {
+                final MethodStats match = byName.get( name( expectedMethods , callee ) );
+                if ( match == null ) {
+                    fail( "Missing callee "+name( expectedMethods , callee )+" of "+name );
+                }
+                expectedStack.push( callee );
+                actualStack.push( match );
+            }
+        }
+    }
+
+    public static String name(IClassMethodsContainer methods,MethodStats node)
+    {
+        final MethodIdentifier method = methods.getRawMethodName( node.getMethodId() );
+        assertNotNull( "Unknown method ID "+node.getMethodId() , method );
+        return method.className+"|"+method.methodName+"|"+method.methodSignature+"|"+method.lineNumber;
+    }
+}
@@ -0,0 +1,68 @@
+package de.codesourcery.toyprofiler.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class WelchTTestTest
+{
+    private static final double DELTA = 1e-9;
+
+    @Test
+    public void testOneDegreeOfFreedom()
+    {
+        // t = 1 with one degree of freedom (Cauchy distribution): p = 1 - 2/pi * atan(1)
+        assertEquals( 0.5 , WelchTTest.pValue( 2 , 2 , 2 , 1 , 0 , 1 ) , DELTA );
+        // t = 3
+        assertEquals( 1 - 2 / Math.PI * Math.atan( 3 ) , WelchTTest.pValue( 4 , 2 , 2 , 1 , 123 , 1 ) , DELTA );
+    }
+
+    @Test
+    public void testTwoDegreesOfFreedom()
+    {
+        // equal variances and two samples each give two degrees of freedom: p = 1 - |t| / sqrt(2 + t^2)
+        assertEquals( 1 - 2 / Math.sqrt( 6 ) , WelchTTest.pValue( 3 , 1 , 2 , 1 , 1 , 2 ) , DELTA );
+        assertEquals( 1 - 0.5 / Math.sqrt( 2.25 ) , WelchTTest.pValue( 1 , 4 , 2 , 2 , 4 , 2 ) , DELTA );
+    }
+
+    @Test
+    public void testLargeSamplesApproachNormalDistribution()
+    {
+        // t = 1.96 with ~2000 degrees of freedom
+        final double p = WelchTTest.pValue( 1.96 , 500 , 1000 , 0 , 500 , 1000 );
+        assertEquals( 0.05 , p , 0.0005 );
+    }
+
+    @Test
+    public void testSymmetry()
+    {
+        final double p = WelchTTest.pValue( 10 , 4 , 5 , 12 , 9 , 7 );
+        assertTrue( p > 0 && p < 1 );
+        assertEquals( p , WelchTTest.pValue( 12 , 9 , 7 , 10 , 4 , 5 ) , DELTA );
+        assertEquals( p , WelchTTest.pValue( 20 , 4 , 5 , 22 , 9 , 7 ) , DELTA );
+    }
+
+    @Test
+    public void testEqualMeans()
+    {
+        assertEquals( 1 , WelchTTest.pValue( 5 , 3 , 10 , 5 , 7 , 20 ) , DELTA );
+    }
+
+    @Test
+    public void testHugeDifference()
+    {
+        final double p = WelchTTest.pValue( 1000 , 1 , 30 , 0 , 1 , 30 );
+        assertTrue( "p = "+p , p >= 0 && p < 1e-12 );
+    }
+
+    @Test
+    public void testDegenerateSamples()
+    {
+        assertTrue( Double.isNaN( WelchTTest.pValue( 1 , 0 , 1 , 2 , 0 , 1 ) ) );
+        assertTrue( Double.isNaN( WelchTTest.pValue( 1 , 0 , 0 , 2 , 0 , 0 ) ) );
+        // no variance at all
+        assertEquals( 1 , WelchTTest.pValue( 3 , 0 , 5 , 3 , 0 , 5 ) , DELTA );
+        assertEquals( 0 , WelchTTest.pValue( 3 , 0 , 5 , 4 , 0 , 5 ) , DELTA );
+    }
+}
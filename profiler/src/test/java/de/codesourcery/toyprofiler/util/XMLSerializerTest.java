@@ -0,0 +1,248 @@
+package de.codesourcery.toyprofiler.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Collections;
+
+import org.junit.Test;
+
+import de.codesourcery.toyprofiler.ClassMethodsContainer;
+import de.codesourcery.toyprofiler.Profile;
+import de.codesourcery.toyprofiler.Profile.MethodStats;
+import de.codesourcery.toyprofiler.ProfileContainer;
+
+public class XMLSerializerTest
+{
+    @Test
+    public void testConcurrentLoadMatchesSequentialLoad() throws IOException
+    {
+        final CallTreeBuilder builder = new CallTreeBuilder();
+        final int run = builder.methodId( "demo/Demo" , "run" , "()V" , -1 );
+        for ( int thread = 0 ; thread < 24 ; thread++ )
+        {
+            for ( int i = 0 ; i < 50 ; i++ )
+            {
+                final int method = builder.methodId( "demo/Worker"+( i % 7 ) , "work" , "(I)V" , i );
+                CallTreeBuilder.addWeight( builder.addStack( "thread-"+thread , new int[] { run , method , run } , 1 + i % 3 ) , thread + i , 1 );
+            }
+        }
+        final ProfileContainer expected = builder.build();
+
+        final File file = File.createTempFile( "toyprofiler" , ".xml" );
+        try
+        {
+            TreeAssert.save( expected , file );
+            final ProfileContainer concurrent = new XMLSerializer().load( file );
+            final ProfileContainer sequential;
+            try ( InputStream in = new FileInputStream( file ) ) {
+                sequential = new XMLSerializer().load( in );
+            }
+            TreeAssert.assertSameProfiles( expected , concurrent );
+            TreeAssert.assertSameProfiles( expected , sequential );
+            for ( int i = 0 ; i < expected.size() ; i++ ) {
+                assertEquals( "Profiles out of order" , sequential.getProfiles().get(i).getThreadName() , concurrent.getProfiles().get(i).getThreadName() );
+            }
+        }
+        finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testScannerSkipsMarkupInsideAttributes() throws IOException
+    {
+        final File file = File.createTempFile( "toyprofiler" , ".xml" );
+        try
+        {
+            TreeAssert.write( file , "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"+
+                "<profilingResults>\n"+
+                "  <methodNames>\n"+
+                "    <methodName id=\"1\" name=\"demo/Demo|run|()V\"/>\n"+
+                "    <methodName id='2' name='demo/Demo|&lt;init&gt;|(Ljava/lang/String;)V'/>\n"+
+                "  </methodNames>\n"+
+                "  <profiles>\n"+
+                "    <profile threadName=\"a &lt;profile&gt; b\" creationTime=\"42\">\n"+
+                "      <invocation methodNameId=\"1\" invocations=\"1\" totalTime=\"3.0\">\n"+
+                "        <invocation methodNameId=\"2\" invocations=\"2\" totalTime=\"1.5\"/>\n"+
+                "      </invocation>\n"+
+                "    </profile>\n"+
+                "    <profile threadName='idle' creationTime='7'/>\n"+
+                "  </profiles>\n"+
+                "</profilingResults>\n" );
+
+            final ProfileContainer container = new XMLSerializer().load( file );
+            assertEquals( 2 , container.size() );
+
+            final Profile main = container.getProfiles().get(0);
+            assertEquals( "a <profile> b" , main.getThreadName() );
+            assertEquals( 42 , main.getCreationTimeMillis() );
+            final MethodStats root = main.getTopLevelMethod();
+            assertEquals( "demo/Demo|run|()V|-1" , TreeAssert.name( container , root ) );
+            assertEquals( 1 , root.getCallees().size() );
+            final MethodStats child = root.getCallees().values().iterator().next();
+            assertEquals( "demo/Demo|<init>|(Ljava/lang/String;)V|-1" , TreeAssert.name( container , child ) );
+            assertEquals( 2 , child.getInvocationCount() );
+            assertEquals( 1.5 , child.getTotalTimeMillis() , 0.0001 );
+
+            final Profile idle = container.getProfiles().get(1);
+            assertEquals( "idle" , idle.getThreadName() );
+            assertEquals( 7 , idle.getCreationTimeMillis() );
+            assertNull( idle.getTopLevelMethod() );
+        }
+        finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testUnexpectedStructureFallsBackToSequentialLoad() throws IOException
+    {
+        final File file = File.createTempFile( "toyprofiler" , ".xml" );
+        try
+        {
+            // no <methodNames/> element
+            TreeAssert.write( file , "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"+
+                "<profilingResults><profiles><profile threadName=\"main\" creationTime=\"1\">"+
+                "<invocation methodNameId=\"1\" invocations=\"3\" totalTime=\"2.0\"/>"+
+                "</profile></profiles></profilingResults>" );
+
+            final ProfileContainer container = new XMLSerializer().load( file );
+            assertEquals( 1 , container.size() );
+            assertEquals( 3 , container.getProfiles().get(0).getTopLevelMethod().getInvocationCount() );
+        }
+        finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testMalformedProfileFails() throws IOException
+    {
+        final File file = File.createTempFile( "toyprofiler" , ".xml" );
+        try
+        {
+            TreeAssert.write( file , "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"+
+                "<profilingResults><methodNames><methodName id=\"1\" name=\"demo/Demo|run|()V\"/></methodNames>"+
+                "<profiles><profile threadName=\"main\" creationTime=\"1\">"+
+                "<invocation methodNameId=\"1\" invocations=\"3\" totalTime=\"2.0\"><broken></invocation>"+
+                "</profile></profiles></profilingResults>" );
+            try
+            {
+                new XMLSerializer().load( file );
+                fail("Should have failed");
+            }
+            catch(IOException e) {
+                // ok
+            }
+        }
+        finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testEmptyFile() throws IOException
+    {
+        final File file = File.createTempFile( "toyprofiler" , ".xml" );
+        try
+        {
+            new XMLSerializer().load( file );
+            fail("Should have failed");
+        }
+        catch(IOException e) {
+            // ok
+        }
+        finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testCompressedRoundTrip() throws IOException
+    {
+        final ProfileContainer expected = TreeAssert.sampleProfiles();
+        final File file = File.createTempFile( "toyprofiler" , ".xml"+ProfileFiles.COMPRESSED_SUFFIX );
+        try
+        {
+            TreeAssert.save( expected , file );
+            assertTrue( ProfileFiles.isCompressed( file ) );
+            TreeAssert.assertSameProfiles( expected , new XMLSerializer().load( file ) );
+        }
+        finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testCompressionIsDetectedByContent() throws IOException
+    {
+        final ProfileContainer expected = TreeAssert.sampleProfiles();
+        final File file = File.createTempFile( "toyprofiler" , ".xml" );
+        try
+        {
+            try ( OutputStream out = ProfileFiles.openOutput( file , true ) ) {
+                new XMLSerializer().save( expected.getMethodContainer() , expected.getProfiles() , out );
+            }
+            assertTrue( ProfileFiles.isCompressed( file ) );
+            TreeAssert.assertSameProfiles( expected , new XMLSerializer().load( file ) );
+            try ( InputStream in = new FileInputStream( file ) ) {
+                TreeAssert.assertSameProfiles( expected , new XMLSerializer().load( in ) );
+            }
+        }
+        finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testEmptyProfileRoundTrip() throws IOException
+    {
+        final Profile empty = new Profile( "idle" );
+        empty.setCreationTime( 99 );
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new XMLSerializer().save( new ClassMethodsContainer() , Collections.singletonList( empty ) , out );
+
+        final ProfileContainer loaded = new XMLSerializer().load( new ByteArrayInputStream( out.toByteArray() ) );
+        assertEquals( 1 , loaded.size() );
+        assertEquals( "idle" , loaded.getProfiles().get(0).getThreadName() );
+        assertEquals( 99 , loaded.getProfiles().get(0).getCreationTimeMillis() );
+        assertNull( loaded.getProfiles().get(0).getTopLevelMethod() );
+    }
+
+    @Test
+    public void testDeepTreeRoundTripOnSmallStack() throws Exception
+    {
+        final int depth = 20000;
+        final ProfileContainer expected = TreeAssert.deepProfile( depth );
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final Throwable[] error = new Throwable[1];
+        // a recursive writer would overflow this thread's stack
+        final Thread thread = new Thread( null , () ->
+        {
+            try {
+                new XMLSerializer().save( expected.getMethodContainer() , expected.getProfiles() , out );
+            } catch(Throwable t) {
+                error[0] = t;
+            }
+        } , "writer" , 256*1024 );
+        thread.start();
+        thread.join();
+        if ( error[0] != null ) {
+            throw new AssertionError( "Saving failed" , error[0] );
+        }
+
+        final ProfileContainer loaded = new XMLSerializer().load( new ByteArrayInputStream( out.toByteArray() ) );
+        assertEquals( depth , TreeAssert.depth( loaded.getProfiles().get(0).getTopLevelMethod() ) );
+        TreeAssert.assertSameProfiles( expected , loaded );
+    }
+}